@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import org.apache.kafka.common.utils.MappedByteBuffers;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A pool of reusable direct buffers. Buffers are handed out from power-of-two size classes (starting at 1 KB) and
+ * are kept by the pool once released, so that steady state allocation does not touch the allocator or the garbage
+ * collector. The total amount of direct memory reserved by the pool, whether in use or cached, never exceeds the
+ * pool size: when the pool is exhausted, cached buffers of other size classes are dropped to make room and, failing
+ * that, {@link #tryAllocate(int)} returns null. Requests larger than the maximum single allocation size also return
+ * null rather than throwing, so callers can fall back to a heap buffer.
+ */
+public class DirectBufferMemoryPool implements MemoryPool {
+    private static final Logger log = LoggerFactory.getLogger(DirectBufferMemoryPool.class);
+
+    static final int MIN_BUFFER_SIZE = 1024;
+    static final int MAX_BUFFER_SIZE = 1 << 30;
+    private static final int MIN_BUFFER_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    private final long sizeBytes;
+    private final int maxSingleAllocationSize;
+    private final AtomicLong availableMemory;
+    private final AtomicLong reservedMemory = new AtomicLong(0);
+    private final List<Deque<ByteBuffer>> freeBuffers;
+
+    public DirectBufferMemoryPool(long sizeInBytes, int maxSingleAllocationBytes) {
+        if (sizeInBytes <= 0 || maxSingleAllocationBytes <= 0 || maxSingleAllocationBytes > sizeInBytes)
+            throw new IllegalArgumentException("must provide a positive size and max single allocation size smaller than size."
+                + "provided " + sizeInBytes + " and " + maxSingleAllocationBytes + " respectively");
+        if (maxSingleAllocationBytes > MAX_BUFFER_SIZE)
+            throw new IllegalArgumentException("max single allocation size " + maxSingleAllocationBytes
+                + " is larger than the largest supported buffer size " + MAX_BUFFER_SIZE);
+        this.sizeBytes = sizeInBytes;
+        this.maxSingleAllocationSize = maxSingleAllocationBytes;
+        this.availableMemory = new AtomicLong(sizeInBytes);
+        int numSizeClasses = sizeClass(maxSingleAllocationBytes) + 1;
+        this.freeBuffers = new ArrayList<>(numSizeClasses);
+        for (int i = 0; i < numSizeClasses; i++)
+            freeBuffers.add(new ConcurrentLinkedDeque<>());
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int sizeBytes) {
+        if (sizeBytes < 1)
+            throw new IllegalArgumentException("requested size " + sizeBytes + "<=0");
+        if (sizeBytes > maxSingleAllocationSize)
+            return null;
+
+        int sizeClass = sizeClass(sizeBytes);
+        ByteBuffer buffer = freeBuffers.get(sizeClass).pollFirst();
+        if (buffer == null) {
+            int capacity = MIN_BUFFER_SIZE << sizeClass;
+            if (!reserve(capacity, sizeClass)) {
+                log.trace("refused to allocate buffer of size {}", sizeBytes);
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        availableMemory.addAndGet(-buffer.capacity());
+        buffer.clear();
+        buffer.limit(sizeBytes);
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer previouslyAllocated) {
+        if (previouslyAllocated == null)
+            throw new IllegalArgumentException("provided null buffer");
+        int capacity = previouslyAllocated.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (!previouslyAllocated.isDirect() || sizeClass >= freeBuffers.size() || capacity != MIN_BUFFER_SIZE << sizeClass)
+            throw new IllegalArgumentException("buffer of capacity " + capacity + " was not allocated by this pool");
+
+        availableMemory.addAndGet(capacity);
+        freeBuffers.get(sizeClass).offerFirst(previouslyAllocated);
+    }
+
+    @Override
+    public long size() {
+        return sizeBytes;
+    }
+
+    @Override
+    public long availableMemory() {
+        return availableMemory.get();
+    }
+
+    @Override
+    public boolean isOutOfMemory() {
+        return availableMemory.get() <= 0;
+    }
+
+    /**
+     * The amount of direct memory currently held by the pool, including cached buffers that are not in use.
+     */
+    public long reservedMemory() {
+        return reservedMemory.get();
+    }
+
+    private boolean reserve(int capacity, int sizeClass) {
+        while (true) {
+            long reserved = reservedMemory.get();
+            if (reserved + capacity <= sizeBytes) {
+                if (reservedMemory.compareAndSet(reserved, reserved + capacity))
+                    return true;
+            } else if (!dropCachedBuffer(sizeClass)) {
+                return false;
+            }
+        }
+    }
+
+    // Drop a cached buffer of another size class and free its memory right away, since a dropped buffer may not be
+    // garbage collected before the memory is allocated again. Larger classes are tried first so that as few buffers as
+    // possible are dropped.
+    private boolean dropCachedBuffer(int excludedSizeClass) {
+        for (int i = freeBuffers.size() - 1; i >= 0; i--) {
+            if (i == excludedSizeClass)
+                continue;
+            ByteBuffer dropped = freeBuffers.get(i).pollLast();
+            if (dropped != null) {
+                try {
+                    MappedByteBuffers.free("dropped pool buffer", dropped);
+                } catch (IOException e) {
+                    log.debug("Failed to free a dropped buffer, it will be freed by the garbage collector", e);
+                }
+                reservedMemory.addAndGet(-dropped.capacity());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int sizeClass(int sizeBytes) {
+        if (sizeBytes <= MIN_BUFFER_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(sizeBytes - 1) - MIN_BUFFER_SHIFT;
+    }
+
+    @Override
+    public String toString() {
+        long allocated = sizeBytes - availableMemory.get();
+        return "DirectBufferMemoryPool{" + Utils.formatBytes(allocated) + "/" + Utils.formatBytes(sizeBytes) + " used, "
+            + Utils.formatBytes(reservedMemory.get()) + " reserved}";
+    }
+}
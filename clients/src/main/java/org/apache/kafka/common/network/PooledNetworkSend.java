@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.network;
+
+import org.apache.kafka.common.memory.MemoryPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A size delimited Send whose size prefix and content were written into a single buffer allocated from a
+ * {@link MemoryPool}. The buffer is returned to the pool by {@link #release()}, which must be called once the send
+ * has completed or has been abandoned. Releasing more than once has no effect.
+ */
+public class PooledNetworkSend extends ByteBufferSend {
+
+    private final ByteBuffer buffer;
+    private final MemoryPool pool;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    /**
+     * @param buffer a buffer from `pool` holding the 4 byte size prefix followed by the content
+     */
+    public PooledNetworkSend(String destination, ByteBuffer buffer, MemoryPool pool) {
+        super(destination, buffer);
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public void release() {
+        if (released.compareAndSet(false, true))
+            pool.release(buffer);
+    }
+
+    public boolean released() {
+        return released.get();
+    }
+}
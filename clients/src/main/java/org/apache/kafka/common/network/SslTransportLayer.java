@@ -39,6 +39,7 @@ import javax.net.ssl.SSLSession;
 import org.apache.kafka.common.errors.SslAuthenticationException;
 import org.apache.kafka.common.security.auth.KafkaPrincipal;
 import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.MappedByteBuffers;
 import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 
@@ -67,6 +68,7 @@ public class SslTransportLayer implements TransportLayer {
     private ByteBuffer netReadBuffer;
     private ByteBuffer netWriteBuffer;
     private ByteBuffer appReadBuffer;
+    private ByteBuffer fileChannelBuffer;
     private boolean hasBytesBuffered;
     private ByteBuffer emptyBuf = ByteBuffer.allocate(0);
 
@@ -185,6 +187,7 @@ public class SslTransportLayer implements TransportLayer {
             netReadBuffer = null;
             netWriteBuffer = null;
             appReadBuffer = null;
+            freeFileChannelBuffer();
         }
     }
 
@@ -818,6 +821,11 @@ public class SslTransportLayer implements TransportLayer {
         return appReadBuffer;
     }
 
+    // Visibility for testing
+    protected ByteBuffer fileChannelBuffer() {
+        return fileChannelBuffer;
+    }
+
     /**
      * SSL exceptions are propagated as authentication failures so that clients can avoid
      * retries and report the failure. If `flush` is true, exceptions are propagated after
@@ -901,8 +909,64 @@ public class SslTransportLayer implements TransportLayer {
             hasBytesBuffered = false;
     }
 
+    /**
+     * Transfers up to `count` bytes of the file starting at `position` to this channel. File data has to be
+     * encrypted in user space, so rather than going through `FileChannel.transferTo`, which copies to an arbitrary
+     * channel in small chunks and therefore produces small TLS records, the data is read into a buffer sized to the
+     * SSL session's application buffer so that each `write` fills a complete TLS record. Bytes read from the file but
+     * not consumed by the SSL engine are read again on the next call. The buffer is a direct buffer, so that reading
+     * from the file does not go through a temporary direct buffer of the JDK. It is allocated by the first transfer,
+     * reused by every later one and freed when the channel is closed.
+     *
+     * @return The number of bytes transferred, possibly zero
+     */
     @Override
     public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
-        return fileChannel.transferTo(position, count, this);
+        if (state == State.CLOSING)
+            throw closingException();
+        if (state != State.READY)
+            return 0;
+
+        if (!flush(netWriteBuffer))
+            return 0;
+
+        if (fileChannelBuffer == null || fileChannelBuffer.capacity() < applicationBufferSize()) {
+            freeFileChannelBuffer();
+            fileChannelBuffer = ByteBuffer.allocateDirect(applicationBufferSize());
+        }
+
+        long totalWritten = 0;
+        while (totalWritten < count) {
+            fileChannelBuffer.clear();
+            fileChannelBuffer.limit((int) Math.min(fileChannelBuffer.capacity(), count - totalWritten));
+            int read = fileChannel.read(fileChannelBuffer, position + totalWritten);
+            if (read <= 0)
+                break;
+            fileChannelBuffer.flip();
+
+            int written = 0;
+            while (fileChannelBuffer.hasRemaining()) {
+                int bytes = write(fileChannelBuffer);
+                if (bytes == 0)
+                    break;
+                written += bytes;
+            }
+            totalWritten += written;
+            // Stop once the socket can't take more data, the unsent bytes are read from the file again next time
+            if (fileChannelBuffer.hasRemaining() || hasPendingWrites())
+                break;
+        }
+        return totalWritten;
+    }
+
+    private void freeFileChannelBuffer() {
+        if (fileChannelBuffer == null)
+            return;
+        try {
+            MappedByteBuffers.free("SSL file transfer buffer", fileChannelBuffer);
+        } catch (IOException e) {
+            log.debug("Failed to free the SSL file transfer buffer, it will be freed by the garbage collector", e);
+        }
+        fileChannelBuffer = null;
     }
 }
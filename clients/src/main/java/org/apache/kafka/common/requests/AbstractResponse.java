@@ -16,10 +16,16 @@
  */
 package org.apache.kafka.common.requests;
 
+import org.apache.kafka.common.errors.UnsupportedVersionException;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.network.NetworkSend;
+import org.apache.kafka.common.network.PooledNetworkSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.ByteBufferAccessor;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.protocol.Message;
+import org.apache.kafka.common.protocol.ObjectSerializationCache;
 import org.apache.kafka.common.protocol.types.Struct;
 
 import java.nio.ByteBuffer;
@@ -35,6 +41,50 @@ public abstract class AbstractResponse implements AbstractRequestResponse {
         return new NetworkSend(destination, RequestUtils.serialize(header.toStruct(), toStruct(apiVersion)));
     }
 
+    /**
+     * Serialize this response directly from its generated message into a buffer allocated from `pool`, skipping the
+     * intermediate Struct. The returned send must be {@link PooledNetworkSend#release() released} once it has been
+     * written out. Falls back to {@link #toSend(String, ResponseHeader, short)} if this response is not backed by a
+     * generated message or if the pool cannot satisfy the allocation.
+     */
+    protected Send toSend(String destination, ResponseHeader header, short apiVersion, MemoryPool pool) {
+        Message data = data();
+        if (data == null || pool == null || pool == MemoryPool.NONE)
+            return toSend(destination, header, apiVersion);
+
+        ObjectSerializationCache cache = new ObjectSerializationCache();
+        short headerVersion = header.headerVersion();
+        int size = header.data().size(cache, headerVersion) + data.size(cache, apiVersion);
+        ByteBuffer buffer = pool.tryAllocate(4 + size);
+        if (buffer == null)
+            return toSend(destination, header, apiVersion);
+
+        try {
+            ByteBufferAccessor accessor = new ByteBufferAccessor(buffer);
+            accessor.writeInt(size);
+            header.data().write(accessor, cache, headerVersion);
+            data.write(accessor, cache, apiVersion);
+        } catch (UnsupportedVersionException e) {
+            // The generated writer rejects fields that are set but not supported by this version, which the Struct
+            // conversion silently drops. Keep the latter behaviour.
+            pool.release(buffer);
+            return toSend(destination, header, apiVersion);
+        } catch (RuntimeException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        buffer.flip();
+        return new PooledNetworkSend(destination, buffer, pool);
+    }
+
+    /**
+     * The generated message backing this response, or null if the response is serialized by other means. Responses
+     * should only return a message here if {@link #toStruct(short)} is exactly the message's own struct.
+     */
+    protected Message data() {
+        return null;
+    }
+
     /**
      * Visible for testing, typically {@link #toSend(String, ResponseHeader, short)} should be used instead.
      */
@@ -48,6 +48,7 @@ public class AlterPartitionReassignmentsResponse extends AbstractResponse {
         return new AlterPartitionReassignmentsResponse(ApiKeys.ALTER_PARTITION_REASSIGNMENTS.responseSchema(version).read(buffer), version);
     }
 
+    @Override
     public AlterPartitionReassignmentsResponseData data() {
         return data;
     }
@@ -53,6 +53,11 @@ public class ApiVersionsResponse extends AbstractResponse {
         this(new ApiVersionsResponseData(struct, version));
     }
 
+    @Override
+    public ApiVersionsResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return this.data.toStruct(version);
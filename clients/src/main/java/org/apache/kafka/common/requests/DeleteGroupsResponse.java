@@ -54,6 +54,11 @@ public class DeleteGroupsResponse extends AbstractResponse {
         this.data = new DeleteGroupsResponseData(struct, version);
     }
 
+    @Override
+    public DeleteGroupsResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -76,6 +76,11 @@ public class DescribeDelegationTokenResponse extends AbstractResponse {
         return errorCounts(error());
     }
 
+    @Override
+    public DescribeDelegationTokenResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
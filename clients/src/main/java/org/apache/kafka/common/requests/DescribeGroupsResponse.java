@@ -106,6 +106,7 @@ public class DescribeGroupsResponse extends AbstractResponse {
         return  groupMetada;
     }
 
+    @Override
     public DescribeGroupsResponseData data() {
         return data;
     }
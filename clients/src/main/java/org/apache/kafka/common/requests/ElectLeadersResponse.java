@@ -69,6 +69,7 @@ public class ElectLeadersResponse extends AbstractResponse {
         data.setReplicaElectionResults(electionResults);
     }
 
+    @Override
     public ElectLeadersResponseData data() {
         return data;
     }
@@ -54,6 +54,11 @@ public class ExpireDelegationTokenResponse extends AbstractResponse {
         return Collections.singletonMap(error(), 1);
     }
 
+    @Override
+    public ExpireDelegationTokenResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -62,6 +62,11 @@ public class HeartbeatResponse extends AbstractResponse {
         return Collections.singletonMap(error(), 1);
     }
 
+    @Override
+    public HeartbeatResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -63,6 +63,7 @@ public class IncrementalAlterConfigsResponse extends AbstractResponse {
         this.data = new IncrementalAlterConfigsResponseData(struct, version);
     }
 
+    @Override
     public IncrementalAlterConfigsResponseData data() {
         return data;
     }
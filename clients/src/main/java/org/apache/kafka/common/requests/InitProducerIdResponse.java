@@ -53,6 +53,11 @@ public class InitProducerIdResponse extends AbstractResponse {
         return errorCounts(Errors.forCode(data.errorCode()));
     }
 
+    @Override
+    public InitProducerIdResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -46,6 +46,7 @@ public class JoinGroupResponse extends AbstractResponse {
         this.data = new JoinGroupResponseData(struct, version);
     }
 
+    @Override
     public JoinGroupResponseData data() {
         return data;
     }
@@ -67,6 +67,11 @@ public class LeaderAndIsrResponse extends AbstractResponse {
         return new LeaderAndIsrResponse(ApiKeys.LEADER_AND_ISR.parseResponse(version, buffer), version);
     }
 
+    @Override
+    public LeaderAndIsrResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -134,6 +134,11 @@ public class LeaveGroupResponse extends AbstractResponse {
         return combinedErrorCounts;
     }
 
+    @Override
+    public LeaveGroupResponseData data() {
+        return data;
+    }
+
     @Override
     public Struct toStruct(short version) {
         return data.toStruct(version);
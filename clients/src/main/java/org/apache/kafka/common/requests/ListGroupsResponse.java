@@ -37,6 +37,7 @@ public class ListGroupsResponse extends AbstractResponse {
         this.data = new ListGroupsResponseData(struct, version);
     }
 
+    @Override
     public ListGroupsResponseData data() {
         return data;
     }
@@ -45,6 +45,7 @@ public class ListPartitionReassignmentsResponse extends AbstractResponse {
         return new ListPartitionReassignmentsResponse(ApiKeys.LIST_PARTITION_REASSIGNMENTS.responseSchema(version).read(buffer), version);
     }
 
+    @Override
     public ListPartitionReassignmentsResponseData data() {
         return data;
     }
@@ -19,19 +19,27 @@ package org.apache.kafka.common.requests;
 import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.message.MetadataResponseData;
 import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseBroker;
 import org.apache.kafka.common.message.MetadataResponseData.MetadataResponsePartition;
 import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseTopic;
+import org.apache.kafka.common.network.ByteBufferSend;
+import org.apache.kafka.common.network.PooledNetworkSend;
+import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.ByteBufferAccessor;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.protocol.ObjectSerializationCache;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.utils.ByteUtils;
 import org.apache.kafka.common.utils.Utils;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -61,6 +69,13 @@ public class MetadataResponse extends AbstractResponse {
     private volatile Holder holder;
     private final boolean hasReliableLeaderEpochs;
 
+    // Responses prepared from pre-serialized topics keep their topics out of `data`. Such a response is written by
+    // splicing the topics into `serializedEnvelope`, which is `data` serialized without topics at `serializedVersion`.
+    private final List<SerializedTopic> serializedTopics;
+    private final short serializedVersion;
+    private final ByteBuffer serializedEnvelope;
+    private volatile MetadataResponseData completeData;
+
     public MetadataResponse(MetadataResponseData data) {
         this(data, true);
     }
@@ -76,13 +91,126 @@ public class MetadataResponse extends AbstractResponse {
     }
 
     private MetadataResponse(MetadataResponseData data, boolean hasReliableLeaderEpochs) {
+        this(data, hasReliableLeaderEpochs, Collections.emptyList(), (short) -1, null);
+    }
+
+    private MetadataResponse(MetadataResponseData data, boolean hasReliableLeaderEpochs,
+                             List<SerializedTopic> serializedTopics, short serializedVersion, ByteBuffer serializedEnvelope) {
         this.data = data;
         this.hasReliableLeaderEpochs = hasReliableLeaderEpochs;
+        this.serializedTopics = serializedTopics;
+        this.serializedVersion = serializedVersion;
+        this.serializedEnvelope = serializedEnvelope;
+    }
+
+    @Override
+    public MetadataResponseData data() {
+        if (serializedEnvelope == null)
+            return data;
+        if (completeData == null) {
+            synchronized (data) {
+                if (completeData == null)
+                    completeData = completeData();
+            }
+        }
+        return completeData;
+    }
+
+    // Parse the pre-serialized topics back into a copy of `data`, for callers that need the whole message
+    private MetadataResponseData completeData() {
+        MetadataResponseData complete = new MetadataResponseData()
+            .setThrottleTimeMs(data.throttleTimeMs())
+            .setClusterId(data.clusterId())
+            .setControllerId(data.controllerId())
+            .setClusterAuthorizedOperations(data.clusterAuthorizedOperations());
+        for (MetadataResponseBroker broker : data.brokers()) {
+            complete.brokers().add(new MetadataResponseBroker()
+                .setNodeId(broker.nodeId())
+                .setHost(broker.host())
+                .setPort(broker.port())
+                .setRack(broker.rack()));
+        }
+        for (SerializedTopic topic : serializedTopics)
+            complete.topics().add(new MetadataResponseTopic(new ByteBufferAccessor(topic.buffer()), serializedVersion));
+        return complete;
     }
 
     @Override
     protected Struct toStruct(short version) {
-        return data.toStruct(version);
+        return data().toStruct(version);
+    }
+
+    @Override
+    protected Send toSend(String destination, ResponseHeader header, short apiVersion) {
+        if (serializedEnvelope == null || apiVersion != serializedVersion)
+            return super.toSend(destination, header, apiVersion);
+        return new ByteBufferSend(destination, serializedBuffers(header));
+    }
+
+    /**
+     * Responses prepared from pre-serialized topics are written by copying the topics into a buffer from `pool`, or by
+     * a gathering write of the shared topic buffers if the pool cannot satisfy the allocation.
+     */
+    @Override
+    protected Send toSend(String destination, ResponseHeader header, short apiVersion, MemoryPool pool) {
+        if (serializedEnvelope == null || apiVersion != serializedVersion)
+            return super.toSend(destination, header, apiVersion, pool);
+
+        ByteBuffer[] buffers = serializedBuffers(header);
+        if (pool == null || pool == MemoryPool.NONE)
+            return new ByteBufferSend(destination, buffers);
+        int size = 0;
+        for (ByteBuffer buffer : buffers)
+            size += buffer.remaining();
+        ByteBuffer pooled = pool.tryAllocate(size);
+        if (pooled == null)
+            return new ByteBufferSend(destination, buffers);
+        for (ByteBuffer buffer : buffers)
+            pooled.put(buffer);
+        pooled.flip();
+        return new PooledNetworkSend(destination, pooled, pool);
+    }
+
+    /**
+     * The size delimited response as a sequence of buffers: the size, header and envelope up to the topics array, the
+     * topics array length, each topic, and the rest of the envelope.
+     */
+    private ByteBuffer[] serializedBuffers(ResponseHeader header) {
+        boolean flexible = serializedVersion >= 9;
+        // The envelope has an empty topics array, followed by the cluster authorized operations from version 8 and
+        // the (empty) tagged fields of flexible versions
+        int emptyTopicsLengthSize = flexible ? ByteUtils.sizeOfUnsignedVarint(1) : 4;
+        int trailingSize = (serializedVersion >= 8 ? 4 : 0) + (flexible ? ByteUtils.sizeOfUnsignedVarint(0) : 0);
+        int topicsOffset = serializedEnvelope.remaining() - trailingSize - emptyTopicsLengthSize;
+        int topicsLengthSize = flexible ? ByteUtils.sizeOfUnsignedVarint(serializedTopics.size() + 1) : 4;
+
+        ObjectSerializationCache cache = new ObjectSerializationCache();
+        short headerVersion = header.headerVersion();
+        int headerSize = header.data().size(cache, headerVersion);
+        int size = headerSize + topicsOffset + topicsLengthSize + trailingSize;
+        for (SerializedTopic topic : serializedTopics)
+            size += topic.sizeInBytes();
+
+        ByteBuffer prefix = ByteBuffer.allocate(4 + headerSize + topicsOffset + topicsLengthSize);
+        prefix.putInt(size);
+        header.data().write(new ByteBufferAccessor(prefix), cache, headerVersion);
+        ByteBuffer envelopeHead = serializedEnvelope.duplicate();
+        envelopeHead.limit(envelopeHead.position() + topicsOffset);
+        prefix.put(envelopeHead);
+        if (flexible)
+            ByteUtils.writeUnsignedVarint(serializedTopics.size() + 1, prefix);
+        else
+            prefix.putInt(serializedTopics.size());
+        prefix.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[serializedTopics.size() + 2];
+        buffers[0] = prefix;
+        for (int i = 0; i < serializedTopics.size(); i++)
+            buffers[i + 1] = serializedTopics.get(i).buffer();
+        ByteBuffer envelopeTail = serializedEnvelope.duplicate();
+        envelopeTail.position(envelopeTail.position() + topicsOffset + emptyTopicsLengthSize);
+        buffers[buffers.length - 1] = envelopeTail;
+        return buffers;
     }
 
     @Override
@@ -100,6 +228,10 @@ public class MetadataResponse extends AbstractResponse {
             if (metadata.errorCode() != Errors.NONE.code())
                 errors.put(metadata.name(), Errors.forCode(metadata.errorCode()));
         }
+        for (SerializedTopic topic : serializedTopics) {
+            if (topic.error() != Errors.NONE)
+                errors.put(topic.topic(), topic.error());
+        }
         return errors;
     }
 
@@ -108,6 +240,8 @@ public class MetadataResponse extends AbstractResponse {
         Map<Errors, Integer> errorCounts = new HashMap<>();
         for (MetadataResponseTopic metadata : data.topics())
             updateErrorCounts(errorCounts, Errors.forCode(metadata.errorCode()));
+        for (SerializedTopic topic : serializedTopics)
+            updateErrorCounts(errorCounts, topic.error());
         return errorCounts;
     }
 
@@ -120,6 +254,10 @@ public class MetadataResponse extends AbstractResponse {
             if (metadata.errorCode() == error.code())
                 errorTopics.add(metadata.name());
         }
+        for (SerializedTopic topic : serializedTopics) {
+            if (topic.error() == error)
+                errorTopics.add(topic.topic());
+        }
         return errorTopics;
     }
 
@@ -147,7 +285,7 @@ public class MetadataResponse extends AbstractResponse {
      * Returns a 32-bit bitfield to represent authorized operations for this topic.
      */
     public Optional<Integer> topicAuthorizedOperations(String topicName) {
-        MetadataResponseTopic topic = data.topics().find(topicName);
+        MetadataResponseTopic topic = data().topics().find(topicName);
         if (topic == null)
             return Optional.empty();
         else
@@ -178,7 +316,7 @@ public class MetadataResponse extends AbstractResponse {
         if (holder == null) {
             synchronized (data) {
                 if (holder == null)
-                    holder = new Holder(data);
+                    holder = new Holder(data());
             }
         }
         return holder;
@@ -390,6 +528,64 @@ public class MetadataResponse extends AbstractResponse {
         }
     }
 
+    /**
+     * The metadata of a topic serialized as it appears in the topics array of a response of a given version. A
+     * serialized topic is immutable and can be shared by any number of responses of its version.
+     */
+    public static final class SerializedTopic {
+        private final String topic;
+        private final Errors error;
+        private final short version;
+        private final ByteBuffer buffer;
+
+        private SerializedTopic(String topic, Errors error, short version, ByteBuffer buffer) {
+            this.topic = topic;
+            this.error = error;
+            this.version = version;
+            this.buffer = buffer;
+        }
+
+        public static SerializedTopic serialize(TopicMetadata topicMetadata, short version) {
+            MetadataResponseTopic topic = responseTopic(topicMetadata);
+            // Like the struct of a response, leave out the authorized operations if the version does not support them
+            if (version < 8)
+                topic.setTopicAuthorizedOperations(AUTHORIZED_OPERATIONS_OMITTED);
+            ObjectSerializationCache cache = new ObjectSerializationCache();
+            ByteBuffer buffer = ByteBuffer.allocate(topic.size(cache, version));
+            topic.write(new ByteBufferAccessor(buffer), cache, version);
+            buffer.flip();
+            return new SerializedTopic(topicMetadata.topic, topicMetadata.error, version, buffer.asReadOnlyBuffer());
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        public Errors error() {
+            return error;
+        }
+
+        public short version() {
+            return version;
+        }
+
+        public int sizeInBytes() {
+            return buffer.remaining();
+        }
+
+        ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public String toString() {
+            return "SerializedTopic(topic=" + topic +
+                ", error=" + error +
+                ", version=" + version +
+                ", sizeInBytes=" + sizeInBytes() + ')';
+        }
+    }
+
     private static class Holder {
         private final Map<Integer, Node> brokers;
         private final Node controller;
@@ -450,6 +646,47 @@ public class MetadataResponse extends AbstractResponse {
     public static MetadataResponse prepareResponse(int throttleTimeMs, Collection<Node> brokers, String clusterId,
                                                    int controllerId, List<TopicMetadata> topicMetadataList,
                                                    int clusterAuthorizedOperations) {
+        MetadataResponseData responseData = responseData(throttleTimeMs, brokers, clusterId, controllerId,
+            clusterAuthorizedOperations);
+        topicMetadataList.forEach(topicMetadata -> responseData.topics().add(responseTopic(topicMetadata)));
+        return new MetadataResponse(responseData);
+    }
+
+    /**
+     * Prepare a response whose topics are the pre-serialized `serializedTopics`, which may be shared with other
+     * responses, followed by `topicMetadataList`. The response is written by splicing the serialized topics, so it
+     * can only be sent at `version`, the version of all of `serializedTopics`.
+     */
+    public static MetadataResponse prepareResponse(short version, int throttleTimeMs, Collection<Node> brokers,
+                                                   String clusterId, int controllerId,
+                                                   List<SerializedTopic> serializedTopics,
+                                                   List<TopicMetadata> topicMetadataList,
+                                                   int clusterAuthorizedOperations) {
+        List<SerializedTopic> topics = new ArrayList<>(serializedTopics.size() + topicMetadataList.size());
+        for (SerializedTopic topic : serializedTopics) {
+            if (topic.version() != version)
+                throw new IllegalArgumentException("Topic " + topic.topic() + " was serialized at version " +
+                    topic.version() + ", but the response is for version " + version);
+            topics.add(topic);
+        }
+        for (TopicMetadata topicMetadata : topicMetadataList)
+            topics.add(SerializedTopic.serialize(topicMetadata, version));
+
+        // Like the struct of a response, the envelope drops the fields that are not supported by its version
+        MetadataResponseData envelope = responseData(version >= 3 ? throttleTimeMs : 0, brokers, clusterId,
+            controllerId, version >= 8 ? clusterAuthorizedOperations : AUTHORIZED_OPERATIONS_OMITTED);
+        ObjectSerializationCache cache = new ObjectSerializationCache();
+        ByteBuffer buffer = ByteBuffer.allocate(envelope.size(cache, version));
+        envelope.write(new ByteBufferAccessor(buffer), cache, version);
+        buffer.flip();
+
+        MetadataResponseData responseData = responseData(throttleTimeMs, brokers, clusterId, controllerId,
+            clusterAuthorizedOperations);
+        return new MetadataResponse(responseData, true, topics, version, buffer);
+    }
+
+    private static MetadataResponseData responseData(int throttleTimeMs, Collection<Node> brokers, String clusterId,
+                                                     int controllerId, int clusterAuthorizedOperations) {
         MetadataResponseData responseData = new MetadataResponseData();
         responseData.setThrottleTimeMs(throttleTimeMs);
         brokers.forEach(broker ->
@@ -463,28 +700,28 @@ public class MetadataResponse extends AbstractResponse {
         responseData.setClusterId(clusterId);
         responseData.setControllerId(controllerId);
         responseData.setClusterAuthorizedOperations(clusterAuthorizedOperations);
+        return responseData;
+    }
 
-        topicMetadataList.forEach(topicMetadata -> {
-            MetadataResponseTopic metadataResponseTopic = new MetadataResponseTopic();
-            metadataResponseTopic
-                .setErrorCode(topicMetadata.error.code())
-                .setName(topicMetadata.topic)
-                .setIsInternal(topicMetadata.isInternal)
-                .setTopicAuthorizedOperations(topicMetadata.authorizedOperations);
-
-            for (PartitionMetadata partitionMetadata : topicMetadata.partitionMetadata) {
-                metadataResponseTopic.partitions().add(new MetadataResponsePartition()
-                    .setErrorCode(partitionMetadata.error.code())
-                    .setPartitionIndex(partitionMetadata.partition)
-                    .setLeaderId(partitionMetadata.leader == null ? -1 : partitionMetadata.leader.id())
-                    .setLeaderEpoch(partitionMetadata.leaderEpoch().orElse(RecordBatch.NO_PARTITION_LEADER_EPOCH))
-                    .setReplicaNodes(partitionMetadata.replicas.stream().map(Node::id).collect(Collectors.toList()))
-                    .setIsrNodes(partitionMetadata.isr.stream().map(Node::id).collect(Collectors.toList()))
-                    .setOfflineReplicas(partitionMetadata.offlineReplicas.stream().map(Node::id).collect(Collectors.toList())));
-            }
-            responseData.topics().add(metadataResponseTopic);
-        });
-        return new MetadataResponse(responseData);
+    private static MetadataResponseTopic responseTopic(TopicMetadata topicMetadata) {
+        MetadataResponseTopic metadataResponseTopic = new MetadataResponseTopic();
+        metadataResponseTopic
+            .setErrorCode(topicMetadata.error.code())
+            .setName(topicMetadata.topic)
+            .setIsInternal(topicMetadata.isInternal)
+            .setTopicAuthorizedOperations(topicMetadata.authorizedOperations);
+
+        for (PartitionMetadata partitionMetadata : topicMetadata.partitionMetadata) {
+            metadataResponseTopic.partitions().add(new MetadataResponsePartition()
+                .setErrorCode(partitionMetadata.error.code())
+                .setPartitionIndex(partitionMetadata.partition)
+                .setLeaderId(partitionMetadata.leader == null ? -1 : partitionMetadata.leader.id())
+                .setLeaderEpoch(partitionMetadata.leaderEpoch().orElse(RecordBatch.NO_PARTITION_LEADER_EPOCH))
+                .setReplicaNodes(partitionMetadata.replicas.stream().map(Node::id).collect(Collectors.toList()))
+                .setIsrNodes(partitionMetadata.isr.stream().map(Node::id).collect(Collectors.toList()))
+                .setOfflineReplicas(partitionMetadata.offlineReplicas.stream().map(Node::id).collect(Collectors.toList())));
+        }
+        return metadataResponseTopic;
     }
 
     public static MetadataResponse prepareResponse(int throttleTimeMs, Collection<Node> brokers, String clusterId,
@@ -89,6 +89,7 @@ public class OffsetCommitResponse extends AbstractResponse {
         this.data = new OffsetCommitResponseData(struct, version);
     }
 
+    @Override
     public OffsetCommitResponseData data() {
         return data;
     }
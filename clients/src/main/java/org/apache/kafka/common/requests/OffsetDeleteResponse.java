@@ -61,6 +61,11 @@ public class OffsetDeleteResponse extends AbstractResponse {
         this.data = new OffsetDeleteResponseData(struct, version);
     }
 
+    @Override
+    public OffsetDeleteResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -210,6 +210,11 @@ public class OffsetFetchResponse extends AbstractResponse {
         return new OffsetFetchResponse(ApiKeys.OFFSET_FETCH.parseResponse(version, buffer), version);
     }
 
+    @Override
+    public OffsetFetchResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
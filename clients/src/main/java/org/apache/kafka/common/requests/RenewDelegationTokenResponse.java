@@ -46,6 +46,11 @@ public class RenewDelegationTokenResponse extends AbstractResponse {
         return Collections.singletonMap(error(), 1);
     }
 
+    @Override
+    public RenewDelegationTokenResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
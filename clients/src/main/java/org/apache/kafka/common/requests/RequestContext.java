@@ -17,6 +17,7 @@
 package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.errors.InvalidRequestException;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.message.ApiVersionsRequestData;
 import org.apache.kafka.common.network.ListenerName;
 import org.apache.kafka.common.network.Send;
@@ -80,6 +81,15 @@ public class RequestContext implements AuthorizableRequestContext {
         return body.toSend(connectionId, responseHeader, apiVersion());
     }
 
+    /**
+     * Build the response send, serializing into a buffer from `pool` when the response allows it. Sends built this
+     * way are {@link org.apache.kafka.common.network.PooledNetworkSend}s that must be released once completed.
+     */
+    public Send buildResponse(AbstractResponse body, MemoryPool pool) {
+        ResponseHeader responseHeader = header.toResponseHeader();
+        return body.toSend(connectionId, responseHeader, apiVersion(), pool);
+    }
+
     private boolean isUnsupportedApiVersionsRequest() {
         return header.apiKey() == API_VERSIONS && !API_VERSIONS.isVersionSupported(header.apiVersion());
     }
@@ -67,6 +67,11 @@ public class SaslAuthenticateResponse extends AbstractResponse {
         return data.authBytes();
     }
 
+    @Override
+    public SaslAuthenticateResponseData data() {
+        return data;
+    }
+
     @Override
     public Struct toStruct(short version) {
         return data.toStruct(version);
@@ -56,6 +56,11 @@ public class SaslHandshakeResponse extends AbstractResponse {
         return Collections.singletonMap(Errors.forCode(data.errorCode()), 1);
     }
 
+    @Override
+    public SaslHandshakeResponseData data() {
+        return data;
+    }
+
     @Override
     public Struct toStruct(short version) {
         return data.toStruct(version);
@@ -66,6 +66,11 @@ public class StopReplicaResponse extends AbstractResponse {
         return new StopReplicaResponse(ApiKeys.STOP_REPLICA.parseResponse(version, buffer), version);
     }
 
+    @Override
+    public StopReplicaResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
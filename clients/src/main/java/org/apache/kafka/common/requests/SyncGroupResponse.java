@@ -56,6 +56,11 @@ public class SyncGroupResponse extends AbstractResponse {
         return Collections.singletonMap(Errors.forCode(data.errorCode()), 1);
     }
 
+    @Override
+    public SyncGroupResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
@@ -76,6 +76,11 @@ public class TxnOffsetCommitResponse extends AbstractResponse {
                    .setThrottleTimeMs(requestThrottleMs);
     }
 
+    @Override
+    public TxnOffsetCommitResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
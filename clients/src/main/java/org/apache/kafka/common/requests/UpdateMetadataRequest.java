@@ -44,12 +44,27 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
     public static class Builder extends AbstractControlRequest.Builder<UpdateMetadataRequest> {
         private final List<UpdateMetadataPartitionState> partitionStates;
         private final List<UpdateMetadataBroker> liveBrokers;
+        private final long metadataEpoch;
+        private final long previousMetadataEpoch;
 
         public Builder(short version, int controllerId, int controllerEpoch, long brokerEpoch,
                        List<UpdateMetadataPartitionState> partitionStates, List<UpdateMetadataBroker> liveBrokers) {
+            this(version, controllerId, controllerEpoch, brokerEpoch, partitionStates, liveBrokers, -1L, -1L);
+        }
+
+        /**
+         * Build a metadata delta, which only holds the partition states that changed since the update sent with
+         * `previousMetadataEpoch`, or a full snapshot of the partition states if `previousMetadataEpoch` is -1. The
+         * metadata epochs are only sent from version 6.
+         */
+        public Builder(short version, int controllerId, int controllerEpoch, long brokerEpoch,
+                       List<UpdateMetadataPartitionState> partitionStates, List<UpdateMetadataBroker> liveBrokers,
+                       long metadataEpoch, long previousMetadataEpoch) {
             super(ApiKeys.UPDATE_METADATA, version, controllerId, controllerEpoch, brokerEpoch);
             this.partitionStates = partitionStates;
             this.liveBrokers = liveBrokers;
+            this.metadataEpoch = metadataEpoch;
+            this.previousMetadataEpoch = previousMetadataEpoch;
         }
 
         @Override
@@ -79,7 +94,9 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
                     .setControllerId(controllerId)
                     .setControllerEpoch(controllerEpoch)
                     .setBrokerEpoch(brokerEpoch)
-                    .setLiveBrokers(liveBrokers);
+                    .setLiveBrokers(liveBrokers)
+                    .setMetadataEpoch(metadataEpoch)
+                    .setPreviousMetadataEpoch(previousMetadataEpoch);
 
             if (version >= 5) {
                 Map<String, UpdateMetadataTopicState> topicStatesMap = groupByTopic(partitionStates);
@@ -112,6 +129,8 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
                 append(", brokerEpoch=").append(brokerEpoch).
                 append(", partitionStates=").append(partitionStates).
                 append(", liveBrokers=").append(Utils.join(liveBrokers, ", ")).
+                append(", metadataEpoch=").append(metadataEpoch).
+                append(", previousMetadataEpoch=").append(previousMetadataEpoch).
                 append(")");
             return bld.toString();
         }
@@ -204,6 +223,21 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
         return data.liveBrokers();
     }
 
+    /**
+     * The metadata epoch of the controller after this update, or -1 if this request is not a metadata delta.
+     */
+    public long metadataEpoch() {
+        return data.metadataEpoch();
+    }
+
+    /**
+     * The metadata epoch of the update that this delta applies to, or -1 if this request is a full snapshot of the
+     * partition states. Only meaningful if {@link #metadataEpoch()} is not -1.
+     */
+    public long previousMetadataEpoch() {
+        return data.previousMetadataEpoch();
+    }
+
     @Override
     protected Struct toStruct() {
         return data.toStruct(version());
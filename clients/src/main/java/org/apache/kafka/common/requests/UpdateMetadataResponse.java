@@ -40,6 +40,14 @@ public class UpdateMetadataResponse extends AbstractResponse {
         return Errors.forCode(data.errorCode());
     }
 
+    /**
+     * The metadata epoch of the broker after the update, or -1 if the broker needs a full snapshot of the partition
+     * states to know it.
+     */
+    public long metadataEpoch() {
+        return data.metadataEpoch();
+    }
+
     @Override
     public Map<Errors, Integer> errorCounts() {
         return errorCounts(error());
@@ -49,6 +57,11 @@ public class UpdateMetadataResponse extends AbstractResponse {
         return new UpdateMetadataResponse(ApiKeys.UPDATE_METADATA.parseResponse(version, buffer), version);
     }
 
+    @Override
+    public UpdateMetadataResponseData data() {
+        return data;
+    }
+
     @Override
     protected Struct toStruct(short version) {
         return data.toStruct(version);
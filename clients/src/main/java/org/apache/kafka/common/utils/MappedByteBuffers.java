@@ -72,13 +72,27 @@ public final class MappedByteBuffers {
     public static void unmap(String resourceDescription, MappedByteBuffer buffer) throws IOException {
         if (!buffer.isDirect())
             throw new IllegalArgumentException("Unmapping only works with direct buffers");
+        invokeCleaner("Unable to unmap the mapped buffer: " + resourceDescription, buffer);
+    }
+
+    /**
+     * Free the memory of a buffer allocated with {@link ByteBuffer#allocateDirect(int)} rather than waiting for the
+     * buffer to be garbage collected. The buffer must not be used afterwards.
+     */
+    public static void free(String resourceDescription, ByteBuffer buffer) throws IOException {
+        if (!buffer.isDirect())
+            throw new IllegalArgumentException("Freeing only works with direct buffers");
+        invokeCleaner("Unable to free the direct buffer: " + resourceDescription, buffer);
+    }
+
+    private static void invokeCleaner(String errorMessage, ByteBuffer buffer) throws IOException {
         if (UNMAP == null)
             throw UNMAP_NOT_SUPPORTED_EXCEPTION;
 
         try {
-            UNMAP.invokeExact((ByteBuffer) buffer);
+            UNMAP.invokeExact(buffer);
         } catch (Throwable throwable) {
-            throw new IOException("Unable to unmap the mapped buffer: " + resourceDescription, throwable);
+            throw new IOException(errorMessage, throwable);
         }
     }
 
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectBufferMemoryPoolTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroSize() {
+        new DirectBufferMemoryPool(0, 7);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxAllocationLargerThanSize() {
+        new DirectBufferMemoryPool(100, 101);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAllocationZero() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(10000, 1000);
+        pool.tryAllocate(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignBuffer() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(10000, 1000);
+        pool.release(ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void testAllocationOverMaxAllocation() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(10000, 1000);
+        assertNull(pool.tryAllocate(1001));
+        assertEquals(10000, pool.availableMemory());
+    }
+
+    @Test
+    public void testBuffersAreReused() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(1 << 20, 1 << 16);
+        ByteBuffer buffer = pool.tryAllocate(3000);
+        assertNotNull(buffer);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(3000, buffer.remaining());
+        assertEquals(4096, buffer.capacity());
+        assertEquals((1 << 20) - 4096, pool.availableMemory());
+
+        buffer.putInt(42);
+        pool.release(buffer);
+        assertEquals(1 << 20, pool.availableMemory());
+        assertEquals(4096, pool.reservedMemory());
+
+        ByteBuffer reused = pool.tryAllocate(2500);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(2500, reused.remaining());
+        assertEquals(4096, pool.reservedMemory());
+    }
+
+    @Test
+    public void testAllocationFailsWhenPoolIsExhausted() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(8192, 4096);
+        ByteBuffer first = pool.tryAllocate(4096);
+        ByteBuffer second = pool.tryAllocate(4096);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertTrue(pool.isOutOfMemory());
+        assertNull(pool.tryAllocate(1));
+
+        pool.release(first);
+        assertNotNull(pool.tryAllocate(4096));
+    }
+
+    @Test
+    public void testCachedBuffersOfOtherSizesAreDroppedToMakeRoom() {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(8192, 8192);
+        ByteBuffer small = pool.tryAllocate(1024);
+        ByteBuffer medium = pool.tryAllocate(2048);
+        pool.release(small);
+        pool.release(medium);
+        assertEquals(3072, pool.reservedMemory());
+
+        ByteBuffer large = pool.tryAllocate(8000);
+        assertNotNull(large);
+        assertEquals(8192, large.capacity());
+        assertEquals(8192, pool.reservedMemory());
+        assertEquals(0, pool.availableMemory());
+    }
+}
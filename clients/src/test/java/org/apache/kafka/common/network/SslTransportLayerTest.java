@@ -23,6 +23,8 @@ import org.apache.kafka.common.config.internals.BrokerSecurityConfigs;
 import org.apache.kafka.common.config.types.Password;
 import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.DefaultRecordsSend;
+import org.apache.kafka.common.record.FileRecords;
 import org.apache.kafka.common.security.auth.SecurityProtocol;
 import org.apache.kafka.common.security.TestSecurityConfig;
 import org.apache.kafka.common.security.ssl.SslFactory;
@@ -39,21 +41,26 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -625,6 +632,65 @@ public class SslTransportLayerTest {
         assertEquals(message, new String(Utils.toArray(receiveList.get(0).payload())));
     }
 
+    /**
+     * File data sent over SSL should be transferred intact when it spans several application buffers. The direct buffer
+     * used for the transfer should be kept for later transfers and freed when the channel is closed.
+     */
+    @Test
+    public void testFileTransfer() throws Exception {
+        String node = "0";
+        server = createEchoServer(SecurityProtocol.SSL);
+        final AtomicReference<SslTransportLayer> transportLayer = new AtomicReference<>();
+        TestSslChannelBuilder channelBuilder = new TestSslChannelBuilder(Mode.CLIENT) {
+            @Override
+            protected TestSslTransportLayer newTransportLayer(String id, SelectionKey key, SSLEngine sslEngine) throws IOException {
+                TestSslTransportLayer layer = super.newTransportLayer(id, key, sslEngine);
+                transportLayer.set(layer);
+                return layer;
+            }
+        };
+        this.channelBuilder = channelBuilder;
+        this.channelBuilder.configure(sslClientConfigs);
+        this.selector = new Selector(5000, new Metrics(), time, "MetricGroup", channelBuilder, new LogContext());
+        InetSocketAddress addr = new InetSocketAddress("localhost", server.port());
+        selector.connect(node, addr, BUFFER_SIZE, BUFFER_SIZE);
+        NetworkTestUtils.waitForChannelReady(selector, node);
+
+        String message = TestUtils.randomString(100000);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + message.length());
+        buffer.putInt(message.length());
+        buffer.put(message.getBytes());
+        buffer.flip();
+        File file = TestUtils.tempFile();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            Utils.writeFully(channel, buffer);
+        }
+
+        try (FileRecords records = FileRecords.open(file)) {
+            selector.send(new DefaultRecordsSend(node, records));
+            TestUtils.waitForCondition(new TestCondition() {
+                @Override
+                public boolean conditionMet() {
+                    try {
+                        selector.poll(100L);
+                    } catch (IOException e) {
+                        return false;
+                    }
+                    return selector.completedReceives().size() > 0;
+                }
+            }, "Timed out waiting for file data to be echoed");
+        }
+
+        List<NetworkReceive> receiveList = selector.completedReceives();
+        assertEquals(1, receiveList.size());
+        assertEquals(message, new String(Utils.toArray(receiveList.get(0).payload())));
+        ByteBuffer fileChannelBuffer = transportLayer.get().fileChannelBuffer();
+        assertTrue(fileChannelBuffer.isDirect());
+
+        selector.close(node);
+        assertNull(transportLayer.get().fileChannelBuffer());
+    }
+
     /**
      * Tests handling of BUFFER_UNDERFLOW during unwrap when network read buffer is smaller than SSL session packet buffer size.
      */
@@ -109,7 +109,10 @@ import org.apache.kafka.common.message.UpdateMetadataRequestData.UpdateMetadataB
 import org.apache.kafka.common.message.UpdateMetadataRequestData.UpdateMetadataEndpoint;
 import org.apache.kafka.common.message.UpdateMetadataRequestData.UpdateMetadataPartitionState;
 import org.apache.kafka.common.message.UpdateMetadataResponseData;
+import org.apache.kafka.common.memory.DirectBufferMemoryPool;
+import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.network.PooledNetworkSend;
 import org.apache.kafka.common.network.Send;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
@@ -496,11 +499,114 @@ public class RequestResponseTest {
                 assertEquals(struct, struct2);
                 assertEquals(struct.hashCode(), struct2.hashCode());
             }
+            checkPooledSerialization(response, (short) version);
         } catch (Exception e) {
             throw new RuntimeException("Failed to deserialize response " + response + " with type " + response.getClass(), e);
         }
     }
 
+    @Test
+    public void testPooledResponseSerialization() throws Exception {
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(1 << 20, 1 << 18);
+        MetadataResponse response = createMetadataResponse();
+        short version = ApiKeys.METADATA.latestVersion();
+        ResponseHeader header = new ResponseHeader(15, ApiKeys.METADATA.responseHeaderVersion(version));
+
+        Send send = response.toSend("1", header, version, pool);
+        assertTrue(send instanceof PooledNetworkSend);
+        assertTrue(pool.availableMemory() < pool.size());
+        ByteBuffer buffer = toByteBuffer(send);
+        assertEquals(buffer.remaining() - 4, buffer.getInt());
+        assertEquals(15, ResponseHeader.parse(buffer, header.headerVersion()).correlationId());
+        assertEquals(response.data(), MetadataResponse.parse(buffer, version).data());
+
+        PooledNetworkSend pooledSend = (PooledNetworkSend) send;
+        pooledSend.release();
+        pooledSend.release();
+        assertTrue(pooledSend.released());
+        assertEquals(pool.size(), pool.availableMemory());
+    }
+
+    @Test
+    public void testPooledResponseSerializationFallsBackWithoutPool() {
+        MetadataResponse response = createMetadataResponse();
+        short version = ApiKeys.METADATA.latestVersion();
+        ResponseHeader header = new ResponseHeader(15, ApiKeys.METADATA.responseHeaderVersion(version));
+        assertFalse(response.toSend("1", header, version, MemoryPool.NONE) instanceof PooledNetworkSend);
+        // Responses that are not backed by a generated message are never pooled
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(1 << 20, 1 << 18);
+        assertFalse(createFetchResponse().toSend("1", header, (short) 4, pool) instanceof PooledNetworkSend);
+        assertEquals(pool.size(), pool.availableMemory());
+    }
+
+    @Test
+    public void testMetadataResponseWithSerializedTopics() throws Exception {
+        Node node = new Node(1, "host1", 1001, "rack1");
+        List<MetadataResponse.TopicMetadata> topicMetadata = createTopicMetadata(node);
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(1 << 20, 1 << 18);
+        for (short version = ApiKeys.METADATA.oldestVersion(); version <= ApiKeys.METADATA.latestVersion(); version++) {
+            List<MetadataResponse.SerializedTopic> serializedTopics = new ArrayList<>();
+            for (MetadataResponse.TopicMetadata topic : topicMetadata.subList(0, 2))
+                serializedTopics.add(MetadataResponse.SerializedTopic.serialize(topic, version));
+            MetadataResponse response = MetadataResponse.prepareResponse(version, 10, asList(node), "cluster", 1,
+                serializedTopics, topicMetadata.subList(2, 3), 7);
+            MetadataResponse expected = MetadataResponse.prepareResponse(10, asList(node), "cluster", 1,
+                topicMetadata, 7);
+
+            // The spliced response must be identical to the one serialized from its struct
+            ResponseHeader header = new ResponseHeader(15, ApiKeys.METADATA.responseHeaderVersion(version));
+            ByteBuffer expectedBuffer = toByteBuffer(expected.toSend("1", header, version));
+            assertEquals(expectedBuffer, toByteBuffer(response.toSend("1", header, version)));
+            Send pooledSend = response.toSend("1", header, version, pool);
+            assertTrue(pooledSend instanceof PooledNetworkSend);
+            assertEquals(expectedBuffer, toByteBuffer(pooledSend));
+            ((PooledNetworkSend) pooledSend).release();
+            assertEquals(pool.size(), pool.availableMemory());
+
+            assertEquals(expected.errorCounts(), response.errorCounts());
+            assertEquals(expected.errors(), response.errors());
+            assertEquals(expected.toStruct(version), response.toStruct(version));
+        }
+
+        short version = ApiKeys.METADATA.latestVersion();
+        MetadataResponse response = MetadataResponse.prepareResponse(version, 10, asList(node), "cluster", 1,
+            Collections.emptyList(), topicMetadata, 7);
+        assertEquals(MetadataResponse.prepareResponse(10, asList(node), "cluster", 1, topicMetadata, 7).data(),
+            response.data());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMetadataResponseWithSerializedTopicsOfOtherVersion() {
+        Node node = new Node(1, "host1", 1001);
+        MetadataResponse.SerializedTopic topic = MetadataResponse.SerializedTopic.serialize(
+            createTopicMetadata(node).get(0), (short) 7);
+        MetadataResponse.prepareResponse((short) 8, 0, asList(node), "cluster", 1, asList(topic),
+            Collections.emptyList(), MetadataResponse.AUTHORIZED_OPERATIONS_OMITTED);
+    }
+
+    private void checkPooledSerialization(AbstractResponse response, short version) throws Exception {
+        // Responses backed by a generated message must serialize to the same bytes with or without the pool
+        DirectBufferMemoryPool pool = new DirectBufferMemoryPool(1 << 20, 1 << 18);
+        for (short headerVersion = 0; headerVersion <= 1; headerVersion++) {
+            ResponseHeader header = new ResponseHeader(15, headerVersion);
+            Send pooledSend = response.toSend("1", header, version, pool);
+            if (response.data() == null)
+                assertFalse(pooledSend instanceof PooledNetworkSend);
+            assertEquals(toByteBuffer(response.toSend("1", header, version)), toByteBuffer(pooledSend));
+            if (pooledSend instanceof PooledNetworkSend)
+                ((PooledNetworkSend) pooledSend).release();
+            assertEquals(pool.size(), pool.availableMemory());
+        }
+    }
+
+    private ByteBuffer toByteBuffer(Send send) throws Exception {
+        ByteBufferChannel channel = new ByteBufferChannel(send.size());
+        while (!send.completed())
+            send.writeTo(channel);
+        channel.close();
+        return channel.buffer();
+    }
+
     private AbstractRequestResponse deserialize(AbstractRequestResponse req, Struct struct, short version) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
         ByteBuffer buffer = toBuffer(struct);
         Method deserializer = req.getClass().getDeclaredMethod("parse", ByteBuffer.class, Short.TYPE);
@@ -1131,6 +1237,11 @@ public class RequestResponseTest {
 
     private MetadataResponse createMetadataResponse() {
         Node node = new Node(1, "host1", 1001);
+        return MetadataResponse.prepareResponse(asList(node), null, MetadataResponse.NO_CONTROLLER_ID,
+            createTopicMetadata(node));
+    }
+
+    private List<MetadataResponse.TopicMetadata> createTopicMetadata(Node node) {
         List<Node> replicas = asList(node);
         List<Node> isr = asList(node);
         List<Node> offlineReplicas = asList();
@@ -1144,8 +1255,7 @@ public class RequestResponseTest {
         allTopicMetadata.add(new MetadataResponse.TopicMetadata(Errors.NONE, "topic3", false,
             asList(new MetadataResponse.PartitionMetadata(Errors.LEADER_NOT_AVAILABLE, 0, null,
                 Optional.empty(), replicas, isr, offlineReplicas))));
-
-        return MetadataResponse.prepareResponse(asList(node), null, MetadataResponse.NO_CONTROLLER_ID, allTopicMetadata);
+        return allTopicMetadata;
     }
 
     private OffsetCommitRequest createOffsetCommitRequest(int version) {
@@ -17,7 +17,8 @@
 package kafka.cluster
 
 import com.yammer.metrics.core.Gauge
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.{ReentrantLock, ReentrantReadWriteLock}
 import java.util.{Optional, Properties}
 
 import kafka.api.{ApiVersion, LeaderAndIsr, Request}
@@ -27,7 +28,7 @@ import kafka.log._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server._
 import kafka.server.checkpoints.OffsetCheckpoints
-import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
+import kafka.utils.CoreUtils.{inLock, inReadLock, inWriteLock}
 import kafka.utils._
 import kafka.zk.{AdminZkClient, KafkaZkClient}
 import org.apache.kafka.common.TopicPartition
@@ -42,7 +43,8 @@ import org.apache.kafka.common.requests._
 import org.apache.kafka.common.utils.Time
 
 import scala.collection.JavaConverters._
-import scala.collection.{Map, Seq}
+import scala.collection.{Map, Seq, mutable}
+import scala.util.{Failure, Success}
 
 trait PartitionStateStore {
   def fetchTopicConfig(): Properties
@@ -141,9 +143,13 @@ object Partition extends KafkaMetricsGroup {
       stateStore = zkIsrBackingStore,
       delayedOperations = delayedOperations,
       metadataCache = replicaManager.metadataCache,
-      logManager = replicaManager.logManager)
+      logManager = replicaManager.logManager,
+      coalesceAppends = replicaManager.config.produceAppendCoalescingEnable)
   }
 
+  // the number of appends applied together by the thread that coalesced them, see `Partition.appendRecordsToLeader`
+  private lazy val coalescedAppendsHist = newHistogram("CoalescedAppendsPerBatch", biased = true)
+
   def removeMetrics(topicPartition: TopicPartition): Unit = {
     val tags = Map("topic" -> topicPartition.topic, "partition" -> topicPartition.partition.toString)
     removeMetric("UnderReplicated", tags)
@@ -155,6 +161,28 @@ object Partition extends KafkaMetricsGroup {
   }
 }
 
+/**
+ * An append to the leader log that is waiting to be applied together with other concurrent appends to the same
+ * partition. It is completed by whichever thread applies it, and read by the appending thread after it acquired
+ * the partition's append combiner lock, which makes the result visible to it.
+ */
+private class PendingAppend(val records: MemoryRecords, val origin: AppendOrigin, val requiredAcks: Int) {
+  private var info: LogAppendInfo = _
+  private var error: Throwable = _
+
+  def isCompleted: Boolean = info != null || error != null
+
+  def complete(info: LogAppendInfo): Unit = this.info = info
+
+  def fail(error: Throwable): Unit = this.error = error
+
+  def result: LogAppendInfo = {
+    if (error != null)
+      throw error
+    info
+  }
+}
+
 /**
  * Data structure that represents a topic partition. The leader maintains the AR, ISR, CUR, RAR
  */
@@ -166,7 +194,8 @@ class Partition(val topicPartition: TopicPartition,
                 stateStore: PartitionStateStore,
                 delayedOperations: DelayedOperations,
                 metadataCache: MetadataCache,
-                logManager: LogManager) extends Logging with KafkaMetricsGroup {
+                logManager: LogManager,
+                coalesceAppends: Boolean = false) extends Logging with KafkaMetricsGroup {
 
   def topic: String = topicPartition.topic
   def partitionId: Int = topicPartition.partition
@@ -174,6 +203,9 @@ class Partition(val topicPartition: TopicPartition,
   private val remoteReplicasMap = new Pool[Int, Replica]
   // The read lock is only required when multiple reads are executed and needs to be in a consistent manner
   private val leaderIsrUpdateLock = new ReentrantReadWriteLock
+  // Appends waiting to be applied by the thread holding `appendCombinerLock` when appends are coalesced
+  private val pendingAppends = new ConcurrentLinkedQueue[PendingAppend]()
+  private val appendCombinerLock = new ReentrantLock()
   private var zkVersion: Int = LeaderAndIsr.initialZKVersion
   @volatile private var leaderEpoch: Int = LeaderAndIsr.initialLeaderEpoch - 1
   // start offset for 'leaderEpoch' above (leader epoch of the current leader for this partition),
@@ -605,7 +637,7 @@ class Partition(val topicPartition: TopicPartition,
         // No need to calculate low watermark if there is no delayed DeleteRecordsRequest
         val oldLeaderLW = if (delayedOperations.numDelayedDelete > 0) lowWatermarkIfLeader else -1L
         val prevFollowerEndOffset = followerReplica.logEndOffset
-        followerReplica.updateFetchState(
+        val followerState = followerReplica.updateFetchState(
           followerFetchOffsetMetadata,
           followerStartOffset,
           followerFetchTimeMs,
@@ -624,8 +656,8 @@ class Partition(val topicPartition: TopicPartition,
 
         // check if the HW of the partition can now be incremented
         // since the replica may already be in the ISR and its LEO has just incremented
-        val leaderHWIncremented = if (prevFollowerEndOffset != followerReplica.logEndOffset) {
-          leaderLogIfLocal.exists(leaderLog => maybeIncrementLeaderHW(leaderLog, followerFetchTimeMs))
+        val leaderHWIncremented = if (prevFollowerEndOffset != followerState.logEndOffset) {
+          leaderLogIfLocal.exists(leaderLog => maybeIncrementLeaderHWOnFollowerFetch(leaderLog, followerFetchTimeMs))
         } else {
           false
         }
@@ -764,21 +796,10 @@ class Partition(val topicPartition: TopicPartition,
    * will never be added to ISR.
    *
    * Returns true if the HW was incremented, and false otherwise.
-   * Note There is no need to acquire the leaderIsrUpdate lock here
-   * since all callers of this private API acquire that lock
    */
   private def maybeIncrementLeaderHW(leaderLog: Log, curTime: Long = time.milliseconds): Boolean = {
     inReadLock(leaderIsrUpdateLock) {
-      // maybeIncrementLeaderHW is in the hot path, the following code is written to
-      // avoid unnecessary collection generation
-      var newHighWatermark = leaderLog.logEndOffsetMetadata
-      remoteReplicasMap.values.foreach { replica =>
-        if (replica.logEndOffsetMetadata.messageOffset < newHighWatermark.messageOffset &&
-          (curTime - replica.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || inSyncReplicaIds.contains(replica.brokerId))) {
-          newHighWatermark = replica.logEndOffsetMetadata
-        }
-      }
-
+      val newHighWatermark = leaderHighWatermarkCandidate(leaderLog, curTime)
       leaderLog.maybeIncrementHighWatermark(newHighWatermark) match {
         case Some(oldHighWatermark) =>
           debug(s"High watermark updated from $oldHighWatermark to $newHighWatermark")
@@ -800,6 +821,44 @@ class Partition(val topicPartition: TopicPartition,
     }
   }
 
+  /**
+   * Variant of `maybeIncrementLeaderHW` for the follower fetch path, which is the hot path of HW advancement.
+   *
+   * Every follower fetch that moves a follower's LEO may move the HW, but most of them do not (e.g. with three
+   * replicas only the fetch of the slowest in-sync follower does). The candidate HW is therefore computed from
+   * the published replica state without acquiring `leaderIsrUpdateLock`, and the lock is only taken to apply a
+   * HW that will actually advance, so that the update cannot race with a leadership or log change.
+   *
+   * Reading the ISR and the replica states without the lock is safe since the HW is always recomputed under the
+   * lock before it is applied. A stale view can only make us skip an advance that another caller will perform:
+   * ISR changes and leader appends increment the HW themselves, and of two concurrent follower fetches at least
+   * one observes the state published by the other.
+   */
+  private def maybeIncrementLeaderHWOnFollowerFetch(leaderLog: Log, curTime: Long): Boolean = {
+    if (leaderLog.canIncrementHighWatermark(leaderHighWatermarkCandidate(leaderLog, curTime)))
+      maybeIncrementLeaderHW(leaderLog, curTime)
+    else
+      false
+  }
+
+  /**
+   * The smallest log end offset among the leader and the remote replicas that are in sync or caught up.
+   * This only reads volatile state and may be called with or without holding `leaderIsrUpdateLock`.
+   */
+  private def leaderHighWatermarkCandidate(leaderLog: Log, curTime: Long): LogOffsetMetadata = {
+    // this is in the hot path, the following code is written to avoid unnecessary collection generation
+    val curInSyncReplicaIds = inSyncReplicaIds
+    var newHighWatermark = leaderLog.logEndOffsetMetadata
+    remoteReplicasMap.values.foreach { replica =>
+      val replicaState = replica.stateSnapshot
+      if (replicaState.logEndOffset < newHighWatermark.messageOffset &&
+        (curTime - replicaState.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || curInSyncReplicaIds.contains(replica.brokerId))) {
+        newHighWatermark = replicaState.logEndOffsetMetadata
+      }
+    }
+    newHighWatermark
+  }
+
   /**
    * The low watermark offset value, calculated only if the local replica is the partition leader
    * It is only used by leader broker to decide when DeleteRecordsRequest is satisfied. Its value is minimum logStartOffset of all live replicas
@@ -938,31 +997,104 @@ class Partition(val topicPartition: TopicPartition,
     }
   }
 
+  /**
+   * Append records to the leader log.
+   *
+   * If appends are coalesced, concurrent appends to this partition are queued and the first appender to acquire
+   * `appendCombinerLock` applies all the queued appends with a single batched append to the log, which holds the
+   * partition lock and the log lock once. The high watermark is then checked and the delayed operations are completed
+   * once for the whole batch, instead of once per append. Each append is still validated separately and gets its own
+   * result or error.
+   */
   def appendRecordsToLeader(records: MemoryRecords, origin: AppendOrigin, requiredAcks: Int): LogAppendInfo = {
-    val (info, leaderHWIncremented) = inReadLock(leaderIsrUpdateLock) {
-      leaderLogIfLocal match {
-        case Some(leaderLog) =>
-          val minIsr = leaderLog.config.minInSyncReplicas
-          val inSyncSize = inSyncReplicaIds.size
+    if (coalesceAppends) {
+      val pendingAppend = new PendingAppend(records, origin, requiredAcks)
+      pendingAppends.add(pendingAppend)
+      // the append has already been applied by another thread if it is completed once we hold the lock
+      val leaderHWIncremented = inLock(appendCombinerLock) {
+        if (pendingAppend.isCompleted) None
+        else Some(applyPendingAppends())
+      }
+      leaderHWIncremented.foreach(completeDelayedRequestsAfterAppend)
+      pendingAppend.result
+    } else {
+      val (info, leaderHWIncremented) = inReadLock(leaderIsrUpdateLock) {
+        val leaderLog = leaderLogOrException
+        val info = appendToLeaderLog(leaderLog, records, origin, requiredAcks)
+        // we may need to increment high watermark since ISR could be down to 1
+        (info, maybeIncrementLeaderHW(leaderLog))
+      }
+      completeDelayedRequestsAfterAppend(leaderHWIncremented)
+      info
+    }
+  }
 
-          // Avoid writing to leader if there are not enough insync replicas to make it safe
-          if (inSyncSize < minIsr && requiredAcks == -1) {
-            throw new NotEnoughReplicasException(s"The size of the current ISR $inSyncReplicaIds " +
-              s"is insufficient to satisfy the min.isr requirement of $minIsr for partition $topicPartition")
+  /**
+   * Apply all the queued appends and return whether the high watermark was incremented. Must be called while
+   * holding `appendCombinerLock`.
+   */
+  private def applyPendingAppends(): Boolean = {
+    val batch = mutable.ArrayBuffer[PendingAppend]()
+    var pendingAppend = pendingAppends.poll()
+    while (pendingAppend != null) {
+      batch += pendingAppend
+      pendingAppend = pendingAppends.poll()
+    }
+    Partition.coalescedAppendsHist.update(batch.size)
+
+    try {
+      inReadLock(leaderIsrUpdateLock) {
+        val leaderLog = leaderLogOrException
+        val appendable = batch.filter { append =>
+          try {
+            checkEnoughReplicasForAppend(leaderLog, append.requiredAcks)
+            true
+          } catch {
+            case e: Throwable =>
+              append.fail(e)
+              false
+          }
+        }
+        if (appendable.nonEmpty) {
+          val results = leaderLog.appendBatchAsLeader(appendable.map(append => (append.records, append.origin)),
+            leaderEpoch = this.leaderEpoch, interBrokerProtocolVersion)
+          appendable.zip(results).foreach {
+            case (append, Success(info)) => append.complete(info)
+            case (append, Failure(e)) => append.fail(e)
           }
+        }
+        // we may need to increment high watermark since ISR could be down to 1
+        maybeIncrementLeaderHW(leaderLog)
+      }
+    } catch {
+      case e: Throwable =>
+        batch.filterNot(_.isCompleted).foreach(_.fail(e))
+        false
+    }
+  }
+
+  private def leaderLogOrException: Log = leaderLogIfLocal.getOrElse {
+    throw new NotLeaderForPartitionException("Leader not local for partition %s on broker %d"
+      .format(topicPartition, localBrokerId))
+  }
 
-          val info = leaderLog.appendAsLeader(records, leaderEpoch = this.leaderEpoch, origin,
-            interBrokerProtocolVersion)
+  private def appendToLeaderLog(leaderLog: Log, records: MemoryRecords, origin: AppendOrigin, requiredAcks: Int): LogAppendInfo = {
+    checkEnoughReplicasForAppend(leaderLog, requiredAcks)
+    leaderLog.appendAsLeader(records, leaderEpoch = this.leaderEpoch, origin, interBrokerProtocolVersion)
+  }
 
-          // we may need to increment high watermark since ISR could be down to 1
-          (info, maybeIncrementLeaderHW(leaderLog))
+  private def checkEnoughReplicasForAppend(leaderLog: Log, requiredAcks: Int): Unit = {
+    val minIsr = leaderLog.config.minInSyncReplicas
+    val inSyncSize = inSyncReplicaIds.size
 
-        case None =>
-          throw new NotLeaderForPartitionException("Leader not local for partition %s on broker %d"
-            .format(topicPartition, localBrokerId))
-      }
+    // Avoid writing to leader if there are not enough insync replicas to make it safe
+    if (inSyncSize < minIsr && requiredAcks == -1) {
+      throw new NotEnoughReplicasException(s"The size of the current ISR $inSyncReplicaIds " +
+        s"is insufficient to satisfy the min.isr requirement of $minIsr for partition $topicPartition")
     }
+  }
 
+  private def completeDelayedRequestsAfterAppend(leaderHWIncremented: Boolean): Unit = {
     // some delayed operations may be unblocked after HW changed
     if (leaderHWIncremented)
       tryCompleteDelayedRequests()
@@ -970,8 +1102,6 @@ class Partition(val topicPartition: TopicPartition,
       // probably unblock some follower fetch requests since log end offset has been updated
       delayedOperations.checkAndCompleteFetch()
     }
-
-    info
   }
 
   def readRecords(fetchOffset: Long,
@@ -17,44 +17,70 @@
 
 package kafka.cluster
 
+import java.util.concurrent.atomic.AtomicReference
+
 import kafka.log.{Log}
 import kafka.utils.Logging
 import kafka.server.{LogOffsetMetadata}
 import org.apache.kafka.common.{TopicPartition}
 
-class Replica(val brokerId: Int, val topicPartition: TopicPartition) extends Logging {
-  // the log end offset value, kept in all replicas;
-  // for local replica it is the log's end offset, for remote replicas its value is only updated by follower fetch
-  @volatile private[this] var _logEndOffsetMetadata = LogOffsetMetadata.UnknownOffsetMetadata
+/**
+ * An immutable snapshot of the fetch state of a replica. Follower fetches publish a new snapshot atomically so that
+ * the leader can read a consistent view of the follower's offsets without holding any partition lock.
+ */
+case class ReplicaState(
   // the log start offset value, kept in all replicas;
   // for local replica it is the log's start offset, for remote replicas its value is only updated by follower fetch
-  @volatile private[this] var _logStartOffset = Log.UnknownOffset
+  logStartOffset: Long,
+
+  // the log end offset value, kept in all replicas;
+  // for local replica it is the log's end offset, for remote replicas its value is only updated by follower fetch
+  logEndOffsetMetadata: LogOffsetMetadata,
 
   // The log end offset value at the time the leader received the last FetchRequest from this follower
   // This is used to determine the lastCaughtUpTimeMs of the follower
-  @volatile private[this] var lastFetchLeaderLogEndOffset = 0L
+  lastFetchLeaderLogEndOffset: Long,
 
   // The time when the leader received the last FetchRequest from this follower
   // This is used to determine the lastCaughtUpTimeMs of the follower
-  @volatile private[this] var lastFetchTimeMs = 0L
+  lastFetchTimeMs: Long,
 
   // lastCaughtUpTimeMs is the largest time t such that the offset of most recent FetchRequest from this follower >=
   // the LEO of leader at time t. This is used to determine the lag of this follower and ISR of this partition.
-  @volatile private[this] var _lastCaughtUpTimeMs = 0L
+  lastCaughtUpTimeMs: Long,
 
   // highWatermark is the leader's high watermark after the most recent FetchRequest from this follower. This is
   // used to determine the maximum HW this follower knows about. See KIP-392
-  @volatile private[this] var _lastSentHighWatermark = 0L
+  lastSentHighWatermark: Long
+) {
+  def logEndOffset: Long = logEndOffsetMetadata.messageOffset
+}
 
-  def logStartOffset: Long = _logStartOffset
+object ReplicaState {
+  val Empty: ReplicaState = ReplicaState(
+    logStartOffset = Log.UnknownOffset,
+    logEndOffsetMetadata = LogOffsetMetadata.UnknownOffsetMetadata,
+    lastFetchLeaderLogEndOffset = 0L,
+    lastFetchTimeMs = 0L,
+    lastCaughtUpTimeMs = 0L,
+    lastSentHighWatermark = 0L
+  )
+}
 
-  def logEndOffsetMetadata: LogOffsetMetadata = _logEndOffsetMetadata
+class Replica(val brokerId: Int, val topicPartition: TopicPartition) extends Logging {
+  private[this] val replicaState = new AtomicReference[ReplicaState](ReplicaState.Empty)
 
-  def logEndOffset: Long = logEndOffsetMetadata.messageOffset
+  def stateSnapshot: ReplicaState = replicaState.get
+
+  def logStartOffset: Long = stateSnapshot.logStartOffset
+
+  def logEndOffsetMetadata: LogOffsetMetadata = stateSnapshot.logEndOffsetMetadata
 
-  def lastCaughtUpTimeMs: Long = _lastCaughtUpTimeMs
+  def logEndOffset: Long = stateSnapshot.logEndOffset
 
-  def lastSentHighWatermark: Long = _lastSentHighWatermark
+  def lastCaughtUpTimeMs: Long = stateSnapshot.lastCaughtUpTimeMs
+
+  def lastSentHighWatermark: Long = stateSnapshot.lastSentHighWatermark
 
   /*
    * If the FetchRequest reads up to the log end offset of the leader when the current fetch request is received,
@@ -67,57 +93,68 @@ class Replica(val brokerId: Int, val topicPartition: TopicPartition) extends Log
    * by at most `replicaLagTimeMaxMs`. These semantics allow a follower to be added to the ISR even if the offset of its
    * fetch request is always smaller than the leader's LEO, which can happen if small produce requests are received at
    * high frequency.
+   *
+   * The new state is published with a single compare-and-set, so readers never observe a partially updated replica.
+   * The returned snapshot is the state that was published.
    */
   def updateFetchState(followerFetchOffsetMetadata: LogOffsetMetadata,
                        followerStartOffset: Long,
                        followerFetchTimeMs: Long,
                        leaderEndOffset: Long,
-                       lastSentHighwatermark: Long): Unit = {
-    if (followerFetchOffsetMetadata.messageOffset >= leaderEndOffset)
-      _lastCaughtUpTimeMs = math.max(_lastCaughtUpTimeMs, followerFetchTimeMs)
-    else if (followerFetchOffsetMetadata.messageOffset >= lastFetchLeaderLogEndOffset)
-      _lastCaughtUpTimeMs = math.max(_lastCaughtUpTimeMs, lastFetchTimeMs)
-
-    _logStartOffset = followerStartOffset
-    _logEndOffsetMetadata = followerFetchOffsetMetadata
-    lastFetchLeaderLogEndOffset = leaderEndOffset
-    lastFetchTimeMs = followerFetchTimeMs
-    updateLastSentHighWatermark(lastSentHighwatermark)
+                       lastSentHighwatermark: Long): ReplicaState = {
+    var newState: ReplicaState = null
+    var updated = false
+    while (!updated) {
+      val currentState = replicaState.get
+      val lastCaughtUpTime = if (followerFetchOffsetMetadata.messageOffset >= leaderEndOffset)
+        math.max(currentState.lastCaughtUpTimeMs, followerFetchTimeMs)
+      else if (followerFetchOffsetMetadata.messageOffset >= currentState.lastFetchLeaderLogEndOffset)
+        math.max(currentState.lastCaughtUpTimeMs, currentState.lastFetchTimeMs)
+      else
+        currentState.lastCaughtUpTimeMs
+
+      // The last sent high watermark is used to determine the maximum HW the follower knows about; it is an upper
+      // bound since there is no way to guarantee that the follower actually receives this HW. See KIP-392
+      newState = ReplicaState(
+        logStartOffset = followerStartOffset,
+        logEndOffsetMetadata = followerFetchOffsetMetadata,
+        lastFetchLeaderLogEndOffset = leaderEndOffset,
+        lastFetchTimeMs = followerFetchTimeMs,
+        lastCaughtUpTimeMs = lastCaughtUpTime,
+        lastSentHighWatermark = lastSentHighwatermark
+      )
+      updated = replicaState.compareAndSet(currentState, newState)
+    }
     trace(s"Updated state of replica to $this")
-  }
-
-  /**
-    * Update the high watermark of this remote replica. This is used to track what we think is the last known HW to
-    * a remote follower. Since this is recorded when we send a response, there is no way to guarantee that the follower
-    * actually receives this HW. So we consider this to be an upper bound on what the follower knows.
-    *
-    * When handling fetches, the last sent high watermark for a replica is checked to see if we should return immediately
-    * in order to propagate the HW more expeditiously. See KIP-392
-    */
-  private def updateLastSentHighWatermark(highWatermark: Long): Unit = {
-    _lastSentHighWatermark = highWatermark
-    trace(s"Updated HW of replica to $highWatermark")
+    newState
   }
 
   def resetLastCaughtUpTime(curLeaderLogEndOffset: Long, curTimeMs: Long, lastCaughtUpTimeMs: Long): Unit = {
-    lastFetchLeaderLogEndOffset = curLeaderLogEndOffset
-    lastFetchTimeMs = curTimeMs
-    _lastCaughtUpTimeMs = lastCaughtUpTimeMs
+    var updated = false
+    while (!updated) {
+      val currentState = replicaState.get
+      updated = replicaState.compareAndSet(currentState, currentState.copy(
+        lastFetchLeaderLogEndOffset = curLeaderLogEndOffset,
+        lastFetchTimeMs = curTimeMs,
+        lastCaughtUpTimeMs = lastCaughtUpTimeMs
+      ))
+    }
     trace(s"Reset state of replica to $this")
   }
 
   override def toString: String = {
+    val replicaState = stateSnapshot
     val replicaString = new StringBuilder
     replicaString.append("Replica(replicaId=" + brokerId)
     replicaString.append(s", topic=${topicPartition.topic}")
     replicaString.append(s", partition=${topicPartition.partition}")
-    replicaString.append(s", lastCaughtUpTimeMs=$lastCaughtUpTimeMs")
-    replicaString.append(s", logStartOffset=$logStartOffset")
-    replicaString.append(s", logEndOffset=$logEndOffset")
-    replicaString.append(s", logEndOffsetMetadata=$logEndOffsetMetadata")
-    replicaString.append(s", lastFetchLeaderLogEndOffset=$lastFetchLeaderLogEndOffset")
-    replicaString.append(s", lastFetchTimeMs=$lastFetchTimeMs")
-    replicaString.append(s", lastSentHighWatermark=$lastSentHighWatermark")
+    replicaString.append(s", lastCaughtUpTimeMs=${replicaState.lastCaughtUpTimeMs}")
+    replicaString.append(s", logStartOffset=${replicaState.logStartOffset}")
+    replicaString.append(s", logEndOffset=${replicaState.logEndOffset}")
+    replicaString.append(s", logEndOffsetMetadata=${replicaState.logEndOffsetMetadata}")
+    replicaString.append(s", lastFetchLeaderLogEndOffset=${replicaState.lastFetchLeaderLogEndOffset}")
+    replicaString.append(s", lastFetchTimeMs=${replicaState.lastFetchTimeMs}")
+    replicaString.append(s", lastSentHighWatermark=${replicaState.lastSentHighWatermark}")
     replicaString.append(")")
     replicaString.toString
   }
@@ -413,36 +413,36 @@ abstract class AbstractControllerBrokerRequestBatch(config: KafkaConfig,
   /** Send UpdateMetadataRequest to the given brokers for the given partitions and partitions that are being deleted */
   def addUpdateMetadataRequestForBrokers(brokerIds: Seq[Int],
                                          partitions: collection.Set[TopicPartition]): Unit = {
-
-    def updateMetadataRequestPartitionInfo(partition: TopicPartition, beingDeleted: Boolean): Unit = {
-      controllerContext.partitionLeadershipInfo.get(partition) match {
-        case Some(LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch)) =>
-          val replicas = controllerContext.partitionReplicaAssignment(partition)
-          val offlineReplicas = replicas.filter(!controllerContext.isReplicaOnline(_, partition))
-          val updatedLeaderAndIsr =
-            if (beingDeleted) LeaderAndIsr.duringDelete(leaderAndIsr.isr)
-            else leaderAndIsr
-
-          val partitionStateInfo = new UpdateMetadataPartitionState()
-            .setTopicName(partition.topic)
-            .setPartitionIndex(partition.partition)
-            .setControllerEpoch(controllerEpoch)
-            .setLeader(updatedLeaderAndIsr.leader)
-            .setLeaderEpoch(updatedLeaderAndIsr.leaderEpoch)
-            .setIsr(updatedLeaderAndIsr.isr.map(Integer.valueOf).asJava)
-            .setZkVersion(updatedLeaderAndIsr.zkVersion)
-            .setReplicas(replicas.map(Integer.valueOf).asJava)
-            .setOfflineReplicas(offlineReplicas.map(Integer.valueOf).asJava)
-          updateMetadataRequestPartitionInfoMap.put(partition, partitionStateInfo)
-
-        case None =>
-          info(s"Leader not yet assigned for partition $partition. Skip sending UpdateMetadataRequest.")
+    updateMetadataRequestBrokerSet ++= brokerIds.filter(_ >= 0)
+    partitions.foreach { partition =>
+      updateMetadataPartitionState(partition) match {
+        case Some(partitionState) => updateMetadataRequestPartitionInfoMap.put(partition, partitionState)
+        case None => info(s"Leader not yet assigned for partition $partition. Skip sending UpdateMetadataRequest.")
       }
     }
+  }
 
-    updateMetadataRequestBrokerSet ++= brokerIds.filter(_ >= 0)
-    partitions.foreach(partition => updateMetadataRequestPartitionInfo(partition,
-      beingDeleted = controllerContext.topicsToBeDeleted.contains(partition.topic)))
+  private def updateMetadataPartitionState(partition: TopicPartition): Option[UpdateMetadataPartitionState] = {
+    controllerContext.partitionLeadershipInfo.get(partition).map {
+      case LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch) =>
+        val replicas = controllerContext.partitionReplicaAssignment(partition)
+        val offlineReplicas = replicas.filter(!controllerContext.isReplicaOnline(_, partition))
+        val beingDeleted = controllerContext.topicsToBeDeleted.contains(partition.topic)
+        val updatedLeaderAndIsr =
+          if (beingDeleted) LeaderAndIsr.duringDelete(leaderAndIsr.isr)
+          else leaderAndIsr
+
+        new UpdateMetadataPartitionState()
+          .setTopicName(partition.topic)
+          .setPartitionIndex(partition.partition)
+          .setControllerEpoch(controllerEpoch)
+          .setLeader(updatedLeaderAndIsr.leader)
+          .setLeaderEpoch(updatedLeaderAndIsr.leaderEpoch)
+          .setIsr(updatedLeaderAndIsr.isr.map(Integer.valueOf).asJava)
+          .setZkVersion(updatedLeaderAndIsr.zkVersion)
+          .setReplicas(replicas.map(Integer.valueOf).asJava)
+          .setOfflineReplicas(offlineReplicas.map(Integer.valueOf).asJava)
+    }
   }
 
   private def sendLeaderAndIsrRequest(controllerEpoch: Int, stateChangeLog: StateChangeLogger): Unit = {
@@ -518,11 +518,46 @@ abstract class AbstractControllerBrokerRequestBatch(config: KafkaConfig,
         .setRack(broker.rack.orNull)
     }.toBuffer
 
-    updateMetadataRequestBrokerSet.intersect(controllerContext.liveOrShuttingDownBrokerIds).foreach { broker =>
-      val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
-      val updateMetadataRequest = new UpdateMetadataRequest.Builder(updateMetadataRequestVersion, controllerId, controllerEpoch,
-        brokerEpoch, partitionStates.asJava, liveBrokers.asJava)
-      sendRequest(broker, updateMetadataRequest)
+    val brokers = updateMetadataRequestBrokerSet.intersect(controllerContext.liveOrShuttingDownBrokerIds)
+
+    def sendUpdateMetadataRequestsWithoutEpochs(brokerIds: Iterable[Int]): Unit = {
+      brokerIds.foreach { broker =>
+        val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
+        val updateMetadataRequest = new UpdateMetadataRequest.Builder(updateMetadataRequestVersion, controllerId, controllerEpoch,
+          brokerEpoch, partitionStates.asJava, liveBrokers.asJava)
+        sendRequest(broker, updateMetadataRequest)
+      }
+    }
+
+    // Metadata epochs are sent as tagged fields, which need version 6
+    if (config.controllerMetadataDeltaEnable && updateMetadataRequestVersion >= 6) {
+      // Brokers that have been sent an update by this controller are sent the partition states of this batch, which
+      // apply to the last update sent to them. The others are sent a full snapshot of the partition states, except for
+      // brokers that do not track metadata epochs, which are sent the partition states of this batch without epochs.
+      val metadataEpoch = controllerContext.metadataEpoch + 1
+      controllerContext.metadataEpoch = metadataEpoch
+      lazy val fullPartitionStates = {
+        val fullPartitionStateMap = mutable.Map.empty[TopicPartition, UpdateMetadataPartitionState]
+        controllerContext.partitionLeadershipInfo.keys.foreach { partition =>
+          updateMetadataPartitionState(partition).foreach(fullPartitionStateMap.put(partition, _))
+        }
+        (fullPartitionStateMap ++= updateMetadataRequestPartitionInfoMap).values.toBuffer
+      }
+      val (brokersWithoutEpochs, brokersWithEpochs) = brokers.partition(controllerContext.brokersWithoutMetadataEpochs)
+      sendUpdateMetadataRequestsWithoutEpochs(brokersWithoutEpochs)
+      brokersWithEpochs.foreach { broker =>
+        val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
+        val previousMetadataEpoch = controllerContext.metadataEpochsSent.put(broker, metadataEpoch)
+        val isFullSnapshot = previousMetadataEpoch.isEmpty
+        val brokerPartitionStates = if (isFullSnapshot) fullPartitionStates else partitionStates
+        val updateMetadataRequest = new UpdateMetadataRequest.Builder(updateMetadataRequestVersion, controllerId,
+          controllerEpoch, brokerEpoch, brokerPartitionStates.asJava, liveBrokers.asJava, metadataEpoch,
+          previousMetadataEpoch.getOrElse(-1L))
+        sendRequest(broker, updateMetadataRequest,
+          (r: AbstractResponse) => sendEvent(UpdateMetadataResponseReceived(r, broker, metadataEpoch, isFullSnapshot)))
+      }
+    } else {
+      sendUpdateMetadataRequestsWithoutEpochs(brokers)
     }
     updateMetadataRequestBrokerSet.clear()
     updateMetadataRequestPartitionInfoMap.clear()
@@ -66,6 +66,13 @@ class ControllerContext {
   private var liveBrokerEpochs: Map[Int, Long] = Map.empty
   var epoch: Int = KafkaController.InitialControllerEpoch
   var epochZkVersion: Int = KafkaController.InitialControllerEpochZkVersion
+  // In metadata delta mode, the epoch of the last batch of UpdateMetadata requests and, for each broker, the epoch of
+  // the last one sent to it. Brokers without an epoch are sent a full snapshot of the partition states.
+  var metadataEpoch: Long = 0L
+  val metadataEpochsSent = mutable.Map.empty[Int, Long]
+  // Brokers that did not report the epoch of a full snapshot back, so they do not track metadata epochs and are sent
+  // plain partial updates until they re-register
+  val brokersWithoutMetadataEpochs = mutable.Set.empty[Int]
 
   var allTopics: Set[String] = Set.empty
   val partitionAssignments = mutable.Map.empty[String, mutable.Map[Int, ReplicaAssignment]]
@@ -176,12 +183,16 @@ class ControllerContext {
   }
 
   def addLiveBrokersAndEpochs(brokerAndEpochs: Map[Broker, Long]): Unit = {
+    metadataEpochsSent --= brokerAndEpochs.keys.map(_.id)
+    brokersWithoutMetadataEpochs --= brokerAndEpochs.keys.map(_.id)
     liveBrokers = liveBrokers ++ brokerAndEpochs.keySet
     liveBrokerEpochs = liveBrokerEpochs ++
       (brokerAndEpochs map { case (broker, brokerEpoch) => (broker.id, brokerEpoch)})
   }
 
   def removeLiveBrokers(brokerIds: Set[Int]): Unit = {
+    metadataEpochsSent --= brokerIds
+    brokersWithoutMetadataEpochs --= brokerIds
     liveBrokers = liveBrokers.filter(broker => !brokerIds.contains(broker.id))
     liveBrokerEpochs = liveBrokerEpochs.filter { case (id, _) => !brokerIds.contains(id) }
   }
@@ -281,6 +292,9 @@ class ControllerContext {
     shuttingDownBrokerIds.clear()
     epoch = 0
     epochZkVersion = 0
+    metadataEpoch = 0L
+    metadataEpochsSent.clear()
+    brokersWithoutMetadataEpochs.clear()
     clearTopicsState()
     setLiveBrokerAndEpochs(Map.empty)
   }
@@ -35,7 +35,7 @@ import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.errors.{BrokerNotAvailableException, ControllerMovedException, StaleBrokerEpochException}
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.protocol.Errors
-import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, ApiError, LeaderAndIsrResponse}
+import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, ApiError, LeaderAndIsrResponse, UpdateMetadataResponse}
 import org.apache.kafka.common.utils.Time
 import org.apache.zookeeper.KeeperException
 import org.apache.zookeeper.KeeperException.Code
@@ -1259,6 +1259,38 @@ class KafkaController(val config: KafkaConfig,
     }
   }
 
+  private def processUpdateMetadataResponseReceived(updateMetadataResponseObj: AbstractResponse,
+                                                    brokerId: Int,
+                                                    metadataEpoch: Long,
+                                                    isFullSnapshot: Boolean): Unit = {
+    if (!isActive) return
+    // Only the response to the latest update sent to the broker tells us where its metadata stands
+    if (!controllerContext.metadataEpochsSent.get(brokerId).contains(metadataEpoch)) return
+    val updateMetadataResponse = updateMetadataResponseObj.asInstanceOf[UpdateMetadataResponse]
+
+    if (updateMetadataResponse.error != Errors.NONE) {
+      stateChangeLogger.error(s"Received error in UpdateMetadata response $updateMetadataResponse from broker $brokerId")
+      // The broker did not apply the update, so it is sent a full snapshot right away rather than waiting for the next
+      // batch. A failed full snapshot is not resent to avoid looping, the next batch sends another one.
+      controllerContext.metadataEpochsSent.remove(brokerId)
+      if (!isFullSnapshot)
+        sendUpdateMetadataRequest(Seq(brokerId), Set.empty)
+    } else if (updateMetadataResponse.metadataEpoch != metadataEpoch) {
+      controllerContext.metadataEpochsSent.remove(brokerId)
+      if (isFullSnapshot) {
+        // A broker that does not report the epoch of a full snapshot does not track metadata epochs, so it is sent
+        // plain partial updates from now on rather than a full snapshot with every batch
+        stateChangeLogger.info(s"Broker $brokerId reported metadata epoch ${updateMetadataResponse.metadataEpoch} " +
+          s"after applying a full snapshot with metadata epoch $metadataEpoch, no longer sending it metadata deltas")
+        controllerContext.brokersWithoutMetadataEpochs += brokerId
+      } else {
+        stateChangeLogger.info(s"Broker $brokerId reported metadata epoch ${updateMetadataResponse.metadataEpoch} " +
+          s"after applying metadata epoch $metadataEpoch, sending a full snapshot of the partition states")
+        sendUpdateMetadataRequest(Seq(brokerId), Set.empty)
+      }
+    }
+  }
+
   private def processTopicDeletionStopReplicaResponseReceived(replicaId: Int,
                                                               requestError: Errors,
                                                               partitionErrors: Map[TopicPartition, Errors]): Unit = {
@@ -1872,6 +1904,8 @@ class KafkaController(val config: KafkaConfig,
           processControlledShutdown(id, brokerEpoch, callback)
         case LeaderAndIsrResponseReceived(response, brokerId) =>
           processLeaderAndIsrResponseReceived(response, brokerId)
+        case UpdateMetadataResponseReceived(response, brokerId, metadataEpoch, isFullSnapshot) =>
+          processUpdateMetadataResponseReceived(response, brokerId, metadataEpoch, isFullSnapshot)
         case TopicDeletionStopReplicaResponseReceived(replicaId, requestError, partitionErrors) =>
           processTopicDeletionStopReplicaResponseReceived(replicaId, requestError, partitionErrors)
         case BrokerChange =>
@@ -2087,6 +2121,13 @@ case class LeaderAndIsrResponseReceived(LeaderAndIsrResponseObj: AbstractRespons
   def state = ControllerState.LeaderAndIsrResponseReceived
 }
 
+case class UpdateMetadataResponseReceived(updateMetadataResponseObj: AbstractResponse,
+                                          brokerId: Int,
+                                          metadataEpoch: Long,
+                                          isFullSnapshot: Boolean) extends ControllerEvent {
+  def state = ControllerState.UpdateMetadataResponseReceived
+}
+
 case class TopicDeletionStopReplicaResponseReceived(replicaId: Int,
                                                     requestError: Errors,
                                                     partitionErrors: Map[TopicPartition, Errors]) extends ControllerEvent {
@@ -695,6 +695,8 @@ class GroupCoordinator(val brokerId: Int,
             doCommitOffsets(group, memberId, groupInstanceId, generationId, NO_PRODUCER_ID, NO_PRODUCER_EPOCH,
               offsetMetadata, responseCallback)
         }
+        // appended outside of the group lock since the commits of other groups may be appended along with it
+        groupManager.appendPendingOffsetCommits(groupId)
     }
   }
 
@@ -1198,6 +1200,7 @@ object GroupCoordinator {
   private[group] def offsetConfig(config: KafkaConfig) = OffsetConfig(
     maxMetadataSize = config.offsetMetadataMaxSize,
     loadBufferSize = config.offsetsLoadBufferSize,
+    loadThreads = config.offsetsLoadThreads,
     offsetsRetentionMs = config.offsetsRetentionMinutes * 60L * 1000L,
     offsetsRetentionCheckIntervalMs = config.offsetsRetentionCheckIntervalMs,
     offsetsTopicNumPartitions = config.offsetsTopicPartitions,
@@ -1205,7 +1208,8 @@ object GroupCoordinator {
     offsetsTopicReplicationFactor = config.offsetsTopicReplicationFactor,
     offsetsTopicCompressionCodec = config.offsetsTopicCompressionCodec,
     offsetCommitTimeoutMs = config.offsetCommitTimeoutMs,
-    offsetCommitRequiredAcks = config.offsetCommitRequiredAcks
+    offsetCommitRequiredAcks = config.offsetCommitRequiredAcks,
+    offsetCommitCoalescingEnable = config.offsetCommitCoalescingEnable
   )
 
   def apply(config: KafkaConfig,
@@ -20,9 +20,10 @@ package kafka.coordinator.group
 import java.io.PrintStream
 import java.nio.ByteBuffer
 import java.nio.charset.StandardCharsets
+import java.util
 import java.util.Optional
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{Callable, CompletableFuture, ConcurrentHashMap, ConcurrentLinkedQueue, ExecutionException, Executors, Future, RejectedExecutionException, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
 import java.util.concurrent.locks.ReentrantLock
 
 import com.yammer.metrics.core.Gauge
@@ -45,7 +46,7 @@ import org.apache.kafka.common.protocol.types._
 import org.apache.kafka.common.record._
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
 import org.apache.kafka.common.requests.{OffsetCommitRequest, OffsetFetchResponse}
-import org.apache.kafka.common.utils.{Time, Utils}
+import org.apache.kafka.common.utils.{KafkaThread, Time, Utils}
 import org.apache.kafka.common.{KafkaException, TopicPartition}
 
 import scala.collection.JavaConverters._
@@ -117,6 +118,50 @@ class GroupMetadataManager(brokerId: Int,
       "group-coordinator-metrics",
       "The total number of expired offsets")))
 
+  val partitionLoadRecordsSensor = metrics.sensor("PartitionLoadRecords")
+
+  partitionLoadRecordsSensor.add(new Meter(
+    metrics.metricName("partition-load-record-rate",
+      "group-coordinator-metrics",
+      "The rate of records loaded from the offsets topic"),
+    metrics.metricName("partition-load-record-count",
+      "group-coordinator-metrics",
+      "The total number of records loaded from the offsets topic")))
+
+  val offsetCommitBatchSizeSensor = metrics.sensor("OffsetCommitBatchSize")
+
+  offsetCommitBatchSizeSensor.add(metrics.metricName("offset-commit-batch-size-avg",
+    "group-coordinator-metrics",
+    "The average number of offset commits appended together to the offsets topic"), new Avg())
+  offsetCommitBatchSizeSensor.add(metrics.metricName("offset-commit-batch-size-max",
+    "group-coordinator-metrics",
+    "The max number of offset commits appended together to the offsets topic"), new Max())
+
+  /* the number of offsets left to load of the partitions being loaded */
+  private val loadRemainingOffsets = new ConcurrentHashMap[Int, Long]()
+
+  /* offset commits waiting to be appended together per offsets topic partition, when offset commits are coalesced */
+  private val pendingOffsetCommits = new Pool[Int, PendingOffsetCommits](Some(_ => new PendingOffsetCommits))
+
+  /* completes the coalesced offset commits whose group was locked by another thread when their append completed */
+  private val offsetCommitCompleter =
+    if (config.offsetCommitCoalescingEnable)
+      Some(Executors.newSingleThreadExecutor(new ThreadFactory {
+        override def newThread(runnable: Runnable): Thread =
+          KafkaThread.daemon("group-metadata-manager-offset-commit-completer", runnable)
+      }))
+    else None
+
+  /* decodes the records read while loading offsets and group metadata, when loads use more than one thread */
+  private val loadDecoder =
+    if (config.loadThreads > 1) {
+      val threadId = new AtomicInteger(0)
+      Some(Executors.newFixedThreadPool(config.loadThreads, new ThreadFactory {
+        override def newThread(runnable: Runnable): Thread =
+          KafkaThread.daemon(s"group-metadata-manager-load-decoder-${threadId.getAndIncrement()}", runnable)
+      }))
+    } else None
+
   this.logIdent = s"[GroupMetadataManager brokerId=$brokerId] "
 
   private def recreateGauge[T](name: String, gauge: Gauge[T]): Gauge[T] = {
@@ -131,6 +176,16 @@ class GroupMetadataManager(brokerId: Int,
       }).sum
     })
 
+  recreateGauge("NumPartitionsLoading",
+    new Gauge[Int] {
+      def value = inLock(partitionLock) { loadingPartitions.size }
+    })
+
+  recreateGauge("PartitionLoadRemainingOffsets",
+    new Gauge[Long] {
+      def value = loadRemainingOffsets.values.asScala.sum
+    })
+
   recreateGauge("NumGroups",
     new Gauge[Int] {
       def value = groupMetadataCache.size
@@ -323,7 +378,8 @@ class GroupMetadataManager(brokerId: Int,
   }
 
   /**
-   * Store offsets by appending it to the replicated log and then inserting to cache
+   * Store offsets by appending it to the replicated log and then inserting to cache. When offset commits are coalesced,
+   * the offsets of a non-transactional commit are only queued, and appended by `appendPendingOffsetCommits`.
    */
   def storeOffsets(group: GroupMetadata,
                    consumerId: String,
@@ -363,17 +419,10 @@ class GroupMetadataManager(brokerId: Int,
             new SimpleRecord(timestamp, key, value)
           }
           val offsetTopicPartition = new TopicPartition(Topic.GROUP_METADATA_TOPIC_NAME, partitionFor(group.groupId))
-          val buffer = ByteBuffer.allocate(AbstractRecords.estimateSizeInBytes(magicValue, compressionType, records.asJava))
 
           if (isTxnOffsetCommit && magicValue < RecordBatch.MAGIC_VALUE_V2)
             throw Errors.UNSUPPORTED_FOR_MESSAGE_FORMAT.exception("Attempting to make a transaction offset commit with an invalid magic: " + magicValue)
 
-          val builder = MemoryRecords.builder(buffer, magicValue, compressionType, timestampType, 0L, time.milliseconds(),
-            producerId, producerEpoch, 0, isTxnOffsetCommit, RecordBatch.NO_PARTITION_LEADER_EPOCH)
-
-          records.foreach(builder.append)
-          val entries = Map(offsetTopicPartition -> builder.build())
-
           // set the callback function to insert offsets into cache after log append completed
           def putCacheCallback(responseStatus: Map[TopicPartition, PartitionResponse]): Unit = {
             // the append response should only contain the topics partition
@@ -458,7 +507,20 @@ class GroupMetadataManager(brokerId: Int,
             }
           }
 
-          appendForGroup(group, entries, putCacheCallback)
+          if (config.offsetCommitCoalescingEnable && !isTxnOffsetCommit) {
+            // appended by `appendPendingOffsetCommits` together with the pending commits of the other groups
+            pendingOffsetCommits.getAndMaybePut(offsetTopicPartition.partition)
+              .add(new PendingOffsetCommit(group, magicValue, records.toSeq, putCacheCallback))
+          } else {
+            val buffer = ByteBuffer.allocate(AbstractRecords.estimateSizeInBytes(magicValue, compressionType, records.asJava))
+            val builder = MemoryRecords.builder(buffer, magicValue, compressionType, timestampType, 0L, time.milliseconds(),
+              producerId, producerEpoch, 0, isTxnOffsetCommit, RecordBatch.NO_PARTITION_LEADER_EPOCH)
+
+            records.foreach(builder.append)
+            val entries = Map(offsetTopicPartition -> builder.build())
+
+            appendForGroup(group, entries, putCacheCallback)
+          }
 
         case None =>
           val commitStatus = offsetMetadata.map { case (topicPartition, _) =>
@@ -470,6 +532,105 @@ class GroupMetadataManager(brokerId: Int,
     }
   }
 
+  /**
+   * Append the offset commits that `storeOffsets` queued for the offsets topic partition of the group, along with the
+   * commits queued by other groups of the same partition. The first caller to acquire the lock of the partition's queue
+   * appends everything queued so far, so the commit of a caller that finds the queue empty was appended by another
+   * thread. It should be called without holding the group lock, so that the group is not kept locked while the
+   * commits of other groups are appended.
+   */
+  def appendPendingOffsetCommits(groupId: String): Unit = {
+    if (config.offsetCommitCoalescingEnable) {
+      val partition = partitionFor(groupId)
+      val pending = pendingOffsetCommits.get(partition)
+      if (pending != null) {
+        inLock(pending.lock) {
+          val commits = pending.drain()
+          if (commits.nonEmpty)
+            appendOffsetCommits(new TopicPartition(Topic.GROUP_METADATA_TOPIC_NAME, partition), commits)
+        }
+      }
+    }
+  }
+
+  /**
+   * Append the offset commits in as few batches as possible. A batch only holds commits of the same magic and is
+   * kept below the max message size of the offsets topic, so that one large commit does not fail the others.
+   */
+  private def appendOffsetCommits(offsetTopicPartition: TopicPartition, commits: Seq[PendingOffsetCommit]): Unit = {
+    val maxBatchSize = replicaManager.getLogConfig(offsetTopicPartition).map(_.maxMessageSize.intValue).getOrElse(Int.MaxValue)
+    val batch = ArrayBuffer[PendingOffsetCommit]()
+    var batchSize = 0L
+
+    commits.foreach { commit =>
+      val commitSize = AbstractRecords.estimateSizeInBytes(commit.magic, compressionType, commit.records.asJava)
+      if (batch.nonEmpty && (batch.head.magic != commit.magic || batchSize + commitSize > maxBatchSize)) {
+        appendOffsetCommitBatch(offsetTopicPartition, batch.toList)
+        batch.clear()
+        batchSize = 0L
+      }
+      batch += commit
+      batchSize += commitSize
+    }
+    if (batch.nonEmpty)
+      appendOffsetCommitBatch(offsetTopicPartition, batch.toList)
+  }
+
+  private def appendOffsetCommitBatch(offsetTopicPartition: TopicPartition, batch: Seq[PendingOffsetCommit]): Unit = {
+    val magicValue = batch.head.magic
+    val records = batch.flatMap(_.records)
+    val buffer = ByteBuffer.allocate(AbstractRecords.estimateSizeInBytes(magicValue, compressionType, records.asJava))
+    // We always use CREATE_TIME, like the producer. The conversion to LOG_APPEND_TIME (if necessary) happens automatically.
+    val builder = MemoryRecords.builder(buffer, magicValue, compressionType, TimestampType.CREATE_TIME, 0L, time.milliseconds())
+    records.foreach(builder.append)
+
+    offsetCommitBatchSizeSensor.record(batch.size)
+
+    // complete each commit with the offset of its first record in the batch
+    def completeOffsetCommits(responseStatus: Map[TopicPartition, PartitionResponse]): Unit = {
+      val status = responseStatus(offsetTopicPartition)
+      var baseOffset = status.baseOffset
+      batch.foreach { commit =>
+        val commitStatus =
+          if (status.error == Errors.NONE)
+            new PartitionResponse(status.error, baseOffset, status.logAppendTime, status.logStartOffset)
+          else
+            status
+        baseOffset += commit.records.size
+
+        def completeOffsetCommit(): Unit = {
+          try commit.callback(Map(offsetTopicPartition -> commitStatus))
+          catch {
+            case e: Throwable => error(s"Failed to complete an offset commit appended to $offsetTopicPartition", e)
+          }
+        }
+
+        // The append may be completed by a thread holding the lock of another group, for instance one completing the
+        // delayed produces of the partition after appending for its own group. Waiting for a group lock here could
+        // deadlock, so the commits of groups locked by other threads are completed by a thread that holds no group lock.
+        if (commit.group.lock.tryLock()) {
+          try completeOffsetCommit()
+          finally commit.group.lock.unlock()
+        } else {
+          try offsetCommitCompleter.foreach(_.execute(() => completeOffsetCommit()))
+          catch {
+            case e: RejectedExecutionException =>
+              warn(s"Offset commit of group ${commit.group.groupId} appended to $offsetTopicPartition was not completed " +
+                "since the group metadata manager is shutting down", e)
+          }
+        }
+      }
+    }
+
+    replicaManager.appendRecords(
+      timeout = config.offsetCommitTimeoutMs.toLong,
+      requiredAcks = config.offsetCommitRequiredAcks,
+      internalTopicsAllowed = true,
+      origin = AppendOrigin.Coordinator,
+      entriesPerPartition = Map(offsetTopicPartition -> builder.build()),
+      responseCallback = completeOffsetCommits)
+  }
+
   /**
    * The most important guarantee that this API provides is that it should never return a stale offset. i.e., it either
    * returns the current offset or it begins to sync the cache from the log (and returns an error code).
@@ -543,6 +704,7 @@ class GroupMetadataManager(brokerId: Int,
     } catch {
       case t: Throwable => error(s"Error loading offsets from $topicPartition", t)
     } finally {
+      loadRemainingOffsets.remove(topicPartition.partition)
       inLock(partitionLock) {
         ownedPartitions.add(topicPartition.partition)
         loadingPartitions.remove(topicPartition.partition)
@@ -563,8 +725,77 @@ class GroupMetadataManager(brokerId: Int,
         val loadedGroups = mutable.Map[String, GroupMetadata]()
         val removedGroups = mutable.Set[String]()
 
-        // buffer may not be needed if records are read from memory
-        var buffer = ByteBuffer.allocate(0)
+        def applyBatch(batch: LoadedBatch): Unit = {
+          if (batch.isControlBatch) {
+            batch.controlRecordType.foreach { controlRecord =>
+              if (controlRecord == ControlRecordType.COMMIT) {
+                pendingOffsets.getOrElse(batch.producerId, mutable.Map[GroupTopicPartition, CommitRecordMetadataAndOffset]())
+                  .foreach {
+                    case (groupTopicPartition, commitRecordMetadataAndOffset) =>
+                      if (!loadedOffsets.contains(groupTopicPartition) || loadedOffsets(groupTopicPartition).olderThan(commitRecordMetadataAndOffset))
+                        loadedOffsets.put(groupTopicPartition, commitRecordMetadataAndOffset)
+                  }
+              }
+              pendingOffsets.remove(batch.producerId)
+            }
+          } else {
+            val isTxnOffsetCommit = batch.isTransactional
+            batch.records.foreach { record =>
+              record.key match {
+
+                case offsetKey: OffsetKey =>
+                  if (isTxnOffsetCommit && !pendingOffsets.contains(batch.producerId))
+                    pendingOffsets.put(batch.producerId, mutable.Map[GroupTopicPartition, CommitRecordMetadataAndOffset]())
+
+                  // load offset
+                  val groupTopicPartition = offsetKey.key
+                  if (record.value == null) {
+                    if (isTxnOffsetCommit)
+                      pendingOffsets(batch.producerId).remove(groupTopicPartition)
+                    else
+                      loadedOffsets.remove(groupTopicPartition)
+                  } else {
+                    val offsetAndMetadata = record.value.asInstanceOf[OffsetAndMetadata]
+                    if (isTxnOffsetCommit)
+                      pendingOffsets(batch.producerId).put(groupTopicPartition, CommitRecordMetadataAndOffset(batch.baseOffset, offsetAndMetadata))
+                    else
+                      loadedOffsets.put(groupTopicPartition, CommitRecordMetadataAndOffset(batch.baseOffset, offsetAndMetadata))
+                  }
+
+                case groupMetadataKey: GroupMetadataKey =>
+                  // load group metadata
+                  val groupId = groupMetadataKey.key
+                  val groupMetadata = record.value.asInstanceOf[GroupMetadata]
+                  if (groupMetadata != null) {
+                    removedGroups.remove(groupId)
+                    loadedGroups.put(groupId, groupMetadata)
+                  } else {
+                    loadedGroups.remove(groupId)
+                    removedGroups.add(groupId)
+                  }
+              }
+            }
+          }
+        }
+
+        // The records are read sequentially and decoded by up to `loadThreads` threads, one read at a time each. The
+        // decoded batches are then applied in offset order. Each read being decoded holds on to its own buffer.
+        val maxReadsInFlight = config.loadThreads
+        val readsInFlight = new util.ArrayDeque[(Future[Seq[LoadedBatch]], Option[ByteBuffer])]
+        // buffers may not be needed if records are read from memory
+        val freeBuffers = new util.ArrayDeque[ByteBuffer]
+
+        def applyNextRead(): Unit = {
+          val (decodedBatches, buffer) = readsInFlight.poll()
+          val batches = try decodedBatches.get catch {
+            case e: ExecutionException => throw e.getCause
+          }
+          batches.foreach { batch =>
+            applyBatch(batch)
+            partitionLoadRecordsSensor.record(batch.records.size)
+          }
+          buffer.foreach(freeBuffers.add)
+        }
 
         // loop breaks if leader changes at any time during the load, since logEndOffset is -1
         var currOffset = log.logStartOffset
@@ -573,6 +804,7 @@ class GroupMetadataManager(brokerId: Int,
         var readAtLeastOneRecord = true
 
         while (currOffset < logEndOffset && readAtLeastOneRecord && !shuttingDown.get()) {
+          loadRemainingOffsets.put(topicPartition.partition, logEndOffset - currOffset)
           val fetchDataInfo = log.read(currOffset,
             maxLength = config.loadBufferSize,
             isolation = FetchLogEnd,
@@ -580,11 +812,12 @@ class GroupMetadataManager(brokerId: Int,
 
           readAtLeastOneRecord = fetchDataInfo.records.sizeInBytes > 0
 
-          val memRecords = fetchDataInfo.records match {
-            case records: MemoryRecords => records
+          val (memRecords, buffer) = fetchDataInfo.records match {
+            case records: MemoryRecords => (records, None)
             case fileRecords: FileRecords =>
               val sizeInBytes = fileRecords.sizeInBytes
               val bytesNeeded = Math.max(config.loadBufferSize, sizeInBytes)
+              var buffer = if (freeBuffers.isEmpty) ByteBuffer.allocate(0) else freeBuffers.poll()
 
               // minOneMessage = true in the above log.read means that the buffer may need to be grown to ensure progress can be made
               if (buffer.capacity < bytesNeeded) {
@@ -598,73 +831,24 @@ class GroupMetadataManager(brokerId: Int,
               }
 
               fileRecords.readInto(buffer, 0)
-              MemoryRecords.readableRecords(buffer)
+              (MemoryRecords.readableRecords(buffer), Some(buffer))
           }
 
-          memRecords.batches.asScala.foreach { batch =>
-            val isTxnOffsetCommit = batch.isTransactional
-            if (batch.isControlBatch) {
-              val recordIterator = batch.iterator
-              if (recordIterator.hasNext) {
-                val record = recordIterator.next()
-                val controlRecord = ControlRecordType.parse(record.key)
-                if (controlRecord == ControlRecordType.COMMIT) {
-                  pendingOffsets.getOrElse(batch.producerId, mutable.Map[GroupTopicPartition, CommitRecordMetadataAndOffset]())
-                    .foreach {
-                      case (groupTopicPartition, commitRecordMetadataAndOffset) =>
-                        if (!loadedOffsets.contains(groupTopicPartition) || loadedOffsets(groupTopicPartition).olderThan(commitRecordMetadataAndOffset))
-                          loadedOffsets.put(groupTopicPartition, commitRecordMetadataAndOffset)
-                    }
-                }
-                pendingOffsets.remove(batch.producerId)
-              }
-            } else {
-              var batchBaseOffset: Option[Long] = None
-              for (record <- batch.asScala) {
-                require(record.hasKey, "Group metadata/offset entry key should not be null")
-                if (batchBaseOffset.isEmpty)
-                  batchBaseOffset = Some(record.offset)
-                GroupMetadataManager.readMessageKey(record.key) match {
-
-                  case offsetKey: OffsetKey =>
-                    if (isTxnOffsetCommit && !pendingOffsets.contains(batch.producerId))
-                      pendingOffsets.put(batch.producerId, mutable.Map[GroupTopicPartition, CommitRecordMetadataAndOffset]())
-
-                    // load offset
-                    val groupTopicPartition = offsetKey.key
-                    if (!record.hasValue) {
-                      if (isTxnOffsetCommit)
-                        pendingOffsets(batch.producerId).remove(groupTopicPartition)
-                      else
-                        loadedOffsets.remove(groupTopicPartition)
-                    } else {
-                      val offsetAndMetadata = GroupMetadataManager.readOffsetMessageValue(record.value)
-                      if (isTxnOffsetCommit)
-                        pendingOffsets(batch.producerId).put(groupTopicPartition, CommitRecordMetadataAndOffset(batchBaseOffset, offsetAndMetadata))
-                      else
-                        loadedOffsets.put(groupTopicPartition, CommitRecordMetadataAndOffset(batchBaseOffset, offsetAndMetadata))
-                    }
-
-                  case groupMetadataKey: GroupMetadataKey =>
-                    // load group metadata
-                    val groupId = groupMetadataKey.key
-                    val groupMetadata = GroupMetadataManager.readGroupMessageValue(groupId, record.value, time)
-                    if (groupMetadata != null) {
-                      removedGroups.remove(groupId)
-                      loadedGroups.put(groupId, groupMetadata)
-                    } else {
-                      loadedGroups.remove(groupId)
-                      removedGroups.add(groupId)
-                    }
-
-                  case unknownKey =>
-                    throw new IllegalStateException(s"Unexpected message key $unknownKey while loading offsets and group metadata")
-                }
-              }
-            }
-            currOffset = batch.nextOffset
+          // only the batch headers are read here, the records are decoded along with their keys and values
+          memRecords.batches.asScala.foreach(batch => currOffset = batch.nextOffset)
+          val decodedBatches = loadDecoder match {
+            case Some(executor) =>
+              executor.submit(new Callable[Seq[LoadedBatch]] {
+                override def call(): Seq[LoadedBatch] = decodeBatches(memRecords)
+              })
+            case None => CompletableFuture.completedFuture(decodeBatches(memRecords))
           }
+          readsInFlight.add((decodedBatches, buffer))
+          if (readsInFlight.size >= maxReadsInFlight)
+            applyNextRead()
         }
+        while (!readsInFlight.isEmpty)
+          applyNextRead()
 
         val (groupOffsets, emptyGroupOffsets) = loadedOffsets
           .groupBy(_._1.group)
@@ -717,6 +901,41 @@ class GroupMetadataManager(brokerId: Int,
     }
   }
 
+  private def decodeBatches(records: MemoryRecords): Seq[LoadedBatch] = {
+    records.batches.asScala.map { batch =>
+      if (batch.isControlBatch) {
+        val recordIterator = batch.iterator
+        if (recordIterator.hasNext) {
+          val controlRecordType = ControlRecordType.parse(recordIterator.next().key)
+          LoadedBatch(isControlBatch = true, batch.isTransactional, batch.producerId, Some(controlRecordType), None, Seq.empty)
+        } else {
+          LoadedBatch(isControlBatch = true, batch.isTransactional, RecordBatch.NO_PRODUCER_ID, None, None, Seq.empty)
+        }
+      } else {
+        var batchBaseOffset: Option[Long] = None
+        val loadedRecords = batch.asScala.map { record =>
+          require(record.hasKey, "Group metadata/offset entry key should not be null")
+          if (batchBaseOffset.isEmpty)
+            batchBaseOffset = Some(record.offset)
+          GroupMetadataManager.readMessageKey(record.key) match {
+            case offsetKey: OffsetKey =>
+              val offsetAndMetadata =
+                if (record.hasValue) GroupMetadataManager.readOffsetMessageValue(record.value)
+                else null
+              LoadedRecord(offsetKey, offsetAndMetadata)
+
+            case groupMetadataKey: GroupMetadataKey =>
+              LoadedRecord(groupMetadataKey, GroupMetadataManager.readGroupMessageValue(groupMetadataKey.key, record.value, time))
+
+            case unknownKey =>
+              throw new IllegalStateException(s"Unexpected message key $unknownKey while loading offsets and group metadata")
+          }
+        }.toBuffer
+        LoadedBatch(isControlBatch = false, batch.isTransactional, batch.producerId, None, batchBaseOffset, loadedRecords)
+      }
+    }.toBuffer
+  }
+
   private def loadGroup(group: GroupMetadata, offsets: Map[TopicPartition, CommitRecordMetadataAndOffset],
                         pendingTransactionalOffsets: Map[Long, mutable.Map[TopicPartition, CommitRecordMetadataAndOffset]]): Unit = {
     // offsets are initialized prior to loading the group into the cache to ensure that clients see a consistent
@@ -917,6 +1136,8 @@ class GroupMetadataManager(brokerId: Int,
     shuttingDown.set(true)
     if (scheduler.isStarted)
       scheduler.shutdown()
+    offsetCommitCompleter.foreach(_.shutdown())
+    loadDecoder.foreach(_.shutdown())
 
     // TODO: clear the caches
   }
@@ -1561,6 +1782,49 @@ case class GroupTopicPartition(group: String, topicPartition: TopicPartition) {
     "[%s,%s,%d]".format(group, topicPartition.topic, topicPartition.partition)
 }
 
+/**
+ * A record batch of the offsets topic decoded while loading a partition. The value of each record is an
+ * OffsetAndMetadata for an OffsetKey and a GroupMetadata for a GroupMetadataKey, or null for a tombstone.
+ */
+private[group] case class LoadedBatch(isControlBatch: Boolean,
+                                      isTransactional: Boolean,
+                                      producerId: Long,
+                                      controlRecordType: Option[ControlRecordType],
+                                      baseOffset: Option[Long],
+                                      records: Seq[LoadedRecord])
+
+private[group] case class LoadedRecord(key: BaseKey, value: AnyRef)
+
+/**
+ * An offset commit that was prepared in its group and is waiting to be appended to the offsets topic together with
+ * the commits of other groups. The callback completes the commit from the append status of its records.
+ */
+private[group] class PendingOffsetCommit(val group: GroupMetadata,
+                                         val magic: Byte,
+                                         val records: Seq[SimpleRecord],
+                                         val callback: Map[TopicPartition, PartitionResponse] => Unit)
+
+/**
+ * The offset commits waiting to be appended to an offsets topic partition. They are appended by the thread holding
+ * `lock`, in the order they were queued.
+ */
+private[group] class PendingOffsetCommits {
+  val lock = new ReentrantLock()
+  private val commits = new ConcurrentLinkedQueue[PendingOffsetCommit]()
+
+  def add(commit: PendingOffsetCommit): Unit = commits.add(commit)
+
+  def drain(): Seq[PendingOffsetCommit] = {
+    val drained = ArrayBuffer[PendingOffsetCommit]()
+    var commit = commits.poll()
+    while (commit != null) {
+      drained += commit
+      commit = commits.poll()
+    }
+    drained
+  }
+}
+
 trait BaseKey{
   def version: Short
   def key: Any
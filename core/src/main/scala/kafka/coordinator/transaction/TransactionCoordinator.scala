@@ -46,6 +46,7 @@ object TransactionCoordinator {
       config.transactionTopicReplicationFactor,
       config.transactionTopicSegmentBytes,
       config.transactionsLoadBufferSize,
+      config.transactionLogSnapshotIntervalMs,
       config.transactionTopicMinISR,
       config.transactionAbortTimedOutTransactionCleanupIntervalMs,
       config.transactionRemoveExpiredTransactionalIdCleanupIntervalMs,
@@ -532,6 +533,8 @@ class TransactionCoordinator(brokerId: Int,
     )
     if (enableTransactionalIdExpiration)
       txnManager.enableTransactionalIdExpiration()
+    if (txnConfig.transactionLogSnapshotIntervalMs > 0)
+      txnManager.enableTransactionStateSnapshots()
     txnMarkerChannelManager.start()
     isActive.set(true)
 
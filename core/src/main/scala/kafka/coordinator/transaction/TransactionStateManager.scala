@@ -22,17 +22,17 @@ import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.locks.ReentrantReadWriteLock
 
-import kafka.log.{AppendOrigin, LogConfig}
+import kafka.log.{AppendOrigin, Log, LogConfig}
 import kafka.message.UncompressedCodec
-import kafka.server.{Defaults, FetchLogEnd, ReplicaManager}
+import kafka.server.{Defaults, FetchHighWatermark, FetchIsolation, FetchLogEnd, ReplicaManager}
 import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
-import kafka.utils.{Logging, Pool, Scheduler}
+import kafka.utils.{KafkaScheduler, Logging, Pool, Scheduler}
 import kafka.zk.KafkaZkClient
 import org.apache.kafka.common.internals.Topic
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.metrics.stats.{Avg, Max}
 import org.apache.kafka.common.protocol.Errors
-import org.apache.kafka.common.record.{FileRecords, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.record.{FileRecords, MemoryRecords, Record, RecordBatch, SimpleRecord}
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
 import org.apache.kafka.common.requests.TransactionResult
 import org.apache.kafka.common.utils.{Time, Utils}
@@ -48,6 +48,7 @@ object TransactionStateManager {
   val DefaultTransactionalIdExpirationMs: Int = TimeUnit.DAYS.toMillis(7).toInt
   val DefaultAbortTimedOutTransactionsIntervalMs: Int = TimeUnit.MINUTES.toMillis(1).toInt
   val DefaultRemoveExpiredTransactionalIdsIntervalMs: Int = TimeUnit.HOURS.toMillis(1).toInt
+  val DefaultTransactionLogSnapshotIntervalMs: Int = 0
 }
 
 /**
@@ -94,6 +95,12 @@ class TransactionStateManager(brokerId: Int,
   /** number of partitions for the transaction log topic */
   private val transactionTopicPartitionCount = getTransactionTopicPartitionCount
 
+  /** snapshots are taken on their own thread so that they do not delay the loading of partitions */
+  private val snapshotScheduler = new KafkaScheduler(threads = 1, threadNamePrefix = "transaction-state-snapshot-")
+
+  /** the last snapshot of each transaction log partition and the log it was taken of, extended by the next snapshot */
+  private val transactionStateSnapshots = new Pool[TopicPartition, (Log, TransactionStateSnapshot)]
+
   /** setup metrics*/
   private val partitionLoadSensor = metrics.sensor("PartitionLoadTime")
 
@@ -282,6 +289,93 @@ class TransactionStateManager(brokerId: Int,
     zkClient.getTopicPartitionCount(Topic.TRANSACTION_STATE_TOPIC_NAME).getOrElse(config.transactionLogNumPartitions)
   }
 
+  /**
+   * Read the records of a transaction log partition from `startOffset` until `endOffset` is reached or
+   * `continueReading` no longer holds, and return the offset the records were read up to.
+   */
+  private def readTransactionLog(topicPartition: TopicPartition,
+                                 log: Log,
+                                 startOffset: Long,
+                                 endOffset: => Long,
+                                 isolation: FetchIsolation,
+                                 continueReading: => Boolean)(onRecord: Record => Unit): Long = {
+    // buffer may not be needed if records are read from memory
+    var buffer = ByteBuffer.allocate(0)
+
+    // loop breaks if leader changes at any time during the load, since logEndOffset is -1
+    var currOffset = startOffset
+
+    // loop breaks if no records have been read, since the end of the log has been reached
+    var readAtLeastOneRecord = true
+
+    while (currOffset < endOffset && readAtLeastOneRecord && continueReading) {
+      val fetchDataInfo = log.read(currOffset,
+        maxLength = config.transactionLogLoadBufferSize,
+        isolation = isolation,
+        minOneMessage = true)
+
+      readAtLeastOneRecord = fetchDataInfo.records.sizeInBytes > 0
+
+      val memRecords = fetchDataInfo.records match {
+        case records: MemoryRecords => records
+        case fileRecords: FileRecords =>
+          val sizeInBytes = fileRecords.sizeInBytes
+          val bytesNeeded = Math.max(config.transactionLogLoadBufferSize, sizeInBytes)
+
+          // minOneMessage = true in the above log.read means that the buffer may need to be grown to ensure progress can be made
+          if (buffer.capacity < bytesNeeded) {
+            if (config.transactionLogLoadBufferSize < bytesNeeded)
+              warn(s"Loaded transaction metadata from $topicPartition with buffer larger ($bytesNeeded bytes) than " +
+                s"configured transaction.state.log.load.buffer.size (${config.transactionLogLoadBufferSize} bytes)")
+
+            buffer = ByteBuffer.allocate(bytesNeeded)
+          } else {
+            buffer.clear()
+          }
+          buffer.clear()
+          fileRecords.readInto(buffer, 0)
+          MemoryRecords.readableRecords(buffer)
+      }
+
+      memRecords.batches.asScala.foreach { batch =>
+        for (record <- batch.asScala) {
+          require(record.hasKey, "Transaction state log's key should not be null")
+          onRecord(record)
+        }
+        currOffset = batch.nextOffset
+      }
+    }
+    currOffset
+  }
+
+  /**
+   * Return the snapshot of the transaction log partition if it can be used to load the partition. The last snapshot
+   * taken of the log is kept in memory, the snapshot file is only read when there is none. Tombstones are only
+   * guaranteed to be kept in the log for delete.retention.ms, so a snapshot whose records are older than that may have
+   * missed tombstones that followed them.
+   */
+  private def readTransactionStateSnapshot(topicPartition: TopicPartition, log: Log): Option[TransactionStateSnapshot] = {
+    try {
+      val snapshot = Option(transactionStateSnapshots.get(topicPartition)) match {
+        case Some((snapshotLog, lastSnapshot)) if snapshotLog eq log => Some(lastSnapshot)
+        case _ => TransactionStateSnapshot.read(TransactionStateSnapshot.file(log.dir))
+      }
+      snapshot.filter { snapshot =>
+        val logEndOffset = log.logEndOffset
+        val usable = snapshot.endOffset >= log.logStartOffset && snapshot.endOffset <= logEndOffset &&
+          (snapshot.endOffset == logEndOffset || time.milliseconds - snapshot.maxTimestamp < log.config.deleteRetentionMs)
+        if (!usable)
+          info(s"Ignoring the transaction state snapshot of $topicPartition at offset ${snapshot.endOffset}, the log " +
+            s"ranges from offset ${log.logStartOffset} to $logEndOffset")
+        usable
+      }
+    } catch {
+      case e: KafkaException =>
+        warn(s"Ignoring the transaction state snapshot of $topicPartition", e)
+        None
+    }
+  }
+
   private def loadTransactionMetadata(topicPartition: TopicPartition, coordinatorEpoch: Int): Pool[String, TransactionMetadata] =  {
     def logEndOffset = replicaManager.getLogEndOffset(topicPartition).getOrElse(-1L)
 
@@ -293,67 +387,36 @@ class TransactionStateManager(brokerId: Int,
         warn(s"Attempted to load transaction metadata from $topicPartition, but found no log")
 
       case Some(log) =>
-        // buffer may not be needed if records are read from memory
-        var buffer = ByteBuffer.allocate(0)
-
-        // loop breaks if leader changes at any time during the load, since logEndOffset is -1
-        var currOffset = log.logStartOffset
-
-        // loop breaks if no records have been read, since the end of the log has been reached
-        var readAtLeastOneRecord = true
-
         try {
-          while (currOffset < logEndOffset && readAtLeastOneRecord && !shuttingDown.get() && inReadLock(stateLock) {
-            loadingPartitions.exists { idAndEpoch: TransactionPartitionAndLeaderEpoch =>
-              idAndEpoch.txnPartitionId == topicPartition.partition && idAndEpoch.coordinatorEpoch == coordinatorEpoch}}) {
-            val fetchDataInfo = log.read(currOffset,
-              maxLength = config.transactionLogLoadBufferSize,
-              isolation = FetchLogEnd,
-              minOneMessage = true)
-
-            readAtLeastOneRecord = fetchDataInfo.records.sizeInBytes > 0
-
-            val memRecords = fetchDataInfo.records match {
-              case records: MemoryRecords => records
-              case fileRecords: FileRecords =>
-                val sizeInBytes = fileRecords.sizeInBytes
-                val bytesNeeded = Math.max(config.transactionLogLoadBufferSize, sizeInBytes)
-
-                // minOneMessage = true in the above log.read means that the buffer may need to be grown to ensure progress can be made
-                if (buffer.capacity < bytesNeeded) {
-                  if (config.transactionLogLoadBufferSize < bytesNeeded)
-                    warn(s"Loaded transaction metadata from $topicPartition with buffer larger ($bytesNeeded bytes) than " +
-                      s"configured transaction.state.log.load.buffer.size (${config.transactionLogLoadBufferSize} bytes)")
-
-                  buffer = ByteBuffer.allocate(bytesNeeded)
-                } else {
-                  buffer.clear()
-                }
-                buffer.clear()
-                fileRecords.readInto(buffer, 0)
-                MemoryRecords.readableRecords(buffer)
-            }
-
-            memRecords.batches.asScala.foreach { batch =>
-              for (record <- batch.asScala) {
-                require(record.hasKey, "Transaction state log's key should not be null")
-                val txnKey = TransactionLog.readTxnRecordKey(record.key)
-                // load transaction metadata along with transaction state
-                val transactionalId = txnKey.transactionalId
-                TransactionLog.readTxnRecordValue(transactionalId, record.value) match {
-                  case None =>
-                    loadedTransactions.remove(transactionalId)
-                  case Some(txnMetadata) =>
-                    loadedTransactions.put(transactionalId, txnMetadata)
-                }
-                currOffset = batch.nextOffset
+          val snapshot = if (config.transactionLogSnapshotIntervalMs > 0) readTransactionStateSnapshot(topicPartition, log) else None
+          val startOffset = snapshot match {
+            case Some(TransactionStateSnapshot(endOffset, _, transactions)) =>
+              transactions.foreach { case (transactionalId, value) =>
+                TransactionLog.readTxnRecordValue(transactionalId, value.duplicate).foreach(loadedTransactions.put(transactionalId, _))
               }
+              info(s"Loaded ${loadedTransactions.size} transaction metadata from the snapshot of $topicPartition at offset $endOffset")
+              endOffset
+            case None =>
+              log.logStartOffset
+          }
+
+          readTransactionLog(topicPartition, log, startOffset, logEndOffset, FetchLogEnd, !shuttingDown.get() && inReadLock(stateLock) {
+            loadingPartitions.exists { idAndEpoch: TransactionPartitionAndLeaderEpoch =>
+              idAndEpoch.txnPartitionId == topicPartition.partition && idAndEpoch.coordinatorEpoch == coordinatorEpoch}}) { record =>
+            val txnKey = TransactionLog.readTxnRecordKey(record.key)
+            // load transaction metadata along with transaction state
+            val transactionalId = txnKey.transactionalId
+            TransactionLog.readTxnRecordValue(transactionalId, record.value) match {
+              case None =>
+                loadedTransactions.remove(transactionalId)
+              case Some(txnMetadata) =>
+                loadedTransactions.put(transactionalId, txnMetadata)
             }
-            val endMs = time.milliseconds()
-            val timeLapse = endMs - startMs
-            partitionLoadSensor.record(timeLapse, endMs, false)
-            info(s"Finished loading ${loadedTransactions.size} transaction metadata from $topicPartition in $timeLapse milliseconds")
           }
+          val endMs = time.milliseconds()
+          val timeLapse = endMs - startMs
+          partitionLoadSensor.record(timeLapse, endMs, false)
+          info(s"Finished loading ${loadedTransactions.size} transaction metadata from $topicPartition in $timeLapse milliseconds")
         } catch {
           case t: Throwable => error(s"Error loading transactions from transaction log $topicPartition", t)
         }
@@ -362,6 +425,68 @@ class TransactionStateManager(brokerId: Int,
     loadedTransactions
   }
 
+  /**
+   * Periodically snapshot the transaction log partitions hosted by this broker, whether it is the coordinator of the
+   * partition or a follower, so that a coordinator taking over a partition only replays the records after the snapshot.
+   */
+  def enableTransactionStateSnapshots(): Unit = {
+    snapshotScheduler.startup()
+    snapshotScheduler.schedule("transaction-state-snapshot", () => {
+      (0 until transactionTopicPartitionCount).foreach { partitionId =>
+        val topicPartition = new TopicPartition(Topic.TRANSACTION_STATE_TOPIC_NAME, partitionId)
+        replicaManager.getLog(topicPartition) match {
+          case Some(log) =>
+            if (!isLoadingPartition(partitionId))
+              snapshotTransactionState(topicPartition, log)
+          case None =>
+            transactionStateSnapshots.remove(topicPartition)
+        }
+      }
+    }, delay = config.transactionLogSnapshotIntervalMs, period = config.transactionLogSnapshotIntervalMs)
+  }
+
+  private def isLoadingPartition(partitionId: Int): Boolean = inReadLock(stateLock) {
+    loadingPartitions.exists(_.txnPartitionId == partitionId)
+  }
+
+  /**
+   * Update the snapshot of the transaction log partition with the records up to the high watermark, which will not
+   * be truncated. The snapshot stops early if the partition starts loading, the records read so far are still
+   * written so that the next snapshot carries on from them.
+   */
+  private[transaction] def snapshotTransactionState(topicPartition: TopicPartition, log: Log): Unit = {
+    try {
+      val previousSnapshot = readTransactionStateSnapshot(topicPartition, log)
+      val startOffset = previousSnapshot.map(_.endOffset).getOrElse(log.logStartOffset)
+      val highWatermark = log.highWatermark
+      if (startOffset < highWatermark) {
+        val transactions = mutable.Map[String, ByteBuffer]()
+        previousSnapshot.foreach(transactions ++= _.transactions)
+        var maxTimestamp = previousSnapshot.map(_.maxTimestamp).getOrElse(RecordBatch.NO_TIMESTAMP)
+
+        val endOffset = readTransactionLog(topicPartition, log, startOffset, highWatermark, FetchHighWatermark,
+          !shuttingDown.get() && !isLoadingPartition(topicPartition.partition)) { record =>
+          val transactionalId = TransactionLog.readTxnRecordKey(record.key).transactionalId
+          if (record.hasValue)
+            transactions.put(transactionalId, ByteBuffer.wrap(Utils.toArray(record.value)))
+          else
+            transactions.remove(transactionalId)
+          maxTimestamp = math.max(maxTimestamp, record.timestamp)
+        }
+
+        if (endOffset > startOffset) {
+          val snapshot = TransactionStateSnapshot(endOffset, maxTimestamp, transactions)
+          TransactionStateSnapshot.write(TransactionStateSnapshot.file(log.dir), snapshot)
+          transactionStateSnapshots.put(topicPartition, (log, snapshot))
+          debug(s"Wrote the transaction state snapshot of $topicPartition at offset $endOffset with " +
+            s"${transactions.size} transactional ids")
+        }
+      }
+    } catch {
+      case e: Throwable => error(s"Error writing the transaction state snapshot of $topicPartition", e)
+    }
+  }
+
   /**
    * Add a transaction topic partition into the cache
    */
@@ -640,6 +765,7 @@ class TransactionStateManager(brokerId: Int,
 
   def shutdown(): Unit = {
     shuttingDown.set(true)
+    snapshotScheduler.shutdown()
     loadingPartitions.clear()
     transactionMetadataCache.clear()
 
@@ -663,6 +789,7 @@ private[transaction] case class TransactionConfig(transactionalIdExpirationMs: I
                                                   transactionLogReplicationFactor: Short = TransactionLog.DefaultReplicationFactor,
                                                   transactionLogSegmentBytes: Int = TransactionLog.DefaultSegmentBytes,
                                                   transactionLogLoadBufferSize: Int = TransactionLog.DefaultLoadBufferSize,
+                                                  transactionLogSnapshotIntervalMs: Int = TransactionStateManager.DefaultTransactionLogSnapshotIntervalMs,
                                                   transactionLogMinInsyncReplicas: Int = TransactionLog.DefaultMinInSyncReplicas,
                                                   abortTimedOutTransactionsIntervalMs: Int = TransactionStateManager.DefaultAbortTimedOutTransactionsIntervalMs,
                                                   removeExpiredTransactionalIdsIntervalMs: Int = TransactionStateManager.DefaultRemoveExpiredTransactionalIdsIntervalMs,
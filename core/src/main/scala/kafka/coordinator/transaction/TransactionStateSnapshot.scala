@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.coordinator.transaction
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardOpenOption}
+
+import kafka.log.CorruptSnapshotException
+import org.apache.kafka.common.protocol.types._
+import org.apache.kafka.common.utils.{ByteUtils, Crc32C, Utils}
+
+/**
+ * The state of a transaction log partition after replaying its records up to `endOffset`, which is kept in a file in
+ * the directory of the partition's log. It holds the last value written to the log for each transactional id, in the
+ * format of the transaction log, so a coordinator only needs to replay the records from `endOffset` when loading the
+ * partition. `maxTimestamp` is the largest timestamp of the records that were replayed.
+ */
+private[transaction] case class TransactionStateSnapshot(endOffset: Long,
+                                                         maxTimestamp: Long,
+                                                         transactions: collection.Map[String, ByteBuffer])
+
+private[transaction] object TransactionStateSnapshot {
+  val FileName = "transaction-state-snapshot"
+
+  private val SnapshotVersion: Short = 0
+  private val VersionField = "version"
+  private val CrcField = "crc"
+  private val EndOffsetField = "end_offset"
+  private val MaxTimestampField = "max_timestamp"
+  private val TransactionsField = "transactions"
+  private val TransactionalIdField = "transactional_id"
+  private val ValueField = "value"
+
+  private val VersionOffset = 0
+  private val CrcOffset = VersionOffset + 2
+  private val EndOffsetOffset = CrcOffset + 4
+
+  val TransactionSchema = new Schema(
+    new Field(TransactionalIdField, Type.STRING, "The transactional id"),
+    new Field(ValueField, Type.BYTES, "The last value of the transactional id in the transaction log"))
+  val SnapshotSchema = new Schema(
+    new Field(VersionField, Type.INT16, "Version of the snapshot file"),
+    new Field(CrcField, Type.UNSIGNED_INT32, "CRC of the snapshot data"),
+    new Field(EndOffsetField, Type.INT64, "The offset of the transaction log the snapshot was taken at"),
+    new Field(MaxTimestampField, Type.INT64, "The largest timestamp of the records in the snapshot"),
+    new Field(TransactionsField, new ArrayOf(TransactionSchema), "The transactional ids and their values"))
+
+  def file(logDir: File): File = new File(logDir, FileName)
+
+  def read(file: File): Option[TransactionStateSnapshot] = {
+    if (!file.exists)
+      return None
+
+    try {
+      val buffer = Files.readAllBytes(file.toPath)
+      val struct = SnapshotSchema.read(ByteBuffer.wrap(buffer))
+
+      val version = struct.getShort(VersionField)
+      if (version != SnapshotVersion)
+        throw new CorruptSnapshotException(s"Snapshot contained an unknown file version $version")
+
+      val crc = struct.getUnsignedInt(CrcField)
+      val computedCrc = Crc32C.compute(buffer, EndOffsetOffset, buffer.length - EndOffsetOffset)
+      if (crc != computedCrc)
+        throw new CorruptSnapshotException(s"Snapshot is corrupt (CRC is no longer valid). " +
+          s"Stored crc: $crc. Computed crc: $computedCrc")
+
+      val transactions = struct.getArray(TransactionsField).map { transactionObj =>
+        val transactionStruct = transactionObj.asInstanceOf[Struct]
+        transactionStruct.getString(TransactionalIdField) -> transactionStruct.getBytes(ValueField)
+      }.toMap
+      Some(TransactionStateSnapshot(struct.getLong(EndOffsetField), struct.getLong(MaxTimestampField), transactions))
+    } catch {
+      case e: SchemaException =>
+        throw new CorruptSnapshotException(s"Snapshot failed schema validation: ${e.getMessage}")
+    }
+  }
+
+  /**
+   * Write the snapshot to a temporary file first and then move it in place, so that a crash leaves either the previous
+   * snapshot or the new one.
+   */
+  def write(file: File, snapshot: TransactionStateSnapshot): Unit = {
+    val struct = new Struct(SnapshotSchema)
+    struct.set(VersionField, SnapshotVersion)
+    struct.set(CrcField, 0L) // we'll fill this after writing the transactions
+    struct.set(EndOffsetField, snapshot.endOffset)
+    struct.set(MaxTimestampField, snapshot.maxTimestamp)
+    val transactionsArray = snapshot.transactions.map { case (transactionalId, value) =>
+      struct.instance(TransactionsField)
+        .set(TransactionalIdField, transactionalId)
+        .set(ValueField, value.duplicate)
+    }.toArray
+    struct.set(TransactionsField, transactionsArray)
+
+    val buffer = ByteBuffer.allocate(struct.sizeOf)
+    struct.writeTo(buffer)
+    buffer.flip()
+
+    // now fill in the CRC
+    val crc = Crc32C.compute(buffer, EndOffsetOffset, buffer.limit() - EndOffsetOffset)
+    ByteUtils.writeUnsignedInt(buffer, CrcOffset, crc)
+
+    val tempFile = new File(file.getPath + ".tmp")
+    val fileChannel = FileChannel.open(tempFile.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING)
+    try {
+      while (buffer.hasRemaining)
+        fileChannel.write(buffer)
+      fileChannel.force(true)
+    } finally {
+      fileChannel.close()
+    }
+    Utils.atomicMoveWithFallback(tempFile.toPath, file.toPath)
+  }
+}
@@ -27,7 +27,12 @@ package kafka.log
  * @param maxIoBytesPerSecond The maximum read and write I/O that all cleaner threads are allowed to do
  * @param backOffMs The amount of time to wait before rechecking if no logs are eligible for cleaning
  * @param enableCleaner Allows completely disabling the log cleaner
- * @param hashAlgorithm The hash algorithm to use in key comparison.
+ * @param hashAlgorithm The hash algorithm to use in key comparison: "murmur3" for a [[DenseOffsetMap]], otherwise the
+ *                      name of a `MessageDigest` algorithm for a [[SkimpyOffsetMap]].
+ * @param offsetDeltaEncoding Whether a [[DenseOffsetMap]] should store offsets as 4-byte deltas
+ * @param minSegmentGarbageRatio The minimum estimated garbage ratio of a group of clean segments for it to be rewritten,
+ *                               0 to always rewrite them
+ * @param threadsPerLog The maximum number of cleaner threads which may clean the segments of a single log at once
  */
 case class CleanerConfig(numThreads: Int = 1,
                          dedupeBufferSize: Long = 4*1024*1024L,
@@ -37,5 +42,13 @@ case class CleanerConfig(numThreads: Int = 1,
                          maxIoBytesPerSecond: Double = Double.MaxValue,
                          backOffMs: Long = 15 * 1000,
                          enableCleaner: Boolean = true,
-                         hashAlgorithm: String = "MD5") {
+                         hashAlgorithm: String = CleanerConfig.Md5HashAlgorithm,
+                         offsetDeltaEncoding: Boolean = true,
+                         minSegmentGarbageRatio: Double = 0.0d,
+                         threadsPerLog: Int = 1) {
+}
+
+object CleanerConfig {
+  val Murmur3HashAlgorithm = "murmur3"
+  val Md5HashAlgorithm = "MD5"
 }
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardOpenOption}
+import java.util
+
+import org.apache.kafka.common.utils.{ByteUtils, Crc32C}
+
+/**
+ * A K-minimum-values sketch of the keys of some records: the smallest `KeySketch.Size` distinct key hashes, along
+ * with the number of keyed records and tombstones summarized. It lets the cleaner estimate how many records of a
+ * clean segment are superseded by later records without reading the segment again.
+ *
+ * @param hashes The smallest distinct non-negative key hashes, in ascending order
+ * @param records The number of keyed records summarized
+ * @param tombstones The number of those records that are tombstones
+ */
+class KeySketch private[log] (private val hashes: Array[Long], val records: Long, val tombstones: Long) {
+
+  /**
+   * The estimated number of distinct keys
+   */
+  def distinctKeys: Double = KeySketch.distinctKeys(hashes)
+
+  /**
+   * A sketch of the records summarized by either this sketch or `that`
+   */
+  def union(that: KeySketch): KeySketch =
+    new KeySketch(KeySketch.smallest(hashes, that.hashes), records + that.records, tombstones + that.tombstones)
+
+  /**
+   * The estimated number of distinct keys that appear both in this sketch and in `that`
+   */
+  def intersection(that: KeySketch): Double = {
+    val union = KeySketch.smallest(hashes, that.hashes)
+    if (union.isEmpty)
+      0.0
+    else {
+      // a hash among the smallest of the union is among the smallest of each sketch containing its key
+      val common = union.count(hash => contains(hash) && that.contains(hash))
+      common.toDouble / union.length * KeySketch.distinctKeys(union)
+    }
+  }
+
+  /**
+   * The estimated fraction of the summarized records that would be removed by cleaning them: those whose key appears
+   * again in `later`, and tombstones if they are past the delete horizon. Duplicate keys within the sketch are not
+   * counted since the cleaner only writes the latest record of each key. A sketch without keyed records (e.g. of a
+   * segment holding only transaction markers) is considered to be all garbage.
+   */
+  def garbageRatio(later: KeySketch, tombstonesExpired: Boolean): Double = {
+    if (records == 0)
+      1.0
+    else {
+      val expired = if (tombstonesExpired) tombstones else 0L
+      math.min(1.0, (intersection(later) + expired) / records)
+    }
+  }
+
+  private def contains(hash: Long): Boolean = util.Arrays.binarySearch(hashes, hash) >= 0
+
+  override def toString: String = s"KeySketch(records=$records, tombstones=$tombstones, distinctKeys=$distinctKeys)"
+}
+
+object KeySketch {
+  val Size = 64
+
+  // the file format: version (int16), CRC32C of the rest of the file (uint32), records (int64), tombstones (int64),
+  // the number of hashes (int32) and the hashes (int64 each)
+  private val FileVersion: Short = 0
+  private val CrcOffset = 2
+  private val RecordsOffset = CrcOffset + 4
+  private val HeaderSize = RecordsOffset + 8 + 8 + 4
+
+  /**
+   * Write a sketch to the given file, replacing its content, and flush it to disk
+   */
+  def write(sketch: KeySketch, file: File): Unit = {
+    val buffer = ByteBuffer.allocate(HeaderSize + 8 * sketch.hashes.length)
+    buffer.putShort(FileVersion)
+    buffer.putInt(0) // we'll fill this after writing the sketch
+    buffer.putLong(sketch.records)
+    buffer.putLong(sketch.tombstones)
+    buffer.putInt(sketch.hashes.length)
+    sketch.hashes.foreach(buffer.putLong)
+    buffer.flip()
+    ByteUtils.writeUnsignedInt(buffer, CrcOffset, Crc32C.compute(buffer, RecordsOffset, buffer.limit() - RecordsOffset))
+
+    val fileChannel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING)
+    try {
+      while (buffer.hasRemaining)
+        fileChannel.write(buffer)
+      fileChannel.force(true)
+    } finally fileChannel.close()
+  }
+
+  /**
+   * Read a sketch written by [[write]]
+   *
+   * @throws CorruptIndexException if the file does not hold a valid sketch
+   */
+  def read(file: File): KeySketch = {
+    def corrupt(reason: String) = new CorruptIndexException(s"Corrupt key sketch file ${file.getAbsolutePath}: $reason")
+
+    val buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath))
+    if (buffer.remaining < HeaderSize)
+      throw corrupt(s"the file is only ${buffer.remaining} bytes")
+    val version = buffer.getShort(0)
+    if (version != FileVersion)
+      throw corrupt(s"unknown file version $version")
+    val crc = ByteUtils.readUnsignedInt(buffer, CrcOffset)
+    val computedCrc = Crc32C.compute(buffer, RecordsOffset, buffer.limit() - RecordsOffset)
+    if (crc != computedCrc)
+      throw corrupt(s"stored crc $crc does not match computed crc $computedCrc")
+
+    buffer.position(RecordsOffset)
+    val records = buffer.getLong
+    val tombstones = buffer.getLong
+    val numHashes = buffer.getInt
+    if (numHashes < 0 || numHashes > Size || buffer.remaining != 8 * numHashes)
+      throw corrupt(s"invalid number of hashes $numHashes")
+    new KeySketch(Array.fill(numHashes)(buffer.getLong), records, tombstones)
+  }
+
+  private def distinctKeys(hashes: Array[Long]): Double = {
+    if (hashes.length < Size)
+      hashes.length
+    else
+      (Size - 1) / (hashes(hashes.length - 1).toDouble / Long.MaxValue)
+  }
+
+  /* merge two sorted arrays of distinct hashes, keeping the smallest `Size` distinct ones */
+  private def smallest(a: Array[Long], b: Array[Long]): Array[Long] = {
+    val merged = new Array[Long](math.min(Size, a.length + b.length))
+    var i = 0
+    var j = 0
+    var n = 0
+    while (n < merged.length && (i < a.length || j < b.length)) {
+      val next =
+        if (j == b.length || (i < a.length && a(i) <= b(j))) a(i)
+        else b(j)
+      if (i < a.length && a(i) == next) i += 1
+      if (j < b.length && b(j) == next) j += 1
+      merged(n) = next
+      n += 1
+    }
+    if (n == merged.length) merged else util.Arrays.copyOf(merged, n)
+  }
+}
+
+/**
+ * Accumulates a [[KeySketch]] one record at a time. Not thread-safe.
+ */
+private[log] class KeySketchBuilder {
+  private val smallest = new util.TreeSet[java.lang.Long]()
+  private val hashResult = new Array[Long](2)
+  private var records = 0L
+  private var tombstones = 0L
+
+  def add(key: ByteBuffer, isTombstone: Boolean): Unit = {
+    DenseOffsetMap.murmur3(key, hashResult)
+    val hash = hashResult(0) >>> 1
+    if (smallest.size < KeySketch.Size || hash < smallest.last) {
+      if (smallest.add(hash) && smallest.size > KeySketch.Size)
+        smallest.pollLast()
+    }
+    records += 1
+    if (isTombstone)
+      tombstones += 1
+  }
+
+  def build(): KeySketch = {
+    val hashes = new Array[Long](smallest.size)
+    var i = 0
+    val iter = smallest.iterator
+    while (iter.hasNext) {
+      hashes(i) = iter.next()
+      i += 1
+    }
+    new KeySketch(hashes, records, tombstones)
+  }
+
+  def clear(): Unit = {
+    smallest.clear()
+    records = 0L
+    tombstones = 0L
+  }
+}
@@ -33,6 +33,9 @@ import kafka.utils.threadsafe
   * Methods of this class are thread safe. Make sure to check `AbstractIndex` subclasses documentation
   * to establish their thread safety.
   *
+  * An index which was trusted without being checked on start-up (see [[LogSegment.trust]]) can be given a verification
+  * function through `verifyOnLoad`, which is run against the index file right before it is loaded for the first time.
+  *
   * @param loadIndex A function that takes a `File` pointing to an index and returns a loaded `AbstractIndex` instance.
   */
 @threadsafe
@@ -40,6 +43,8 @@ class LazyIndex[T <: AbstractIndex] private (@volatile private var indexWrapper:
 
   private val lock = new ReentrantLock()
 
+  @volatile private var verifier: Option[File => Unit] = None
+
   def file: File = indexWrapper.file
 
   def file_=(f: File): Unit = {
@@ -56,6 +61,10 @@ class LazyIndex[T <: AbstractIndex] private (@volatile private var indexWrapper:
           indexWrapper match {
             case indexValue: IndexValue[T] => indexValue.index
             case indexFile: IndexFile =>
+              verifier.foreach { verify =>
+                verify(indexFile.file)
+                verifier = None
+              }
               val indexValue = new IndexValue(loadIndex(indexFile.file))
               indexWrapper = indexValue
               indexValue.index
@@ -64,15 +73,55 @@ class LazyIndex[T <: AbstractIndex] private (@volatile private var indexWrapper:
     }
   }
 
+  /**
+   * Whether the underlying index has been loaded, i.e. `get` has been called at least once.
+   */
+  def isLoaded: Boolean = indexWrapper.isInstanceOf[IndexValue[_]]
+
+  /**
+   * Register a function to be run against the index file before it is loaded. The function should throw
+   * `CorruptIndexException` if the file cannot be used as is, in which case the index is not loaded and the function
+   * is run again on the next call to `get` unless `skipVerification` is called. It is ignored if the index has
+   * already been loaded.
+   */
+  def verifyOnLoad(verify: File => Unit): Unit = {
+    inLock(lock) {
+      if (!isLoaded)
+        verifier = Some(verify)
+    }
+  }
+
+  /**
+   * Drop any verification function registered through `verifyOnLoad` which has not been run yet.
+   */
+  def skipVerification(): Unit = {
+    inLock(lock) {
+      verifier = None
+    }
+  }
+
 }
 
 object LazyIndex {
 
-  def forOffset(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true): LazyIndex[OffsetIndex] =
-    new LazyIndex(new IndexFile(file), file => new OffsetIndex(file, baseOffset, maxIndexSize, writable))
-
-  def forTime(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true): LazyIndex[TimeIndex] =
-    new LazyIndex(new IndexFile(file), file => new TimeIndex(file, baseOffset, maxIndexSize, writable))
+  def forOffset(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+                filePool: Option[SegmentFilePool] = None): LazyIndex[OffsetIndex] =
+    new LazyIndex(new IndexFile(file), file => {
+      // a claimed spare file is zero-filled, so it is opened as an existing index and emptied
+      val claimed = filePool.exists(_.claim(file))
+      val index = new OffsetIndex(file, baseOffset, maxIndexSize, writable)
+      if (claimed) index.reset()
+      index
+    })
+
+  def forTime(file: File, baseOffset: Long, maxIndexSize: Int = -1, writable: Boolean = true,
+              filePool: Option[SegmentFilePool] = None): LazyIndex[TimeIndex] =
+    new LazyIndex(new IndexFile(file), file => {
+      val claimed = filePool.exists(_.claim(file))
+      val index = new TimeIndex(file, baseOffset, maxIndexSize, writable)
+      if (claimed) index.reset()
+      index
+    })
 
   private sealed trait IndexWrapper {
     def file: File
@@ -24,7 +24,7 @@ import java.text.NumberFormat
 import java.util.Map.{Entry => JEntry}
 import java.util.Optional
 import java.util.concurrent.atomic._
-import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap, TimeUnit}
+import java.util.concurrent.{Callable, ConcurrentNavigableMap, ConcurrentSkipListMap, ExecutionException, ExecutorService, TimeUnit}
 import java.util.regex.Pattern
 
 import com.yammer.metrics.core.Gauge
@@ -48,6 +48,7 @@ import org.apache.kafka.common.{InvalidRecordException, KafkaException, TopicPar
 import scala.collection.JavaConverters._
 import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 import scala.collection.{Seq, Set, mutable}
+import scala.util.{Failure, Success, Try}
 
 object LogAppendInfo {
   val UnknownLogAppendInfo = LogAppendInfo(None, -1, RecordBatch.NO_TIMESTAMP, -1L, RecordBatch.NO_TIMESTAMP, -1L,
@@ -208,6 +209,13 @@ object RollParams {
  * @param time The time instance used for checking the clock
  * @param maxProducerIdExpirationMs The maximum amount of time to wait before a producer id is considered expired
  * @param producerIdExpirationCheckIntervalMs How often to check for producer ids which need to be expired
+ * @param segmentRecoveryPool The pool shared by the logs of the broker to recover their unflushed segments concurrently
+ *                            after an unclean shutdown. Without one, the segments are recovered by the loading thread.
+ * @param cleanShutdownManifest The state of the segments of this log recorded on the last clean shutdown, by base
+ *                              offset. Segments which still match it are loaded without checking their index files.
+ * @param logDirFlusher The flusher of the log directory, if flushes triggered by flush.messages are group committed
+ * @param segmentFilePool The pool of spare segment files of the log directory, if enabled. New segments claim their
+ *                        files from it and the files of deleted segments are returned to it.
  */
 @threadsafe
 class Log(@volatile var dir: File,
@@ -221,7 +229,11 @@ class Log(@volatile var dir: File,
           val producerIdExpirationCheckIntervalMs: Int,
           val topicPartition: TopicPartition,
           val producerStateManager: ProducerStateManager,
-          logDirFailureChannel: LogDirFailureChannel) extends Logging with KafkaMetricsGroup {
+          logDirFailureChannel: LogDirFailureChannel,
+          segmentRecoveryPool: Option[ExecutorService] = None,
+          cleanShutdownManifest: Map[Long, SegmentManifestEntry] = Map.empty,
+          logDirFlusher: Option[LogDirFlusher] = None,
+          segmentFilePool: Option[SegmentFilePool] = None) extends Logging with KafkaMetricsGroup {
 
   import kafka.log.Log._
 
@@ -287,6 +299,9 @@ class Log(@volatile var dir: File,
   // Visible for testing
   @volatile var leaderEpochCache: Option[LeaderEpochFileCache] = None
 
+  /* the time spent recovering unflushed segments when the log was loaded */
+  @volatile private var recoveryTimeMs = 0L
+
   locally {
     val startMs = time.milliseconds
 
@@ -369,6 +384,18 @@ class Log(@volatile var dir: File,
     }
   }
 
+  /**
+   * Check without acquiring the log lock whether `maybeIncrementHighWatermark` would update the high
+   * watermark to `newHighWatermark`. This may return true for an update that loses a race with a
+   * concurrent one, but never returns false for an update that would take effect.
+   */
+  def canIncrementHighWatermark(newHighWatermark: LogOffsetMetadata): Boolean = {
+    val oldHighWatermark = highWatermarkMetadata
+    oldHighWatermark.messageOffset < newHighWatermark.messageOffset ||
+      (oldHighWatermark.messageOffset == newHighWatermark.messageOffset &&
+        (oldHighWatermark.messageOffsetOnly || oldHighWatermark.onOlderSegment(newHighWatermark)))
+  }
+
   /**
    * Get the offset and metadata for the current high watermark. If offset metadata is not
    * known, this will do a lookup in the index and cache the result.
@@ -489,6 +516,12 @@ class Log(@volatile var dir: File,
     },
     tags)
 
+  newGauge("RecoveryTimeMs",
+    new Gauge[Long] {
+      def value = recoveryTimeMs
+    },
+    tags)
+
   val producerExpireCheck = scheduler.schedule(name = "PeriodicProducerExpirationCheck", fun = () => {
     lock synchronized {
       producerStateManager.removeExpiredProducers(time.milliseconds)
@@ -539,6 +572,7 @@ class Log(@volatile var dir: File,
       Files.deleteIfExists(Log.offsetIndexFile(dir, offset, suffix).toPath)
       Files.deleteIfExists(Log.timeIndexFile(dir, offset, suffix).toPath)
       Files.deleteIfExists(Log.transactionIndexFile(dir, offset, suffix).toPath)
+      Files.deleteIfExists(Log.keySketchFile(dir, offset, suffix).toPath)
     }
 
     var swapFiles = Set[File]()
@@ -612,15 +646,23 @@ class Log(@volatile var dir: File,
       } else if (isLogFile(file)) {
         // if it's a log file, load the corresponding log segment
         val baseOffset = offsetFromFile(file)
-        val timeIndexFileNewlyCreated = !Log.timeIndexFile(dir, baseOffset).exists()
         val segment = LogSegment.open(dir = dir,
           baseOffset = baseOffset,
           config,
           time = time,
           fileAlreadyExists = true)
 
-        try segment.sanityCheck(timeIndexFileNewlyCreated)
-        catch {
+        // a segment which is unchanged since the last clean shutdown is trusted and its indexes are only verified
+        // once they are loaded, which saves opening the index files of every segment on start-up
+        try {
+          cleanShutdownManifest.get(baseOffset).filter(_.logSize == segment.size) match {
+            case Some(manifestEntry) =>
+              segment.trust(manifestEntry)
+            case None =>
+              val timeIndexFileNewlyCreated = !Log.timeIndexFile(dir, baseOffset).exists()
+              segment.sanityCheck(timeIndexFileNewlyCreated)
+          }
+        } catch {
           case _: NoSuchFileException =>
             error(s"Could not find offset index file corresponding to log file ${segment.log.file.getAbsolutePath}, " +
               "recovering segment and rebuilding index files...")
@@ -761,29 +803,15 @@ class Log(@volatile var dir: File,
     // if we have the clean shutdown marker, skip recovery
     if (!hasCleanShutdownFile) {
       // okay we need to actually recover this log
-      val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).toIterator
-      var truncated = false
-
-      while (unflushed.hasNext && !truncated) {
-        val segment = unflushed.next
-        info(s"Recovering unflushed segment ${segment.baseOffset}")
-        val truncatedBytes =
-          try {
-            recoverSegment(segment, leaderEpochCache)
-          } catch {
-            case _: InvalidOffsetException =>
-              val startOffset = segment.baseOffset
-              warn("Found invalid offset during recovery. Deleting the corrupt segment and " +
-                s"creating an empty one with starting offset $startOffset")
-              segment.truncateTo(startOffset)
-          }
-        if (truncatedBytes > 0) {
-          // we had an invalid message, delete all remaining log
-          warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
-          removeAndDeleteSegments(unflushed.toList, asyncDelete = true)
-          truncated = true
-        }
+      val startMs = time.milliseconds
+      val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).toList
+      segmentRecoveryPool match {
+        case Some(pool) if unflushed.size > 1 => recoverSegmentsInParallel(unflushed, pool)
+        case _ => recoverSegments(unflushed)
       }
+      recoveryTimeMs = time.milliseconds - startMs
+      if (unflushed.nonEmpty)
+        info(s"Recovered ${unflushed.size} unflushed segments in $recoveryTimeMs ms")
     }
 
     if (logSegments.nonEmpty) {
@@ -810,6 +838,92 @@ class Log(@volatile var dir: File,
     recoveryPoint
   }
 
+  private def recoverSegments(unflushedSegments: List[LogSegment]): Unit = {
+    val unflushed = unflushedSegments.toIterator
+    var truncated = false
+
+    while (unflushed.hasNext && !truncated) {
+      val segment = unflushed.next
+      info(s"Recovering unflushed segment ${segment.baseOffset}")
+      val truncatedBytes =
+        try {
+          recoverSegment(segment, leaderEpochCache)
+        } catch {
+          case _: InvalidOffsetException =>
+            val startOffset = segment.baseOffset
+            warn("Found invalid offset during recovery. Deleting the corrupt segment and " +
+              s"creating an empty one with starting offset $startOffset")
+            segment.truncateTo(startOffset)
+        }
+      if (truncatedBytes > 0) {
+        // we had an invalid message, delete all remaining log
+        warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
+        removeAndDeleteSegments(unflushed.toList, asyncDelete = true)
+        truncated = true
+      }
+    }
+  }
+
+  /**
+   * Recover the given segments on the given pool. The log data and the offset and time indexes of each segment are
+   * recovered concurrently. The leader epochs and producer state found in the segments are then
+   * applied in offset order.
+   *
+   * The outcome is the same as that of `recoverSegments`: if a segment had to be truncated, all segments after it
+   * are deleted.
+   */
+  private def recoverSegmentsInParallel(unflushed: List[LogSegment], pool: ExecutorService): Unit = {
+    info(s"Recovering ${unflushed.size} unflushed segments starting at ${unflushed.head.baseOffset} concurrently")
+    val results = {
+      val futures = unflushed.map { segment =>
+        pool.submit(new Callable[SegmentRecoveryInfo] {
+          override def call(): SegmentRecoveryInfo = {
+            try segment.recoverIndexes()
+            catch {
+              case _: InvalidOffsetException =>
+                val startOffset = segment.baseOffset
+                warn("Found invalid offset during recovery. Deleting the corrupt segment and " +
+                  s"creating an empty one with starting offset $startOffset")
+                SegmentRecoveryInfo(segment.truncateTo(startOffset), List.empty, Some(Seq.empty), None)
+            }
+          }
+        })
+      }
+      // wait for all segments before looking at the outcome, a failure may cause the segments to be reloaded
+      futures.map(future => Try(future.get))
+    }
+
+    val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
+    rebuildProducerState(unflushed.head.baseOffset, reloadFromCleanShutdown = false, producerStateManager)
+
+    val remaining = unflushed.zip(results).toIterator
+    var truncated = false
+    while (remaining.hasNext && !truncated) {
+      val (segment, result) = remaining.next()
+      val recoveryInfo = result match {
+        case Success(recovered) => recovered
+        case Failure(e: ExecutionException) => throw e.getCause
+        case Failure(e) => throw e
+      }
+
+      leaderEpochCache.foreach { cache =>
+        recoveryInfo.leaderEpochs.foreach { case (epoch, startOffset) =>
+          if (cache.latestEpoch.forall(epoch > _))
+            cache.assign(epoch, startOffset)
+        }
+      }
+      segment.recoverProducerState(producerStateManager, recoveryInfo)
+      producerStateManager.takeSnapshot()
+
+      if (recoveryInfo.truncatedBytes > 0) {
+        // we had an invalid message, delete all remaining log
+        warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
+        removeAndDeleteSegments(remaining.map(_._1).toList, asyncDelete = true)
+        truncated = true
+      }
+    }
+  }
+
   // Rebuild producer state until lastOffset. This method may be called from the recovery code path, and thus must be
   // free of all side-effects, i.e. it must not update any log-specific state.
   private def rebuildProducerState(lastOffset: Long,
@@ -935,12 +1049,21 @@ class Log(@volatile var dir: File,
    */
   def numberOfSegments: Int = segments.size
 
+  /**
+   * The state of the segments of this log to record on a clean shutdown. This should only be called once the log has
+   * been closed.
+   */
+  def segmentManifest: Seq[SegmentManifestEntry] = lock synchronized {
+    logSegments.flatMap(_.manifestEntry).toSeq
+  }
+
   /**
    * Close this log.
    * The memory mapped buffer for index files of this log will be left open until the log is deleted.
    */
   def close(): Unit = {
     debug("Closing log")
+    logDirFlusher.foreach(_.cancel(this))
     lock synchronized {
       checkIfMemoryMappedBufferClosed()
       producerExpireCheck.cancel(true)
@@ -981,6 +1104,7 @@ class Log(@volatile var dir: File,
    */
   def closeHandlers(): Unit = {
     debug("Closing handlers")
+    logDirFlusher.foreach(_.cancel(this))
     lock synchronized {
       logSegments.foreach(_.closeHandlers())
       isMemoryMappedBufferClosed = true
@@ -1047,169 +1171,255 @@ class Log(@volatile var dir: File,
         return appendInfo
 
       // trim any invalid bytes or partial messages before appending it to the on-disk log
-      var validRecords = trimInvalidBytes(records, appendInfo)
+      val validRecords = trimInvalidBytes(records, appendInfo)
 
       // they are valid, insert them in the log
-      lock synchronized {
+      val (result, pendingFlush) = lock synchronized {
         checkIfMemoryMappedBufferClosed()
-        if (assignOffsets) {
-          // assign offsets to the message set
-          val offset = new LongRef(nextOffsetMetadata.messageOffset)
-          appendInfo.firstOffset = Some(offset.value)
-          val now = time.milliseconds
-          val validateAndOffsetAssignResult = try {
-            LogValidator.validateMessagesAndAssignOffsets(validRecords,
-              topicPartition,
-              offset,
-              time,
-              now,
-              appendInfo.sourceCodec,
-              appendInfo.targetCodec,
-              config.compact,
-              config.messageFormatVersion.recordVersion.value,
-              config.messageTimestampType,
-              config.messageTimestampDifferenceMaxMs,
-              leaderEpoch,
-              origin,
-              interBrokerProtocolVersion,
-              brokerTopicStats)
-          } catch {
-            case e: IOException =>
-              throw new KafkaException(s"Error validating messages while appending to log $name", e)
-          }
-          validRecords = validateAndOffsetAssignResult.validatedRecords
-          appendInfo.maxTimestamp = validateAndOffsetAssignResult.maxTimestamp
-          appendInfo.offsetOfMaxTimestamp = validateAndOffsetAssignResult.shallowOffsetOfMaxTimestamp
-          appendInfo.lastOffset = offset.value - 1
-          appendInfo.recordConversionStats = validateAndOffsetAssignResult.recordConversionStats
-          if (config.messageTimestampType == TimestampType.LOG_APPEND_TIME)
-            appendInfo.logAppendTime = now
-
-          // re-validate message sizes if there's a possibility that they have changed (due to re-compression or message
-          // format conversion)
-          if (validateAndOffsetAssignResult.messageSizeMaybeChanged) {
-            for (batch <- validRecords.batches.asScala) {
-              if (batch.sizeInBytes > config.maxMessageSize) {
-                // we record the original message set size instead of the trimmed size
-                // to be consistent with pre-compression bytesRejectedRate recording
-                brokerTopicStats.topicStats(topicPartition.topic).bytesRejectedRate.mark(records.sizeInBytes)
-                brokerTopicStats.allTopicsStats.bytesRejectedRate.mark(records.sizeInBytes)
-                throw new RecordTooLargeException(s"Message batch size is ${batch.sizeInBytes} bytes in append to" +
-                  s"partition $topicPartition which exceeds the maximum configured size of ${config.maxMessageSize}.")
-              }
-            }
-          }
-        } else {
-          // we are taking the offsets we are given
-          if (!appendInfo.offsetsMonotonic)
-            throw new OffsetsOutOfOrderException(s"Out of order offsets found in append to $topicPartition: " +
-                                                 records.records.asScala.map(_.offset))
-
-          if (appendInfo.firstOrLastOffsetOfFirstBatch < nextOffsetMetadata.messageOffset) {
-            // we may still be able to recover if the log is empty
-            // one example: fetching from log start offset on the leader which is not batch aligned,
-            // which may happen as a result of AdminClient#deleteRecords()
-            val firstOffset = appendInfo.firstOffset match {
-              case Some(offset) => offset
-              case None => records.batches.asScala.head.baseOffset()
-            }
+        val result = appendValidRecords(records, validRecords, appendInfo, origin, interBrokerProtocolVersion,
+          assignOffsets, leaderEpoch)
+        (result, maybeRequestFlush())
+      }
+      // wait outside of the lock so that appends arriving in the meantime can share the flush
+      pendingFlush.foreach(_.await())
+      result
+    }
+  }
 
-            val firstOrLast = if (appendInfo.firstOffset.isDefined) "First offset" else "Last offset of the first batch"
-            throw new UnexpectedAppendOffsetException(
-              s"Unexpected offset in append to $topicPartition. $firstOrLast " +
-              s"${appendInfo.firstOrLastOffsetOfFirstBatch} is less than the next offset ${nextOffsetMetadata.messageOffset}. " +
-              s"First 10 offsets in append: ${records.records.asScala.take(10).map(_.offset)}, last offset in" +
-              s" append: ${appendInfo.lastOffset}. Log start offset = $logStartOffset",
-              firstOffset, appendInfo.lastOffset)
-          }
+  /**
+   * Append several message sets to the active segment of the log as the leader, taking the log lock once for all of
+   * them. Each message set is validated and assigned offsets as by [[appendAsLeader]], and gets its own result: an
+   * error only fails the message set that caused it, except for I/O errors, which fail the whole batch.
+   *
+   * @param batch The records to append, in order, with the origin of each append
+   * @param leaderEpoch The partition's leader epoch which will be applied to messages
+   * @param interBrokerProtocolVersion Inter-broker message protocol version
+   * @throws KafkaStorageException If the append fails due to an I/O error.
+   * @return The information about the appended messages, or the error, of each message set in `batch`
+   */
+  def appendBatchAsLeader(batch: Seq[(MemoryRecords, AppendOrigin)],
+                          leaderEpoch: Int,
+                          interBrokerProtocolVersion: ApiVersion = ApiVersion.latestVersion): Seq[Try[LogAppendInfo]] = {
+    maybeHandleIOException(s"Error while appending records to $topicPartition in dir ${dir.getParent}") {
+      val validated = batch.map { case (records, origin) =>
+        tryAppend {
+          val appendInfo = analyzeAndValidateRecords(records, origin)
+          val validRecords = if (appendInfo.shallowCount == 0) records else trimInvalidBytes(records, appendInfo)
+          (appendInfo, validRecords)
         }
+      }
 
-        // update the epoch cache with the epoch stamped onto the message by the leader
-        validRecords.batches.asScala.foreach { batch =>
-          if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
-            maybeAssignEpochStartOffset(batch.partitionLeaderEpoch, batch.baseOffset)
-          } else {
-            // In partial upgrade scenarios, we may get a temporary regression to the message format. In
-            // order to ensure the safety of leader election, we clear the epoch cache so that we revert
-            // to truncation by high watermark after the next leader election.
-            leaderEpochCache.filter(_.nonEmpty).foreach { cache =>
-              warn(s"Clearing leader epoch cache after unexpected append with message format v${batch.magic}")
-              cache.clearAndFlush()
-            }
-          }
+      val (results, pendingFlush) = lock synchronized {
+        checkIfMemoryMappedBufferClosed()
+        val results = batch.zip(validated).map {
+          case ((records, origin), Success((appendInfo, validRecords))) =>
+            if (appendInfo.shallowCount == 0)
+              Success(appendInfo)
+            else
+              tryAppend(appendValidRecords(records, validRecords, appendInfo, origin, interBrokerProtocolVersion,
+                assignOffsets = true, leaderEpoch))
+          case (_, Failure(e)) => Failure(e)
         }
+        (results, maybeRequestFlush())
+      }
+      pendingFlush.foreach(_.await())
+      results
+    }
+  }
 
-        // check messages set size may be exceed config.segmentSize
-        if (validRecords.sizeInBytes > config.segmentSize) {
-          throw new RecordBatchTooLargeException(s"Message batch size is ${validRecords.sizeInBytes} bytes in append " +
-            s"to partition $topicPartition, which exceeds the maximum configured segment size of ${config.segmentSize}.")
-        }
+  // I/O errors are left to `maybeHandleIOException` so that the log dir is marked offline
+  private def tryAppend[T](fun: => T): Try[T] = {
+    try Success(fun)
+    catch {
+      case e: IOException => throw e
+      case e: Exception => Failure(e)
+    }
+  }
 
-        // maybe roll the log if this segment is full
-        val segment = maybeRoll(validRecords.sizeInBytes, appendInfo)
-
-        val logOffsetMetadata = LogOffsetMetadata(
-          messageOffset = appendInfo.firstOrLastOffsetOfFirstBatch,
-          segmentBaseOffset = segment.baseOffset,
-          relativePositionInSegment = segment.size)
-
-        // now that we have valid records, offsets assigned, and timestamps updated, we need to
-        // validate the idempotent/transactional state of the producers and collect some metadata
-        val (updatedProducers, completedTxns, maybeDuplicate) = analyzeAndValidateProducerState(
-          logOffsetMetadata, validRecords, origin)
-
-        maybeDuplicate.foreach { duplicate =>
-          appendInfo.firstOffset = Some(duplicate.firstOffset)
-          appendInfo.lastOffset = duplicate.lastOffset
-          appendInfo.logAppendTime = duplicate.timestamp
-          appendInfo.logStartOffset = logStartOffset
-          return appendInfo
+  /**
+   * Append the validated and trimmed records of one message set to the log. Must be called while holding `lock`.
+   *
+   * @param records The records as they were received, used for error reporting
+   * @param trimmedRecords The valid records of `records`
+   * @param appendInfo The information collected when validating `records`, updated with the result of the append
+   */
+  private def appendValidRecords(records: MemoryRecords,
+                                 trimmedRecords: MemoryRecords,
+                                 appendInfo: LogAppendInfo,
+                                 origin: AppendOrigin,
+                                 interBrokerProtocolVersion: ApiVersion,
+                                 assignOffsets: Boolean,
+                                 leaderEpoch: Int): LogAppendInfo = {
+    var validRecords = trimmedRecords
+    if (assignOffsets) {
+      // assign offsets to the message set
+      val offset = new LongRef(nextOffsetMetadata.messageOffset)
+      appendInfo.firstOffset = Some(offset.value)
+      val now = time.milliseconds
+      val validateAndOffsetAssignResult = try {
+        LogValidator.validateMessagesAndAssignOffsets(validRecords,
+          topicPartition,
+          offset,
+          time,
+          now,
+          appendInfo.sourceCodec,
+          appendInfo.targetCodec,
+          config.compact,
+          config.messageFormatVersion.recordVersion.value,
+          config.messageTimestampType,
+          config.messageTimestampDifferenceMaxMs,
+          leaderEpoch,
+          origin,
+          interBrokerProtocolVersion,
+          brokerTopicStats)
+      } catch {
+        case e: IOException =>
+          throw new KafkaException(s"Error validating messages while appending to log $name", e)
+      }
+      validRecords = validateAndOffsetAssignResult.validatedRecords
+      appendInfo.maxTimestamp = validateAndOffsetAssignResult.maxTimestamp
+      appendInfo.offsetOfMaxTimestamp = validateAndOffsetAssignResult.shallowOffsetOfMaxTimestamp
+      appendInfo.lastOffset = offset.value - 1
+      appendInfo.recordConversionStats = validateAndOffsetAssignResult.recordConversionStats
+      if (config.messageTimestampType == TimestampType.LOG_APPEND_TIME)
+        appendInfo.logAppendTime = now
+
+      // re-validate message sizes if there's a possibility that they have changed (due to re-compression or message
+      // format conversion)
+      if (validateAndOffsetAssignResult.messageSizeMaybeChanged) {
+        for (batch <- validRecords.batches.asScala) {
+          if (batch.sizeInBytes > config.maxMessageSize) {
+            // we record the original message set size instead of the trimmed size
+            // to be consistent with pre-compression bytesRejectedRate recording
+            brokerTopicStats.topicStats(topicPartition.topic).bytesRejectedRate.mark(records.sizeInBytes)
+            brokerTopicStats.allTopicsStats.bytesRejectedRate.mark(records.sizeInBytes)
+            throw new RecordTooLargeException(s"Message batch size is ${batch.sizeInBytes} bytes in append to" +
+              s"partition $topicPartition which exceeds the maximum configured size of ${config.maxMessageSize}.")
+          }
         }
-
-        segment.append(largestOffset = appendInfo.lastOffset,
-          largestTimestamp = appendInfo.maxTimestamp,
-          shallowOffsetOfMaxTimestamp = appendInfo.offsetOfMaxTimestamp,
-          records = validRecords)
-
-        // Increment the log end offset. We do this immediately after the append because a
-        // write to the transaction index below may fail and we want to ensure that the offsets
-        // of future appends still grow monotonically. The resulting transaction index inconsistency
-        // will be cleaned up after the log directory is recovered. Note that the end offset of the
-        // ProducerStateManager will not be updated and the last stable offset will not advance
-        // if the append to the transaction index fails.
-        updateLogEndOffset(appendInfo.lastOffset + 1)
-
-        // update the producer state
-        for (producerAppendInfo <- updatedProducers.values) {
-          producerStateManager.update(producerAppendInfo)
+      }
+    } else {
+      // we are taking the offsets we are given
+      if (!appendInfo.offsetsMonotonic)
+        throw new OffsetsOutOfOrderException(s"Out of order offsets found in append to $topicPartition: " +
+                                             records.records.asScala.map(_.offset))
+
+      if (appendInfo.firstOrLastOffsetOfFirstBatch < nextOffsetMetadata.messageOffset) {
+        // we may still be able to recover if the log is empty
+        // one example: fetching from log start offset on the leader which is not batch aligned,
+        // which may happen as a result of AdminClient#deleteRecords()
+        val firstOffset = appendInfo.firstOffset match {
+          case Some(offset) => offset
+          case None => records.batches.asScala.head.baseOffset()
         }
 
-        // update the transaction index with the true last stable offset. The last offset visible
-        // to consumers using READ_COMMITTED will be limited by this value and the high watermark.
-        for (completedTxn <- completedTxns) {
-          val lastStableOffset = producerStateManager.lastStableOffset(completedTxn)
-          segment.updateTxnIndex(completedTxn, lastStableOffset)
-          producerStateManager.completeTxn(completedTxn)
+        val firstOrLast = if (appendInfo.firstOffset.isDefined) "First offset" else "Last offset of the first batch"
+        throw new UnexpectedAppendOffsetException(
+          s"Unexpected offset in append to $topicPartition. $firstOrLast " +
+          s"${appendInfo.firstOrLastOffsetOfFirstBatch} is less than the next offset ${nextOffsetMetadata.messageOffset}. " +
+          s"First 10 offsets in append: ${records.records.asScala.take(10).map(_.offset)}, last offset in" +
+          s" append: ${appendInfo.lastOffset}. Log start offset = $logStartOffset",
+          firstOffset, appendInfo.lastOffset)
+      }
+    }
+
+    // update the epoch cache with the epoch stamped onto the message by the leader
+    validRecords.batches.asScala.foreach { batch =>
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+        maybeAssignEpochStartOffset(batch.partitionLeaderEpoch, batch.baseOffset)
+      } else {
+        // In partial upgrade scenarios, we may get a temporary regression to the message format. In
+        // order to ensure the safety of leader election, we clear the epoch cache so that we revert
+        // to truncation by high watermark after the next leader election.
+        leaderEpochCache.filter(_.nonEmpty).foreach { cache =>
+          warn(s"Clearing leader epoch cache after unexpected append with message format v${batch.magic}")
+          cache.clearAndFlush()
         }
+      }
+    }
 
-        // always update the last producer id map offset so that the snapshot reflects the current offset
-        // even if there isn't any idempotent data being written
-        producerStateManager.updateMapEndOffset(appendInfo.lastOffset + 1)
+    // check messages set size may be exceed config.segmentSize
+    if (validRecords.sizeInBytes > config.segmentSize) {
+      throw new RecordBatchTooLargeException(s"Message batch size is ${validRecords.sizeInBytes} bytes in append " +
+        s"to partition $topicPartition, which exceeds the maximum configured segment size of ${config.segmentSize}.")
+    }
 
-        // update the first unstable offset (which is used to compute LSO)
-        maybeIncrementFirstUnstableOffset()
+    // maybe roll the log if this segment is full
+    val segment = maybeRoll(validRecords.sizeInBytes, appendInfo)
 
-        trace(s"Appended message set with last offset: ${appendInfo.lastOffset}, " +
-          s"first offset: ${appendInfo.firstOffset}, " +
-          s"next offset: ${nextOffsetMetadata.messageOffset}, " +
-          s"and messages: $validRecords")
+    val logOffsetMetadata = LogOffsetMetadata(
+      messageOffset = appendInfo.firstOrLastOffsetOfFirstBatch,
+      segmentBaseOffset = segment.baseOffset,
+      relativePositionInSegment = segment.size)
 
-        if (unflushedMessages >= config.flushInterval)
-          flush()
+    // now that we have valid records, offsets assigned, and timestamps updated, we need to
+    // validate the idempotent/transactional state of the producers and collect some metadata
+    val (updatedProducers, completedTxns, maybeDuplicate) = analyzeAndValidateProducerState(
+      logOffsetMetadata, validRecords, origin)
 
-        appendInfo
-      }
+    maybeDuplicate.foreach { duplicate =>
+      appendInfo.firstOffset = Some(duplicate.firstOffset)
+      appendInfo.lastOffset = duplicate.lastOffset
+      appendInfo.logAppendTime = duplicate.timestamp
+      appendInfo.logStartOffset = logStartOffset
+      return appendInfo
     }
+
+    segment.append(largestOffset = appendInfo.lastOffset,
+      largestTimestamp = appendInfo.maxTimestamp,
+      shallowOffsetOfMaxTimestamp = appendInfo.offsetOfMaxTimestamp,
+      records = validRecords)
+
+    // Increment the log end offset. We do this immediately after the append because a
+    // write to the transaction index below may fail and we want to ensure that the offsets
+    // of future appends still grow monotonically. The resulting transaction index inconsistency
+    // will be cleaned up after the log directory is recovered. Note that the end offset of the
+    // ProducerStateManager will not be updated and the last stable offset will not advance
+    // if the append to the transaction index fails.
+    updateLogEndOffset(appendInfo.lastOffset + 1)
+
+    // update the producer state
+    for (producerAppendInfo <- updatedProducers.values) {
+      producerStateManager.update(producerAppendInfo)
+    }
+
+    // update the transaction index with the true last stable offset. The last offset visible
+    // to consumers using READ_COMMITTED will be limited by this value and the high watermark.
+    for (completedTxn <- completedTxns) {
+      val lastStableOffset = producerStateManager.lastStableOffset(completedTxn)
+      segment.updateTxnIndex(completedTxn, lastStableOffset)
+      producerStateManager.completeTxn(completedTxn)
+    }
+
+    // always update the last producer id map offset so that the snapshot reflects the current offset
+    // even if there isn't any idempotent data being written
+    producerStateManager.updateMapEndOffset(appendInfo.lastOffset + 1)
+
+    // update the first unstable offset (which is used to compute LSO)
+    maybeIncrementFirstUnstableOffset()
+
+    trace(s"Appended message set with last offset: ${appendInfo.lastOffset}, " +
+      s"first offset: ${appendInfo.firstOffset}, " +
+      s"next offset: ${nextOffsetMetadata.messageOffset}, " +
+      s"and messages: $validRecords")
+
+    appendInfo
+  }
+
+  /**
+   * Flush the log if there are more unflushed messages than the flush interval, or request the flush from the log dir
+   * flusher if there is one, in which case the caller must await the returned flush outside of `lock`. Must be
+   * called while holding `lock`.
+   */
+  private def maybeRequestFlush(): Option[LogDirFlusher.PendingFlush] = {
+    if (unflushedMessages >= config.flushInterval) {
+      logDirFlusher match {
+        case Some(flusher) => Some(flusher.requestFlush(this, logEndOffset))
+        case None =>
+          flush()
+          None
+      }
+    } else None
   }
 
   def maybeAssignEpochStartOffset(leaderEpoch: Int, startOffset: Long): Unit = {
@@ -1791,6 +2001,35 @@ class Log(@volatile var dir: File,
     deleteOldSegments(shouldDelete, reason = s"log start offset $logStartOffset breach")
   }
 
+  /**
+   * Delete segments which have been copied to remote storage, i.e. whose last offset is at most `remoteLogEndOffset`,
+   * once they breach the local retention time or size. Segments which have not been copied are never deleted by
+   * this method, regardless of their age.
+   *
+   * @param remoteLogEndOffset The last offset available in remote storage
+   * @param localRetentionMs How long copied segments are kept locally, -1 for no time limit
+   * @param localRetentionBytes The local log size above which copied segments are deleted, -1 for no size limit
+   * @return The number of segments deleted
+   */
+  def deleteSegmentsCopiedToRemote(remoteLogEndOffset: Long, localRetentionMs: Long, localRetentionBytes: Long): Int = {
+    val startMs = time.milliseconds
+    var diff = if (localRetentionBytes < 0) 0L else size - localRetentionBytes
+    def shouldDelete(segment: LogSegment, nextSegmentOpt: Option[LogSegment]) = {
+      val copied = nextSegmentOpt.exists(_.baseOffset <= remoteLogEndOffset + 1)
+      val breachesRetentionMs = localRetentionMs >= 0 && startMs - segment.largestTimestamp > localRetentionMs
+      val breachesRetentionSize = diff - segment.size >= 0
+      if (copied && (breachesRetentionMs || breachesRetentionSize)) {
+        diff -= segment.size
+        true
+      } else {
+        false
+      }
+    }
+
+    deleteOldSegments(shouldDelete, reason = s"local retention breach of segments copied to remote storage " +
+      s"up to offset $remoteLogEndOffset")
+  }
+
   def isFuture: Boolean = dir.getName.endsWith(Log.FutureDirSuffix)
 
   /**
@@ -1916,7 +2155,8 @@ class Log(@volatile var dir: File,
           time = time,
           fileAlreadyExists = false,
           initFileSize = initFileSize,
-          preallocate = config.preallocate)
+          preallocate = config.preallocate,
+          filePool = segmentFilePool)
         addSegment(segment)
 
         // We need to update the segment base offset and append position data of the metadata when log rolls.
@@ -2007,6 +2247,7 @@ class Log(@volatile var dir: File,
    * Completely delete this log directory and all contents from the file system with no delay
    */
   private[log] def delete(): Unit = {
+    logDirFlusher.foreach(_.cancel(this))
     maybeHandleIOException(s"Error while deleting log for $topicPartition in dir ${dir.getParent}") {
       lock synchronized {
         checkIfMemoryMappedBufferClosed()
@@ -2214,7 +2455,7 @@ class Log(@volatile var dir: File,
     def deleteSegments(): Unit = {
       info(s"Deleting segments $segments")
       maybeHandleIOException(s"Error while deleting segments for $topicPartition in dir ${dir.getParent}") {
-        segments.foreach(_.deleteIfExists())
+        segments.foreach(_.deleteIfExists(segmentFilePool))
       }
     }
 
@@ -2308,6 +2549,7 @@ class Log(@volatile var dir: File,
     removeMetric("LogStartOffset", tags)
     removeMetric("LogEndOffset", tags)
     removeMetric("Size", tags)
+    removeMetric("RecoveryTimeMs", tags)
   }
 
   /**
@@ -2423,6 +2665,9 @@ object Log {
   /** an (aborted) txn index */
   val TxnIndexFileSuffix = ".txnindex"
 
+  /** a sketch of the keys of a segment written by the log cleaner */
+  val KeySketchFileSuffix = ".keysketch"
+
   /** a file that is scheduled to be deleted */
   val DeletedFileSuffix = ".deleted"
 
@@ -2460,11 +2705,16 @@ object Log {
             time: Time = Time.SYSTEM,
             maxProducerIdExpirationMs: Int,
             producerIdExpirationCheckIntervalMs: Int,
-            logDirFailureChannel: LogDirFailureChannel): Log = {
+            logDirFailureChannel: LogDirFailureChannel,
+            segmentRecoveryPool: Option[ExecutorService] = None,
+            cleanShutdownManifest: Map[Long, SegmentManifestEntry] = Map.empty,
+            logDirFlusher: Option[LogDirFlusher] = None,
+            segmentFilePool: Option[SegmentFilePool] = None): Log = {
     val topicPartition = Log.parseTopicPartitionName(dir)
     val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
     new Log(dir, config, logStartOffset, recoveryPoint, scheduler, brokerTopicStats, time, maxProducerIdExpirationMs,
-      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel)
+      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel, segmentRecoveryPool,
+      cleanShutdownManifest, logDirFlusher, segmentFilePool)
   }
 
   /**
@@ -2568,6 +2818,16 @@ object Log {
   def transactionIndexFile(dir: File, offset: Long, suffix: String = ""): File =
     new File(dir, filenamePrefixFromOffset(offset) + TxnIndexFileSuffix + suffix)
 
+  /**
+   * Construct a key sketch file name in the given dir using the given base offset and the given suffix
+   *
+   * @param dir The directory in which the log will reside
+   * @param offset The base offset of the log file
+   * @param suffix The suffix to be appended to the file name ("", ".deleted", ".cleaned", ".swap", etc.)
+   */
+  def keySketchFile(dir: File, offset: Long, suffix: String = ""): File =
+    new File(dir, filenamePrefixFromOffset(offset) + KeySketchFileSuffix + suffix)
+
   def offsetFromFileName(filename: String): Long = {
     filename.substring(0, filename.indexOf('.')).toLong
   }
@@ -2624,7 +2884,8 @@ object Log {
 
   private def isIndexFile(file: File): Boolean = {
     val filename = file.getName
-    filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix) || filename.endsWith(TxnIndexFileSuffix)
+    filename.endsWith(IndexFileSuffix) || filename.endsWith(TimeIndexFileSuffix) || filename.endsWith(TxnIndexFileSuffix) ||
+      filename.endsWith(KeySketchFileSuffix)
   }
 
   private def isLogFile(file: File): Boolean =
@@ -20,7 +20,7 @@ package kafka.log
 import java.io.{File, IOException}
 import java.nio._
 import java.util.Date
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import com.yammer.metrics.core.Gauge
 import kafka.common._
@@ -126,6 +126,20 @@ class LogCleaner(initialConfig: CleanerConfig,
                (100 * recopyRate).toInt
              }
            })
+  /* metrics to track the bytes rewritten, the bytes reclaimed and the bytes of clean segments left in place by
+   * incremental cleaning in the last cleaning from each thread */
+  newGauge("cleaner-bytes-rewritten",
+           new Gauge[Long] {
+             def value: Long = cleaners.map(_.lastStats).map(_.bytesWritten).sum
+           })
+  newGauge("cleaner-bytes-reclaimed",
+           new Gauge[Long] {
+             def value: Long = cleaners.map(_.lastStats).map(stats => stats.bytesRead - stats.bytesWritten).sum
+           })
+  newGauge("cleaner-bytes-skipped",
+           new Gauge[Long] {
+             def value: Long = cleaners.map(_.lastStats).map(_.bytesSkipped).sum
+           })
   /* a metric to track the maximum cleaning time for the last cleaning from each thread */
   newGauge("max-clean-time-secs",
            new Gauge[Int] {
@@ -286,15 +300,21 @@ class LogCleaner(initialConfig: CleanerConfig,
     if (config.dedupeBufferSize / config.numThreads > Int.MaxValue)
       warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
 
+    private val offsetMapMemory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt
+
     val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt,
-                                                              hashAlgorithm = config.hashAlgorithm),
+                              offsetMap = if (config.hashAlgorithm.equalsIgnoreCase(CleanerConfig.Murmur3HashAlgorithm))
+                                new DenseOffsetMap(memory = offsetMapMemory, offsetDeltaEncoding = config.offsetDeltaEncoding)
+                              else
+                                new SkimpyOffsetMap(memory = offsetMapMemory, hashAlgorithm = config.hashAlgorithm),
                               ioBufferSize = config.ioBufferSize / config.numThreads / 2,
                               maxIoBufferSize = config.maxMessageSize,
                               dupBufferLoadFactor = config.dedupeBufferLoadFactor,
                               throttler = throttler,
                               time = time,
-                              checkDone = checkDone)
+                              checkDone = checkDone,
+                              minSegmentGarbageRatio = config.minSegmentGarbageRatio,
+                              sharedCleaning = if (config.threadsPerLog > 1) Some(cleanerManager) else None)
 
     @volatile var lastStats: CleanerStats = new CleanerStats()
     @volatile var lastPreCleanStats: PreCleanStats = new PreCleanStats()
@@ -310,9 +330,44 @@ class LogCleaner(initialConfig: CleanerConfig,
      * Clean a log if there is a dirty log available, otherwise sleep for a bit
      */
     override def doWork(): Unit = {
-      val cleaned = tryCleanFilthiestLog()
-      if (!cleaned)
-        pause(config.backOffMs, TimeUnit.MILLISECONDS)
+      val cleaned = tryCleanSharedSegments() || tryCleanFilthiestLog()
+      if (!cleaned) {
+        if (config.threadsPerLog > 1)
+          cleanerManager.awaitSharedCleaning(config.threadsPerLog - 1, config.backOffMs, isRunning)
+        else
+          pause(config.backOffMs, TimeUnit.MILLISECONDS)
+      }
+    }
+
+    override def initiateShutdown(): Boolean = {
+      val shutdownInitiated = super.initiateShutdown()
+      cleanerManager.wakeUpIdleCleaners()
+      shutdownInitiated
+    }
+
+    override def awaitShutdown(): Unit = {
+      super.awaitShutdown()
+      // the thread and the threads helping with its shared cleanings are done with the offset map
+      cleaner.offsetMap.close()
+    }
+
+    /**
+     * Cleans a group of segments shared by another thread cleaning a large log, if there is one
+     * @return whether a group of segments was cleaned
+     */
+    private def tryCleanSharedSegments(): Boolean = {
+      if (config.threadsPerLog <= 1)
+        false
+      else {
+        cleanerManager.grabSharedCleaningToHelp(config.threadsPerLog - 1) match {
+          case None =>
+            false
+          case Some(cleaning) =>
+            try cleaning.clean(cleaner)
+            finally cleanerManager.doneHelping(cleaning.topicPartition)
+            true
+        }
+      }
     }
 
     /**
@@ -405,7 +460,8 @@ class LogCleaner(initialConfig: CleanerConfig,
         "\tStart size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesRead), stats.messagesRead) +
         "\tEnd size: %,.1f MB (%,d messages)%n".format(mb(stats.bytesWritten), stats.messagesWritten) +
         "\t%.1f%% size reduction (%.1f%% fewer messages)%n".format(100.0 * (1.0 - stats.bytesWritten.toDouble/stats.bytesRead),
-                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead))
+                                                                   100.0 * (1.0 - stats.messagesWritten.toDouble/stats.messagesRead)) +
+        "\tSkipped %,.1f MB in %d clean segments with little garbage%n".format(mb(stats.bytesSkipped), stats.segmentsSkipped)
       info(message)
       if (lastPreCleanStats.delayedPartitions > 0) {
         info("\tCleanable partitions: %d, Delayed partitions: %d, max delay: %d".format(lastPreCleanStats.cleanablePartitions, lastPreCleanStats.delayedPartitions, lastPreCleanStats.maxCompactionDelayMs))
@@ -421,8 +477,12 @@ class LogCleaner(initialConfig: CleanerConfig,
 object LogCleaner {
   val ReconfigurableConfigs = Set(
     KafkaConfig.LogCleanerThreadsProp,
+    KafkaConfig.LogCleanerThreadsPerLogProp,
     KafkaConfig.LogCleanerDedupeBufferSizeProp,
     KafkaConfig.LogCleanerDedupeBufferLoadFactorProp,
+    KafkaConfig.LogCleanerDedupeHashAlgorithmProp,
+    KafkaConfig.LogCleanerDedupeOffsetDeltaEnableProp,
+    KafkaConfig.LogCleanerMinSegmentGarbageRatioProp,
     KafkaConfig.LogCleanerIoBufferSizeProp,
     KafkaConfig.MessageMaxBytesProp,
     KafkaConfig.LogCleanerIoMaxBytesPerSecondProp,
@@ -437,7 +497,11 @@ object LogCleaner {
       maxMessageSize = config.messageMaxBytes,
       maxIoBytesPerSecond = config.logCleanerIoMaxBytesPerSecond,
       backOffMs = config.logCleanerBackoffMs,
-      enableCleaner = config.logCleanerEnable)
+      enableCleaner = config.logCleanerEnable,
+      hashAlgorithm = config.logCleanerDedupeHashAlgorithm,
+      offsetDeltaEncoding = config.logCleanerDedupeOffsetDeltaEnable,
+      minSegmentGarbageRatio = config.logCleanerMinSegmentGarbageRatio,
+      threadsPerLog = config.logCleanerThreadsPerLog)
 
   }
 
@@ -467,7 +531,9 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: TopicPartition => Unit) extends Logging {
+                           checkDone: TopicPartition => Unit,
+                           minSegmentGarbageRatio: Double = 0.0,
+                           sharedCleaning: Option[LogCleanerManager] = None) extends Logging {
 
   protected override def loggerName = classOf[LogCleaner].getName
 
@@ -481,6 +547,12 @@ private[log] class Cleaner(val id: Int,
 
   private val decompressionBufferSupplier = BufferSupplier.create();
 
+  /* sketches of the keys in the offset map and of the records retained by the last cleaned segment. They are only
+   * built if clean segments may be left in place when they hold little garbage */
+  private val incremental = minSegmentGarbageRatio > 0
+  private val dirtyKeys = new KeySketchBuilder
+  private val cleanedKeys = new KeySketchBuilder
+
   require(offsetMap.slots * dupBufferLoadFactor > 1, "offset map is too small to fit in even a single message, so log cleaning will never make progress. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads")
 
   /**
@@ -525,8 +597,20 @@ private[log] class Cleaner(val id: Int,
 
     val groupedSegments = groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize,
       log.config.maxIndexSize, cleanable.firstUncleanableOffset)
-    for (group <- groupedSegments)
-      cleanSegments(log, group, offsetMap, deleteHorizonMs, stats, transactionMetadata)
+    val skippedGroups =
+      if (incremental) lowGarbageGroups(groupedSegments, cleanable.firstDirtyOffset, endOffset, deleteHorizonMs)
+      else Set.empty[Long]
+    sharedCleaning match {
+      case Some(cleanerManager) if offsetMap.supportsConcurrentGets && groupedSegments.size - skippedGroups.size > 1 =>
+        cleanSegmentsConcurrently(log, groupedSegments, skippedGroups, deleteHorizonMs, stats, transactionMetadata, cleanerManager)
+      case _ =>
+        for (group <- groupedSegments) {
+          if (skippedGroups.contains(group.head.baseOffset))
+            skipSegments(log, group, offsetMap, stats, transactionMetadata)
+          else
+            cleanSegments(log, group, offsetMap, deleteHorizonMs, stats, transactionMetadata)
+        }
+    }
 
     // record buffer utilization
     stats.bufferUtilization = offsetMap.utilization
@@ -536,6 +620,52 @@ private[log] class Cleaner(val id: Int,
     (endOffset, stats)
   }
 
+  /**
+   * Clean the groups of segments of a log with the help of idle cleaner threads. The offset map is only read while
+   * cleaning, and the transaction state at the start of each group only depends on the batches before it, so that
+   * state is computed up front from the batch headers. Each group is then cleaned from its own copy of the state by
+   * whichever thread grabs it first, this thread included. This returns once every group is cleaned.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments to clean, in offset order
+   * @param skippedGroups The base offsets of the groups to leave in place
+   * @param deleteHorizonMs The time to retain delete tombstones
+   * @param stats Collector for cleaning statistics
+   * @param transactionMetadata State of ongoing transactions before the first group
+   * @param cleanerManager The manager through which the groups are shared with the other cleaner threads
+   */
+  private def cleanSegmentsConcurrently(log: Log,
+                                        groups: Seq[Seq[LogSegment]],
+                                        skippedGroups: Set[Long],
+                                        deleteHorizonMs: Long,
+                                        stats: CleanerStats,
+                                        transactionMetadata: CleanedTransactionMetadata,
+                                        cleanerManager: LogCleanerManager): Unit = {
+    val cleanings = mutable.ArrayBuffer[SegmentGroupCleaning]()
+    for (group <- groups) {
+      if (skippedGroups.contains(group.head.baseOffset))
+        skipSegments(log, group, offsetMap, stats, transactionMetadata)
+      else {
+        cleanings += new SegmentGroupCleaning(log, group, offsetMap, deleteHorizonMs, transactionMetadata.copy(), time)
+        traverseSegments(log, group, offsetMap, transactionMetadata)
+      }
+    }
+
+    info(s"Sharing the cleaning of ${cleanings.size} groups of segments of log ${log.name} with other cleaner threads")
+    cleanerManager.shareCleanings(cleanings)
+    var next = cleanerManager.grabSharedCleaning(log.topicPartition)
+    while (next.isDefined) {
+      val cleaned = next.get.clean(this)
+      next = if (cleaned) cleanerManager.grabSharedCleaning(log.topicPartition) else None
+    }
+    // if a group failed, there is no point cleaning the groups nobody grabbed yet
+    cleanerManager.withdrawSharedCleanings(log.topicPartition).foreach(_.cancel())
+
+    val failures = cleanings.flatMap(_.await())
+    cleanings.foreach(cleaning => stats.add(cleaning.stats))
+    failures.find(!_.isInstanceOf[LogCleaningAbortedException]).orElse(failures.headOption).foreach(e => throw e)
+  }
+
   /**
    * Clean a group of segments into a single replacement segment
    *
@@ -556,6 +686,7 @@ private[log] class Cleaner(val id: Int,
     // create a new segment with a suffix appended to the name of the log and indexes
     val cleaned = LogCleaner.createNewCleanedSegment(log, segments.head.baseOffset)
     transactionMetadata.cleanedIndex = Some(cleaned.txnIndex)
+    cleanedKeys.clear()
 
     try {
       // clean segments into the new destination segment
@@ -598,6 +729,8 @@ private[log] class Cleaner(val id: Int,
       // update the modification date to retain the last modified date of the original files
       val modified = segments.last.lastModified
       cleaned.lastModified = modified
+      if (incremental)
+        cleaned.keySketch = Some(cleanedKeys.build())
 
       // swap in new segment
       info(s"Swapping in cleaned segment $cleaned for segment(s) $segments in log $log")
@@ -612,6 +745,105 @@ private[log] class Cleaner(val id: Int,
     }
   }
 
+  /**
+   * Leave a group of clean segments in place instead of rewriting them. Their batches are still traversed, as if
+   * every batch was retained, so that the transaction state carried over to the following groups is the same as if
+   * the group had been cleaned. In particular, an abort marker in a later group must be kept as long as batches of
+   * its transaction remain in a skipped segment.
+   *
+   * @param log The log being cleaned
+   * @param segments The group of segments to skip
+   * @param map The offset map used for cleaning the other groups
+   * @param stats Collector for cleaning statistics
+   * @param transactionMetadata State of ongoing transactions which is carried between the cleaning
+   *                            of the grouped segments
+   */
+  private[log] def skipSegments(log: Log,
+                                segments: Seq[LogSegment],
+                                map: OffsetMap,
+                                stats: CleanerStats,
+                                transactionMetadata: CleanedTransactionMetadata): Unit = {
+    info(s"Skipping $segments in log ${log.name} with estimated garbage below $minSegmentGarbageRatio")
+    traverseSegments(log, segments, map, transactionMetadata)
+    segments.foreach(segment => stats.skipSegment(segment.size))
+  }
+
+  /**
+   * Update the transaction state with the batches of a group of segments as if they were cleaned and every batch was
+   * retained, without writing anything. Only the batch headers and control records are read.
+   */
+  private def traverseSegments(log: Log,
+                               segments: Seq[LogSegment],
+                               map: OffsetMap,
+                               transactionMetadata: CleanedTransactionMetadata): Unit = {
+    // the transaction indexes of the traversed segments are kept as they are
+    transactionMetadata.cleanedIndex = None
+
+    val iter = segments.iterator
+    var currentSegmentOpt: Option[LogSegment] = Some(iter.next())
+    while (currentSegmentOpt.isDefined) {
+      val currentSegment = currentSegmentOpt.get
+      val nextSegmentOpt = if (iter.hasNext) Some(iter.next()) else None
+      checkDone(log.topicPartition)
+
+      val startOffset = currentSegment.baseOffset
+      val upperBoundOffset = nextSegmentOpt.map(_.baseOffset).getOrElse(map.latestOffset + 1)
+      val abortedTransactions = log.collectAbortedTransactions(startOffset, upperBoundOffset)
+      transactionMetadata.addAbortedTransactions(abortedTransactions)
+
+      for (batch <- currentSegment.log.batches.asScala) {
+        if (batch.isControlBatch)
+          transactionMetadata.onControlBatchRead(batch)
+        else
+          transactionMetadata.onBatchRead(batch)
+      }
+      currentSegmentOpt = nextSegmentOpt
+    }
+  }
+
+  /**
+   * Find the groups of clean segments which hold too little garbage to be worth rewriting. Walking from the newest
+   * group backwards, the key sketch of each clean segment is compared with a sketch of the keys of all the records
+   * after it (the dirty section and the later clean segments) to estimate the fraction of its records which cleaning
+   * would remove. A group is only left in place if it lies entirely before the first dirty offset, all of its segments
+   * have a key sketch and its estimated garbage, weighted by segment size, is below `minSegmentGarbageRatio`.
+   *
+   * @param groups The groups of segments to be cleaned, in offset order
+   * @param firstDirtyOffset The offset at which dirty messages begin
+   * @param endOffset The ending offset of the offset map
+   * @param deleteHorizonMs The time to retain delete tombstones
+   *
+   * @return The base offsets of the groups to leave in place
+   */
+  private[log] def lowGarbageGroups(groups: Seq[Seq[LogSegment]],
+                                    firstDirtyOffset: Long,
+                                    endOffset: Long,
+                                    deleteHorizonMs: Long): Set[Long] = {
+    var laterKeys = dirtyKeys.build()
+    var nextBaseOffset = endOffset
+    val lowGarbageGroups = mutable.Set.empty[Long]
+    for (group <- groups.reverseIterator) {
+      var garbageBytes = 0.0
+      var sketched = true
+      for (segment <- group.reverseIterator) {
+        segment.keySketch match {
+          case Some(sketch) =>
+            garbageBytes += sketch.garbageRatio(laterKeys, tombstonesExpired = segment.lastModified <= deleteHorizonMs) * segment.size
+            laterKeys = laterKeys.union(sketch)
+          case None =>
+            sketched = false
+        }
+      }
+      val groupBytes = group.map(_.size.toLong).sum
+      if (sketched && nextBaseOffset <= firstDirtyOffset && garbageBytes < minSegmentGarbageRatio * groupBytes) {
+        debug(s"Estimated garbage of segments $group is ${garbageBytes.toLong} of $groupBytes bytes")
+        lowGarbageGroups += group.head.baseOffset
+      }
+      nextBaseOffset = group.head.baseOffset
+    }
+    lowGarbageGroups.toSet
+  }
+
   /**
    * Clean the given source log segment into the destination segment using the key=>offset mapping
    * provided
@@ -668,8 +900,12 @@ private[log] class Cleaner(val id: Int,
         if (discardBatchRecords)
           // The batch is only retained to preserve producer sequence information; the records can be removed
           false
-        else
-          Cleaner.this.shouldRetainRecord(map, retainDeletesAndTxnMarkers, batch, record, stats)
+        else {
+          val retained = Cleaner.this.shouldRetainRecord(map, retainDeletesAndTxnMarkers, batch, record, stats)
+          if (retained && incremental && record.hasKey && !batch.isControlBatch)
+            cleanedKeys.add(record.key, !record.hasValue)
+          retained
+        }
       }
     }
 
@@ -877,6 +1113,7 @@ private[log] class Cleaner(val id: Int,
                                   map: OffsetMap,
                                   stats: CleanerStats): Unit = {
     map.clear()
+    dirtyKeys.clear()
     val dirty = log.logSegments(start, end).toBuffer
     info("Building offset map for log %s for %d segments in offset range [%d, %d).".format(log.name, dirty.size, start, end))
 
@@ -943,9 +1180,11 @@ private[log] class Cleaner(val id: Int,
           } else {
             for (record <- batch.asScala) {
               if (record.hasKey && record.offset >= startOffset) {
-                if (map.size < maxDesiredMapSize)
+                if (map.size < maxDesiredMapSize && map.canPut(record.offset)) {
                   map.put(record.key, record.offset)
-                else
+                  if (incremental)
+                    dirtyKeys.add(record.key, !record.hasValue)
+                } else
                   return true
               }
               stats.indexMessagesRead(1)
@@ -1002,6 +1241,8 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
   var messagesRead = 0L
   var invalidMessagesRead = 0L
   var messagesWritten = 0L
+  var bytesSkipped = 0L
+  var segmentsSkipped = 0
   var bufferUtilization = 0.0d
 
   def readMessages(messagesRead: Int, bytesRead: Int): Unit = {
@@ -1018,10 +1259,28 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
     this.bytesWritten += bytesWritten
   }
 
+  def skipSegment(size: Int): Unit = {
+    segmentsSkipped += 1
+    bytesSkipped += size
+  }
+
   def indexMessagesRead(size: Int): Unit = {
     mapMessagesRead += size
   }
 
+  /**
+   * Add the statistics of the cleaning of some segments of the same log by another thread
+   */
+  def add(stats: CleanerStats): Unit = {
+    bytesRead += stats.bytesRead
+    bytesWritten += stats.bytesWritten
+    messagesRead += stats.messagesRead
+    invalidMessagesRead += stats.invalidMessagesRead
+    messagesWritten += stats.messagesWritten
+    bytesSkipped += stats.bytesSkipped
+    segmentsSkipped += stats.segmentsSkipped
+  }
+
   def indexBytesRead(size: Int): Unit = {
     mapBytesRead += size
   }
@@ -1056,6 +1315,57 @@ private case class LogToClean(topicPartition: TopicPartition,
   override def compare(that: LogToClean): Int = math.signum(this.cleanableRatio - that.cleanableRatio).toInt
 }
 
+/**
+ * The cleaning of a group of segments of a log, which the thread cleaning the log may share with idle cleaner threads
+ * through the [[LogCleanerManager]]. It is either cleaned by the first thread that grabs it, or cancelled if none does.
+ */
+private[log] class SegmentGroupCleaning(log: Log,
+                                        segments: Seq[LogSegment],
+                                        map: OffsetMap,
+                                        deleteHorizonMs: Long,
+                                        transactionMetadata: CleanedTransactionMetadata,
+                                        time: Time) {
+  private val completed = new CountDownLatch(1)
+  @volatile private var failure: Option[Throwable] = None
+
+  val stats = new CleanerStats(time)
+
+  def topicPartition: TopicPartition = log.topicPartition
+
+  /**
+   * Clean the segments using the buffers of the given cleaner
+   * @return Whether the segments were cleaned
+   */
+  def clean(cleaner: Cleaner): Boolean = {
+    try {
+      cleaner.cleanSegments(log, segments, map, deleteHorizonMs, stats, transactionMetadata)
+    } catch {
+      // a helping thread which is shutting down aborts the cleaning of the log, not the thread which cleans it
+      case _: ThreadShutdownException => failure = Some(new LogCleaningAbortedException())
+      case e: Throwable => failure = Some(e)
+    } finally {
+      completed.countDown()
+    }
+    failure.isEmpty
+  }
+
+  def cancel(): Unit = {
+    failure = Some(new LogCleaningAbortedException())
+    completed.countDown()
+  }
+
+  /**
+   * Wait until the segments are cleaned or the cleaning is cancelled
+   * @return The reason the segments were not cleaned, if any
+   */
+  def await(): Option[Throwable] = {
+    completed.await()
+    failure
+  }
+
+  override def toString: String = s"SegmentGroupCleaning(log=${log.name}, segments=$segments)"
+}
+
 /**
  * This is a helper class to facilitate tracking transaction state while cleaning the log. It maintains a set
  * of the ongoing aborted and committed transactions as the cleaner is working its way through the log. This
@@ -1077,6 +1387,19 @@ private[log] class CleanedTransactionMetadata {
     this.abortedTransactions ++= abortedTransactions
   }
 
+  /**
+   * A copy of the current transaction state, without the cleaned index, which can be carried on independently
+   */
+  def copy(): CleanedTransactionMetadata = {
+    val copy = new CleanedTransactionMetadata
+    copy.ongoingCommittedTxns ++= ongoingCommittedTxns
+    ongoingAbortedTxns.foreach { case (producerId, abortedTxnMetadata) =>
+      copy.ongoingAbortedTxns.put(producerId, abortedTxnMetadata.copy())
+    }
+    copy.abortedTransactions ++= abortedTransactions
+    copy
+  }
+
   /**
    * Update the cleaned transaction state with a control batch that has just been traversed by the cleaner.
    * Return true if the control batch can be discarded.
@@ -1145,5 +1468,11 @@ private[log] class CleanedTransactionMetadata {
 private class AbortedTransactionMetadata(val abortedTxn: AbortedTxn) {
   var lastObservedBatchOffset: Option[Long] = None
 
+  def copy(): AbortedTransactionMetadata = {
+    val copy = new AbortedTransactionMetadata(abortedTxn)
+    copy.lastObservedBatchOffset = lastObservedBatchOffset
+    copy
+  }
+
   override def toString: String = s"(txn: $abortedTxn, lastOffset: $lastObservedBatchOffset)"
 }
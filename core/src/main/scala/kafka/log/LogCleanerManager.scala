@@ -87,6 +87,14 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
   /* for coordinating the pausing and the cleaning of a partition */
   private val pausedCleaningCond = lock.newCondition()
 
+  /* the groups of segments of logs being cleaned which other cleaner threads may clean, and the number of other
+   * threads cleaning groups of each log */
+  private val sharedCleanings = mutable.Queue[SegmentGroupCleaning]()
+  private val helpingThreads = mutable.HashMap[TopicPartition, Int]()
+
+  /* for waking up idle cleaner threads when groups of segments are shared */
+  private val sharedCleaningCond = lock.newCondition()
+
   /* gauges for tracking the number of partitions marked as uncleanable for each log directory */
   for (dir <- logDirs) {
     newGauge(
@@ -460,6 +468,84 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
     }
   }
 
+  /**
+   * Share the cleaning of some groups of segments of a log being cleaned with idle cleaner threads. The thread cleaning
+   * the log grabs the groups it shares too, so that each group is cleaned by whichever thread gets to it first.
+   */
+  def shareCleanings(cleanings: Seq[SegmentGroupCleaning]): Unit = {
+    inLock(lock) {
+      sharedCleanings ++= cleanings
+      sharedCleaningCond.signalAll()
+    }
+  }
+
+  /**
+   * Grab the next shared group of segments of a log for the thread cleaning that log
+   */
+  def grabSharedCleaning(topicPartition: TopicPartition): Option[SegmentGroupCleaning] = {
+    inLock(lock) {
+      sharedCleanings.dequeueFirst(_.topicPartition == topicPartition)
+    }
+  }
+
+  /**
+   * Grab a shared group of segments of any log for an idle cleaner thread, as long as fewer than `maxHelpingThreads`
+   * other threads are already cleaning groups of that log. `doneHelping` must be called once the group is cleaned.
+   */
+  def grabSharedCleaningToHelp(maxHelpingThreads: Int): Option[SegmentGroupCleaning] = {
+    inLock(lock) {
+      val cleaning = sharedCleanings.dequeueFirst(canHelp(_, maxHelpingThreads))
+      cleaning.foreach { c =>
+        helpingThreads.put(c.topicPartition, helpingThreads.getOrElse(c.topicPartition, 0) + 1)
+      }
+      cleaning
+    }
+  }
+
+  def doneHelping(topicPartition: TopicPartition): Unit = {
+    inLock(lock) {
+      helpingThreads.get(topicPartition) match {
+        case Some(1) => helpingThreads.remove(topicPartition)
+        case Some(count) => helpingThreads.put(topicPartition, count - 1)
+        case None => throw new IllegalStateException(s"No thread is helping to clean partition $topicPartition.")
+      }
+      sharedCleaningCond.signalAll()
+    }
+  }
+
+  /**
+   * Withdraw the shared groups of segments of a log which no thread has grabbed yet
+   */
+  def withdrawSharedCleanings(topicPartition: TopicPartition): Seq[SegmentGroupCleaning] = {
+    inLock(lock) {
+      sharedCleanings.dequeueAll(_.topicPartition == topicPartition)
+    }
+  }
+
+  /**
+   * Wait until an idle cleaner thread may grab a shared group of segments, it should stop running or the timeout
+   * elapses
+   */
+  def awaitSharedCleaning(maxHelpingThreads: Int, timeoutMs: Long, isRunning: => Boolean): Unit = {
+    inLock(lock) {
+      var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+      while (remainingNanos > 0 && isRunning && !sharedCleanings.exists(canHelp(_, maxHelpingThreads)))
+        remainingNanos = sharedCleaningCond.awaitNanos(remainingNanos)
+    }
+  }
+
+  /**
+   * Wake up the cleaner threads waiting for shared groups of segments, e.g. so that they notice they should stop
+   */
+  def wakeUpIdleCleaners(): Unit = {
+    inLock(lock) {
+      sharedCleaningCond.signalAll()
+    }
+  }
+
+  private def canHelp(cleaning: SegmentGroupCleaning, maxHelpingThreads: Int): Boolean =
+    helpingThreads.getOrElse(cleaning.topicPartition, 0) < maxHelpingThreads
+
   /**
    * Returns an immutable set of the uncleanable partitions for a given log directory
    * Only used for testing
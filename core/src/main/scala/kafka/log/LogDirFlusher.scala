@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.locks.ReentrantLock
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.CoreUtils.inLock
+import kafka.utils.ShutdownableThread
+import org.apache.kafka.common.errors.KafkaStorageException
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.mutable
+
+/**
+ * Flushes the logs of one log directory on behalf of appends that reached the flush.messages of their log.
+ *
+ * Instead of forcing the log's files to disk while holding the log lock, an append registers a flush request with the
+ * flusher of its log directory and waits for it after releasing the lock. Requests that arrive while a pass is in
+ * progress are coalesced into the next pass, which forces every requested log once up to the highest offset asked
+ * for, however many appends are waiting on it.
+ *
+ * The thread is not interruptible since interrupting a thread blocked in `FileChannel.force` closes the channel.
+ */
+class LogDirFlusher(val logDir: String, time: Time)
+  extends ShutdownableThread(name = s"log-dir-flusher-$logDir", isInterruptible = false) with KafkaMetricsGroup {
+
+  private val lock = new ReentrantLock
+  private val pendingCond = lock.newCondition()
+  private val flushedCond = lock.newCondition()
+  private var pending = mutable.LinkedHashMap.empty[Log, LogDirFlusher.PendingFlush]
+  private var flushing: Log = null
+
+  private val tags = Map("logDirectory" -> logDir)
+  private[log] val batchSizeHist = newHistogram("FlushBatchSize", biased = true, tags)
+  private val batchTimeHist = newHistogram("FlushBatchTimeMs", biased = true, tags)
+
+  /**
+   * Request a flush of `log` up to `offset` (exclusive). The caller must wait on the returned flush after releasing
+   * the log lock. If the flusher is not running, the log is flushed before returning.
+   */
+  def requestFlush(log: Log, offset: Long): LogDirFlusher.PendingFlush = {
+    val flush = inLock(lock) {
+      if (isAlive && isRunning) {
+        val flush = pending.getOrElseUpdate(log, new LogDirFlusher.PendingFlush(log))
+        flush.offset = math.max(flush.offset, offset)
+        pendingCond.signal()
+        Some(flush)
+      } else {
+        None
+      }
+    }
+    flush.getOrElse {
+      log.flush(offset)
+      LogDirFlusher.Flushed
+    }
+  }
+
+  /**
+   * Drop any pending flush of a log that is being closed or deleted, and wait for a flush of it that is in progress.
+   * Appends waiting on a dropped flush fail with a KafkaStorageException, since their records were not flushed.
+   */
+  def cancel(log: Log): Unit = inLock(lock) {
+    pending.remove(log).foreach(_.complete(Some(new KafkaStorageException(s"The log of ${log.topicPartition} in " +
+      s"$logDir was closed before it was flushed"))))
+    while (flushing eq log)
+      flushedCond.await()
+  }
+
+  override def doWork(): Unit = {
+    val batch = inLock(lock) {
+      if (pending.isEmpty)
+        pendingCond.await(100, TimeUnit.MILLISECONDS)
+      val batch = pending.values.toList
+      pending = mutable.LinkedHashMap.empty
+      batch
+    }
+    if (batch.nonEmpty)
+      flush(batch)
+  }
+
+  override def initiateShutdown(): Boolean = {
+    val initiated = super.initiateShutdown()
+    inLock(lock) {
+      pendingCond.signal()
+    }
+    initiated
+  }
+
+  override def shutdown(): Unit = {
+    super.shutdown()
+    // release any appends that registered before the thread stopped
+    val remaining = inLock(lock) {
+      val remaining = pending.values.toList
+      pending = mutable.LinkedHashMap.empty
+      remaining
+    }
+    if (remaining.nonEmpty)
+      flush(remaining)
+    removeMetric("FlushBatchSize", tags)
+    removeMetric("FlushBatchTimeMs", tags)
+  }
+
+  private def flush(batch: List[LogDirFlusher.PendingFlush]): Unit = {
+    val startMs = time.milliseconds
+    batch.foreach { pendingFlush =>
+      val started = inLock(lock) {
+        if (pendingFlush.isCompleted) {
+          false
+        } else {
+          flushing = pendingFlush.log
+          true
+        }
+      }
+      if (started) {
+        val error = try {
+          pendingFlush.log.flush(pendingFlush.offset)
+          None
+        } catch {
+          case e: Throwable =>
+            warn(s"Failed to flush log of ${pendingFlush.log.topicPartition} up to offset ${pendingFlush.offset}", e)
+            Some(e)
+        }
+        inLock(lock) {
+          pendingFlush.complete(error)
+          flushing = null
+          flushedCond.signalAll()
+        }
+      }
+    }
+    batchSizeHist.update(batch.size)
+    batchTimeHist.update(time.milliseconds - startMs)
+  }
+}
+
+object LogDirFlusher {
+
+  /**
+   * A flush of a log requested by one or more appends.
+   */
+  class PendingFlush private[LogDirFlusher](val log: Log) {
+    @volatile private[LogDirFlusher] var offset = 0L
+    @volatile private var error: Option[Throwable] = None
+    private val completed = new CountDownLatch(1)
+
+    private[LogDirFlusher] def isCompleted: Boolean = completed.getCount == 0
+
+    private[LogDirFlusher] def complete(error: Option[Throwable]): Unit = {
+      this.error = error
+      completed.countDown()
+    }
+
+    /**
+     * Wait until the log has been flushed, rethrowing the error the flush failed with, if any.
+     */
+    def await(): Unit = {
+      completed.await()
+      error.foreach(e => throw e)
+    }
+  }
+
+  private val Flushed = {
+    val flushed = new PendingFlush(null)
+    flushed.complete(None)
+    flushed
+  }
+}
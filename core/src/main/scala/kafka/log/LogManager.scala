@@ -20,15 +20,16 @@ package kafka.log
 import java.io._
 import java.nio.file.Files
 import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
 
 import com.yammer.metrics.core.Gauge
 import kafka.metrics.KafkaMetricsGroup
-import kafka.server.checkpoints.OffsetCheckpointFile
+import kafka.server.checkpoints.{LogSegmentManifestFile, OffsetCheckpointFile}
 import kafka.server.{BrokerState, RecoveringFromUncleanShutdown, _}
 import kafka.utils._
 import kafka.zk.KafkaZkClient
 import org.apache.kafka.common.{KafkaException, TopicPartition}
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{KafkaThread, Time}
 import org.apache.kafka.common.errors.{KafkaStorageException, LogDirNotFoundException}
 
 import scala.collection.JavaConverters._
@@ -53,6 +54,7 @@ class LogManager(logDirs: Seq[File],
                  val initialDefaultConfig: LogConfig,
                  val cleanerConfig: CleanerConfig,
                  recoveryThreadsPerDataDir: Int,
+                 segmentRecoveryThreads: Int,
                  val flushCheckMs: Long,
                  val flushRecoveryOffsetCheckpointMs: Long,
                  val flushStartOffsetCheckpointMs: Long,
@@ -62,7 +64,9 @@ class LogManager(logDirs: Seq[File],
                  val brokerState: BrokerState,
                  brokerTopicStats: BrokerTopicStats,
                  logDirFailureChannel: LogDirFailureChannel,
-                 time: Time) extends Logging with KafkaMetricsGroup {
+                 time: Time,
+                 flushGroupCommitEnable: Boolean = false,
+                 segmentFilePoolSize: Int = 0) extends Logging with KafkaMetricsGroup {
 
   import LogManager._
 
@@ -110,6 +114,21 @@ class LogManager(logDirs: Seq[File],
 
   private val preferredLogDirs = new ConcurrentHashMap[TopicPartition, String]()
 
+  private val logDirFlushers: Map[String, LogDirFlusher] =
+    if (flushGroupCommitEnable)
+      liveLogDirs.map(dir => dir.getAbsolutePath -> new LogDirFlusher(dir.getAbsolutePath, time)).toMap
+    else
+      Map.empty
+
+  private val segmentFilePools: Map[String, SegmentFilePool] =
+    if (segmentFilePoolSize > 0) {
+      val logFileSize: Int = if (initialDefaultConfig.preallocate) initialDefaultConfig.segmentSize else 0
+      liveLogDirs.map(dir => dir.getAbsolutePath ->
+        new SegmentFilePool(dir, segmentFilePoolSize, logFileSize, initialDefaultConfig.maxIndexSize)).toMap
+    } else {
+      Map.empty
+    }
+
   private def offlineLogDirs: Iterable[File] = {
     val logDirsSet = mutable.Set[File]() ++= logDirs
     _liveLogDirs.asScala.foreach(logDirsSet -=)
@@ -234,6 +253,8 @@ class LogManager(logDirs: Seq[File],
       info(s"Logs for partitions ${offlineCurrentTopicPartitions.mkString(",")} are offline and " +
            s"logs for future partitions ${offlineFutureTopicPartitions.mkString(",")} are offline due to failure on log directory $dir")
       dirLocks.filter(_.file.getParent == dir).foreach(dir => CoreUtils.swallow(dir.destroy(), this))
+      logDirFlushers.get(dir).foreach(flusher => CoreUtils.swallow(flusher.shutdown(), this))
+      segmentFilePools.get(dir).foreach(pool => CoreUtils.swallow(pool.shutdown(), this))
     }
   }
 
@@ -263,7 +284,11 @@ class LogManager(logDirs: Seq[File],
   // Only for testing
   private[log] def hasLogsToBeDeleted: Boolean = !logsToBeDeleted.isEmpty
 
-  private def loadLog(logDir: File, recoveryPoints: Map[TopicPartition, Long], logStartOffsets: Map[TopicPartition, Long]): Unit = {
+  private def loadLog(logDir: File,
+                      recoveryPoints: Map[TopicPartition, Long],
+                      logStartOffsets: Map[TopicPartition, Long],
+                      segmentManifests: Map[String, Map[Long, SegmentManifestEntry]],
+                      segmentRecoveryPool: Option[ExecutorService]): Unit = {
     debug(s"Loading log '${logDir.getName}'")
     val topicPartition = Log.parseTopicPartitionName(logDir)
     val config = topicConfigs.getOrElse(topicPartition.topic, currentDefaultConfig)
@@ -280,7 +305,11 @@ class LogManager(logDirs: Seq[File],
       scheduler = scheduler,
       time = time,
       brokerTopicStats = brokerTopicStats,
-      logDirFailureChannel = logDirFailureChannel)
+      logDirFailureChannel = logDirFailureChannel,
+      segmentRecoveryPool = segmentRecoveryPool,
+      cleanShutdownManifest = segmentManifests.getOrElse(logDir.getName, Map.empty).toMap,
+      logDirFlusher = logDirFlushers.get(logDir.getParent),
+      segmentFilePool = segmentFilePools.get(logDir.getParent))
 
     if (logDir.getName.endsWith(Log.DeleteDirSuffix)) {
       addLogToBeDeleted(log)
@@ -310,6 +339,17 @@ class LogManager(logDirs: Seq[File],
     info("Loading logs.")
     val startMs = time.milliseconds
     val threadPools = ArrayBuffer.empty[ExecutorService]
+    // the unflushed segments of all logs are recovered by one pool, so that loading many logs concurrently does not
+    // multiply the number of recovery threads
+    val segmentRecoveryPool =
+      if (segmentRecoveryThreads > 1) {
+        val threadId = new AtomicInteger(0)
+        Some(Executors.newFixedThreadPool(segmentRecoveryThreads, new ThreadFactory {
+          override def newThread(runnable: Runnable): Thread =
+            KafkaThread.daemon(s"log-segment-recovery-${threadId.getAndIncrement()}", runnable)
+        }))
+      } else None
+    threadPools ++= segmentRecoveryPool
     val offlineDirs = mutable.Set.empty[(String, IOException)]
     val jobs = mutable.Map.empty[File, Seq[Future[_]]]
 
@@ -344,13 +384,26 @@ class LogManager(logDirs: Seq[File],
             warn(s"Error occurred while reading log-start-offset-checkpoint file of directory $dir", e)
         }
 
+        // the segment manifest is only valid if nothing was written to the logs after it, i.e. on a clean shutdown
+        var segmentManifests = Map[String, Map[Long, SegmentManifestEntry]]()
+        val segmentManifestFile = new File(dir, SegmentManifestFile)
+        if (cleanShutdownFile.exists && segmentManifestFile.exists) {
+          try {
+            segmentManifests = new LogSegmentManifestFile(segmentManifestFile, logDirFailureChannel).read()
+          } catch {
+            case e: Exception =>
+              warn(s"Error occurred while reading $SegmentManifestFile file of directory $dir, all segments " +
+                "will be checked", e)
+          }
+        }
+
         val jobsForDir = for {
           dirContent <- Option(dir.listFiles).toList
           logDir <- dirContent if logDir.isDirectory
         } yield {
           CoreUtils.runnable {
             try {
-              loadLog(logDir, recoveryPoints, logStartOffsets)
+              loadLog(logDir, recoveryPoints, logStartOffsets, segmentManifests, segmentRecoveryPool)
             } catch {
               case e: IOException =>
                 offlineDirs.add((dir.getAbsolutePath, e))
@@ -370,6 +423,7 @@ class LogManager(logDirs: Seq[File],
       for ((cleanShutdownFile, dirJobs) <- jobs) {
         dirJobs.foreach(_.get)
         try {
+          Files.deleteIfExists(new File(cleanShutdownFile.getParentFile, SegmentManifestFile).toPath)
           cleanShutdownFile.delete()
         } catch {
           case e: IOException =>
@@ -425,6 +479,8 @@ class LogManager(logDirs: Seq[File],
                          delay = InitialTaskDelayMs,
                          unit = TimeUnit.MILLISECONDS)
     }
+    logDirFlushers.values.foreach(_.start())
+    segmentFilePools.values.foreach(_.start())
     if (cleanerConfig.enableCleaner)
       cleaner.startup()
   }
@@ -441,13 +497,16 @@ class LogManager(logDirs: Seq[File],
     }
 
     val threadPools = ArrayBuffer.empty[ExecutorService]
-    val jobs = mutable.Map.empty[File, Seq[Future[_]]]
+    val jobs = mutable.Map.empty[File, Seq[Future[Seq[(String, SegmentManifestEntry)]]]]
 
     // stop the cleaner first
     if (cleaner != null) {
       CoreUtils.swallow(cleaner.shutdown(), this)
     }
 
+    // logs are flushed directly from here on
+    logDirFlushers.values.foreach(flusher => CoreUtils.swallow(flusher.shutdown(), this))
+
     val localLogsByDir = logsByDir
 
     // close logs in each dir
@@ -460,19 +519,22 @@ class LogManager(logDirs: Seq[File],
       val logsInDir = localLogsByDir.getOrElse(dir.toString, Map()).values
 
       val jobsForDir = logsInDir map { log =>
-        CoreUtils.runnable {
-          // flush the log to ensure latest possible recovery point
-          log.flush()
-          log.close()
+        new Callable[Seq[(String, SegmentManifestEntry)]] {
+          override def call(): Seq[(String, SegmentManifestEntry)] = {
+            // flush the log to ensure latest possible recovery point
+            log.flush()
+            log.close()
+            log.segmentManifest.map(log.dir.getName -> _)
+          }
         }
       }
 
-      jobs(dir) = jobsForDir.map(pool.submit).toSeq
+      jobs(dir) = jobsForDir.map(job => pool.submit(job)).toSeq
     }
 
     try {
       for ((dir, dirJobs) <- jobs) {
-        dirJobs.foreach(_.get)
+        val segmentManifest = dirJobs.flatMap(_.get)
 
         // update the last flush point
         debug(s"Updating recovery points at $dir")
@@ -481,6 +543,10 @@ class LogManager(logDirs: Seq[File],
         debug(s"Updating log start offsets at $dir")
         checkpointLogStartOffsetsInDir(dir)
 
+        debug(s"Writing segment manifest at $dir")
+        CoreUtils.swallow(new LogSegmentManifestFile(new File(dir, SegmentManifestFile), logDirFailureChannel)
+          .write(segmentManifest), this)
+
         // mark that the shutdown was clean by creating marker file
         debug(s"Writing clean shutdown marker at $dir")
         CoreUtils.swallow(Files.createFile(new File(dir, Log.CleanShutdownFile).toPath), this)
@@ -491,6 +557,7 @@ class LogManager(logDirs: Seq[File],
         throw e.getCause
     } finally {
       threadPools.foreach(_.shutdown())
+      segmentFilePools.values.foreach(pool => CoreUtils.swallow(pool.shutdown(), this))
       // regardless of whether the close succeeded, we need to unlock the data directories
       dirLocks.foreach(_.destroy())
     }
@@ -766,7 +833,9 @@ class LogManager(logDirs: Seq[File],
           scheduler = scheduler,
           time = time,
           brokerTopicStats = brokerTopicStats,
-          logDirFailureChannel = logDirFailureChannel)
+          logDirFailureChannel = logDirFailureChannel,
+          logDirFlusher = logDirFlushers.get(logDir.getParent),
+          segmentFilePool = segmentFilePools.get(logDir.getParent))
 
         if (isFuture)
           futureLogs.put(topicPartition, log)
@@ -1051,6 +1120,7 @@ object LogManager {
 
   val RecoveryPointCheckpointFile = "recovery-point-offset-checkpoint"
   val LogStartOffsetCheckpointFile = "log-start-offset-checkpoint"
+  val SegmentManifestFile = "log-segment-manifest"
   val ProducerIdExpirationCheckIntervalMs = 10 * 60 * 1000
 
   def apply(config: KafkaConfig,
@@ -1081,6 +1151,7 @@ object LogManager {
       initialDefaultConfig = defaultLogConfig,
       cleanerConfig = cleanerConfig,
       recoveryThreadsPerDataDir = config.numRecoveryThreadsPerDataDir,
+      segmentRecoveryThreads = config.numSegmentRecoveryThreads,
       flushCheckMs = config.logFlushSchedulerIntervalMs,
       flushRecoveryOffsetCheckpointMs = config.logFlushOffsetCheckpointIntervalMs,
       flushStartOffsetCheckpointMs = config.logFlushStartOffsetCheckpointIntervalMs,
@@ -1090,6 +1161,8 @@ object LogManager {
       brokerState = brokerState,
       brokerTopicStats = brokerTopicStats,
       logDirFailureChannel = logDirFailureChannel,
-      time = time)
+      time = time,
+      flushGroupCommitEnable = config.logFlushGroupCommitEnable,
+      segmentFilePoolSize = config.logSegmentFilePoolSize)
   }
 }
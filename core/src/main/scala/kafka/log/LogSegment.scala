@@ -30,9 +30,10 @@ import org.apache.kafka.common.InvalidRecordException
 import org.apache.kafka.common.errors.CorruptRecordException
 import org.apache.kafka.common.record.FileRecords.{LogOffsetPosition, TimestampAndOffset}
 import org.apache.kafka.common.record._
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{Time, Utils}
 
 import scala.collection.JavaConverters._
+import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 import scala.math._
 
 /**
@@ -42,6 +43,7 @@ import scala.math._
  * any previous segment.
  *
  * A segment with a base offset of [base_offset] would be stored in two files, a [base_offset].index and a [base_offset].log file.
+ * Segments written by the log cleaner also have a [base_offset].keysketch file, see [[keySketch]].
  *
  * @param log The file records containing log entries
  * @param lazyOffsetIndex The offset index
@@ -62,9 +64,26 @@ class LogSegment private[log] (val log: FileRecords,
                                val rollJitterMs: Long,
                                val time: Time) extends Logging {
 
-  def offsetIndex: OffsetIndex = lazyOffsetIndex.get
+  /* the state of this segment recorded on the last clean shutdown, if the segment was trusted on start-up */
+  @volatile private var trustedManifestEntry: Option[SegmentManifestEntry] = None
 
-  def timeIndex: TimeIndex = lazyTimeIndex.get
+  def offsetIndex: OffsetIndex = {
+    try lazyOffsetIndex.get
+    catch {
+      case e: CorruptIndexException =>
+        rebuildTrustedIndexes(e)
+        lazyOffsetIndex.get
+    }
+  }
+
+  def timeIndex: TimeIndex = {
+    try lazyTimeIndex.get
+    catch {
+      case e: CorruptIndexException =>
+        rebuildTrustedIndexes(e)
+        lazyTimeIndex.get
+    }
+  }
 
   def shouldRoll(rollParams: RollParams): Boolean = {
     val reachedRollMs = timeWaitedForRoll(rollParams.now, rollParams.maxTimestampInMessages) > rollParams.maxSegmentMs - rollJitterMs
@@ -91,6 +110,51 @@ class LogSegment private[log] (val log: FileRecords,
     else throw new NoSuchFileException(s"Offset index file ${lazyOffsetIndex.file.getAbsolutePath} does not exist")
   }
 
+  /**
+   * Trust the files of this segment to be in the state recorded on the last clean shutdown without checking them.
+   * The offset and time indexes are instead verified against the recorded checksums when they are first loaded, and
+   * both are rebuilt from the log if the verification fails. This is used in place of [[sanityCheck]] when loading
+   * segments after a clean shutdown. The transaction index is not covered by the manifest and is still checked.
+   */
+  def trust(manifestEntry: SegmentManifestEntry): Unit = {
+    txnIndex.sanityCheck()
+    trustedManifestEntry = Some(manifestEntry)
+    lazyOffsetIndex.verifyOnLoad(manifestEntry.verifyOffsetIndex)
+    lazyTimeIndex.verifyOnLoad(manifestEntry.verifyTimeIndex)
+  }
+
+  private def rebuildTrustedIndexes(cause: CorruptIndexException): Unit = synchronized {
+    // another thread may have rebuilt the indexes already
+    if (trustedManifestEntry.isEmpty)
+      throw cause
+    warn(s"${cause.getMessage}, rebuilding the indexes of segment ${log.file.getAbsolutePath}")
+    trustedManifestEntry = None
+    lazyOffsetIndex.skipVerification()
+    lazyTimeIndex.skipVerification()
+    recoverBatches(_ => ())
+  }
+
+  /**
+   * The state of this segment to record on a clean shutdown. If the segment was trusted on start-up and its indexes
+   * have not been loaded since, the entry it was trusted with is returned without reading the index files.
+   * This should only be called once the segment has been closed.
+   *
+   * @return The manifest entry, or None if the index files could not be read
+   */
+  def manifestEntry: Option[SegmentManifestEntry] = {
+    trustedManifestEntry match {
+      case Some(entry) if !lazyOffsetIndex.isLoaded && !lazyTimeIndex.isLoaded && entry.logSize == size =>
+        Some(entry)
+      case _ =>
+        try Some(SegmentManifestEntry(baseOffset, size, lazyOffsetIndex.file, lazyTimeIndex.file))
+        catch {
+          case e @ (_: IOException | _: CorruptIndexException) =>
+            warn(s"Could not record the state of segment ${log.file.getAbsolutePath} due to ${e.getMessage}")
+            None
+        }
+    }
+  }
+
   private var created = time.milliseconds
 
   /* the number of bytes since we last added an entry in the offset index */
@@ -100,6 +164,11 @@ class LogSegment private[log] (val log: FileRecords,
   // volatile for LogCleaner to see the update
   @volatile private var rollingBasedTimestamp: Option[Long] = None
 
+  /* a sketch of the keys in this segment, recorded by the log cleaner when it writes the segment. It is kept in the
+   * key sketch file, which is only read once the cleaner asks for the sketch */
+  @volatile private var _keySketch: Option[KeySketch] = None
+  @volatile private var keySketchLoaded = false
+
   /* The maximum timestamp we see so far */
   @volatile private var _maxTimestampSoFar: Option[Long] = None
   def maxTimestampSoFar_=(timestamp: Long): Unit = _maxTimestampSoFar = Some(timestamp)
@@ -247,16 +316,38 @@ class LogSegment private[log] (val log: FileRecords,
       val producerId = batch.producerId
       val appendInfo = producerStateManager.prepareUpdate(producerId, origin = AppendOrigin.Replication)
       val maybeCompletedTxn = appendInfo.append(batch, firstOffsetMetadataOpt = None)
-      producerStateManager.update(appendInfo)
-      maybeCompletedTxn.foreach { completedTxn =>
-        val lastStableOffset = producerStateManager.lastStableOffset(completedTxn)
-        updateTxnIndex(completedTxn, lastStableOffset)
-        producerStateManager.completeTxn(completedTxn)
-      }
+      completeProducerStateUpdate(producerStateManager, appendInfo, maybeCompletedTxn)
     }
     producerStateManager.updateMapEndOffset(batch.lastOffset + 1)
   }
 
+  private def updateProducerState(producerStateManager: ProducerStateManager, batch: RecoveredProducerBatch): Unit = {
+    val appendInfo = producerStateManager.prepareUpdate(batch.producerId, origin = AppendOrigin.Replication)
+    val maybeCompletedTxn =
+      if (batch.isControlBatch) {
+        batch.endTxnMarker.map { case (endTxnMarker, timestamp) =>
+          appendInfo.appendEndTxnMarker(endTxnMarker, batch.producerEpoch, batch.baseOffset, timestamp)
+        }
+      } else {
+        appendInfo.appendDataBatch(batch.producerEpoch, batch.baseSequence, batch.lastSequence, batch.maxTimestamp,
+          LogOffsetMetadata(batch.baseOffset), batch.lastOffset, batch.isTransactional)
+        None
+      }
+    completeProducerStateUpdate(producerStateManager, appendInfo, maybeCompletedTxn)
+    producerStateManager.updateMapEndOffset(batch.lastOffset + 1)
+  }
+
+  private def completeProducerStateUpdate(producerStateManager: ProducerStateManager,
+                                          appendInfo: ProducerAppendInfo,
+                                          maybeCompletedTxn: Option[CompletedTxn]): Unit = {
+    producerStateManager.update(appendInfo)
+    maybeCompletedTxn.foreach { completedTxn =>
+      val lastStableOffset = producerStateManager.lastStableOffset(completedTxn)
+      updateTxnIndex(completedTxn, lastStableOffset)
+      producerStateManager.completeTxn(completedTxn)
+    }
+  }
+
   /**
    * Find the physical file position for the first message with offset >= the requested offset.
    *
@@ -334,9 +425,77 @@ class LogSegment private[log] (val log: FileRecords,
    */
   @nonthreadsafe
   def recover(producerStateManager: ProducerStateManager, leaderEpochCache: Option[LeaderEpochFileCache] = None): Int = {
+    txnIndex.reset()
+    val truncated = recoverBatches { batch =>
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+        leaderEpochCache.foreach { cache =>
+          if (batch.partitionLeaderEpoch > 0 && cache.latestEpoch.forall(batch.partitionLeaderEpoch > _))
+            cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
+        }
+        updateProducerState(producerStateManager, batch)
+      }
+    }
+    if (truncated > 0)
+      keySketch = None
+    truncated
+  }
+
+  /**
+   * Run the part of recovery which does not depend on earlier segments: rebuild the offset and time indexes, empty the
+   * transaction index and lop off any invalid bytes from the end of the log and index. Unlike [[recover]], this can
+   * run concurrently for different segments of the same log. The leader epochs and producer state found in the segment
+   * must then be applied in segment order, the latter through [[recoverProducerState]].
+   *
+   * @return The outcome of the recovery
+   * @throws LogSegmentOffsetOverflowException if the log segment contains an offset that causes the index offset to overflow
+   */
+  @nonthreadsafe
+  def recoverIndexes(): SegmentRecoveryInfo = {
+    txnIndex.reset()
+    val leaderEpochs = ListBuffer.empty[(Int, Long)]
+    var producerBatches: Option[ArrayBuffer[RecoveredProducerBatch]] = Some(ArrayBuffer.empty)
+    var lastOffsetOfV2Batches: Option[Long] = None
+    val truncated = recoverBatches { batch =>
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+        if (batch.partitionLeaderEpoch > 0 && leaderEpochs.lastOption.forall(batch.partitionLeaderEpoch > _._1))
+          leaderEpochs += batch.partitionLeaderEpoch -> batch.baseOffset
+        if (batch.hasProducerId) {
+          producerBatches.foreach { batches =>
+            if (batches.size < LogSegment.MaxRecoveredProducerBatches)
+              batches += RecoveredProducerBatch(batch)
+            else
+              producerBatches = None
+          }
+        }
+        lastOffsetOfV2Batches = Some(batch.lastOffset)
+      }
+    }
+    SegmentRecoveryInfo(truncated, leaderEpochs.toList, producerBatches, lastOffsetOfV2Batches)
+  }
+
+  /**
+   * Rebuild the producer state and the transaction index of a segment whose indexes have been recovered by
+   * [[recoverIndexes]]. The segment is only read again if it had too many batches with producer ids to retain them.
+   *
+   * @param producerStateManager Producer state corresponding to the segment's base offset. It is updated with the
+   *                             producer state of this segment.
+   * @param recoveryInfo The outcome of [[recoverIndexes]] for this segment
+   */
+  @nonthreadsafe
+  def recoverProducerState(producerStateManager: ProducerStateManager, recoveryInfo: SegmentRecoveryInfo): Unit = {
+    recoveryInfo.producerBatches match {
+      case Some(batches) =>
+        batches.foreach(updateProducerState(producerStateManager, _))
+        recoveryInfo.lastOffsetOfV2Batches.foreach(offset => producerStateManager.updateMapEndOffset(offset + 1))
+      case None =>
+        for (batch <- log.batches.asScala if batch.magic >= RecordBatch.MAGIC_VALUE_V2)
+          updateProducerState(producerStateManager, batch)
+    }
+  }
+
+  private def recoverBatches(onValidBatch: RecordBatch => Unit): Int = {
     offsetIndex.reset()
     timeIndex.reset()
-    txnIndex.reset()
     var validBytes = 0
     var lastIndexEntry = 0
     maxTimestampSoFar = RecordBatch.NO_TIMESTAMP
@@ -359,13 +518,7 @@ class LogSegment private[log] (val log: FileRecords,
         }
         validBytes += batch.sizeInBytes()
 
-        if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
-          leaderEpochCache.foreach { cache =>
-            if (batch.partitionLeaderEpoch > 0 && cache.latestEpoch.forall(batch.partitionLeaderEpoch > _))
-              cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
-          }
-          updateProducerState(producerStateManager, batch)
-        }
+        onValidBatch(batch)
       }
     } catch {
       case e@ (_: CorruptRecordException | _: InvalidRecordException) =>
@@ -445,6 +598,8 @@ class LogSegment private[log] (val log: FileRecords,
     bytesSinceLastIndexEntry = 0
     if (maxTimestampSoFar >= 0)
       loadLargestTimestamp()
+    if (bytesTruncated > 0)
+      keySketch = None
     bytesTruncated
   }
 
@@ -492,6 +647,10 @@ class LogSegment private[log] (val log: FileRecords,
    * IOException from this method should be handled by the caller
    */
   def changeFileSuffixes(oldSuffix: String, newSuffix: String): Unit = {
+    val oldKeySketchFile = keySketchFile
+    if (oldKeySketchFile.exists)
+      Utils.atomicMoveWithFallback(oldKeySketchFile.toPath,
+        new File(CoreUtils.replaceSuffix(oldKeySketchFile.getPath, oldSuffix, newSuffix)).toPath)
     log.renameTo(new File(CoreUtils.replaceSuffix(log.file.getPath, oldSuffix, newSuffix)))
     offsetIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyOffsetIndex.file.getPath, oldSuffix, newSuffix)))
     timeIndex.renameTo(new File(CoreUtils.replaceSuffix(lazyTimeIndex.file.getPath, oldSuffix, newSuffix)))
@@ -585,9 +744,14 @@ class LogSegment private[log] (val log: FileRecords,
    * Close this log segment
    */
   def close(): Unit = {
-    CoreUtils.swallow(timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestampSoFar, skipFullCheck = true), this)
-    CoreUtils.swallow(offsetIndex.close(), this)
-    CoreUtils.swallow(timeIndex.close(), this)
+    // the indexes of a trusted segment are already trimmed on disk, so there is no need to load them only to close them
+    val trusted = trustedManifestEntry.isDefined
+    if (!trusted || lazyTimeIndex.isLoaded)
+      CoreUtils.swallow(timeIndex.maybeAppend(maxTimestampSoFar, offsetOfMaxTimestampSoFar, skipFullCheck = true), this)
+    if (!trusted || lazyOffsetIndex.isLoaded)
+      CoreUtils.swallow(offsetIndex.close(), this)
+    if (!trusted || lazyTimeIndex.isLoaded)
+      CoreUtils.swallow(timeIndex.close(), this)
     CoreUtils.swallow(log.close(), this)
     CoreUtils.swallow(txnIndex.close(), this)
   }
@@ -603,9 +767,21 @@ class LogSegment private[log] (val log: FileRecords,
   }
 
   /**
-   * Delete this log segment from the filesystem.
+   * Delete this log segment from the filesystem. If a file pool is given, the log and index files are closed and handed
+   * to it for reuse instead.
    */
-  def deleteIfExists(): Unit = {
+  def deleteIfExists(filePool: Option[SegmentFilePool] = None): Unit = {
+    def recycleOrDelete(closeFile: () => Unit, deleteFile: () => Boolean, file: File, suffix: String): () => Boolean =
+      filePool match {
+        case Some(pool) => () => {
+          closeFile()
+          val exists = file.exists
+          pool.recycle(file, suffix)
+          exists
+        }
+        case None => deleteFile
+      }
+
     def delete(delete: () => Boolean, fileType: String, file: File, logIfMissing: Boolean): Unit = {
       try {
         if (delete())
@@ -618,14 +794,66 @@ class LogSegment private[log] (val log: FileRecords,
       }
     }
 
+    val sketchFile = keySketchFile
     CoreUtils.tryAll(Seq(
-      () => delete(log.deleteIfExists _, "log", log.file, logIfMissing = true),
-      () => delete(offsetIndex.deleteIfExists _, "offset index", lazyOffsetIndex.file, logIfMissing = true),
-      () => delete(timeIndex.deleteIfExists _, "time index", lazyTimeIndex.file, logIfMissing = true),
+      () => delete(() => Files.deleteIfExists(sketchFile.toPath), "key sketch", sketchFile, logIfMissing = false),
+      () => delete(recycleOrDelete(log.closeHandlers _, log.deleteIfExists _, log.file, Log.LogFileSuffix),
+        "log", log.file, logIfMissing = true),
+      () => delete(recycleOrDelete(offsetIndex.closeHandler _, offsetIndex.deleteIfExists _, lazyOffsetIndex.file, Log.IndexFileSuffix),
+        "offset index", lazyOffsetIndex.file, logIfMissing = true),
+      () => delete(recycleOrDelete(timeIndex.closeHandler _, timeIndex.deleteIfExists _, lazyTimeIndex.file, Log.TimeIndexFileSuffix),
+        "time index", lazyTimeIndex.file, logIfMissing = true),
       () => delete(txnIndex.deleteIfExists _, "transaction index", txnIndex.file, logIfMissing = false)
     ))
   }
 
+  /**
+   * The sketch of the keys in this segment recorded by the log cleaner, if any
+   */
+  private[log] def keySketch: Option[KeySketch] = {
+    if (!keySketchLoaded) synchronized {
+      if (!keySketchLoaded) {
+        _keySketch = readKeySketch()
+        keySketchLoaded = true
+      }
+    }
+    _keySketch
+  }
+
+  /**
+   * Record the sketch of the keys in this segment and write it to the key sketch file, or remove it if the keys of the
+   * segment have changed since it was recorded
+   */
+  private[log] def keySketch_=(sketch: Option[KeySketch]): Unit = synchronized {
+    val file = keySketchFile
+    sketch match {
+      case Some(s) => KeySketch.write(s, file)
+      case None => Files.deleteIfExists(file.toPath)
+    }
+    _keySketch = sketch
+    keySketchLoaded = true
+  }
+
+  /* the key sketch file is named after the log file, so that it follows the suffix and directory of the segment */
+  private[log] def keySketchFile: File = {
+    val name = log.file.getName
+    val prefix = name.substring(0, name.indexOf('.'))
+    new File(log.file.getParentFile,
+      prefix + Log.KeySketchFileSuffix + name.substring(prefix.length + Log.LogFileSuffix.length))
+  }
+
+  private def readKeySketch(): Option[KeySketch] = {
+    val file = keySketchFile
+    try {
+      if (file.exists) Some(KeySketch.read(file))
+      else None
+    } catch {
+      case e @ (_: IOException | _: CorruptIndexException) =>
+        warn(s"Ignoring the key sketch of segment ${log.file.getAbsolutePath} due to ${e.getMessage}")
+        None
+    }
+  }
+
   /**
    * The last modified time of this log segment as a unix time stamp
    */
@@ -648,15 +876,72 @@ class LogSegment private[log] (val log: FileRecords,
 
 }
 
+/**
+ * The outcome of [[LogSegment.recoverIndexes]].
+ *
+ * @param truncatedBytes The number of invalid bytes truncated from the end of the segment
+ * @param leaderEpochs The leader epochs which start in the segment along with their start offsets, in increasing order
+ * @param producerBatches The batches of the segment with a producer id, in offset order, from which the producer state
+ *                        and the transaction index are rebuilt, or None if there were too many to retain them
+ * @param lastOffsetOfV2Batches The last offset of the last batch with magic v2 or higher, if any
+ */
+case class SegmentRecoveryInfo(truncatedBytes: Int,
+                               leaderEpochs: List[(Int, Long)],
+                               producerBatches: Option[Seq[RecoveredProducerBatch]],
+                               lastOffsetOfV2Batches: Option[Long])
+
+/**
+ * The fields of a batch with a producer id which the producer state depends on.
+ *
+ * @param endTxnMarker The end transaction marker of a control batch along with its timestamp, or None if the batch is
+ *                     a data batch or an empty control batch
+ */
+case class RecoveredProducerBatch(producerId: Long,
+                                  producerEpoch: Short,
+                                  baseSequence: Int,
+                                  lastSequence: Int,
+                                  maxTimestamp: Long,
+                                  baseOffset: Long,
+                                  lastOffset: Long,
+                                  isTransactional: Boolean,
+                                  isControlBatch: Boolean,
+                                  endTxnMarker: Option[(EndTransactionMarker, Long)])
+
+object RecoveredProducerBatch {
+  def apply(batch: RecordBatch): RecoveredProducerBatch = {
+    val endTxnMarker =
+      if (batch.isControlBatch) {
+        val recordIterator = batch.iterator
+        if (recordIterator.hasNext) {
+          val record = recordIterator.next()
+          Some(EndTransactionMarker.deserialize(record) -> record.timestamp)
+        } else None
+      } else None
+    RecoveredProducerBatch(batch.producerId, batch.producerEpoch, batch.baseSequence, batch.lastSequence,
+      batch.maxTimestamp, batch.baseOffset, batch.lastOffset, batch.isTransactional, batch.isControlBatch, endTxnMarker)
+  }
+}
+
 object LogSegment {
 
+  // the number of batches with producer ids that recovery retains per segment to rebuild the producer state without
+  // reading the segment again, about 100 bytes each
+  private[log] val MaxRecoveredProducerBatches = 100000
+
   def open(dir: File, baseOffset: Long, config: LogConfig, time: Time, fileAlreadyExists: Boolean = false,
-           initFileSize: Int = 0, preallocate: Boolean = false, fileSuffix: String = ""): LogSegment = {
+           initFileSize: Int = 0, preallocate: Boolean = false, fileSuffix: String = "",
+           filePool: Option[SegmentFilePool] = None): LogSegment = {
     val maxIndexSize = config.maxIndexSize
+    val logFile = Log.logFile(dir, baseOffset, fileSuffix)
+    // spare log files are zero-filled and preallocated, so they can only stand in for a new preallocated file
+    if (!fileAlreadyExists && preallocate)
+      filePool.foreach(_.claim(logFile))
     new LogSegment(
-      FileRecords.open(Log.logFile(dir, baseOffset, fileSuffix), fileAlreadyExists, initFileSize, preallocate),
-      LazyIndex.forOffset(Log.offsetIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize),
-      LazyIndex.forTime(Log.timeIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize),
+      FileRecords.open(logFile, fileAlreadyExists, initFileSize, preallocate),
+      LazyIndex.forOffset(Log.offsetIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize,
+        filePool = filePool),
+      LazyIndex.forTime(Log.timeIndexFile(dir, baseOffset, fileSuffix), baseOffset = baseOffset, maxIndexSize = maxIndexSize,
+        filePool = filePool),
       new TransactionIndex(baseOffset, Log.transactionIndexFile(dir, baseOffset, fileSuffix)),
       baseOffset,
       indexIntervalBytes = config.indexInterval,
@@ -668,6 +953,7 @@ object LogSegment {
     Log.deleteFileIfExists(Log.offsetIndexFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.timeIndexFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.transactionIndexFile(dir, baseOffset, fileSuffix))
+    Log.deleteFileIfExists(Log.keySketchFile(dir, baseOffset, fileSuffix))
     Log.deleteFileIfExists(Log.logFile(dir, baseOffset, fileSuffix))
   }
 }
@@ -21,7 +21,7 @@ import java.util.Arrays
 import java.security.MessageDigest
 import java.nio.ByteBuffer
 import kafka.utils._
-import org.apache.kafka.common.utils.Utils
+import org.apache.kafka.common.utils.{MappedByteBuffers, Utils}
 
 trait OffsetMap {
   def slots: Int
@@ -32,6 +32,21 @@ trait OffsetMap {
   def size: Int
   def utilization: Double = size.toDouble / slots
   def latestOffset: Long
+
+  /**
+   * Whether an entry for the given offset can be stored in this map, regardless of the number of free slots
+   */
+  def canPut(offset: Long): Boolean = true
+
+  /**
+   * Whether `get` may be called by several threads at once, as long as no thread modifies the map
+   */
+  def supportsConcurrentGets: Boolean = false
+
+  /**
+   * Release the memory of this map. The map must not be used afterwards.
+   */
+  def close(): Unit = {}
 }
 
 /**
@@ -199,3 +214,311 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   }
   
 }
+
+/**
+ * A denser and cheaper alternative to [[SkimpyOffsetMap]]. Keys are hashed with the 128-bit x64 variant of
+ * MurmurHash3 instead of a cryptographic digest: 96 bits of the hash are stored as the fingerprint of the key and the
+ * remaining bits select the slot. Collisions are resolved by linear probing. The slots live off-heap.
+ *
+ * With offset delta encoding, offsets are stored as 4-byte deltas from the first offset put into the map since it was
+ * last cleared, which shrinks each slot from 20 to 16 bytes. Offsets which are too far from that base cannot be stored,
+ * see [[canPut]]. The cleaner puts offsets in increasing order, so this only limits how much of a very large dirty
+ * section can be cleaned in one pass.
+ *
+ * This hash table does not support deletes. Once it is built, several threads may look up keys concurrently, which
+ * lets the segment groups of a log be cleaned in parallel. The slots are freed by [[close]] rather than by the garbage
+ * collector, which may otherwise keep large maps allocated long after they are unused.
+ *
+ * @param memory The amount of memory this map can use
+ * @param offsetDeltaEncoding Whether to store offsets as deltas from the base offset of the map
+ */
+@nonthreadsafe
+class DenseOffsetMap(val memory: Int, val offsetDeltaEncoding: Boolean = true) extends OffsetMap with Logging {
+  import DenseOffsetMap._
+
+  /**
+   * The number of bytes of space each entry uses (the key fingerprint plus a 4 or 8 byte offset)
+   */
+  val bytesPerEntry: Int = FingerprintSize + (if (offsetDeltaEncoding) 4 else 8)
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = memory / bytesPerEntry
+
+  private val bytes = ByteBuffer.allocateDirect(slots * bytesPerEntry)
+
+  /* whether the slots were freed */
+  private var closed = false
+
+  /* number of entries put into the map */
+  private var entries = 0
+
+  /* number of lookups on the map */
+  private var lookups = 0L
+
+  /* the number of probes for all lookups */
+  private var probes = 0L
+
+  /* the latest offset written into the map */
+  private var lastOffset = -1L
+
+  /* the offset deltas are relative to, or -1 if nothing was put since the map was cleared */
+  private var baseOffset = -1L
+
+  /* the hash, fingerprint and slot of the last key hashed, to avoid allocating for each key */
+  private val hashResult = new Array[Long](2)
+  private var fingerprintHigh = 0L
+  private var fingerprintLow = 0
+  private var homeSlot = 0
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long): Unit = {
+    ensureOpen()
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    require(canPut(offset), s"Offset $offset cannot be encoded relative to the base offset $baseOffset of the offset map.")
+    if (baseOffset < 0)
+      baseOffset = offset
+    lookups += 1
+    hash(key)
+    var slot = homeSlot
+    probes += 1
+    while (!isEmpty(slot)) {
+      if (matches(slot, fingerprintHigh, fingerprintLow)) {
+        // we found an existing entry, overwrite it and return (size does not change)
+        writeOffset(slot, offset)
+        lastOffset = offset
+        return
+      }
+      slot = nextSlot(slot)
+      probes += 1
+    }
+    // found an empty slot, update it--size grows by 1
+    val position = slot * bytesPerEntry
+    bytes.putLong(position, fingerprintHigh)
+    bytes.putInt(position + 8, fingerprintLow)
+    writeOffset(slot, offset)
+    lastOffset = offset
+    entries += 1
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    ensureOpen()
+    // hash into a local array rather than the fields used by `put` since lookups may be concurrent. The lookup
+    // statistics may then miss some updates, which is fine for a collision rate
+    val hashes = new Array[Long](2)
+    murmur3(key, hashes)
+    val high = fingerprintHighOf(hashes)
+    val low = fingerprintLowOf(hashes)
+    lookups += 1
+    var slot = homeSlotOf(hashes)
+    var attempt = 0
+    // the map may be full, so give up once every slot has been probed
+    while (attempt < slots) {
+      probes += 1
+      if (isEmpty(slot))
+        return -1L
+      if (matches(slot, high, low))
+        return readOffset(slot)
+      slot = nextSlot(slot)
+      attempt += 1
+    }
+    -1L
+  }
+
+  override def supportsConcurrentGets: Boolean = true
+
+  override def canPut(offset: Long): Boolean = {
+    !offsetDeltaEncoding || baseOffset < 0 || (offset >= baseOffset && offset - baseOffset <= MaxOffsetDelta)
+  }
+
+  /**
+   * Remove all the entries from the map.
+   */
+  override def clear(): Unit = {
+    ensureOpen()
+    this.entries = 0
+    this.lookups = 0L
+    this.probes = 0L
+    this.lastOffset = -1L
+    this.baseOffset = -1L
+    var position = 0
+    while (position + 8 <= bytes.capacity) {
+      bytes.putLong(position, 0L)
+      position += 8
+    }
+    while (position < bytes.capacity) {
+      bytes.put(position, 0.toByte)
+      position += 1
+    }
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  def collisionRate: Double =
+    (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * The latest offset put into the map
+   */
+  override def latestOffset: Long = lastOffset
+
+  override def updateLatestOffset(offset: Long): Unit = {
+    lastOffset = offset
+  }
+
+  /**
+   * Free the off-heap slots of the map. The map cannot be used afterwards.
+   */
+  override def close(): Unit = {
+    if (!closed) {
+      closed = true
+      try MappedByteBuffers.free("offset map", bytes)
+      catch {
+        case e: Exception => warn("Failed to free the offset map, it will be freed once it is garbage collected", e)
+      }
+    }
+  }
+
+  private def ensureOpen(): Unit = {
+    if (closed)
+      throw new IllegalStateException("The offset map is closed.")
+  }
+
+  private def nextSlot(slot: Int): Int = if (slot + 1 == slots) 0 else slot + 1
+
+  private def isEmpty(slot: Int): Boolean = {
+    val position = slot * bytesPerEntry
+    bytes.getLong(position) == 0L && bytes.getInt(position + 8) == 0
+  }
+
+  private def matches(slot: Int, high: Long, low: Int): Boolean = {
+    val position = slot * bytesPerEntry
+    bytes.getLong(position) == high && bytes.getInt(position + 8) == low
+  }
+
+  private def writeOffset(slot: Int, offset: Long): Unit = {
+    val position = slot * bytesPerEntry + FingerprintSize
+    if (offsetDeltaEncoding)
+      bytes.putInt(position, (offset - baseOffset).toInt)
+    else
+      bytes.putLong(position, offset)
+  }
+
+  private def readOffset(slot: Int): Long = {
+    val position = slot * bytesPerEntry + FingerprintSize
+    if (offsetDeltaEncoding)
+      baseOffset + (bytes.getInt(position) & 0xFFFFFFFFL)
+    else
+      bytes.getLong(position)
+  }
+
+  /**
+   * Hash the key and set the fingerprint and home slot of the key.
+   */
+  private def hash(key: ByteBuffer): Unit = {
+    murmur3(key, hashResult)
+    fingerprintHigh = fingerprintHighOf(hashResult)
+    fingerprintLow = fingerprintLowOf(hashResult)
+    homeSlot = homeSlotOf(hashResult)
+  }
+
+  // an all-zero fingerprint marks an empty slot
+  private def fingerprintHighOf(hashes: Array[Long]): Long =
+    if (hashes(0) == 0L && (hashes(1) >>> 32) == 0L) 1L else hashes(0)
+
+  private def fingerprintLowOf(hashes: Array[Long]): Int = (hashes(1) >>> 32).toInt
+
+  private def homeSlotOf(hashes: Array[Long]): Int = ((hashes(1) & 0x7FFFFFFFL) % slots).toInt
+
+}
+
+object DenseOffsetMap {
+  private val FingerprintSize = 12
+  private val MaxOffsetDelta = 0xFFFFFFFFL
+  private val Seed = 0L
+  private val C1 = 0x87c37b91114253d5L
+  private val C2 = 0x4cf5ad432745937fL
+
+  private def mixK1(k: Long): Long = java.lang.Long.rotateLeft(k * C1, 31) * C2
+
+  private def mixK2(k: Long): Long = java.lang.Long.rotateLeft(k * C2, 33) * C1
+
+  private def fmix(h: Long): Long = {
+    var k = h
+    k ^= k >>> 33
+    k *= 0xff51afd7ed558ccdL
+    k ^= k >>> 33
+    k *= 0xc4ceb9fe1a85ec53L
+    k ^= k >>> 33
+    k
+  }
+
+  /**
+   * Hash the key with MurmurHash3 (x64, 128-bit) into the first two elements of `result`. The key is read in the
+   * byte order of the buffer, which is fine since hashes are never persisted.
+   */
+  private[log] def murmur3(key: ByteBuffer, result: Array[Long]): Unit = {
+    val start = key.position()
+    val length = key.remaining
+    val blocks = length / 16
+    var h1 = Seed
+    var h2 = Seed
+
+    var i = 0
+    while (i < blocks) {
+      val k1 = key.getLong(start + i * 16)
+      val k2 = key.getLong(start + i * 16 + 8)
+      h1 ^= mixK1(k1)
+      h1 = java.lang.Long.rotateLeft(h1, 27) + h2
+      h1 = h1 * 5 + 0x52dce729
+      h2 ^= mixK2(k2)
+      h2 = java.lang.Long.rotateLeft(h2, 31) + h1
+      h2 = h2 * 5 + 0x38495ab5
+      i += 1
+    }
+
+    // the remaining 0 to 15 bytes
+    val tail = start + blocks * 16
+    var k1 = 0L
+    var k2 = 0L
+    var j = length & 15
+    while (j > 8) {
+      j -= 1
+      k2 ^= (key.get(tail + j) & 0xFFL) << ((j - 8) * 8)
+    }
+    while (j > 0) {
+      j -= 1
+      k1 ^= (key.get(tail + j) & 0xFFL) << (j * 8)
+    }
+    h1 ^= mixK1(k1)
+    h2 ^= mixK2(k2)
+
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix(h1)
+    h2 = fmix(h2)
+    h1 += h2
+    h2 += h1
+    result(0) = h1
+    result(1) = h2
+  }
+
+}
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{File, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardOpenOption}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentLinkedQueue, LinkedBlockingQueue, TimeUnit}
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.ShutdownableThread
+import org.apache.kafka.common.utils.Utils
+
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+/**
+ * A pool of pre-created, pre-sized segment and index files in one log directory.
+ *
+ * Rolling a segment claims its log and index files from the pool by renaming spare files into place, so the roll does
+ * not have to create and size them. The files of deleted segments are handed back to the pool instead of being
+ * unlinked. A background thread tops the pool up with new files and writes zeros over every file it prepares, so that
+ * a reused file never exposes data of the segment it belonged to. Unlike a file that is only sized, which is sparse on
+ * most file systems, the blocks of a spare file are therefore allocated before it is claimed and appends to the segment
+ * do not have to allocate them. The price is a full write of every pooled file on the pool thread.
+ *
+ * Spare files are kept directly in the log directory rather than in a sub-directory of it, so that they stay on the
+ * same file system as the logs and can be renamed into place, while a broker that does not know about the pool, which
+ * treats every sub-directory of a log directory as a log, ignores them. Their names start with `SpareFilePrefix`.
+ *
+ * Log files are only pooled when segments are preallocated, since otherwise a new log file is simply empty.
+ * Transaction indexes are never pooled.
+ *
+ * @param logDir The log directory the pool belongs to and keeps its spare files in
+ * @param spareFiles The number of spare files to keep of each pooled kind
+ * @param logFileSize The size of spare log files, or 0 if log files are not pooled
+ * @param maxIndexSize The maximum size of offset and time indexes
+ */
+class SegmentFilePool(val logDir: File, spareFiles: Int, logFileSize: Int, maxIndexSize: Int)
+  extends ShutdownableThread(name = s"segment-file-pool-${logDir.getAbsolutePath}", isInterruptible = false)
+    with KafkaMetricsGroup {
+  import SegmentFilePool._
+
+  private val spareSizes: Map[String, Long] = {
+    val indexSizes = Map(
+      Log.IndexFileSuffix -> roundDown(maxIndexSize, OffsetIndexEntrySize),
+      Log.TimeIndexFileSuffix -> roundDown(maxIndexSize, TimeIndexEntrySize))
+    if (logFileSize > 0) indexSizes + (Log.LogFileSuffix -> logFileSize.toLong)
+    else indexSizes
+  }
+  private val spares = spareSizes.keys.map(_ -> new ConcurrentLinkedQueue[File]()).toMap
+  // the number of files of each kind that are either spare or being prepared
+  private val pooled = spareSizes.keys.map(_ -> new AtomicInteger(0)).toMap
+  private val returned = new LinkedBlockingQueue[File]()
+  private val nextFileId = new AtomicLong(0)
+  private val zeros = ByteBuffer.allocateDirect(ZeroBufferSize)
+  private val recycledFiles = new AtomicLong(0)
+
+  private val tags = Map("logDirectory" -> logDir.getAbsolutePath)
+  private val missRate = newMeter("SegmentFilePoolMissesPerSec", "misses", TimeUnit.SECONDS, tags)
+  newGauge("SegmentFilePoolSpareFiles", new Gauge[Int] {
+    def value: Int = spareFileCount
+  }, tags)
+
+  locally {
+    // the state of files left from a previous run is unknown, prepare them again
+    for (file <- poolFiles) {
+      val suffix = suffixOf(file)
+      fileIdOf(file).foreach(id => nextFileId.set(math.max(nextFileId.get, id + 1)))
+      if (pooled.get(suffix).exists(_.incrementAndGet() <= spareFiles)) {
+        returned.add(file)
+      } else {
+        pooled.get(suffix).foreach(_.decrementAndGet())
+        Files.deleteIfExists(file.toPath)
+      }
+    }
+  }
+
+  /**
+   * Move a spare file into place as `file`, if one of the matching kind is available and `file` does not exist.
+   *
+   * @return true if a spare file was claimed, in which case the file is zero-filled and may need resizing
+   */
+  def claim(file: File): Boolean = {
+    val suffix = suffixOf(file)
+    spares.get(suffix) match {
+      case Some(queue) if !file.exists =>
+        var claimed = false
+        var spare = queue.poll()
+        while (!claimed && spare != null) {
+          pooled(suffix).decrementAndGet()
+          try {
+            Utils.atomicMoveWithFallback(spare.toPath, file.toPath)
+            claimed = true
+          } catch {
+            case e: IOException =>
+              warn(s"Failed to claim spare file ${spare.getAbsolutePath} for ${file.getAbsolutePath}", e)
+              spare = queue.poll()
+          }
+        }
+        if (!claimed)
+          missRate.mark()
+        claimed
+      case _ => false
+    }
+  }
+
+  /**
+   * Hand the file of a deleted segment to the pool, or delete it if the pool is full or does not pool files of its kind.
+   * The file must no longer be open.
+   *
+   * @param suffix The suffix identifying the kind of file, e.g. `Log.LogFileSuffix`
+   */
+  def recycle(file: File, suffix: String): Unit = {
+    if (file.exists) {
+      if (pooled.get(suffix).exists(_.incrementAndGet() <= spareFiles)) {
+        val recycled = poolFile(s"recycled-${nextFileId.getAndIncrement()}$suffix")
+        try {
+          Utils.atomicMoveWithFallback(file.toPath, recycled.toPath)
+          returned.add(recycled)
+          recycledFiles.incrementAndGet()
+        } catch {
+          case e: IOException =>
+            pooled(suffix).decrementAndGet()
+            throw e
+        }
+      } else {
+        pooled.get(suffix).foreach(_.decrementAndGet())
+        Files.deleteIfExists(file.toPath)
+      }
+    }
+  }
+
+  override def doWork(): Unit = {
+    val file = returned.poll(100, TimeUnit.MILLISECONDS)
+    if (file != null) {
+      prepare(file)
+    } else {
+      for ((suffix, count) <- pooled) {
+        while (isRunning && count.incrementAndGet() <= spareFiles)
+          prepare(poolFile(s"new-${nextFileId.getAndIncrement()}$suffix"))
+        count.decrementAndGet()
+      }
+    }
+  }
+
+  override def shutdown(): Unit = {
+    super.shutdown()
+    removeMetric("SegmentFilePoolMissesPerSec", tags)
+    removeMetric("SegmentFilePoolSpareFiles", tags)
+  }
+
+  private def prepare(file: File): Unit = {
+    val suffix = suffixOf(file)
+    val spare = poolFile(s"spare-${nextFileId.getAndIncrement()}$suffix")
+    try {
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+      try {
+        // overwrite the previous content in place rather than truncating the file first, so that the blocks a returned
+        // file already has are reused rather than freed and allocated again
+        val size = spareSizes(suffix)
+        var position = 0L
+        while (position < size) {
+          zeros.clear()
+          zeros.limit(math.min(zeros.capacity.toLong, size - position).toInt)
+          while (zeros.hasRemaining)
+            position += channel.write(zeros, position)
+        }
+        channel.truncate(size)
+        channel.force(true)
+      } finally {
+        channel.close()
+      }
+      Utils.atomicMoveWithFallback(file.toPath, spare.toPath)
+      spares(suffix).add(spare)
+    } catch {
+      case e: IOException =>
+        warn(s"Failed to prepare spare file ${file.getAbsolutePath}", e)
+        pooled(suffix).decrementAndGet()
+        Files.deleteIfExists(file.toPath)
+    }
+  }
+
+  private def poolFile(name: String): File = new File(logDir, SpareFilePrefix + name)
+
+  private[log] def poolFiles: Seq[File] =
+    Option(logDir.listFiles).getOrElse(Array.empty[File]).filter(file => file.isFile && file.getName.startsWith(SpareFilePrefix))
+
+  private[log] def spareFileCount: Int = spares.values.map(_.size).sum
+
+  // the number of files of deleted segments that were returned to the pool rather than deleted
+  private[log] def recycledFileCount: Long = recycledFiles.get
+}
+
+object SegmentFilePool {
+  val SpareFilePrefix = "segment-file-pool-"
+
+  private val ZeroBufferSize = 1024 * 1024
+
+  // the entry sizes of OffsetIndex and TimeIndex, spare index files are sized to a multiple of them
+  private val OffsetIndexEntrySize = 8
+  private val TimeIndexEntrySize = 12
+
+  private def roundDown(number: Int, factor: Int): Long = factor * (number / factor)
+
+  // the id in a pool file name such as `segment-file-pool-spare-12.index`
+  private def fileIdOf(file: File): Option[Long] = {
+    val name = file.getName
+    val start = name.lastIndexOf('-') + 1
+    val end = name.indexOf('.', start)
+    if (end < 0) None else Try(name.substring(start, end).toLong).toOption
+  }
+
+  private def suffixOf(file: File): String = {
+    val name = file.getName
+    val dot = name.lastIndexOf('.')
+    if (dot < 0) "" else name.substring(dot)
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.log
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{NoSuchFileException, StandardOpenOption}
+
+import org.apache.kafka.common.utils.{Checksums, Crc32C, Utils}
+
+/**
+ * The state of a log segment as of the last clean shutdown. Segments whose log file still has the recorded size on
+ * start-up are trusted without opening their indexes; the indexes are then checked against the recorded checksums
+ * when they are loaded for the first time.
+ *
+ * @param baseOffset The base offset of the segment
+ * @param logSize The size in bytes of the log file
+ * @param lastOffset The offset of the last entry in the offset index, or the base offset if the index is empty
+ * @param offsetIndexChecksum The CRC32C of the offset index file
+ * @param timeIndexChecksum The CRC32C of the time index file
+ */
+case class SegmentManifestEntry(baseOffset: Long,
+                                logSize: Int,
+                                lastOffset: Long,
+                                offsetIndexChecksum: Long,
+                                timeIndexChecksum: Long) {
+
+  /**
+   * Check that the offset index file matches this entry.
+   * @throws CorruptIndexException if it does not
+   */
+  def verifyOffsetIndex(file: File): Unit = {
+    val checksum = SegmentManifestEntry.checksum(file)
+    if (checksum != offsetIndexChecksum)
+      throw new CorruptIndexException(s"Offset index file ${file.getAbsolutePath} has checksum $checksum, but " +
+        s"$offsetIndexChecksum was recorded on clean shutdown")
+    val last = SegmentManifestEntry.lastOffset(file, baseOffset)
+    if (last != lastOffset)
+      throw new CorruptIndexException(s"Offset index file ${file.getAbsolutePath} has last offset $last, but " +
+        s"$lastOffset was recorded on clean shutdown")
+  }
+
+  /**
+   * Check that the time index file matches this entry.
+   * @throws CorruptIndexException if it does not
+   */
+  def verifyTimeIndex(file: File): Unit = {
+    val checksum = SegmentManifestEntry.checksum(file)
+    if (checksum != timeIndexChecksum)
+      throw new CorruptIndexException(s"Time index file ${file.getAbsolutePath} has checksum $checksum, but " +
+        s"$timeIndexChecksum was recorded on clean shutdown")
+  }
+
+}
+
+object SegmentManifestEntry {
+
+  private val ReadBufferSize = 64 * 1024
+
+  /**
+   * Build the manifest entry of a closed segment from its files.
+   */
+  def apply(baseOffset: Long, logSize: Int, offsetIndexFile: File, timeIndexFile: File): SegmentManifestEntry =
+    SegmentManifestEntry(baseOffset, logSize, lastOffset(offsetIndexFile, baseOffset), checksum(offsetIndexFile),
+      checksum(timeIndexFile))
+
+  private[log] def checksum(file: File): Long = {
+    val crc = Crc32C.create()
+    val channel = openChannel(file)
+    try {
+      val buffer = ByteBuffer.allocate(ReadBufferSize)
+      while (channel.read(buffer) >= 0 && buffer.position() > 0) {
+        buffer.flip()
+        Checksums.update(crc, buffer, buffer.remaining)
+        buffer.clear()
+      }
+    } finally channel.close()
+    crc.getValue
+  }
+
+  // A closed offset index is trimmed to its valid entries, so the last entry is at the end of the file
+  private[log] def lastOffset(offsetIndexFile: File, baseOffset: Long): Long = {
+    val channel = openChannel(offsetIndexFile)
+    try {
+      val entrySize = 8
+      val length = channel.size
+      if (length < entrySize)
+        baseOffset
+      else {
+        val entry = ByteBuffer.allocate(entrySize)
+        Utils.readFully(channel, entry, length - length % entrySize - entrySize)
+        baseOffset + entry.getInt(0)
+      }
+    } finally channel.close()
+  }
+
+  private def openChannel(file: File): FileChannel = {
+    try FileChannel.open(file.toPath, StandardOpenOption.READ)
+    catch {
+      case e: NoSuchFileException => throw new CorruptIndexException(s"Index file ${e.getFile} does not exist")
+    }
+  }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ArrayBlockingQueue, ConcurrentHashMap, RejectedExecutionException, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.server.FetchDataInfo
+import kafka.utils.Logging
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.record.FileRecords
+import org.apache.kafka.common.utils.KafkaThread
+
+/**
+ * Reads ahead of fetches that are served from inactive segments, so that the bytes a lagging consumer fetches next
+ * are already in the page cache. Fetched data is sent with `transferTo` from the network threads, where a page cache
+ * miss blocks every other connection of the processor until the disk read completes.
+ *
+ * Each partition has a read-ahead window in the segment it was last fetched from. A fetch only schedules a read once
+ * it gets within half a window of the end of what has already been read, so a consumer reading a segment sequentially
+ * causes one background read per half window rather than one per fetch. Reads that cannot be queued are dropped.
+ *
+ * @param threads The number of threads reading ahead
+ * @param readAheadBytes The number of bytes following a fetch to read
+ */
+class SegmentReadAhead(threads: Int, readAheadBytes: Int) extends Logging with KafkaMetricsGroup {
+  import SegmentReadAhead._
+
+  private val windows = new ConcurrentHashMap[TopicPartition, ReadAheadWindow]()
+  private val threadId = new AtomicInteger(0)
+  private val executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+    new ArrayBlockingQueue[Runnable](MaxPendingReads),
+    new ThreadFactory {
+      override def newThread(r: Runnable): Thread = KafkaThread.daemon(s"segment-read-ahead-${threadId.getAndIncrement()}", r)
+    })
+  private val readBuffer = ThreadLocal.withInitial[ByteBuffer](() => ByteBuffer.allocateDirect(ReadBufferSize))
+
+  private[log] val bytesReadRate = newMeter("ReadAheadBytesPerSec", "bytes", TimeUnit.SECONDS)
+  private[log] val droppedReadRate = newMeter("ReadAheadDroppedPerSec", "reads", TimeUnit.SECONDS)
+  newGauge("ReadAheadQueueSize", new Gauge[Int] {
+    def value: Int = executor.getQueue.size
+  })
+
+  /**
+   * Schedule a read of the bytes following the given fetch if it was served from a segment file and the read-ahead
+   * window of the partition does not already cover them.
+   */
+  def maybeReadAhead(topicPartition: TopicPartition, fetchInfo: FetchDataInfo): Unit = {
+    fetchInfo.records match {
+      case records: FileRecords if records.sizeInBytes > 0 =>
+        val segmentBaseOffset = fetchInfo.fetchOffsetMetadata.segmentBaseOffset
+        val fetchEnd = fetchInfo.fetchOffsetMetadata.relativePositionInSegment.toLong + records.sizeInBytes
+        val window = windows.get(topicPartition)
+        val start = if (window != null && window.segmentBaseOffset == segmentBaseOffset && window.start <= fetchEnd) {
+          if (window.end - fetchEnd >= readAheadBytes / 2)
+            return
+          math.max(fetchEnd, window.end)
+        } else {
+          fetchEnd
+        }
+        val end = fetchEnd + readAheadBytes
+        val newWindow = ReadAheadWindow(segmentBaseOffset, fetchEnd, end)
+        windows.put(topicPartition, newWindow)
+        try {
+          executor.execute(new Runnable {
+            override def run(): Unit = read(topicPartition, records.channel, start, end)
+          })
+        } catch {
+          case _: RejectedExecutionException =>
+            droppedReadRate.mark()
+            windows.remove(topicPartition, newWindow)
+        }
+      case _ =>
+    }
+  }
+
+  /**
+   * Forget the read-ahead window of a partition which is no longer hosted by this broker.
+   */
+  def remove(topicPartition: TopicPartition): Unit = {
+    windows.remove(topicPartition)
+  }
+
+  private def read(topicPartition: TopicPartition, channel: FileChannel, start: Long, end: Long): Unit = {
+    val buffer = readBuffer.get
+    var position = start
+    try {
+      var endOfFile = false
+      while (position < end && !endOfFile) {
+        buffer.clear()
+        buffer.limit(math.min(buffer.capacity.toLong, end - position).toInt)
+        val bytesRead = channel.read(buffer, position)
+        if (bytesRead <= 0)
+          endOfFile = true
+        else
+          position += bytesRead
+      }
+    } catch {
+      // the segment may have been deleted since it was fetched from
+      case e: IOException =>
+        debug(s"Stopped reading ahead in segment of $topicPartition at position $position", e)
+    } finally {
+      bytesReadRate.mark(position - start)
+    }
+  }
+
+  def shutdown(): Unit = {
+    executor.shutdown()
+    executor.awaitTermination(30, TimeUnit.SECONDS)
+    windows.clear()
+    removeMetric("ReadAheadBytesPerSec")
+    removeMetric("ReadAheadDroppedPerSec")
+    removeMetric("ReadAheadQueueSize")
+  }
+}
+
+object SegmentReadAhead {
+  val MaxPendingReads = 1024
+  val ReadBufferSize = 64 * 1024
+
+  private case class ReadAheadWindow(segmentBaseOffset: Long, start: Long, end: Long)
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, NoSuchFileException, StandardCopyOption, StandardOpenOption}
+import java.util
+
+import kafka.log.Log
+import kafka.utils.Logging
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.utils.Utils
+
+import scala.util.matching.Regex
+
+/**
+ * A [[RemoteStorageManager]] that keeps segments in a directory of a (typically network mounted) file system.
+ *
+ * Each partition gets its own sub-directory, and the files of a segment are named after its base offset,
+ * end offset and max timestamp, e.g. `topic-0/00000000000000000000-00000000000000000099-1571234567890.log`.
+ * The indexes of a segment are copied before its log file, and the log file is moved into place atomically,
+ * so a segment is only listed once all of its files are present.
+ */
+class LocalFileSystemRemoteStorageManager extends RemoteStorageManager with Logging {
+  import LocalFileSystemRemoteStorageManager._
+
+  @volatile private var rootDir: File = _
+
+  override def configure(configs: util.Map[String, _]): Unit = {
+    val dir = configs.get(StorageDirProp)
+    if (dir == null)
+      throw new ConfigException(s"Missing required configuration `$StorageDirProp` for ${getClass.getSimpleName}")
+    rootDir = new File(dir.toString)
+    Files.createDirectories(rootDir.toPath)
+    info(s"Storing remote log segments in ${rootDir.getAbsolutePath}")
+  }
+
+  override def copyLogSegment(segment: RemoteLogSegmentMetadata, files: LogSegmentFiles): Unit = {
+    val partitionDir = partitionDirectory(segment.topicPartition)
+    Files.createDirectories(partitionDir.toPath)
+    copy(files.offsetIndexFile, segmentFile(segment, Log.IndexFileSuffix))
+    copy(files.timeIndexFile, segmentFile(segment, Log.TimeIndexFileSuffix))
+    files.txnIndexFile.filter(_.exists).foreach(copy(_, segmentFile(segment, Log.TxnIndexFileSuffix)))
+
+    val logFile = segmentFile(segment, Log.LogFileSuffix)
+    val tmpFile = new File(logFile.getPath + TmpFileSuffix)
+    copy(files.logFile, tmpFile)
+    Utils.atomicMoveWithFallback(tmpFile.toPath, logFile.toPath)
+  }
+
+  override def listLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegmentMetadata] = {
+    val files = partitionDirectory(topicPartition).listFiles()
+    if (files == null)
+      Seq.empty
+    else
+      files.toSeq.flatMap { file =>
+        file.getName match {
+          case SegmentFilePattern(baseOffset, endOffset, maxTimestamp) =>
+            Some(RemoteLogSegmentMetadata(topicPartition, baseOffset.toLong, endOffset.toLong, maxTimestamp.toLong,
+              file.length.toInt))
+          case _ => None
+        }
+      }.sortBy(_.baseOffset)
+  }
+
+  override def read(segment: RemoteLogSegmentMetadata, position: Int, size: Int): ByteBuffer = {
+    val channel = FileChannel.open(segmentFile(segment, Log.LogFileSuffix).toPath, StandardOpenOption.READ)
+    try {
+      val buffer = ByteBuffer.allocate(math.max(0, math.min(size, channel.size - position).toInt))
+      Utils.readFully(channel, buffer, position)
+      buffer.flip()
+      buffer
+    } finally channel.close()
+  }
+
+  override def fetchOffsetIndex(segment: RemoteLogSegmentMetadata): ByteBuffer =
+    readIndex(segmentFile(segment, Log.IndexFileSuffix), mustExist = true)
+
+  override def fetchTimeIndex(segment: RemoteLogSegmentMetadata): ByteBuffer =
+    readIndex(segmentFile(segment, Log.TimeIndexFileSuffix), mustExist = true)
+
+  override def fetchTransactionIndex(segment: RemoteLogSegmentMetadata): ByteBuffer =
+    readIndex(segmentFile(segment, Log.TxnIndexFileSuffix), mustExist = false)
+
+  override def deleteLogSegment(segment: RemoteLogSegmentMetadata): Unit = {
+    // remove the log file first so that the segment is no longer listed while its indexes are deleted
+    Seq(Log.LogFileSuffix, Log.IndexFileSuffix, Log.TimeIndexFileSuffix, Log.TxnIndexFileSuffix).foreach { suffix =>
+      Files.deleteIfExists(segmentFile(segment, suffix).toPath)
+    }
+  }
+
+  override def close(): Unit = {}
+
+  private def readIndex(file: File, mustExist: Boolean): ByteBuffer = {
+    try ByteBuffer.wrap(Files.readAllBytes(file.toPath))
+    catch {
+      case _: NoSuchFileException if !mustExist => ByteBuffer.allocate(0)
+    }
+  }
+
+  private def copy(source: File, target: File): Unit =
+    Files.copy(source.toPath, target.toPath, StandardCopyOption.REPLACE_EXISTING)
+
+  private def partitionDirectory(topicPartition: TopicPartition): File =
+    new File(rootDir, topicPartition.toString)
+
+  private def segmentFile(segment: RemoteLogSegmentMetadata, suffix: String): File =
+    new File(partitionDirectory(segment.topicPartition), Log.filenamePrefixFromOffset(segment.baseOffset) + "-" +
+      Log.filenamePrefixFromOffset(segment.endOffset) + "-" + segment.maxTimestamp + suffix)
+}
+
+object LocalFileSystemRemoteStorageManager {
+  val StorageDirProp = "local.dir"
+
+  private val TmpFileSuffix = ".tmp"
+  private val SegmentFilePattern: Regex = """^(\d+)-(\d+)-(-?\d+)\.log$""".r
+}
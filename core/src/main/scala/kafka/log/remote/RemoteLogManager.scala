@@ -0,0 +1,600 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.lang.{Long => JLong}
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, Executors, RejectedExecutionException, ThreadFactory, TimeUnit}
+import java.util.{TreeMap => JTreeMap}
+
+import com.yammer.metrics.core.Gauge
+import kafka.log.{AbortedTxn, Log, LogManager, LogSegment}
+import kafka.metrics.{KafkaMetricsGroup, KafkaTimer}
+import kafka.server.{FetchDataInfo, FetchIsolation, FetchTxnCommitted, KafkaConfig, LogOffsetMetadata}
+import kafka.utils.{CoreUtils, Logging, Scheduler}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.cache.{Cache, LRUCache, SynchronizedCache}
+import org.apache.kafka.common.internals.Topic
+import org.apache.kafka.common.record.{MemoryRecords, Records}
+import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
+import org.apache.kafka.common.utils.{KafkaThread, Time}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.collection.mutable.ListBuffer
+
+/**
+ * Moves closed log segments of non-compacted topics to a [[RemoteStorageManager]] and serves fetches for
+ * offsets that are no longer available locally.
+ *
+ * A periodic task does the following for every eligible log:
+ *  1. If this broker leads the partition, copy every closed segment that lies entirely below the high watermark
+ *     (and last stable offset) and extends past the end of the remote log.
+ *  2. Delete local segments that have been copied once they breach the local retention time or size, so that
+ *     only a hot window of the log is kept on local disk.
+ *  3. If this broker leads the partition, delete remote segments that breach the topic's retention settings
+ *     and are no longer present locally.
+ *
+ * The local log start offset is advanced as local segments are deleted, and fetches below it that are not from
+ * replicas are served from the remote copy by [[kafka.server.ReplicaManager]]. Clients are given the start of the remote
+ * log, see [[remoteLogStartOffset]], as the log start offset, replicas only see the local log start offset. Remote reads run on a pool of reader
+ * threads, see [[asyncRead]], so that request handler threads never wait for remote storage. The offset and
+ * transaction indexes of recently read segments are cached.
+ *
+ * The remote segments of each partition are listed once and cached. A leader keeps its listing current as it copies
+ * and deletes segments, so a partition is only listed again when this broker becomes its leader. A follower lists
+ * the segments copied by the leader only when it holds a segment which breaches the local retention but is not known
+ * to be copied. A partition which has not been listed yet when it is first read is listed by the reader thread.
+ *
+ * The remote segments of a partition are deleted along with its topic, see [[deleteRemoteLog]].
+ *
+ * @param remoteStorageManager The storage that segments are copied to
+ * @param logManager The log manager owning the local logs
+ * @param scheduler The scheduler running the periodic copy and retention task
+ * @param localRetentionMs How long copied segments are kept locally, -1 for no time limit
+ * @param localRetentionBytes The local log size above which copied segments are deleted, -1 for no size limit
+ * @param taskIntervalMs How often the copy and retention task runs
+ * @param readerThreads The number of threads reading remote segments for fetches
+ * @param indexCacheSize The number of remote segments whose offset and transaction indexes are cached
+ * @param time A way to control the passage of time
+ */
+class RemoteLogManager(val remoteStorageManager: RemoteStorageManager,
+                       logManager: LogManager,
+                       scheduler: Scheduler,
+                       localRetentionMs: Long,
+                       localRetentionBytes: Long,
+                       taskIntervalMs: Long,
+                       readerThreads: Int,
+                       indexCacheSize: Int,
+                       time: Time) extends Logging with KafkaMetricsGroup {
+  import RemoteLogManager._
+
+  this.logIdent = "[RemoteLogManager] "
+
+  /* the remote segments of each partition, keyed by base offset. A view is replaced, never modified once published */
+  private val remoteLogViews = new ConcurrentHashMap[TopicPartition, JTreeMap[JLong, RemoteLogSegmentMetadata]]()
+
+  /* the bytes and number of closed local segments that have not been copied yet, per partition */
+  private val uploadLag = new ConcurrentHashMap[TopicPartition, (Long, Int)]()
+
+  /* the offsets before which records were deleted by clients, per partition. The remote segments below are deleted
+   * by the task, but a segment containing the offset is kept and only its records from the offset on are exposed */
+  private val deletedRecordsOffsets = new ConcurrentHashMap[TopicPartition, JLong]()
+
+  /* the partitions this broker led in the last run of the task, only accessed by the task */
+  private val ledPartitions = mutable.Set.empty[TopicPartition]
+
+  /* the indexes of recently read remote segments */
+  private val offsetIndexCache: Cache[RemoteLogSegmentMetadata, ByteBuffer] =
+    new SynchronizedCache(new LRUCache[RemoteLogSegmentMetadata, ByteBuffer](indexCacheSize))
+  private val transactionIndexCache: Cache[RemoteLogSegmentMetadata, ByteBuffer] =
+    new SynchronizedCache(new LRUCache[RemoteLogSegmentMetadata, ByteBuffer](indexCacheSize))
+
+  private val readerPool = Executors.newFixedThreadPool(readerThreads, new ThreadFactory {
+    private val threadId = new AtomicInteger(0)
+    override def newThread(runnable: Runnable): Thread =
+      KafkaThread.daemon(s"remote-log-reader-${threadId.getAndIncrement()}", runnable)
+  })
+
+  @volatile private var isLeader: TopicPartition => Boolean = (_: TopicPartition) => false
+
+  private val bytesCopiedRate = newMeter("RemoteLogBytesCopiedPerSec", "bytes", TimeUnit.SECONDS)
+  private val bytesReadRate = newMeter("RemoteLogBytesReadPerSec", "bytes", TimeUnit.SECONDS)
+  private val remoteReadTimer = new KafkaTimer(newTimer("RemoteLogReadRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS))
+
+  newGauge("RemoteLogUploadLagBytes", new Gauge[Long] {
+    def value: Long = uploadLag.values.asScala.map(_._1).sum
+  })
+
+  newGauge("RemoteLogUploadLagSegments", new Gauge[Int] {
+    def value: Int = uploadLag.values.asScala.map(_._2).sum
+  })
+
+  /**
+   * Start the periodic copy and retention task.
+   *
+   * @param isLeader Whether this broker is currently the leader of a partition. Only leaders copy segments
+   *                 and apply the remote retention.
+   */
+  def startup(isLeader: TopicPartition => Boolean): Unit = {
+    this.isLeader = isLeader
+    scheduler.schedule("kafka-remote-log-manager",
+      () => maintainRemoteLogs(),
+      delay = taskIntervalMs,
+      period = taskIntervalMs,
+      TimeUnit.MILLISECONDS)
+    info(s"Started with local retention ${localRetentionMs}ms / $localRetentionBytes bytes")
+  }
+
+  def shutdown(): Unit = {
+    info("Shutting down")
+    readerPool.shutdownNow()
+    readerPool.awaitTermination(30, TimeUnit.SECONDS)
+    CoreUtils.swallow(remoteStorageManager.close(), this)
+    removeMetric("RemoteLogUploadLagBytes")
+    removeMetric("RemoteLogUploadLagSegments")
+    removeMetric("RemoteLogBytesCopiedPerSec")
+    removeMetric("RemoteLogBytesReadPerSec")
+    removeMetric("RemoteLogReadRateAndTimeMs")
+    info("Shutdown completed")
+  }
+
+  /**
+   * Whether segments of the given log are moved to remote storage. Compacted and internal topics always stay local.
+   */
+  def isEligible(log: Log): Boolean =
+    !log.config.compact && !Topic.isInternal(log.topicPartition.topic) && !log.isFuture
+
+  /**
+   * The last offset available in remote storage for the given partition, or -1 if nothing has been copied.
+   */
+  def remoteLogEndOffset(topicPartition: TopicPartition): Long = endOffset(remoteLogView(topicPartition))
+
+  /**
+   * The first offset available in remote storage for the given partition, or -1 if nothing is available. Records
+   * deleted by clients are not available even if their segment has not been deleted yet.
+   */
+  def remoteLogStartOffset(topicPartition: TopicPartition): Long = {
+    val deletedRecordsOffset = deletedRecordsOffsetFor(topicPartition)
+    remoteLogView(topicPartition).values.asScala.find(_.endOffset >= deletedRecordsOffset)
+      .map(segment => math.max(segment.baseOffset, deletedRecordsOffset))
+      .getOrElse(-1L)
+  }
+
+  /**
+   * Records before the given offset of the partition have been deleted by a client. They are no longer read from
+   * remote storage, and the remote segments which only contain such records are deleted by the next run of the task.
+   */
+  def deleteRecordsBefore(topicPartition: TopicPartition, offset: Long): Unit = {
+    if (logManager.getLog(topicPartition).exists(isEligible))
+      deletedRecordsOffsets.merge(topicPartition, offset, (current: JLong, updated: JLong) => math.max(current, updated))
+  }
+
+  /**
+   * Delete all remote segments of a partition whose topic has been deleted. The segments are deleted on the scheduler
+   * since remote storage may be slow. Every broker which hosted a replica of the partition may delete them, deleting
+   * a segment which does not exist is not an error.
+   */
+  def deleteRemoteLog(topicPartition: TopicPartition): Unit =
+    scheduler.schedule("kafka-remote-log-deletion", () => deleteRemoteSegments(topicPartition))
+
+  /**
+   * The remote segments of the given partition, ordered by base offset.
+   */
+  def remoteLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegmentMetadata] =
+    remoteLogView(topicPartition).values.asScala.toSeq
+
+  private[remote] def maintainRemoteLogs(): Unit = {
+    val logs = logManager.allLogs.filter(isEligible)
+    val current = logs.map(_.topicPartition).toSet
+    remoteLogViews.keySet.removeIf(tp => !current.contains(tp))
+    uploadLag.keySet.removeIf(tp => !current.contains(tp))
+    deletedRecordsOffsets.keySet.removeIf(tp => !current.contains(tp))
+    ledPartitions.retain(current.contains)
+
+    logs.foreach { log =>
+      val tp = log.topicPartition
+      try {
+        val leader = isLeader(tp)
+        if (needsListing(log, leader))
+          refreshRemoteLogView(tp)
+        if (leader) {
+          ledPartitions += tp
+          copyLogSegments(log)
+        } else {
+          ledPartitions -= tp
+          uploadLag.remove(tp)
+        }
+
+        val remoteEndOffset = remoteLogEndOffset(tp)
+        if (remoteEndOffset >= 0)
+          log.deleteSegmentsCopiedToRemote(remoteEndOffset, localRetentionMs, localRetentionBytes)
+
+        if (isLeader(tp))
+          deleteExpiredRemoteSegments(log)
+      } catch {
+        case e: Exception => warn(s"Error while moving segments of $tp to remote storage", e)
+      }
+    }
+  }
+
+  /**
+   * Whether the remote segments of the given partition have to be listed before the task runs for it.
+   */
+  private def needsListing(log: Log, leader: Boolean): Boolean = {
+    val tp = log.topicPartition
+    val view = remoteLogViews.get(tp)
+    if (view == null)
+      true
+    else if (leader)
+      !ledPartitions.contains(tp)
+    else
+      hasUncopiedSegmentBreachingLocalRetention(log, endOffset(view))
+  }
+
+  private def hasUncopiedSegmentBreachingLocalRetention(log: Log, remoteEndOffset: Long): Boolean = {
+    val now = time.milliseconds
+    val segments = log.logSegments.toSeq
+    segments.zip(segments.drop(1)).collectFirst {
+      case (segment, nextSegment) if nextSegment.baseOffset - 1 > remoteEndOffset => segment
+    }.exists { segment =>
+      (localRetentionMs >= 0 && now - segment.largestTimestamp > localRetentionMs) ||
+        (localRetentionBytes >= 0 && log.size - localRetentionBytes >= segment.size)
+    }
+  }
+
+  private def copyLogSegments(log: Log): Unit = {
+    val tp = log.topicPartition
+    var remoteEndOffset = remoteLogEndOffset(tp)
+    val upperBoundOffset = math.min(log.highWatermark, log.lastStableOffset)
+    var lagBytes = 0L
+    var lagSegments = 0
+
+    val segments = log.logSegments.toSeq
+    segments.zip(segments.drop(1)).foreach { case (segment, nextSegment) =>
+      val endOffset = nextSegment.baseOffset - 1
+      if (endOffset > remoteEndOffset) {
+        if (nextSegment.baseOffset <= upperBoundOffset && lagSegments == 0) {
+          copyLogSegment(tp, segment, endOffset)
+          remoteEndOffset = endOffset
+        } else {
+          lagBytes += segment.size
+          lagSegments += 1
+        }
+      }
+    }
+    uploadLag.put(tp, (lagBytes, lagSegments))
+  }
+
+  private def copyLogSegment(tp: TopicPartition, segment: LogSegment, endOffset: Long): Unit = {
+    val metadata = RemoteLogSegmentMetadata(tp, segment.baseOffset, endOffset, segment.largestTimestamp, segment.size)
+    val txnIndexFile = Some(segment.txnIndex.file).filter(_.exists)
+    remoteStorageManager.copyLogSegment(metadata, LogSegmentFiles(segment.log.file, segment.offsetIndex.file,
+      segment.timeIndex.file, txnIndexFile))
+    bytesCopiedRate.mark(metadata.sizeInBytes)
+    debug(s"Copied $metadata to remote storage")
+    updateRemoteLogView(tp)(_.put(metadata.baseOffset, metadata))
+  }
+
+  private def deleteExpiredRemoteSegments(log: Log): Unit = {
+    if (!log.config.delete)
+      return
+
+    val now = time.milliseconds
+    val deletedRecordsOffset = deletedRecordsOffsetFor(log.topicPartition)
+    // only segments which are no longer available locally are deleted, the local retention takes care of the rest
+    val remoteOnly = remoteLogSegments(log.topicPartition).filter(_.endOffset < log.logStartOffset)
+    var excessBytes = if (log.config.retentionSize < 0) 0L
+      else remoteOnly.map(_.sizeInBytes.toLong).sum + log.size - log.config.retentionSize
+
+    val expired = remoteOnly.takeWhile { segment =>
+      val recordsDeleted = segment.endOffset < deletedRecordsOffset
+      val breachesRetentionMs = log.config.retentionMs >= 0 && now - segment.maxTimestamp > log.config.retentionMs
+      val breachesRetentionSize = excessBytes >= segment.sizeInBytes
+      if (recordsDeleted || breachesRetentionMs || breachesRetentionSize) {
+        excessBytes -= segment.sizeInBytes
+        true
+      } else false
+    }
+
+    expired.foreach { segment =>
+      remoteStorageManager.deleteLogSegment(segment)
+      updateRemoteLogView(log.topicPartition)(_.remove(segment.baseOffset))
+      offsetIndexCache.remove(segment)
+      transactionIndexCache.remove(segment)
+      info(s"Deleted remote segment $segment due to retention breach or deleted records")
+    }
+  }
+
+  private def deleteRemoteSegments(topicPartition: TopicPartition): Unit = {
+    try {
+      // the cached listing may be missing or stale on a follower, so the segments are listed again
+      val segments = remoteStorageManager.listLogSegments(topicPartition)
+      remoteLogViews.remove(topicPartition)
+      deletedRecordsOffsets.remove(topicPartition)
+      segments.foreach { segment =>
+        remoteStorageManager.deleteLogSegment(segment)
+        offsetIndexCache.remove(segment)
+        transactionIndexCache.remove(segment)
+      }
+      info(s"Deleted ${segments.size} remote segments of deleted partition $topicPartition")
+    } catch {
+      case e: Exception => warn(s"Error while deleting the remote segments of deleted partition $topicPartition", e)
+    }
+  }
+
+  /**
+   * Whether the given offset of the partition is available in remote storage. This only consults the cached remote
+   * segments. A partition which has not been listed yet is assumed to have the offset, the read lists it.
+   */
+  def hasRemoteOffset(topicPartition: TopicPartition, offset: Long): Boolean = {
+    if (!logManager.getLog(topicPartition).exists(isEligible) || offset < deletedRecordsOffsetFor(topicPartition))
+      false
+    else {
+      val view = remoteLogViews.get(topicPartition)
+      view == null || segmentFor(view, offset).isDefined
+    }
+  }
+
+  /**
+   * Read records of the given partition from remote storage on a reader thread. The future completes without records
+   * if the offset is not available remotely, e.g. because its segment was deleted since [[hasRemoteOffset]] was checked.
+   * A read which is still queued when the future is completed by the caller, e.g. because the fetch expired, is skipped.
+   */
+  def asyncRead(topicPartition: TopicPartition,
+                fetchOffset: Long,
+                maxBytes: Int,
+                isolation: FetchIsolation,
+                minOneMessage: Boolean): CompletableFuture[FetchDataInfo] = {
+    val future = new CompletableFuture[FetchDataInfo]
+    try {
+      readerPool.execute(() => {
+        if (!future.isDone) {
+          try future.complete(read(topicPartition, fetchOffset, maxBytes, isolation, minOneMessage))
+          catch {
+            case e: Throwable => future.completeExceptionally(e)
+          }
+        }
+      })
+    } catch {
+      case e: RejectedExecutionException => future.completeExceptionally(e)
+    }
+    future
+  }
+
+  private def read(topicPartition: TopicPartition,
+                   fetchOffset: Long,
+                   maxBytes: Int,
+                   isolation: FetchIsolation,
+                   minOneMessage: Boolean): FetchDataInfo = {
+    var view = remoteLogViews.get(topicPartition)
+    if (view == null) {
+      // the task may have listed the partition meanwhile
+      val listedView = listRemoteLogSegments(topicPartition)
+      val previousView = remoteLogViews.putIfAbsent(topicPartition, listedView)
+      view = if (previousView != null) previousView else listedView
+    }
+
+    segmentFor(view, fetchOffset) match {
+      case None => FetchDataInfo(LogOffsetMetadata(fetchOffset), MemoryRecords.EMPTY)
+      case Some(segment) => remoteReadTimer.time {
+        val startPosition = lookupPosition(segment, fetchOffset)
+        val (position, records) = readRecords(segment, fetchOffset, startPosition, maxBytes, minOneMessage)
+        bytesReadRate.mark(records.sizeInBytes)
+
+        val fetchOffsetMetadata = LogOffsetMetadata(fetchOffset, segment.baseOffset, position)
+        if (isolation == FetchTxnCommitted) {
+          val upperBoundOffset = records.batches.asScala.lastOption.map(_.lastOffset + 1).getOrElse(fetchOffset)
+          val abortedTransactions = collectAbortedTransactions(topicPartition, view, segment, fetchOffset, upperBoundOffset)
+          FetchDataInfo(fetchOffsetMetadata, records, abortedTransactions = Some(abortedTransactions))
+        } else {
+          FetchDataInfo(fetchOffsetMetadata, records)
+        }
+      }
+    }
+  }
+
+  private def segmentFor(view: JTreeMap[JLong, RemoteLogSegmentMetadata], offset: Long): Option[RemoteLogSegmentMetadata] =
+    Option(view.floorEntry(offset)).map(_.getValue).filter(_.endOffset >= offset)
+
+  /**
+   * Find the position of the largest offset index entry which is at most the target offset.
+   */
+  private def lookupPosition(segment: RemoteLogSegmentMetadata, targetOffset: Long): Int = {
+    val index = cachedIndex(offsetIndexCache, segment)(remoteStorageManager.fetchOffsetIndex)
+    // an index which was not trimmed may be padded with zero entries
+    var entries = index.remaining / OffsetIndexEntrySize
+    while (entries > 1 && index.getLong(index.position() + (entries - 1) * OffsetIndexEntrySize) == 0L)
+      entries -= 1
+
+    def offset(n: Int): Long = segment.baseOffset + index.getInt(index.position() + n * OffsetIndexEntrySize)
+    def position(n: Int): Int = index.getInt(index.position() + n * OffsetIndexEntrySize + 4)
+
+    if (entries == 0 || offset(0) > targetOffset)
+      0
+    else {
+      var lo = 0
+      var hi = entries - 1
+      while (lo < hi) {
+        val mid = (lo + hi + 1) >>> 1
+        if (offset(mid) <= targetOffset) lo = mid else hi = mid - 1
+      }
+      position(lo)
+    }
+  }
+
+  /**
+   * Read complete batches starting with the batch containing `fetchOffset`, up to `maxBytes`. The scan starts
+   * at `startPosition`, which is at or before the batch containing the offset.
+   *
+   * @return The position of the first batch returned and the records
+   */
+  private def readRecords(segment: RemoteLogSegmentMetadata,
+                          fetchOffset: Long,
+                          startPosition: Int,
+                          maxBytes: Int,
+                          minOneMessage: Boolean): (Int, MemoryRecords) = {
+    var position = startPosition
+    var fetchSize = math.max(maxBytes, Records.LOG_OVERHEAD)
+    while (position < segment.sizeInBytes) {
+      val buffer = remoteStorageManager.read(segment, position, math.min(fetchSize, segment.sizeInBytes - position))
+      var offsetInBuffer = 0
+      var firstBatchPosition = -1
+      var endPosition = -1
+      var incompleteBatchSize = 0
+      var done = false
+      while (!done && buffer.limit() - offsetInBuffer >= Records.LOG_OVERHEAD) {
+        val batchSize = buffer.getInt(offsetInBuffer + Records.SIZE_OFFSET) + Records.LOG_OVERHEAD
+        if (offsetInBuffer + batchSize > buffer.limit()) {
+          incompleteBatchSize = batchSize
+          done = true
+        } else {
+          val batchBuffer = buffer.duplicate()
+          batchBuffer.position(offsetInBuffer).limit(offsetInBuffer + batchSize)
+          val batch = MemoryRecords.readableRecords(batchBuffer.slice()).batches.iterator.next()
+          if (firstBatchPosition < 0 && batch.lastOffset >= fetchOffset)
+            firstBatchPosition = offsetInBuffer
+          if (firstBatchPosition >= 0) {
+            val isFirstBatch = firstBatchPosition == offsetInBuffer
+            if (offsetInBuffer + batchSize - firstBatchPosition > maxBytes && !(minOneMessage && isFirstBatch))
+              done = true
+            else
+              endPosition = offsetInBuffer + batchSize
+          }
+          offsetInBuffer += batchSize
+        }
+      }
+
+      if (firstBatchPosition >= 0) {
+        if (endPosition < 0)
+          return (position + firstBatchPosition, MemoryRecords.EMPTY)
+        val recordsBuffer = buffer.duplicate()
+        recordsBuffer.position(firstBatchPosition).limit(endPosition)
+        return (position + firstBatchPosition, MemoryRecords.readableRecords(recordsBuffer.slice()))
+      }
+
+      if (offsetInBuffer > 0) {
+        // all complete batches end before the fetch offset, continue after them
+        position += offsetInBuffer
+      } else if (incompleteBatchSize > 0 && incompleteBatchSize <= segment.sizeInBytes - position) {
+        // the next batch is larger than what we fetched, fetch it in full
+        fetchSize = incompleteBatchSize
+      } else {
+        return (position, MemoryRecords.EMPTY)
+      }
+    }
+    (position, MemoryRecords.EMPTY)
+  }
+
+  private def collectAbortedTransactions(topicPartition: TopicPartition,
+                                         view: JTreeMap[JLong, RemoteLogSegmentMetadata],
+                                         startSegment: RemoteLogSegmentMetadata,
+                                         fetchOffset: Long,
+                                         upperBoundOffset: Long): List[AbortedTransaction] = {
+    val abortedTransactions = ListBuffer.empty[AbortedTransaction]
+    val remainingSegments = view.tailMap(startSegment.baseOffset, true).values.iterator
+    while (remainingSegments.hasNext) {
+      val segment = remainingSegments.next()
+      val index = cachedIndex(transactionIndexCache, segment)(remoteStorageManager.fetchTransactionIndex).duplicate()
+      while (index.remaining >= AbortedTxn.TotalSize) {
+        val entry = index.slice()
+        entry.limit(AbortedTxn.TotalSize)
+        index.position(index.position() + AbortedTxn.TotalSize)
+        val abortedTxn = new AbortedTxn(entry)
+        if (abortedTxn.lastOffset >= fetchOffset && abortedTxn.firstOffset < upperBoundOffset)
+          abortedTransactions += abortedTxn.asAbortedTransaction
+        if (abortedTxn.lastOffset >= upperBoundOffset)
+          return abortedTransactions.toList
+      }
+    }
+
+    // transactions aborted after the last remote segment are indexed by the local log
+    logManager.getLog(topicPartition).foreach { log =>
+      abortedTransactions ++= log.collectAbortedTransactions(log.logStartOffset, upperBoundOffset)
+        .filter(_.lastOffset >= fetchOffset)
+        .map(_.asAbortedTransaction)
+    }
+    abortedTransactions.toList
+  }
+
+  /**
+   * The cached index of the given segment. The returned buffer is shared, so its position must not be changed.
+   */
+  private def cachedIndex(cache: Cache[RemoteLogSegmentMetadata, ByteBuffer], segment: RemoteLogSegmentMetadata)
+                         (fetch: RemoteLogSegmentMetadata => ByteBuffer): ByteBuffer = {
+    val cached = cache.get(segment)
+    if (cached != null)
+      cached
+    else {
+      val index = fetch(segment)
+      cache.put(segment, index)
+      index
+    }
+  }
+
+  /**
+   * The cached remote segments of the given partition, which are empty if they have not been listed yet.
+   */
+  private def remoteLogView(topicPartition: TopicPartition): JTreeMap[JLong, RemoteLogSegmentMetadata] = {
+    val view = remoteLogViews.get(topicPartition)
+    if (view != null) view else new JTreeMap[JLong, RemoteLogSegmentMetadata]()
+  }
+
+  private def deletedRecordsOffsetFor(topicPartition: TopicPartition): Long = {
+    val offset = deletedRecordsOffsets.get(topicPartition)
+    if (offset != null) offset else -1L
+  }
+
+  private def endOffset(view: JTreeMap[JLong, RemoteLogSegmentMetadata]): Long =
+    if (view.isEmpty) -1L else view.values.asScala.map(_.endOffset).max
+
+  private def listRemoteLogSegments(topicPartition: TopicPartition): JTreeMap[JLong, RemoteLogSegmentMetadata] = {
+    val view = new JTreeMap[JLong, RemoteLogSegmentMetadata]()
+    remoteStorageManager.listLogSegments(topicPartition).foreach(segment => view.put(segment.baseOffset, segment))
+    view
+  }
+
+  private def refreshRemoteLogView(topicPartition: TopicPartition): Unit =
+    remoteLogViews.put(topicPartition, listRemoteLogSegments(topicPartition))
+
+  private def updateRemoteLogView(topicPartition: TopicPartition)
+                                 (update: JTreeMap[JLong, RemoteLogSegmentMetadata] => Unit): Unit = {
+    val view = new JTreeMap[JLong, RemoteLogSegmentMetadata](remoteLogView(topicPartition))
+    update(view)
+    remoteLogViews.put(topicPartition, view)
+  }
+}
+
+object RemoteLogManager {
+  private val OffsetIndexEntrySize = 8
+
+  def apply(config: KafkaConfig, logManager: LogManager, scheduler: Scheduler, time: Time): RemoteLogManager = {
+    val remoteStorageManager = CoreUtils.createObject[RemoteStorageManager](config.remoteLogStorageManagerClassName)
+    remoteStorageManager.configure(config.originalsWithPrefix(KafkaConfig.RemoteLogStorageManagerConfigPrefix))
+    new RemoteLogManager(remoteStorageManager,
+      logManager,
+      scheduler,
+      localRetentionMs = config.remoteLogLocalRetentionMs,
+      localRetentionBytes = config.remoteLogLocalRetentionBytes,
+      taskIntervalMs = config.remoteLogManagerTaskIntervalMs,
+      readerThreads = config.remoteLogReaderThreads,
+      indexCacheSize = config.remoteLogIndexCacheSize,
+      time = time)
+  }
+}
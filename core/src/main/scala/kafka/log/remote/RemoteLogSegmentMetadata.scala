@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import org.apache.kafka.common.TopicPartition
+
+/**
+ * Describes a log segment that has been copied to remote storage.
+ *
+ * @param topicPartition The partition the segment belongs to
+ * @param baseOffset The first offset in the segment
+ * @param endOffset The last offset in the segment (inclusive)
+ * @param maxTimestamp The largest timestamp in the segment, used for remote retention
+ * @param sizeInBytes The size of the segment's log data
+ */
+case class RemoteLogSegmentMetadata(topicPartition: TopicPartition,
+                                    baseOffset: Long,
+                                    endOffset: Long,
+                                    maxTimestamp: Long,
+                                    sizeInBytes: Int)
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.{Closeable, File}
+import java.nio.ByteBuffer
+
+import org.apache.kafka.common.{Configurable, TopicPartition}
+
+/**
+ * The files that make up a closed log segment. The transaction index is only present if the segment
+ * contains aborted transactions.
+ */
+case class LogSegmentFiles(logFile: File,
+                           offsetIndexFile: File,
+                           timeIndexFile: File,
+                           txnIndexFile: Option[File])
+
+/**
+ * Pluggable storage for log segments that have been moved off the broker's local disks.
+ *
+ * Implementations are instantiated by the broker from `remote.log.storage.manager.class.name` and configured
+ * with the broker configs prefixed by `remote.log.storage.manager.`. All methods may be called concurrently
+ * from the remote log manager task and from the threads reading remote segments for fetches.
+ *
+ * A segment becomes visible to `listLogSegments` only once `copyLogSegment` has completed successfully,
+ * so a failed or partial copy may simply be retried.
+ */
+trait RemoteStorageManager extends Configurable with Closeable {
+
+  /**
+   * Copy a closed log segment and its indexes to remote storage.
+   *
+   * @param segment The metadata describing the segment
+   * @param files The local files of the segment
+   */
+  def copyLogSegment(segment: RemoteLogSegmentMetadata, files: LogSegmentFiles): Unit
+
+  /**
+   * List the segments of the given partition that are available in remote storage, ordered by base offset.
+   */
+  def listLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegmentMetadata]
+
+  /**
+   * Read up to `size` bytes of log data from the given segment, starting at byte `position`. Fewer bytes are
+   * returned if the end of the segment is reached.
+   */
+  def read(segment: RemoteLogSegmentMetadata, position: Int, size: Int): ByteBuffer
+
+  /**
+   * Fetch the offset index of the given segment.
+   */
+  def fetchOffsetIndex(segment: RemoteLogSegmentMetadata): ByteBuffer
+
+  /**
+   * Fetch the time index of the given segment.
+   */
+  def fetchTimeIndex(segment: RemoteLogSegmentMetadata): ByteBuffer
+
+  /**
+   * Fetch the transaction index of the given segment. The buffer is empty if the segment has no aborted transactions.
+   */
+  def fetchTransactionIndex(segment: RemoteLogSegmentMetadata): ByteBuffer
+
+  /**
+   * Delete the given segment and its indexes from remote storage. Deleting a segment that does not exist is not an error.
+   */
+  def deleteLogSegment(segment: RemoteLogSegmentMetadata): Unit
+}
@@ -20,13 +20,14 @@ package kafka.network
 import java.net.InetAddress
 import java.nio.ByteBuffer
 import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicBoolean
 
 import com.typesafe.scalalogging.Logger
-import com.yammer.metrics.core.{Gauge, Meter}
+import com.yammer.metrics.core.{Gauge, Histogram, Meter}
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils.{Logging, NotNothing, Pool}
 import org.apache.kafka.common.memory.MemoryPool
-import org.apache.kafka.common.network.Send
+import org.apache.kafka.common.network.{PooledNetworkSend, Send}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
 import org.apache.kafka.common.requests._
 import org.apache.kafka.common.security.auth.KafkaPrincipal
@@ -42,6 +43,7 @@ object RequestChannel extends Logging {
   val RequestQueueSizeMetric = "RequestQueueSize"
   val ResponseQueueSizeMetric = "ResponseQueueSize"
   val ProcessorMetricTag = "processor"
+  val RequestClassMetricTag = "requestClass"
 
   def isRequestLoggingEnabled: Boolean = requestLogger.underlying.isDebugEnabled
 
@@ -52,7 +54,7 @@ object RequestChannel extends Logging {
     val sanitizedUser = Sanitizer.sanitize(principal.getName)
   }
 
-  class Metrics {
+  class Metrics(val tracer: Option[RequestTracer] = None) {
 
     private val metricsMap = mutable.Map[String, RequestMetrics]()
 
@@ -61,10 +63,15 @@ object RequestChannel extends Logging {
       metricsMap.put(name, new RequestMetrics(name))
     }
 
+    private val classMetrics = RequestClass.values.map(requestClass => requestClass -> new RequestClassMetrics(requestClass)).toMap
+
     def apply(metricName: String) = metricsMap(metricName)
 
+    def apply(requestClass: RequestClass) = classMetrics(requestClass)
+
     def close(): Unit = {
        metricsMap.values.foreach(_.removeMetrics())
+       classMetrics.values.foreach(_.removeMetrics())
     }
   }
 
@@ -83,13 +90,18 @@ object RequestChannel extends Logging {
     @volatile var apiRemoteCompleteTimeNanos = -1L
     @volatile var messageConversionsTimeNanos = 0L
     @volatile var temporaryMemoryBytes = 0L
+    // set for fetches that read from a segment other than the active one, or from remote storage
+    @volatile var coldRead = false
     @volatile var recordNetworkThreadTimeCallback: Option[Long => Unit] = None
+    // set while the bytes of this request are accounted for by the channel's `RequestMemoryTracker`
+    private[network] val memoryAccounted = new AtomicBoolean(false)
 
     val session = Session(context.principal, context.clientAddress)
     private val bodyAndSize: RequestAndSize = context.parseRequest(buffer)
 
     def header: RequestHeader = context.header
     def sizeOfBodyInBytes: Int = bodyAndSize.size
+    lazy val requestClass: RequestClass = RequestClass(this)
 
     //most request types are parsed entirely into objects at this point. for those we can release the underlying buffer.
     //some (like produce, or any time the schema contains fields of types BYTES or NULLABLE_BYTES) retain a reference
@@ -169,6 +181,18 @@ object RequestChannel extends Logging {
         m.requestBytesHist.update(sizeOfBodyInBytes)
         m.messageConversionsTimeHist.foreach(_.update(Math.round(messageConversionsTimeMs)))
         m.tempMemoryBytesHist.foreach(_.update(temporaryMemoryBytes))
+        m.readTimeHists.foreach { hists =>
+          hists.totalTimeHist(coldRead).update(Math.round(totalTimeMs))
+          hists.responseSendTimeHist(coldRead).update(Math.round(responseSendTimeMs))
+        }
+      }
+      metrics(requestClass).requestQueueTimeHist.update(Math.round(requestQueueTimeMs))
+
+      metrics.tracer.foreach { tracer =>
+        if (tracer.shouldTrace(totalTimeMs))
+          tracer.record(RequestTrace(header.apiKey.name, header.apiVersion, header.correlationId, header.clientId,
+            context.connectionId, tracer.time.milliseconds, requestQueueTimeMs, apiLocalTimeMs, apiRemoteTimeMs,
+            apiThrottleTimeMs, responseQueueTimeMs, responseSendTimeMs, totalTimeMs))
       }
 
       // Records network handler thread usage. This is included towards the request quota for the
@@ -235,6 +259,9 @@ object RequestChannel extends Logging {
 
     def onComplete: Option[Send => Unit] = None
 
+    /** Returns any pooled buffer held by this response once it has been sent or dropped. */
+    def releaseBuffer(): Unit = {}
+
     override def toString: String
   }
 
@@ -247,6 +274,11 @@ object RequestChannel extends Logging {
 
     override def onComplete: Option[Send => Unit] = onCompleteCallback
 
+    override def releaseBuffer(): Unit = responseSend match {
+      case send: PooledNetworkSend => send.release()
+      case _ =>
+    }
+
     override def toString: String =
       s"Response(type=Send, request=$request, send=$responseSend, asString=$responseAsString)"
   }
@@ -272,18 +304,51 @@ object RequestChannel extends Logging {
   }
 }
 
-class RequestChannel(val queueSize: Int, val metricNamePrefix : String) extends KafkaMetricsGroup {
+/**
+ * The channel between the network processors and the request handler threads.
+ *
+ * If `affinityGroups` is greater than zero, processors and handler threads are partitioned into that many groups by
+ * their ids and each group has its own request queue with an equal share of `queueSize`. Handlers take requests
+ * from their own group's queue and only take requests queued for other groups when their own queue is empty, so
+ * that requests are not stranded when there are fewer handlers than groups. Idle handlers wait on their own group's
+ * queue, and a request queued for a group without idle handlers wakes up an idle handler of another group.
+ *
+ * Responses are serialized into buffers from `responseBufferPool` where possible, see
+ * [[org.apache.kafka.common.requests.RequestContext#buildResponse(AbstractResponse, MemoryPool)]]. The processor
+ * releases them once the send completes or the connection is closed.
+ *
+ * The bytes of requests in flight are accounted for by `memoryTracker`. Processors keep the channels of request
+ * classes that exceed their budget in `classMaxBytes` muted until enough of those requests have completed.
+ */
+class RequestChannel(val queueSize: Int,
+                     val metricNamePrefix : String,
+                     queuePolicy: RequestQueuePolicy = RequestQueuePolicy.Fifo,
+                     queueWeights: Map[RequestClass, Int] = RequestClass.values.map(_ -> 1).toMap,
+                     affinityGroups: Int = 0,
+                     tracer: Option[RequestTracer] = None,
+                     val responseBufferPool: MemoryPool = MemoryPool.NONE,
+                     classMaxBytes: Map[RequestClass, Long] = Map.empty) extends KafkaMetricsGroup {
   import RequestChannel._
-  val metrics = new RequestChannel.Metrics
-  private val requestQueue = new ArrayBlockingQueue[BaseRequest](queueSize)
+  val metrics = new RequestChannel.Metrics(tracer)
+  val memoryTracker = new RequestMemoryTracker(metricNamePrefix, classMaxBytes)
+  private val requestQueues = {
+    val numQueues = math.max(affinityGroups, 1)
+    Array.fill(numQueues)(new RequestQueue(math.max(queueSize / numQueues, 1), queuePolicy, queueWeights))
+  }
   private val processors = new ConcurrentHashMap[Int, Processor]()
   val requestQueueSizeMetricName = metricNamePrefix.concat(RequestQueueSizeMetric)
   val responseQueueSizeMetricName = metricNamePrefix.concat(ResponseQueueSizeMetric)
 
   newGauge(requestQueueSizeMetricName, new Gauge[Int] {
-      def value = requestQueue.size
+      def value = requestQueues.map(_.size).sum
   })
 
+  RequestClass.values.foreach { requestClass =>
+    newGauge(requestQueueSizeMetricName, new Gauge[Int] {
+      def value = requestQueues.map(_.size(requestClass)).sum
+    }, Map(RequestClassMetricTag -> requestClass.name))
+  }
+
   newGauge(responseQueueSizeMetricName, new Gauge[Int]{
     def value = processors.values.asScala.foldLeft(0) {(total, processor) =>
       total + processor.responseQueueSize
@@ -303,13 +368,22 @@ class RequestChannel(val queueSize: Int, val metricNamePrefix : String) extends
   }
 
   def removeProcessor(processorId: Int): Unit = {
-    processors.remove(processorId)
+    Option(processors.remove(processorId)).foreach(_.dropPendingResponses())
     removeMetric(responseQueueSizeMetricName, Map(ProcessorMetricTag -> processorId.toString))
   }
 
   /** Send a request to be handled, potentially blocking until there is room in the queue for the request */
   def sendRequest(request: RequestChannel.Request): Unit = {
-    requestQueue.put(request)
+    putRequest(queueIndex(request.processor), request)
+  }
+
+  private def putRequest(index: Int, request: RequestChannel.BaseRequest): Unit = {
+    // `put` wakes up an idle handler of the group, if there is none the request is handed to another group's
+    if (!requestQueues(index).put(request) && requestQueues.length > 1) {
+      var i = 1
+      while (i < requestQueues.length && !requestQueues((index + i) % requestQueues.length).signalReceiver())
+        i += 1
+    }
   }
 
   /** Send a response back to the socket server to be sent over the network */
@@ -336,16 +410,68 @@ class RequestChannel(val queueSize: Int, val metricNamePrefix : String) extends
     // are closed, so the response is dropped.
     if (processor != null) {
       processor.enqueueResponse(response)
-    }
+      // If the processor was removed while the response was being enqueued, its queue is no longer drained
+      if (processors.get(response.processor) ne processor)
+        processor.dropPendingResponses()
+    } else
+      dropResponse(response)
+  }
+
+  /** Release the request memory and response buffer held by a response that will not be sent because its processor is gone */
+  private[network] def dropResponse(response: RequestChannel.Response): Unit = {
+    trace(s"Dropping response for removed processor ${response.processor}: $response")
+    memoryTracker.release(response.request)
+    response.releaseBuffer()
   }
 
   /** Get the next request or block until specified time has elapsed */
-  def receiveRequest(timeout: Long): RequestChannel.BaseRequest =
-    requestQueue.poll(timeout, TimeUnit.MILLISECONDS)
+  def receiveRequest(timeout: Long): RequestChannel.BaseRequest = receiveRequest(timeout, handlerId = 0)
+
+  /**
+   * Get the next request for the given request handler or block until specified time has elapsed. Requests queued
+   * for other affinity groups are taken if there are none for the handler's group.
+   */
+  def receiveRequest(timeout: Long, handlerId: Int): RequestChannel.BaseRequest = {
+    val ownIndex = queueIndex(handlerId)
+    if (requestQueues.length == 1)
+      requestQueues(ownIndex).poll(timeout, TimeUnit.MILLISECONDS)
+    else {
+      var nanos = TimeUnit.MILLISECONDS.toNanos(timeout)
+      var request = pollQueues(ownIndex)
+      while (request == null && nanos > 0) {
+        nanos = requestQueues(ownIndex).awaitRequest(nanos, requestQueues.exists(_.nonEmpty))
+        request = pollQueues(ownIndex)
+      }
+      request
+    }
+  }
 
   /** Get the next request or block until there is one */
-  def receiveRequest(): RequestChannel.BaseRequest =
-    requestQueue.take()
+  def receiveRequest(): RequestChannel.BaseRequest = {
+    if (requestQueues.length == 1)
+      requestQueues(0).take()
+    else {
+      var request = pollQueues(0)
+      while (request == null) {
+        requestQueues(0).awaitRequest(Long.MaxValue, requestQueues.exists(_.nonEmpty))
+        request = pollQueues(0)
+      }
+      request
+    }
+  }
+
+  private def queueIndex(id: Int): Int = id % requestQueues.length
+
+  // Takes a request from the given queue if there is one, or else from the others
+  private def pollQueues(ownIndex: Int): RequestChannel.BaseRequest = {
+    var request: RequestChannel.BaseRequest = null
+    var i = 0
+    while (request == null && i < requestQueues.length) {
+      request = requestQueues((ownIndex + i) % requestQueues.length).poll()
+      i += 1
+    }
+    request
+  }
 
   def updateErrorMetrics(apiKey: ApiKeys, errors: collection.Map[Errors, Integer]): Unit = {
     errors.foreach { case (error, count) =>
@@ -354,15 +480,19 @@ class RequestChannel(val queueSize: Int, val metricNamePrefix : String) extends
   }
 
   def clear(): Unit = {
-    requestQueue.clear()
+    requestQueues.foreach(_.clear())
   }
 
   def shutdown(): Unit = {
     clear()
     metrics.close()
+    memoryTracker.close()
   }
 
-  def sendShutdownRequest(): Unit = requestQueue.put(ShutdownRequest)
+  def sendShutdownRequest(): Unit = sendShutdownRequest(handlerId = 0)
+
+  /** Send a shutdown request to the queue of the given request handler's affinity group */
+  def sendShutdownRequest(handlerId: Int): Unit = putRequest(queueIndex(handlerId), ShutdownRequest)
 
 }
 
@@ -382,6 +512,8 @@ object RequestMetrics {
   val MessageConversionsTimeMs = "MessageConversionsTimeMs"
   val TemporaryMemoryBytes = "TemporaryMemoryBytes"
   val ErrorsPerSec = "ErrorsPerSec"
+
+  val ReadTag = "read"
 }
 
 class RequestMetrics(name: String) extends KafkaMetricsGroup {
@@ -419,6 +551,36 @@ class RequestMetrics(name: String) extends KafkaMetricsGroup {
     else
       None
 
+  // total and response send time of fetches, tagged by whether they read from a segment other than the active one.
+  // The fetched bytes of a cold read are likely read from disk while the response is sent.
+  val readTimeHists =
+    if (isFetch) Some(new ReadTimeHistograms)
+    else None
+
+  private def isFetch: Boolean =
+    name == ApiKeys.FETCH.name || name == consumerFetchMetricName || name == followFetchMetricName
+
+  class ReadTimeHistograms {
+    private val hotTags = tags + (ReadTag -> "hot")
+    private val coldTags = tags + (ReadTag -> "cold")
+    private val hotTotalTimeHist = newHistogram(TotalTimeMs, biased = true, hotTags)
+    private val coldTotalTimeHist = newHistogram(TotalTimeMs, biased = true, coldTags)
+    private val hotResponseSendTimeHist = newHistogram(ResponseSendTimeMs, biased = true, hotTags)
+    private val coldResponseSendTimeHist = newHistogram(ResponseSendTimeMs, biased = true, coldTags)
+
+    def totalTimeHist(coldRead: Boolean): Histogram = if (coldRead) coldTotalTimeHist else hotTotalTimeHist
+
+    def responseSendTimeHist(coldRead: Boolean): Histogram =
+      if (coldRead) coldResponseSendTimeHist else hotResponseSendTimeHist
+
+    def removeMetrics(): Unit = {
+      Seq(hotTags, coldTags).foreach { readTags =>
+        removeMetric(TotalTimeMs, readTags)
+        removeMetric(ResponseSendTimeMs, readTags)
+      }
+    }
+  }
+
   private val errorMeters = mutable.Map[Errors, ErrorMeter]()
   Errors.values.foreach(error => errorMeters.put(error, new ErrorMeter(name, error)))
 
@@ -473,6 +635,7 @@ class RequestMetrics(name: String) extends KafkaMetricsGroup {
       removeMetric(MessageConversionsTimeMs, tags)
       removeMetric(TemporaryMemoryBytes, tags)
     }
+    readTimeHists.foreach(_.removeMetrics())
     errorMeters.values.foreach(_.removeMeter())
     errorMeters.clear()
   }
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import com.yammer.metrics.core.{Gauge, Meter}
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.Pool
+import org.apache.kafka.common.protocol.ApiKeys
+
+object RequestMemoryTracker {
+  val RequestBytesInFlightMetric = "RequestBytesInFlight"
+  val MemoryMutedChannelsPerSecMetric = "MemoryMutedChannelsPerSec"
+}
+
+/**
+ * Accounts for the memory held by requests from the moment they are read off the network until they complete, that
+ * is until their response has been sent or dropped. The size of a request's body stands in for the receive buffer
+ * and the objects parsed from it.
+ *
+ * Bytes in flight are reported per listener and API and per [[RequestClass]]. A class may also be given a budget:
+ * while its bytes in flight are at or above the budget, processors leave the channels whose last request was of that
+ * class muted rather than reading further requests from them, so that a burst of large requests of one class
+ * backs off the clients sending them instead of piling up on the heap. Classes without a budget are never muted.
+ *
+ * Receive buffers come from the shared `queued.max.request.bytes` memory pool before the API of a request is known,
+ * so these budgets complement that pool rather than partition it.
+ */
+class RequestMemoryTracker(metricNamePrefix: String,
+                           classMaxBytes: Map[RequestClass, Long] = Map.empty) extends KafkaMetricsGroup {
+  import RequestChannel.RequestClassMetricTag
+  import RequestMemoryTracker._
+
+  private val bytesInFlightMetricName = metricNamePrefix.concat(RequestBytesInFlightMetric)
+  private val mutesMetricName = metricNamePrefix.concat(MemoryMutedChannelsPerSecMetric)
+
+  private val classBytes: Map[RequestClass, AtomicLong] = RequestClass.values.map(_ -> new AtomicLong(0)).toMap
+  private val apiBytes = new Pool[(String, ApiKeys), AtomicLong](Some(newApiBytes))
+  private val classMutes: Map[RequestClass, Meter] = classMaxBytes.keys.map { requestClass =>
+    requestClass -> newMeter(mutesMetricName, "mutes", TimeUnit.SECONDS, Map(RequestClassMetricTag -> requestClass.name))
+  }.toMap
+
+  RequestClass.values.foreach { requestClass =>
+    newGauge(bytesInFlightMetricName, new Gauge[Long] {
+      def value = classBytes(requestClass).get
+    }, Map(RequestClassMetricTag -> requestClass.name))
+  }
+
+  /** Starts accounting for the bytes of `request`, this must be followed by exactly one call to `release`. */
+  def acquire(request: RequestChannel.Request): Unit = {
+    if (request.memoryAccounted.compareAndSet(false, true))
+      update(request, request.sizeOfBodyInBytes)
+  }
+
+  /** Stops accounting for the bytes of `request`. Calling this more than once, or without `acquire`, has no effect. */
+  def release(request: RequestChannel.Request): Unit = {
+    if (request.memoryAccounted.compareAndSet(true, false))
+      update(request, -request.sizeOfBodyInBytes)
+  }
+
+  def bytesInFlight(requestClass: RequestClass): Long = classBytes(requestClass).get
+
+  def bytesInFlight(listener: String, apiKey: ApiKeys): Long = Option(apiBytes.get((listener, apiKey))).fold(0L)(_.get)
+
+  def isOverBudget(requestClass: RequestClass): Boolean =
+    classMaxBytes.get(requestClass).exists(maxBytes => classBytes(requestClass).get >= maxBytes)
+
+  /** Records that a channel was left muted because `requestClass` is over its budget. */
+  def recordMute(requestClass: RequestClass): Unit = classMutes.get(requestClass).foreach(_.mark())
+
+  def close(): Unit = {
+    RequestClass.values.foreach(requestClass => removeMetric(bytesInFlightMetricName, Map(RequestClassMetricTag -> requestClass.name)))
+    classMutes.keys.foreach(requestClass => removeMetric(mutesMetricName, Map(RequestClassMetricTag -> requestClass.name)))
+    apiBytes.keys.foreach { case (listener, apiKey) => removeMetric(bytesInFlightMetricName, apiTags(listener, apiKey)) }
+  }
+
+  private def update(request: RequestChannel.Request, delta: Long): Unit = {
+    classBytes(request.requestClass).addAndGet(delta)
+    apiBytes.getAndMaybePut((request.context.listenerName.value, request.header.apiKey)).addAndGet(delta)
+  }
+
+  private def newApiBytes(key: (String, ApiKeys)): AtomicLong = {
+    val bytes = new AtomicLong(0)
+    newGauge(bytesInFlightMetricName, new Gauge[Long] {
+      def value = bytes.get
+    }, apiTags(key._1, key._2))
+    bytes
+  }
+
+  private def apiTags(listener: String, apiKey: ApiKeys): Map[String, String] =
+    Map("listener" -> listener, "request" -> apiKey.name)
+}
@@ -0,0 +1,363 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicIntegerArray}
+import java.util.concurrent.locks.ReentrantLock
+
+import kafka.metrics.KafkaMetricsGroup
+import kafka.network.RequestChannel.BaseRequest
+import kafka.utils.CoreUtils.inLock
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.requests.FetchRequest
+
+/**
+ * The class of a request for the purpose of scheduling it on the request handler threads. Classes are listed
+ * in `RequestClass.values` from the highest to the lowest priority.
+ *
+ * Besides the controller requests, the control class holds the cheap requests clients send to connect and to find
+ * the brokers to talk to, so that a client is not kept from connecting by produce and fetch traffic.
+ */
+sealed abstract class RequestClass(val name: String, val id: Int) {
+  override def toString: String = name
+}
+
+object RequestClass {
+  case object Control extends RequestClass("control", 0)
+  case object Replication extends RequestClass("replication", 1)
+  case object Produce extends RequestClass("produce", 2)
+  case object Consume extends RequestClass("consume", 3)
+  case object Admin extends RequestClass("admin", 4)
+
+  val values: Seq[RequestClass] = Seq(Control, Replication, Produce, Consume, Admin)
+
+  def forName(name: String): RequestClass = values.find(_.name == name).getOrElse(
+    throw new IllegalArgumentException(s"Unknown request class $name, valid values are ${values.mkString(", ")}"))
+
+  def apply(request: RequestChannel.Request): RequestClass = request.header.apiKey match {
+    case ApiKeys.LEADER_AND_ISR | ApiKeys.STOP_REPLICA | ApiKeys.UPDATE_METADATA | ApiKeys.CONTROLLED_SHUTDOWN |
+         ApiKeys.METADATA | ApiKeys.API_VERSIONS | ApiKeys.FIND_COORDINATOR | ApiKeys.SASL_HANDSHAKE |
+         ApiKeys.SASL_AUTHENTICATE =>
+      Control
+    case ApiKeys.FETCH =>
+      if (request.body[FetchRequest].isFromFollower) Replication else Consume
+    case ApiKeys.PRODUCE =>
+      Produce
+    case ApiKeys.LIST_OFFSETS | ApiKeys.OFFSET_COMMIT | ApiKeys.OFFSET_FETCH | ApiKeys.JOIN_GROUP | ApiKeys.SYNC_GROUP |
+         ApiKeys.HEARTBEAT | ApiKeys.LEAVE_GROUP =>
+      Consume
+    case _ =>
+      Admin
+  }
+
+  private[network] def of(request: BaseRequest): RequestClass = request match {
+    case RequestChannel.ShutdownRequest => Control
+    case r: RequestChannel.Request => r.requestClass
+  }
+
+  /**
+   * Parses weights given as a list of `class:weight` pairs, e.g. `control:16,produce:4`. Classes that are not
+   * listed get a weight of 1.
+   */
+  def parseWeights(weights: collection.Map[String, String]): Map[RequestClass, Int] = {
+    val parsed = weights.map { case (name, weight) =>
+      val requestClass = parseName(name)
+      val value = try weight.trim.toInt catch {
+        case _: NumberFormatException => throw new ConfigException(s"Invalid weight $weight for request class $name")
+      }
+      if (value < 1)
+        throw new ConfigException(s"Weight of request class $name must be at least 1, but was $value")
+      requestClass -> value
+    }
+    values.map(requestClass => requestClass -> parsed.getOrElse(requestClass, 1)).toMap
+  }
+
+  /**
+   * Parses byte budgets given as a list of `class:bytes` pairs, e.g. `produce:104857600`. Classes that are not
+   * listed have no budget.
+   */
+  def parseMaxBytes(maxBytes: collection.Map[String, String]): Map[RequestClass, Long] = {
+    maxBytes.map { case (name, bytes) =>
+      val requestClass = parseName(name)
+      val value = try bytes.trim.toLong catch {
+        case _: NumberFormatException => throw new ConfigException(s"Invalid max bytes $bytes for request class $name")
+      }
+      if (value < 1)
+        throw new ConfigException(s"Max bytes of request class $name must be at least 1, but was $value")
+      requestClass -> value
+    }.toMap
+  }
+
+  private def parseName(name: String): RequestClass = try forName(name.trim) catch {
+    case e: IllegalArgumentException => throw new ConfigException(e.getMessage)
+  }
+}
+
+/**
+ * The order in which request handler threads take queued requests.
+ *
+ *  - `fifo` takes requests in the order they were received, regardless of their class.
+ *  - `priority` takes the oldest request of the highest priority class that has queued requests. A class that has
+ *    been passed over for [[RequestQueue.MaxPassOvers]] requests in a row is served next, so that no class is
+ *    starved when higher priority classes are busy.
+ *  - `weighted` visits the classes in a round-robin and takes up to the weight of a class from it per visit, so
+ *    that no class is starved when others are busy.
+ */
+sealed abstract class RequestQueuePolicy(val name: String) {
+  override def toString: String = name
+}
+
+object RequestQueuePolicy {
+  case object Fifo extends RequestQueuePolicy("fifo")
+  case object Priority extends RequestQueuePolicy("priority")
+  case object Weighted extends RequestQueuePolicy("weighted")
+
+  val values: Seq[RequestQueuePolicy] = Seq(Fifo, Priority, Weighted)
+
+  def forName(name: String): RequestQueuePolicy = values.find(_.name == name).getOrElse(
+    throw new IllegalArgumentException(s"Unknown request queue policy $name, valid values are ${values.mkString(", ")}"))
+}
+
+/**
+ * A bounded queue of requests that keeps a separate queue per request class. The capacity is shared by all the
+ * classes, so senders block when the total number of queued requests reaches it, as with a single queue.
+ *
+ * Requests are added to and taken from lock-free queues. `lock` is only taken by threads that have to wait, handlers
+ * when there are no requests and senders when the queue is full, and by the threads that wake them up. A thread
+ * registers as waiting before it checks the queue a last time, and the other side only signals when a thread is
+ * registered, so that no wakeup is lost and none is issued while all handlers are busy. Each wakeup is claimed by
+ * one waiting thread, so a burst of requests wakes up as many handlers as there are requests, and no more.
+ */
+class RequestQueue(val capacity: Int,
+                   val policy: RequestQueuePolicy,
+                   weights: Map[RequestClass, Int] = RequestClass.values.map(_ -> 1).toMap) {
+
+  private val numClasses = RequestClass.values.size
+  // `fifo` keeps all requests in the first queue and tracks the per-class counts separately
+  private val queues = Array.fill(if (policy == RequestQueuePolicy.Fifo) 1 else numClasses)(
+    new ConcurrentLinkedQueue[BaseRequest]())
+  private val classSizes = new AtomicIntegerArray(numClasses)
+  // the number of queued requests, including those being added
+  private val count = new AtomicInteger(0)
+
+  // The state of the `priority` and `weighted` policies. It is only accessed with `dequeueLock` held, which is only
+  // taken by the threads taking requests.
+  private val dequeueLock = new Object
+  private val classWeights = RequestClass.values.map(weights).toArray
+  private val credits = classWeights.clone()
+  // the number of requests taken from other classes since a class with queued requests was last served
+  private val passOvers = new Array[Int](numClasses)
+  private var current = 0
+
+  private val lock = new ReentrantLock()
+  private val notEmpty = lock.newCondition()
+  private val notFull = lock.newCondition()
+  private val waitingReceivers = new AtomicInteger(0)
+  // the number of waiting receivers that were signalled but have not woken up yet, guarded by `lock`
+  private var pendingWakeups = 0
+  private val waitingSenders = new AtomicInteger(0)
+
+  if (capacity < 1)
+    throw new IllegalArgumentException(s"Request queue capacity must be at least 1, but was $capacity")
+
+  /**
+   * Add a request to the queue, waiting for space to become available if the queue is full. Returns true if a thread
+   * waiting for a request was woken up to take it.
+   */
+  def put(request: BaseRequest): Boolean = {
+    val requestClass = RequestClass.of(request)
+    if (!tryReserve()) {
+      waitingSenders.incrementAndGet()
+      try {
+        inLock(lock) {
+          while (!tryReserve())
+            notFull.await()
+        }
+      } finally {
+        waitingSenders.decrementAndGet()
+      }
+    }
+    classSizes.incrementAndGet(requestClass.id)
+    queues(if (queues.length == 1) 0 else requestClass.id).offer(request)
+    signalReceiver()
+  }
+
+  /** Take the next request if there is one, without waiting */
+  def poll(): BaseRequest = {
+    val request = policy match {
+      case RequestQueuePolicy.Fifo => queues(0).poll()
+      case RequestQueuePolicy.Priority => dequeueLock.synchronized(dequeuePriority())
+      case RequestQueuePolicy.Weighted => dequeueLock.synchronized(dequeueWeighted())
+    }
+    if (request != null) {
+      classSizes.decrementAndGet(RequestClass.of(request).id)
+      count.decrementAndGet()
+      if (waitingSenders.get > 0)
+        inLock(lock)(notFull.signal())
+    }
+    request
+  }
+
+  /** Take the next request, waiting up to the given timeout for one to become available */
+  def poll(timeout: Long, unit: TimeUnit): BaseRequest = {
+    var nanos = unit.toNanos(timeout)
+    var request = poll()
+    while (request == null && nanos > 0) {
+      nanos = awaitRequest(nanos, nonEmpty)
+      request = poll()
+    }
+    request
+  }
+
+  /** Take the next request, waiting for one to become available */
+  def take(): BaseRequest = {
+    var request = poll()
+    while (request == null) {
+      awaitRequest(Long.MaxValue, nonEmpty)
+      request = poll()
+    }
+    request
+  }
+
+  /**
+   * Wait up to `nanos` for a request to be added to this queue, or for [[signalReceiver]] to be called, unless `ready`
+   * already holds once the caller is registered as waiting. Returns the time left to wait.
+   */
+  private[network] def awaitRequest(nanos: Long, ready: => Boolean): Long = {
+    lock.lockInterruptibly()
+    waitingReceivers.incrementAndGet()
+    try {
+      if (ready) nanos
+      else notEmpty.awaitNanos(nanos)
+    } finally {
+      waitingReceivers.decrementAndGet()
+      if (pendingWakeups > 0)
+        pendingWakeups -= 1
+      lock.unlock()
+    }
+  }
+
+  /**
+   * Wake up a thread waiting for a request in [[awaitRequest]], returns false if there is none that has not been
+   * woken up already
+   */
+  private[network] def signalReceiver(): Boolean = {
+    if (waitingReceivers.get == 0)
+      false
+    else inLock(lock) {
+      if (waitingReceivers.get > pendingWakeups) {
+        pendingWakeups += 1
+        notEmpty.signal()
+        true
+      } else
+        false
+    }
+  }
+
+  def nonEmpty: Boolean = queues.exists(!_.isEmpty)
+
+  def size: Int = count.get
+
+  def size(requestClass: RequestClass): Int = classSizes.get(requestClass.id)
+
+  def clear(): Unit = {
+    while (poll() != null) {}
+  }
+
+  private def tryReserve(): Boolean = {
+    var queued = count.get
+    while (queued < capacity) {
+      if (count.compareAndSet(queued, queued + 1))
+        return true
+      queued = count.get
+    }
+    false
+  }
+
+  // Serves the highest priority class, unless a lower one has been passed over too often. In that case the highest
+  // priority class among those is served.
+  private def dequeuePriority(): BaseRequest = {
+    var selected = -1
+    var starved = -1
+    var i = 0
+    while (i < numClasses) {
+      if (queues(i).isEmpty)
+        passOvers(i) = 0
+      else {
+        if (selected < 0)
+          selected = i
+        else if (starved < 0 && passOvers(i) >= RequestQueue.MaxPassOvers)
+          starved = i
+      }
+      i += 1
+    }
+    if (selected < 0)
+      return null
+    if (starved >= 0)
+      selected = starved
+
+    i = 0
+    while (i < numClasses) {
+      if (i != selected && !queues(i).isEmpty)
+        passOvers(i) += 1
+      i += 1
+    }
+    passOvers(selected) = 0
+    queues(selected).poll()
+  }
+
+  // Serves up to `weight` requests from the current class before moving on to the next one, the credits of a
+  // class are replenished when it is passed over. Two rounds always suffice to find a queued request.
+  private def dequeueWeighted(): BaseRequest = {
+    var visits = 0
+    while (visits < 2 * numClasses) {
+      val request = if (credits(current) > 0) queues(current).poll() else null
+      if (request != null) {
+        credits(current) -= 1
+        return request
+      }
+      credits(current) = classWeights(current)
+      current = (current + 1) % numClasses
+      visits += 1
+    }
+    null
+  }
+}
+
+object RequestQueue {
+  /* the number of requests a class with queued requests may be passed over for by the `priority` policy */
+  val MaxPassOvers = 32
+}
+
+object RequestClassMetrics {
+  val RequestQueueTimeMs = "RequestQueueTimeMs"
+}
+
+class RequestClassMetrics(requestClass: RequestClass) extends KafkaMetricsGroup {
+  import RequestClassMetrics._
+
+  val tags = Map("requestClass" -> requestClass.name)
+  // time a request of this class spent in a request queue
+  val requestQueueTimeHist = newHistogram(RequestQueueTimeMs, biased = true, tags)
+
+  def removeMetrics(): Unit = {
+    removeMetric(RequestQueueTimeMs, tags)
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.{AtomicLong, AtomicReferenceArray}
+
+import org.apache.kafka.common.utils.Time
+
+import scala.collection.JavaConverters._
+
+/**
+ * The time a single request spent in each stage of its processing. The local time includes appending to the log for
+ * produce requests and the remote time is the time spent waiting in a purgatory.
+ */
+case class RequestTrace(apiKey: String,
+                        apiVersion: Short,
+                        correlationId: Int,
+                        clientId: String,
+                        connectionId: String,
+                        completedTimeMs: Long,
+                        requestQueueTimeMs: Double,
+                        localTimeMs: Double,
+                        remoteTimeMs: Double,
+                        throttleTimeMs: Double,
+                        responseQueueTimeMs: Double,
+                        responseSendTimeMs: Double,
+                        totalTimeMs: Double) {
+
+  override def toString: String =
+    s"RequestTrace(api=$apiKey, version=$apiVersion, correlationId=$correlationId, clientId=$clientId, " +
+      s"connection=$connectionId, completedTimeMs=$completedTimeMs, totalTimeMs=$totalTimeMs, " +
+      s"requestQueueTimeMs=$requestQueueTimeMs, localTimeMs=$localTimeMs, remoteTimeMs=$remoteTimeMs, " +
+      s"throttleTimeMs=$throttleTimeMs, responseQueueTimeMs=$responseQueueTimeMs, responseSendTimeMs=$responseSendTimeMs)"
+}
+
+object RequestTracer {
+  val MBeanName = "kafka.network:type=RequestTracer"
+  /* the number of windows whose slow traces are kept */
+  val SlowTraceWindows = 10
+}
+
+/**
+ * Keeps the stage timings of a sample of the completed requests in a fixed size ring buffer, so that individual slow
+ * requests can be inspected over JMX. Requests slower than `slowThresholdMs` are always traced, other requests with
+ * probability `sampleRatio`. Recording of sampled requests is lock-free: concurrent network threads claim slots with an
+ * atomic counter and the oldest traces are overwritten once the buffer is full.
+ *
+ * Slow requests are kept apart from the sampled ones, so that a burst of sampled requests does not overwrite them.
+ * They are kept per window of `slowWindowMs`, for the last [[RequestTracer.SlowTraceWindows]] windows. Up to
+ * `bufferSize` of them are kept per window, the fastest one being dropped when there are more. A window therefore
+ * always has its own slow traces, however slow the requests of an earlier window were.
+ */
+class RequestTracer(val bufferSize: Int,
+                    sampleRatio: Double,
+                    slowThresholdMs: Long,
+                    slowWindowMs: Long,
+                    val time: Time) extends RequestTracerMBean {
+  import RequestTracer._
+
+  private val traces = new AtomicReferenceArray[RequestTrace](bufferSize)
+  private val nextSlot = new AtomicLong(0)
+  // a min-heap on the total time per window, reused in turn. Guarded by their own lock since slow requests are rare
+  private val slowTraces = Array.fill(SlowTraceWindows)(new util.PriorityQueue[RequestTrace](math.max(bufferSize, 1),
+    Ordering.by[RequestTrace, Double](_.totalTimeMs)))
+  // the window whose traces each heap holds, -1 if none
+  private val slowTraceWindows = Array.fill(SlowTraceWindows)(-1L)
+
+  if (bufferSize < 1)
+    throw new IllegalArgumentException(s"Request tracer buffer size must be at least 1, but was $bufferSize")
+  if (slowWindowMs < 1)
+    throw new IllegalArgumentException(s"Request tracer slow window must be at least 1 ms, but was $slowWindowMs")
+
+  def shouldTrace(totalTimeMs: Double): Boolean =
+    totalTimeMs >= slowThresholdMs || (sampleRatio > 0 && ThreadLocalRandom.current.nextDouble() < sampleRatio)
+
+  def record(trace: RequestTrace): Unit = {
+    if (trace.totalTimeMs >= slowThresholdMs) {
+      val window = trace.completedTimeMs / slowWindowMs
+      val slot = (window % SlowTraceWindows).toInt
+      slowTraces synchronized {
+        if (slowTraceWindows(slot) < window) {
+          slowTraces(slot).clear()
+          slowTraceWindows(slot) = window
+        }
+        // a trace completed in a window that has already been reused is dropped
+        if (slowTraceWindows(slot) == window) {
+          val heap = slowTraces(slot)
+          heap.add(trace)
+          if (heap.size > bufferSize)
+            heap.poll()
+        }
+      }
+    } else {
+      val slot = (nextSlot.getAndIncrement() % bufferSize).toInt
+      traces.set(slot, trace)
+    }
+  }
+
+  /** The sampled and slow traces currently kept, in no particular order */
+  private[network] def allTraces: Seq[RequestTrace] = {
+    val sampled = (0 until bufferSize).flatMap(slot => Option(traces.get(slot)))
+    val oldestWindow = time.milliseconds / slowWindowMs - SlowTraceWindows + 1
+    val slow = slowTraces synchronized {
+      slowTraces.indices.filter(slot => slowTraceWindows(slot) >= oldestWindow).flatMap(slot => slowTraces(slot).asScala)
+    }
+    sampled ++ slow
+  }
+
+  def slowest(count: Int, windowMs: Long): Seq[RequestTrace] = {
+    val windowStartMs = time.milliseconds - windowMs
+    allTraces.filter(_.completedTimeMs >= windowStartMs).sortBy(-_.totalTimeMs).take(count)
+  }
+
+  def recent(count: Int): Seq[RequestTrace] =
+    allTraces.sortBy(-_.completedTimeMs).take(count)
+
+  override def slowestRequests(count: Int, windowMs: Long): util.List[String] =
+    slowest(count, windowMs).map(_.toString).asJava
+
+  override def recentRequests(count: Int): util.List[String] =
+    recent(count).map(_.toString).asJava
+}
+
+trait RequestTracerMBean {
+  def slowestRequests(count: Int, windowMs: Long): java.util.List[String]
+  def recentRequests(count: Int): java.util.List[String]
+}
@@ -37,8 +37,8 @@ import kafka.security.CredentialProvider
 import kafka.server.{BrokerReconfigurable, KafkaConfig}
 import kafka.utils._
 import org.apache.kafka.common.config.ConfigException
-import org.apache.kafka.common.{Endpoint, KafkaException, Reconfigurable}
-import org.apache.kafka.common.memory.{MemoryPool, SimpleMemoryPool}
+import org.apache.kafka.common.{Endpoint, KafkaException, MetricName, Reconfigurable}
+import org.apache.kafka.common.memory.{DirectBufferMemoryPool, MemoryPool, SimpleMemoryPool}
 import org.apache.kafka.common.metrics._
 import org.apache.kafka.common.metrics.stats.{CumulativeSum, Meter}
 import org.apache.kafka.common.network.KafkaChannel.ChannelMuteEvent
@@ -88,10 +88,24 @@ class SocketServer(val config: KafkaConfig,
   private val memoryPoolDepletedTimeMetricName = metrics.metricName("MemoryPoolDepletedTimeTotal", MetricsGroup)
   memoryPoolSensor.add(new Meter(TimeUnit.MILLISECONDS, memoryPoolDepletedPercentMetricName, memoryPoolDepletedTimeMetricName))
   private val memoryPool = if (config.queuedMaxBytes > 0) new SimpleMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor) else MemoryPool.NONE
+  // a single response may take at most a quarter of the pool so that one large response cannot starve the others
+  private val responseBufferPool =
+    if (config.responseBufferPoolBytes > 0)
+      new DirectBufferMemoryPool(config.responseBufferPoolBytes, math.max(math.min(config.responseBufferPoolBytes / 4, 1L << 30), 1L).toInt)
+    else
+      MemoryPool.NONE
   // data-plane
   private val dataPlaneProcessors = new ConcurrentHashMap[Int, Processor]()
   private[network] val dataPlaneAcceptors = new ConcurrentHashMap[EndPoint, Acceptor]()
-  val dataPlaneRequestChannel = new RequestChannel(maxQueuedRequests, DataPlaneMetricPrefix)
+  private[network] val requestTracer =
+    if (config.requestTracingBufferSize > 0)
+      Some(new RequestTracer(config.requestTracingBufferSize, config.requestTracingSampleRatio,
+        config.requestTracingSlowThresholdMs, config.requestTracingSlowWindowMs, time))
+    else
+      None
+  val dataPlaneRequestChannel = new RequestChannel(maxQueuedRequests, DataPlaneMetricPrefix,
+    config.queuedRequestsPolicy, config.queuedRequestsClassWeights, config.requestHandlerAffinityGroups, requestTracer,
+    responseBufferPool, config.queuedRequestsClassMaxBytes)
   // control-plane
   private var controlPlaneProcessorOpt : Option[Processor] = None
   private[network] var controlPlaneAcceptorOpt : Option[Acceptor] = None
@@ -123,6 +137,7 @@ class SocketServer(val config: KafkaConfig,
         startControlPlaneProcessor(Map.empty)
         startDataPlaneProcessors(Map.empty)
       }
+      requestTracer.foreach(CoreUtils.registerMBean(_, RequestTracer.MBeanName))
     }
 
     newGauge(s"${DataPlaneMetricPrefix}NetworkProcessorAvgIdlePercent",
@@ -161,6 +176,16 @@ class SocketServer(val config: KafkaConfig,
         def value = memoryPool.size() - memoryPool.availableMemory()
       }
     )
+    newGauge("ResponseBufferPoolAvailable",
+      new Gauge[Long] {
+        def value = responseBufferPool.availableMemory()
+      }
+    )
+    newGauge("ResponseBufferPoolUsed",
+      new Gauge[Long] {
+        def value = responseBufferPool.size() - responseBufferPool.availableMemory()
+      }
+    )
     newGauge(s"${DataPlaneMetricPrefix}ExpiredConnectionsKilledCount",
       new Gauge[Double] {
 
@@ -268,7 +293,8 @@ class SocketServer(val config: KafkaConfig,
     val sendBufferSize = config.socketSendBufferBytes
     val recvBufferSize = config.socketReceiveBufferBytes
     val brokerId = config.brokerId
-    new Acceptor(endPoint, sendBufferSize, recvBufferSize, brokerId, connectionQuotas, metricPrefix)
+    val balanceByLoad = config.connectionsAssignmentPolicy == ConnectionsAssignmentPolicy.LeastLoaded
+    new Acceptor(endPoint, sendBufferSize, recvBufferSize, brokerId, connectionQuotas, metricPrefix, balanceByLoad)
   }
 
   private def addDataPlaneProcessors(acceptor: Acceptor, endpoint: EndPoint, newProcessorsPerListener: Int): Unit = synchronized {
@@ -323,6 +349,7 @@ class SocketServer(val config: KafkaConfig,
         stopProcessingRequests()
       dataPlaneRequestChannel.shutdown()
       controlPlaneRequestChannelOpt.foreach(_.shutdown())
+      requestTracer.foreach(_ => CoreUtils.unregisterMBean(RequestTracer.MBeanName))
     }
     info("Shutdown completed")
   }
@@ -351,7 +378,10 @@ class SocketServer(val config: KafkaConfig,
     info(s"Removing data-plane listeners for endpoints $listenersRemoved")
     listenersRemoved.foreach { endpoint =>
       connectionQuotas.removeListener(config, endpoint.listenerName)
-      dataPlaneAcceptors.asScala.remove(endpoint).foreach(_.shutdown())
+      dataPlaneAcceptors.asScala.remove(endpoint).foreach { acceptor =>
+        acceptor.shutdown()
+        acceptor.removeAllProcessors(dataPlaneRequestChannel)
+      }
     }
   }
 
@@ -417,6 +447,13 @@ class SocketServer(val config: KafkaConfig,
 
 }
 
+object ConnectionsAssignmentPolicy {
+  val RoundRobin = "round_robin"
+  val LeastLoaded = "least_loaded"
+
+  val values = Seq(RoundRobin, LeastLoaded)
+}
+
 object SocketServer {
   val MetricsGroup = "socket-server-metrics"
   val DataPlaneThreadPrefix = "data-plane"
@@ -502,12 +539,14 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
                               val recvBufferSize: Int,
                               brokerId: Int,
                               connectionQuotas: ConnectionQuotas,
-                              metricPrefix: String) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
+                              metricPrefix: String,
+                              balanceByLoad: Boolean = false) extends AbstractServerThread(connectionQuotas) with KafkaMetricsGroup {
 
   private val nioSelector = NSelector.open()
   val serverChannel = openServerSocket(endPoint.host, endPoint.port)
   private val processors = new ArrayBuffer[Processor]()
   private val processorsStarted = new AtomicBoolean
+  private val random = new java.util.Random
   private val blockedPercentMeter = newMeter(s"${metricPrefix}AcceptorBlockedPercent",
     "blocked time", TimeUnit.NANOSECONDS, Map(ListenerMetricTag -> endPoint.listenerName.value))
 
@@ -540,6 +579,10 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
     toRemove.foreach(processor => requestChannel.removeProcessor(processor.id))
   }
 
+  private[network] def removeAllProcessors(requestChannel: RequestChannel): Unit = synchronized {
+    removeProcessors(processors.size, requestChannel)
+  }
+
   override def shutdown(): Unit = {
     super.shutdown()
     synchronized {
@@ -573,15 +616,24 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
                     // Assign the channel to the next processor (using round-robin) to which the
                     // channel can be added without blocking. If newConnections queue is full on
                     // all processors, block until the last one is able to accept a connection.
+                    // When balancing by load, the first attempt picks the less loaded of the next
+                    // processor and a randomly chosen other one.
                     var retriesLeft = synchronized(processors.length)
                     var processor: Processor = null
                     do {
+                      val firstAttempt = retriesLeft == synchronized(processors.length)
                       retriesLeft -= 1
                       processor = synchronized {
                         // adjust the index (if necessary) and retrieve the processor atomically for
                         // correct behaviour in case the number of processors is reduced dynamically
                         currentProcessorIndex = currentProcessorIndex % processors.length
-                        processors(currentProcessorIndex)
+                        val next = processors(currentProcessorIndex)
+                        if (balanceByLoad && firstAttempt && processors.length > 1) {
+                          // pick the other candidate among the remaining processors
+                          val otherIndex = (currentProcessorIndex + 1 + random.nextInt(processors.length - 1)) % processors.length
+                          lessLoaded(next, processors(otherIndex))
+                        } else
+                          next
                       }
                       currentProcessorIndex += 1
                     } while (!assignNewConnection(socketChannel, processor, retriesLeft == 0))
@@ -656,6 +708,9 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
     }
   }
 
+  private def lessLoaded(processor: Processor, other: Processor): Processor =
+    if (other.byteRate < processor.byteRate) other else processor
+
   private def assignNewConnection(socketChannel: SocketChannel, processor: Processor, mayBlock: Boolean): Boolean = {
     if (processor.accept(socketChannel, mayBlock, blockedPercentMeter)) {
       debug(s"Accepted connection from ${socketChannel.socket.getRemoteSocketAddress} on" +
@@ -677,6 +732,7 @@ private[kafka] class Acceptor(val endPoint: EndPoint,
 
 private[kafka] object Processor {
   val IdlePercentMetricName = "IdlePercent"
+  val ByteRateMetricName = "ByteRate"
   val NetworkProcessorMetricTag = "networkProcessor"
   val ListenerMetricTag = "listener"
 
@@ -720,7 +776,12 @@ private[kafka] class Processor(val id: Int,
 
   private val newConnections = new ArrayBlockingQueue[SocketChannel](connectionQueueSize)
   private val inflightResponses = mutable.Map[String, RequestChannel.Response]()
-  private val responseQueue = new LinkedBlockingDeque[RequestChannel.Response]()
+  private val responseQueue = new ConcurrentLinkedQueue[RequestChannel.Response]()
+  // Channels left muted after their last response because its request class was over its memory budget
+  private val memoryMutedChannels = mutable.Map[String, RequestClass]()
+  // Set when a wakeup of the selector has been requested for new responses and cleared before they are processed,
+  // so that request handlers enqueueing responses in a burst wake up the selector only once
+  private val responseWakeupPending = new AtomicBoolean(false)
 
   private[kafka] val metricTags = mutable.LinkedHashMap(
     ListenerMetricTag -> listenerName.value,
@@ -739,6 +800,16 @@ private[kafka] class Processor(val id: Int,
     Map(NetworkProcessorMetricTag -> id.toString)
   )
 
+  private val incomingByteRateMetricName = metrics.metricName("incoming-byte-rate", MetricsGroup, metricTags)
+  private val outgoingByteRateMetricName = metrics.metricName("outgoing-byte-rate", MetricsGroup, metricTags)
+
+  newGauge(ByteRateMetricName,
+    new Gauge[Double] {
+      def value = byteRate
+    },
+    Map(NetworkProcessorMetricTag -> id.toString)
+  )
+
   val expiredConnectionsKilledCount = new CumulativeSum()
   private val expiredConnectionsKilledCountMetricName = metrics.metricName("expired-connections-killed-count", "socket-server-metrics", metricTags)
   metrics.addMetric(expiredConnectionsKilledCountMetricName, expiredConnectionsKilledCount)
@@ -786,6 +857,7 @@ private[kafka] class Processor(val id: Int,
           configureNewConnections()
           // register any new responses for writing
           processNewResponses()
+          unmuteChannelsWithinMemoryBudget()
           poll()
           processCompletedReceives()
           processCompletedSends()
@@ -824,6 +896,7 @@ private[kafka] class Processor(val id: Int,
   }
 
   private def processNewResponses(): Unit = {
+    responseWakeupPending.set(false)
     var currentResponse: RequestChannel.Response = null
     while ({currentResponse = dequeueResponse(); currentResponse != null}) {
       val channelId = currentResponse.request.context.connectionId
@@ -838,7 +911,7 @@ private[kafka] class Processor(val id: Int,
             // it will be unmuted immediately. If the channel has been throttled, it will be unmuted only if the
             // throttling delay has already passed by now.
             handleChannelMuteEvent(channelId, ChannelMuteEvent.RESPONSE_SENT)
-            tryUnmuteChannel(channelId)
+            tryUnmuteChannel(channelId, response.request.requestClass)
 
           case response: SendResponse =>
             sendResponse(response, response.responseSend)
@@ -848,11 +921,11 @@ private[kafka] class Processor(val id: Int,
             close(channelId)
           case _: StartThrottlingResponse =>
             handleChannelMuteEvent(channelId, ChannelMuteEvent.THROTTLE_STARTED)
-          case _: EndThrottlingResponse =>
+          case response: EndThrottlingResponse =>
             // Try unmuting the channel. The channel will be unmuted only if the response has already been sent out to
             // the client.
             handleChannelMuteEvent(channelId, ChannelMuteEvent.THROTTLE_ENDED)
-            tryUnmuteChannel(channelId)
+            tryUnmuteChannel(channelId, response.request.requestClass)
           case _ =>
             throw new IllegalArgumentException(s"Unknown response type: ${currentResponse.getClass}")
         }
@@ -870,6 +943,7 @@ private[kafka] class Processor(val id: Int,
     // `channel` can be None if the connection was closed remotely or if selector closed it for being idle for too long
     if (channel(connectionId).isEmpty) {
       warn(s"Attempting to send response via channel for which there is no open connection, connection id $connectionId")
+      requestChannel.memoryTracker.release(response.request)
       response.request.updateRequestMetrics(0L, response)
     }
     // Invoke send for closingChannel as well so that the send is failed and the channel closed properly and
@@ -878,6 +952,8 @@ private[kafka] class Processor(val id: Int,
     if (openOrClosingChannel(connectionId).isDefined) {
       selector.send(responseSend)
       inflightResponses += (connectionId -> response)
+    } else {
+      response.releaseBuffer()
     }
   }
 
@@ -886,7 +962,8 @@ private[kafka] class Processor(val id: Int,
   }
 
   private def poll(): Unit = {
-    val pollTimeout = if (newConnections.isEmpty) 300 else 0
+    // channels muted for memory are not woken up by the requests of other processors completing, so check on them often
+    val pollTimeout = if (!newConnections.isEmpty) 0 else if (memoryMutedChannels.nonEmpty) 10 else 300
     try selector.poll(pollTimeout)
     catch {
       case e @ (_: IllegalStateException | _: IOException) =>
@@ -917,6 +994,7 @@ private[kafka] class Processor(val id: Int,
                   channel.principal, listenerName, securityProtocol)
                 val req = new RequestChannel.Request(processor = id, context = context,
                   startTimeNanos = nowNanos, memoryPool, receive.payload, requestChannel.metrics)
+                requestChannel.memoryTracker.acquire(req)
                 requestChannel.sendRequest(req)
                 selector.mute(connectionId)
                 handleChannelMuteEvent(connectionId, ChannelMuteEvent.REQUEST_RECEIVED)
@@ -941,6 +1019,7 @@ private[kafka] class Processor(val id: Int,
         val response = inflightResponses.remove(send.destination).getOrElse {
           throw new IllegalStateException(s"Send for ${send.destination} completed, but not in `inflightResponses`")
         }
+        response.releaseBuffer()
         updateRequestMetrics(response)
 
         // Invoke send completion callback
@@ -950,7 +1029,7 @@ private[kafka] class Processor(val id: Int,
         // it will be unmuted immediately. If the channel has been throttled, it will unmuted only if the throttling
         // delay has already passed by now.
         handleChannelMuteEvent(send.destination, ChannelMuteEvent.RESPONSE_SENT)
-        tryUnmuteChannel(send.destination)
+        tryUnmuteChannel(send.destination, response.request.requestClass)
       } catch {
         case e: Throwable => processChannelException(send.destination,
           s"Exception while processing completed send to ${send.destination}", e)
@@ -960,6 +1039,7 @@ private[kafka] class Processor(val id: Int,
 
   private def updateRequestMetrics(response: RequestChannel.Response): Unit = {
     val request = response.request
+    requestChannel.memoryTracker.release(request)
     val networkThreadTimeNanos = openOrClosingChannel(request.context.connectionId).fold(0L)(_.getAndResetNetworkThreadTimeNanos())
     request.updateRequestMetrics(networkThreadTimeNanos, response)
   }
@@ -970,7 +1050,10 @@ private[kafka] class Processor(val id: Int,
         val remoteHost = ConnectionId.fromString(connectionId).getOrElse {
           throw new IllegalStateException(s"connectionId has unexpected format: $connectionId")
         }.remoteHost
-        inflightResponses.remove(connectionId).foreach(updateRequestMetrics)
+        inflightResponses.remove(connectionId).foreach { response =>
+          response.releaseBuffer()
+          updateRequestMetrics(response)
+        }
         // the channel has been closed by the selector but the quotas still need to be updated
         connectionQuotas.dec(listenerName, InetAddress.getByName(remoteHost))
       } catch {
@@ -1002,7 +1085,10 @@ private[kafka] class Processor(val id: Int,
         connectionQuotas.dec(listenerName, address)
       selector.close(connectionId)
 
-      inflightResponses.remove(connectionId).foreach(response => updateRequestMetrics(response))
+      inflightResponses.remove(connectionId).foreach { response =>
+        response.releaseBuffer()
+        updateRequestMetrics(response)
+      }
     }
   }
 
@@ -1061,6 +1147,7 @@ private[kafka] class Processor(val id: Int,
     }
     selector.close()
     removeMetric(IdlePercentMetricName, Map(NetworkProcessorMetricTag -> id.toString))
+    removeMetric(ByteRateMetricName, Map(NetworkProcessorMetricTag -> id.toString))
   }
 
   // 'protected` to allow override for testing
@@ -1075,8 +1162,9 @@ private[kafka] class Processor(val id: Int,
   }
 
   private[network] def enqueueResponse(response: RequestChannel.Response): Unit = {
-    responseQueue.put(response)
-    wakeup()
+    responseQueue.add(response)
+    if (responseWakeupPending.compareAndSet(false, true))
+      wakeup()
   }
 
   private def dequeueResponse(): RequestChannel.Response = {
@@ -1086,8 +1174,28 @@ private[kafka] class Processor(val id: Int,
     response
   }
 
+  /**
+   * Drop the responses that were queued after this processor was shutdown, releasing the memory accounted for their
+   * requests. Called once the processor has been removed from the request channel.
+   */
+  private[network] def dropPendingResponses(): Unit = {
+    var response: RequestChannel.Response = null
+    while ({response = responseQueue.poll(); response != null})
+      requestChannel.dropResponse(response)
+  }
+
   private[network] def responseQueueSize = responseQueue.size
 
+  /**
+   * The rate of bytes read from and written to the connections of this processor, used by the acceptor as the load
+   * of the processor when balancing new connections by load.
+   */
+  private[network] def byteRate: Double = {
+    def rate(metricName: MetricName): Double =
+      Option(metrics.metric(metricName)).fold(0.0)(_.metricValue.asInstanceOf[Double])
+    rate(incomingByteRateMetricName) + rate(outgoingByteRateMetricName)
+  }
+
   // Only for testing
   private[network] def inflightResponseCount: Int = inflightResponses.size
 
@@ -1102,8 +1210,32 @@ private[kafka] class Processor(val id: Int,
     openOrClosingChannel(connectionId).foreach(c => c.handleChannelMuteEvent(event))
   }
 
-  private def tryUnmuteChannel(connectionId: String) = {
-    openOrClosingChannel(connectionId).foreach(c => selector.unmute(c.id))
+  // The channel is left muted if the class of its last request is over its memory budget, on the assumption that
+  // the next request will be of the same class. It is then unmuted by `unmuteChannelsWithinMemoryBudget`.
+  private def tryUnmuteChannel(connectionId: String, requestClass: RequestClass): Unit = {
+    openOrClosingChannel(connectionId).foreach { c =>
+      if (!requestChannel.memoryTracker.isOverBudget(requestClass))
+        selector.unmute(c.id)
+      else if (memoryMutedChannels.put(c.id, requestClass).isEmpty) {
+        trace(s"Leaving channel ${c.id} muted as request class $requestClass is over its memory budget")
+        requestChannel.memoryTracker.recordMute(requestClass)
+      }
+    }
+  }
+
+  private def unmuteChannelsWithinMemoryBudget(): Unit = {
+    if (memoryMutedChannels.nonEmpty) {
+      memoryMutedChannels.retain { case (connectionId, requestClass) =>
+        openOrClosingChannel(connectionId) match {
+          case Some(c) =>
+            val overBudget = requestChannel.memoryTracker.isOverBudget(requestClass)
+            if (!overBudget)
+              selector.unmute(c.id)
+            overBudget
+          case None => false
+        }
+      }
+    }
   }
 
   /* For test usage */
@@ -179,7 +179,7 @@ class DelayedFetch(delayMs: Long,
 
     val fetchPartitionData = logReadResults.map { case (tp, result) =>
       tp -> FetchPartitionData(result.error, result.highWatermark, result.leaderLogStartOffset, result.info.records,
-        result.lastStableOffset, result.info.abortedTransactions, result.preferredReadReplica)
+        result.lastStableOffset, result.info.abortedTransactions, result.preferredReadReplica, result.coldRead)
     }
 
     responseCallback(fetchPartitionData)
@@ -190,5 +190,6 @@ object DelayedFetchMetrics extends KafkaMetricsGroup {
   private val FetcherTypeKey = "fetcherType"
   val followerExpiredRequestMeter = newMeter("ExpiresPerSec", "requests", TimeUnit.SECONDS, tags = Map(FetcherTypeKey -> "follower"))
   val consumerExpiredRequestMeter = newMeter("ExpiresPerSec", "requests", TimeUnit.SECONDS, tags = Map(FetcherTypeKey -> "consumer"))
+  val remoteExpiredRequestMeter = newMeter("ExpiresPerSec", "requests", TimeUnit.SECONDS, tags = Map(FetcherTypeKey -> "remote"))
 }
 
@@ -154,22 +154,31 @@ object DelayedOperationPurgatory {
                                    brokerId: Int = 0,
                                    purgeInterval: Int = 1000,
                                    reaperEnabled: Boolean = true,
-                                   timerEnabled: Boolean = true): DelayedOperationPurgatory[T] = {
+                                   timerEnabled: Boolean = true,
+                                   compactWatchers: Boolean = false): DelayedOperationPurgatory[T] = {
     val timer = new SystemTimer(purgatoryName)
-    new DelayedOperationPurgatory[T](purgatoryName, timer, brokerId, purgeInterval, reaperEnabled, timerEnabled)
+    new DelayedOperationPurgatory[T](purgatoryName, timer, brokerId, purgeInterval, reaperEnabled, timerEnabled,
+      compactWatchers)
   }
 
 }
 
 /**
  * A helper purgatory class for bookkeeping delayed operations with a timeout, and expiring timed out operations.
+ *
+ * By default an operation watching several keys is added to a linked watcher list per key. If `compactWatchers` is
+ * enabled, the operation is instead registered once in a slot table and each key records the slots of its watchers
+ * in a bitmap. This makes watching many keys (e.g. a fetch of a thousand partitions) cheap to register and to purge,
+ * at the cost of a completion check of every watcher of a key, including ones already completed elsewhere, until
+ * the next purge.
  */
 final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
                                                              timeoutTimer: Timer,
                                                              brokerId: Int = 0,
                                                              purgeInterval: Int = 1000,
                                                              reaperEnabled: Boolean = true,
-                                                             timerEnabled: Boolean = true)
+                                                             timerEnabled: Boolean = true,
+                                                             compactWatchers: Boolean = false)
         extends Logging with KafkaMetricsGroup {
   /* a list of operation watching keys */
   private class WatcherList {
@@ -191,6 +200,10 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     watcherLists(Math.abs(key.hashCode() % watcherLists.length))
   }
 
+  /* the operation slots and the per key slot bitmaps, only used if `compactWatchers` is enabled */
+  private val watchedSlots = new WatchedSlots
+  private val watchedKeys = new Pool[Any, WatchedKey](Some((key: Any) => new WatchedKey(key)))
+
   // the number of estimated total operations in the purgatory
   private[this] val estimatedTotalOperations = new AtomicInteger(0)
 
@@ -251,11 +264,19 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
       return true
 
     var watchCreated = false
+    var slot = -1
     for(key <- watchKeys) {
       // If the operation is already completed, stop adding it to the rest of the watcher list.
       if (operation.isCompleted)
         return false
-      watchForOperation(key, operation)
+
+      if (compactWatchers) {
+        if (slot < 0)
+          slot = watchedSlots.register(operation)
+        watchSlot(key, slot)
+      } else {
+        watchForOperation(key, operation)
+      }
 
       if (!watchCreated) {
         watchCreated = true
@@ -287,12 +308,20 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * @return the number of completed operations during this process
    */
   def checkAndComplete(key: Any): Int = {
-    val wl = watcherList(key)
-    val watchers = inLock(wl.watchersLock) { wl.watchersByKey.get(key) }
-    val numCompleted = if (watchers == null)
-      0
-    else
-      watchers.tryCompleteWatched()
+    val numCompleted = if (compactWatchers) {
+      val watchedKey = watchedKeys.get(key)
+      if (watchedKey == null)
+        0
+      else
+        watchedKey.tryCompleteWatched()
+    } else {
+      val wl = watcherList(key)
+      val watchers = inLock(wl.watchersLock) { wl.watchersByKey.get(key) }
+      if (watchers == null)
+        0
+      else
+        watchers.tryCompleteWatched()
+    }
     debug(s"Request key $key unblocked $numCompleted $purgatoryName operations")
     numCompleted
   }
@@ -303,7 +332,10 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * even when it has been completed, this number may be larger than the number of real operations watched
    */
   def watched: Int = {
-    watcherLists.foldLeft(0) { case (sum, watcherList) => sum + watcherList.allWatchers.map(_.countWatched).sum }
+    if (compactWatchers)
+      watchedKeys.values.foldLeft(0) { case (sum, watchedKey) => sum + watchedKey.countWatched }
+    else
+      watcherLists.foldLeft(0) { case (sum, watcherList) => sum + watcherList.allWatchers.map(_.countWatched).sum }
   }
 
   /**
@@ -315,6 +347,11 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     * Cancel watching on any delayed operations for the given key. Note the operation will not be completed
     */
   def cancelForKey(key: Any): List[T] = {
+    if (compactWatchers) {
+      val watchedKey = watchedKeys.remove(key)
+      return if (watchedKey != null) watchedKey.cancel() else Nil
+    }
+
     val wl = watcherList(key)
     inLock(wl.watchersLock) {
       val watchers = wl.watchersByKey.remove(key)
@@ -337,6 +374,13 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     }
   }
 
+  /*
+   * Add the slot of an operation to the bitmap of the given key, retrying if the bitmap was removed concurrently
+   */
+  private def watchSlot(key: Any, slot: Int): Unit = {
+    while (!watchedKeys.getAndMaybePut(key).watch(slot)) {}
+  }
+
   /*
    * Remove the key from watcher lists if its list is empty
    */
@@ -434,6 +478,176 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     }
   }
 
+  /**
+   * The table of operations watched with `compactWatchers`, each of which occupies a single slot from the time it is
+   * registered until it is found to be completed. The slot of a completed operation is only reused once a purge has
+   * cleared it from the bitmaps of all keys, so a key bitmap never refers to an operation that does not watch it,
+   * except for a bit set by a registration racing with the completion of its operation, which at worst causes a
+   * spurious completion check.
+   */
+  private class WatchedSlots {
+    private[this] val lock = new ReentrantLock()
+    @volatile private[this] var operations = new AtomicReferenceArray[T](64)
+    // the number of slots handed out so far
+    private[this] var numSlots = 0
+    // slots which can be reused; the lowest one is reused first to keep the key bitmaps small
+    private[this] val freeSlots = new java.util.BitSet
+    // slots released since the last purge, which may still be set in key bitmaps
+    private[this] val releasedSlots = new java.util.BitSet
+
+    def register(operation: T): Int = inLock(lock) {
+      var slot = freeSlots.nextSetBit(0)
+      if (slot >= 0) {
+        freeSlots.clear(slot)
+      } else {
+        slot = numSlots
+        numSlots += 1
+        if (slot == operations.length) {
+          val grown = new AtomicReferenceArray[T](operations.length * 2)
+          for (i <- 0 until operations.length)
+            grown.set(i, operations.get(i))
+          operations = grown
+        }
+      }
+      operations.set(slot, operation)
+      slot
+    }
+
+    def get(slot: Int): T = {
+      val current = operations
+      if (slot < current.length) current.get(slot) else null.asInstanceOf[T]
+    }
+
+    def release(slot: Int, operation: T): Unit = inLock(lock) {
+      if (operations.get(slot) eq operation) {
+        operations.set(slot, null.asInstanceOf[T])
+        releasedSlots.set(slot)
+      }
+    }
+
+    /*
+     * Release the slots of all completed operations, including the ones that expired or were completed through
+     * another key, and return the slots released since the last call
+     */
+    def releaseCompleted(): java.util.BitSet = inLock(lock) {
+      for (slot <- 0 until numSlots) {
+        val operation = operations.get(slot)
+        if (operation != null && operation.isCompleted) {
+          operations.set(slot, null.asInstanceOf[T])
+          releasedSlots.set(slot)
+        }
+      }
+      val released = releasedSlots.clone().asInstanceOf[java.util.BitSet]
+      releasedSlots.clear()
+      released
+    }
+
+    def free(slots: java.util.BitSet): Unit = inLock(lock) {
+      freeSlots.or(slots)
+    }
+  }
+
+  /**
+   * The slots of the operations watching a key with `compactWatchers`. A bit is cleared when the key is checked and
+   * its operation is found to be completed, or by the next purge after the slot was released.
+   */
+  private class WatchedKey(val key: Any) {
+    private[this] val slots = new java.util.BitSet
+    // set once the key is removed from `watchedKeys`, after which no slots may be added
+    private[this] var removed = false
+
+    def countWatched: Int = synchronized { slots.cardinality }
+
+    // returns false if the key was removed and the caller should watch a new instance instead
+    def watch(slot: Int): Boolean = synchronized {
+      if (!removed)
+        slots.set(slot)
+      !removed
+    }
+
+    // try to complete the watching operations and return the number of operations completed
+    def tryCompleteWatched(): Int = {
+      val words = synchronized { slots.toLongArray }
+      var completed = 0
+      var anyDone = false
+      for (i <- words.indices) {
+        var word = words(i)
+        while (word != 0) {
+          val slot = i * 64 + java.lang.Long.numberOfTrailingZeros(word)
+          word &= word - 1
+          val operation = watchedSlots.get(slot)
+          if (operation == null || operation.isCompleted) {
+            anyDone = true
+          } else if (operation.maybeTryComplete()) {
+            completed += 1
+            anyDone = true
+          }
+        }
+      }
+      if (anyDone)
+        removeDone(words)
+      completed
+    }
+
+    /*
+     * Clear the slots of the given bitmap whose operations are completed. The occupant of each slot is checked
+     * under the lock, since a slot may have been recycled for an operation that has just started watching this key.
+     */
+    private def removeDone(words: Array[Long]): Unit = synchronized {
+      for (i <- words.indices) {
+        var word = words(i)
+        while (word != 0) {
+          val slot = i * 64 + java.lang.Long.numberOfTrailingZeros(word)
+          word &= word - 1
+          val operation = watchedSlots.get(slot)
+          if (operation == null || operation.isCompleted) {
+            slots.clear(slot)
+            if (operation != null)
+              watchedSlots.release(slot, operation)
+          }
+        }
+      }
+      maybeRemove()
+    }
+
+    // clear the given released slots and return the number of bits cleared
+    def purge(released: java.util.BitSet): Int = synchronized {
+      val before = slots.cardinality
+      slots.andNot(released)
+      maybeRemove()
+      before - slots.cardinality
+    }
+
+    def cancel(): List[T] = {
+      val words = synchronized {
+        removed = true
+        slots.toLongArray
+      }
+      val cancelled = new ListBuffer[T]()
+      for (i <- words.indices) {
+        var word = words(i)
+        while (word != 0) {
+          val slot = i * 64 + java.lang.Long.numberOfTrailingZeros(word)
+          word &= word - 1
+          val operation = watchedSlots.get(slot)
+          if (operation != null) {
+            operation.cancel()
+            watchedSlots.release(slot, operation)
+            cancelled += operation
+          }
+        }
+      }
+      cancelled.toList
+    }
+
+    private def maybeRemove(): Unit = {
+      if (slots.isEmpty && !removed) {
+        removed = true
+        watchedKeys.remove(key, this)
+      }
+    }
+  }
+
   def advanceClock(timeoutMs: Long): Unit = {
     timeoutTimer.advanceClock(timeoutMs)
 
@@ -446,8 +660,18 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
       // a little overestimated total number of operations.
       estimatedTotalOperations.getAndSet(numDelayed)
       debug("Begin purging watch lists")
-      val purged = watcherLists.foldLeft(0) {
-        case (sum, watcherList) => sum + watcherList.allWatchers.map(_.purgeCompleted()).sum
+      val purged = if (compactWatchers) {
+        val released = watchedSlots.releaseCompleted()
+        val purgedBits = if (released.isEmpty) 0 else watchedKeys.values.foldLeft(0) {
+          case (sum, watchedKey) => sum + watchedKey.purge(released)
+        }
+        // every bitmap has been cleared of the released slots, so they can now be reused
+        watchedSlots.free(released)
+        purgedBits
+      } else {
+        watcherLists.foldLeft(0) {
+          case (sum, watcherList) => sum + watcherList.allWatchers.map(_.purgeCompleted()).sum
+        }
       }
       debug("Purged %d elements from watch lists.".format(purged))
     }
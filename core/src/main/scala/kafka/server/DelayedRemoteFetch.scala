@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.util.concurrent.{CancellationException, CompletableFuture, ExecutionException}
+
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.Errors
+
+import scala.collection._
+
+/**
+ * A delayed fetch operation that waits for the remote reads of a fetch. The records of the partitions which were read
+ * locally are returned as they were read. A partition whose remote read did not complete in time is returned without
+ * records, so that the consumer fetches it again.
+ */
+class DelayedRemoteFetch(delayMs: Long,
+                         remoteReads: Map[TopicPartition, CompletableFuture[FetchDataInfo]],
+                         logReadResults: Seq[(TopicPartition, LogReadResult)],
+                         responseCallback: Seq[(TopicPartition, FetchPartitionData)] => Unit)
+  extends DelayedOperation(delayMs) {
+
+  /**
+   * The operation can be completed once all remote reads are done
+   */
+  override def tryComplete(): Boolean = {
+    if (remoteReads.values.forall(_.isDone))
+      forceComplete()
+    else
+      false
+  }
+
+  override def onExpiration(): Unit = {
+    DelayedFetchMetrics.remoteExpiredRequestMeter.mark()
+  }
+
+  /**
+   * Upon completion, return the records of the remote reads along with those read locally
+   */
+  override def onComplete(): Unit = {
+    val fetchPartitionData = logReadResults.map { case (tp, result) =>
+      val (partitionError, info) = remoteReads.get(tp) match {
+        case Some(remoteRead) =>
+          // a read which has not started yet is skipped by the reader
+          remoteRead.cancel(false)
+          try {
+            (result.error, remoteRead.get())
+          } catch {
+            case e: ExecutionException =>
+              error(s"Error reading partition $tp from remote storage", e.getCause)
+              (Errors.forException(e.getCause), result.info)
+            case _: CancellationException =>
+              (result.error, result.info)
+          }
+        case None => (result.error, result.info)
+      }
+      tp -> FetchPartitionData(partitionError, result.highWatermark, result.leaderLogStartOffset, info.records,
+        result.lastStableOffset, info.abortedTransactions, result.preferredReadReplica, result.coldRead)
+    }
+
+    responseCallback(fetchPartitionData)
+  }
+}
@@ -44,7 +44,17 @@ object FetchSession {
   val NUM_INCREMENTAL_FETCH_SESSISONS = "NumIncrementalFetchSessions"
   val NUM_INCREMENTAL_FETCH_PARTITIONS_CACHED = "NumIncrementalFetchPartitionsCached"
   val INCREMENTAL_FETCH_SESSIONS_EVICTIONS_PER_SEC = "IncrementalFetchSessionEvictionsPerSec"
+  val INCREMENTAL_FETCH_SESSION_CACHE_HITS_PER_SEC = "IncrementalFetchSessionCacheHitsPerSec"
+  val INCREMENTAL_FETCH_SESSION_CACHE_MISSES_PER_SEC = "IncrementalFetchSessionCacheMissesPerSec"
+  val INCREMENTAL_FETCH_SESSIONS_NOT_CREATED_PER_SEC = "IncrementalFetchSessionsNotCreatedPerSec"
+  val INCREMENTAL_FETCH_SESSIONS_NOT_RESIZED_PER_SEC = "IncrementalFetchSessionsNotResizedPerSec"
   val EVICTIONS = "evictions"
+  val REQUESTS = "requests"
+  val SESSIONS = "sessions"
+
+  // The reasons for evicting a session, used to tag the evictions meter.
+  val STALE_EVICTION = "stale"
+  val LOWER_PRIORITY_EVICTION = "lower_priority"
 
   def partitionsToLogString(partitions: util.Collection[TopicPartition], traceEnabled: Boolean): String = {
     if (traceEnabled) {
@@ -525,11 +535,15 @@ case class EvictableKey(val privileged: Boolean,
   * FetchSessionCache lock.  In order to avoid deadlock, the FetchSessionCache lock
   * must never be acquired while an individual FetchSession lock is already held.
   *
-  * @param maxEntries The maximum number of entries that can be in the cache.
-  * @param evictionMs The minimum time that an entry must be unused in order to be evictable.
+  * @param maxEntries    The maximum number of entries that can be in the cache.
+  * @param evictionMs    The minimum time that an entry must be unused in order to be evictable.
+  * @param maxPartitions The maximum total number of partitions cached by all entries, checked when an entry is
+  *                      created and when an incremental fetch adds partitions to it. Bounding the partitions rather than only the entries keeps a few sessions with
+  *                      many partitions from taking up an unbounded amount of memory.
   */
 class FetchSessionCache(private val maxEntries: Int,
-                        private val evictionMs: Long) extends Logging with KafkaMetricsGroup {
+                        private val evictionMs: Long,
+                        private val maxPartitions: Int = Int.MaxValue) extends Logging with KafkaMetricsGroup {
   private var numPartitions: Long = 0
 
   // A map of session ID to FetchSession.
@@ -561,6 +575,25 @@ class FetchSessionCache(private val maxEntries: Int,
   removeMetric(FetchSession.INCREMENTAL_FETCH_SESSIONS_EVICTIONS_PER_SEC)
   val evictionsMeter = newMeter(FetchSession.INCREMENTAL_FETCH_SESSIONS_EVICTIONS_PER_SEC,
     FetchSession.EVICTIONS, TimeUnit.SECONDS, Map.empty)
+  private def newEvictionsMeter(reason: String) = {
+    val tags = Map("reason" -> reason)
+    removeMetric(FetchSession.INCREMENTAL_FETCH_SESSIONS_EVICTIONS_PER_SEC, tags)
+    newMeter(FetchSession.INCREMENTAL_FETCH_SESSIONS_EVICTIONS_PER_SEC, FetchSession.EVICTIONS, TimeUnit.SECONDS, tags)
+  }
+  val staleEvictionsMeter = newEvictionsMeter(FetchSession.STALE_EVICTION)
+  val lowerPriorityEvictionsMeter = newEvictionsMeter(FetchSession.LOWER_PRIORITY_EVICTION)
+  removeMetric(FetchSession.INCREMENTAL_FETCH_SESSION_CACHE_HITS_PER_SEC)
+  val hitsMeter = newMeter(FetchSession.INCREMENTAL_FETCH_SESSION_CACHE_HITS_PER_SEC,
+    FetchSession.REQUESTS, TimeUnit.SECONDS, Map.empty)
+  removeMetric(FetchSession.INCREMENTAL_FETCH_SESSION_CACHE_MISSES_PER_SEC)
+  val missesMeter = newMeter(FetchSession.INCREMENTAL_FETCH_SESSION_CACHE_MISSES_PER_SEC,
+    FetchSession.REQUESTS, TimeUnit.SECONDS, Map.empty)
+  removeMetric(FetchSession.INCREMENTAL_FETCH_SESSIONS_NOT_CREATED_PER_SEC)
+  val notCreatedMeter = newMeter(FetchSession.INCREMENTAL_FETCH_SESSIONS_NOT_CREATED_PER_SEC,
+    FetchSession.SESSIONS, TimeUnit.SECONDS, Map.empty)
+  removeMetric(FetchSession.INCREMENTAL_FETCH_SESSIONS_NOT_RESIZED_PER_SEC)
+  val notResizedMeter = newMeter(FetchSession.INCREMENTAL_FETCH_SESSIONS_NOT_RESIZED_PER_SEC,
+    FetchSession.SESSIONS, TimeUnit.SECONDS, Map.empty)
 
   /**
     * Get a session by session ID.
@@ -614,8 +647,7 @@ class FetchSessionCache(private val maxEntries: Int,
                          createPartitions: () => FetchSession.CACHE_MAP): Int =
   synchronized {
     // If there is room, create a new session entry.
-    if ((sessions.size < maxEntries) ||
-        tryEvict(privileged, EvictableKey(privileged, size, 0), now)) {
+    if (size <= maxPartitions && (hasRoomFor(size) || makeRoomFor(privileged, size, now))) {
       val partitionMap = createPartitions()
       val session = new FetchSession(newSessionId(), privileged, partitionMap,
           now, now, JFetchMetadata.nextEpoch(INITIAL_EPOCH))
@@ -625,10 +657,103 @@ class FetchSessionCache(private val maxEntries: Int,
       session.id
     } else {
       debug(s"No fetch session created for privileged=$privileged, size=$size.")
+      notCreatedMeter.mark()
       INVALID_SESSION_ID
     }
   }
 
+  private def hasRoomFor(size: Int): Boolean =
+    sessions.size < maxEntries && numPartitions + size <= maxPartitions
+
+  /**
+    * Update the position of a session whose partitions were changed by an incremental fetch. If the session grew
+    * and its new partitions do not fit into the cache, entries are evicted as they would be for a new session of
+    * its size. If that would not make room either, the session is removed, so that the client falls back to a
+    * full fetch.
+    *
+    * @param session  The session, whose lock the caller holds.
+    * @param now      The current time in milliseconds.
+    * @return         True if the session is still cached; false if it was removed.
+    */
+  def maybeResize(session: FetchSession, now: Long): Boolean = synchronized {
+    val size = session.size
+    val growth = size - session.cachedSize
+    if (growth <= 0 || numPartitions + growth <= maxPartitions || makeRoomFor(session.privileged, size, now, Some(session))) {
+      touch(session, now)
+      true
+    } else {
+      debug(s"Removing fetch session ${session.id} since its $size partitions do not fit into the cache.")
+      remove(session)
+      notResizedMeter.mark()
+      false
+    }
+  }
+
+  /**
+    * Evict entries until there is room for a new entry with the given number of partitions. Since
+    * the partitions of several entries may have to be freed, the entries that tryEvict would evict are
+    * picked first, and they are only evicted if they free enough room for the new entry. If an existing
+    * entry is resized, it is never evicted itself and only needs room for the partitions it gained.
+    */
+  private def makeRoomFor(privileged: Boolean, size: Int, now: Long,
+                          resized: Option[FetchSession] = None): Boolean = {
+    sessionsToEvictFor(privileged, size, now, resized) match {
+      case Some(toEvict) =>
+        toEvict.foreach { case (session, stale) =>
+          trace(s"Evicting ${if (stale) "stale " else ""}FetchSession ${session.id} to make room for $size partitions.")
+          remove(session)
+          evictionsMeter.mark()
+          if (stale) staleEvictionsMeter.mark() else lowerPriorityEvictionsMeter.mark()
+        }
+        true
+      case None =>
+        trace(s"Evicting the evictable entries would not make room for $size partitions.")
+        false
+    }
+  }
+
+  /**
+    * The entries to evict, in the order tryEvict would evict them, so that a new entry with the given number of
+    * partitions fits, each with whether it is stale. None if evicting every evictable entry would not be enough.
+    */
+  private def sessionsToEvictFor(privileged: Boolean, size: Int, now: Long,
+                                 resized: Option[FetchSession]): Option[Seq[(FetchSession, Boolean)]] = {
+    val toEvict = mutable.LinkedHashMap[Int, (FetchSession, Boolean)]()
+    var remainingEntries = sessions.size
+    var remainingPartitions = numPartitions
+    val neededPartitions = size - resized.map(_.cachedSize).getOrElse(0)
+    def fits: Boolean = (resized.isDefined || remainingEntries < maxEntries) &&
+      remainingPartitions + neededPartitions <= maxPartitions
+    def add(session: FetchSession, stale: Boolean): Unit = {
+      if (!toEvict.contains(session.id) && !resized.exists(_.id == session.id)) {
+        toEvict.put(session.id, (session, stale))
+        remainingEntries -= 1
+        remainingPartitions -= session.cachedSize
+      }
+    }
+
+    val staleEntries = lastUsed.entrySet.iterator
+    var stale = true
+    while (!fits && stale && staleEntries.hasNext) {
+      val entry = staleEntries.next()
+      stale = now - entry.getKey.lastUsedMs > evictionMs
+      if (stale)
+        add(entry.getValue, stale = true)
+    }
+
+    val key = EvictableKey(privileged, size, 0)
+    val evictableEntries = (if (privileged) evictableByPrivileged else evictableByAll).entrySet.iterator
+    var evictable = true
+    while (!fits && evictable && evictableEntries.hasNext) {
+      val entry = evictableEntries.next()
+      evictable = key.compareTo(entry.getKey) >= 0
+      if (evictable)
+        add(entry.getValue, stale = false)
+    }
+
+    if (fits) Some(toEvict.values.toSeq) else None
+  }
+
   /**
     * Try to evict an entry from the session cache.
     *
@@ -653,6 +778,7 @@ class FetchSessionCache(private val maxEntries: Int,
       trace(s"Evicting stale FetchSession ${session.id}.")
       remove(session)
       evictionsMeter.mark()
+      staleEvictionsMeter.mark()
       true
     } else {
       // If there are no stale entries, check the first evictable entry.
@@ -669,6 +795,7 @@ class FetchSessionCache(private val maxEntries: Int,
         trace(s"Evicting ${evictableEntry.getKey} with ${key.toString}.")
         remove(evictableEntry.getValue)
         evictionsMeter.mark()
+        lowerPriorityEvictionsMeter.mark()
         true
       }
     }
@@ -765,9 +892,11 @@ class FetchManager(private val time: Time,
         cache.get(reqMetadata.sessionId) match {
           case None => {
             debug(s"Session error for ${reqMetadata.sessionId}: no such session ID found.")
+            cache.missesMeter.mark()
             new SessionErrorContext(Errors.FETCH_SESSION_ID_NOT_FOUND, reqMetadata)
           }
           case Some(session) => session.synchronized {
+            cache.hitsMeter.mark()
             if (session.epoch != reqMetadata.epoch) {
               debug(s"Session error for ${reqMetadata.sessionId}: expected epoch " +
                 s"${session.epoch}, but got ${reqMetadata.epoch} instead.");
@@ -781,17 +910,20 @@ class FetchManager(private val time: Time,
                 cache.remove(session)
                 new SessionlessFetchContext(fetchData)
               } else {
-                if (session.size != session.cachedSize) {
-                  // If the number of partitions in the session changed, update the session's
-                  // position in the cache.
-                  cache.touch(session, session.lastUsedMs)
+                // If the number of partitions in the session changed, update the session's
+                // position in the cache. A session which no longer fits is removed.
+                if (session.size != session.cachedSize && !cache.maybeResize(session, session.lastUsedMs)) {
+                  debug(s"Session error for ${session.id}: after adding ${partitionsToLogString(added)}, " +
+                    s"its ${session.size} partitions do not fit into the cache.")
+                  new SessionErrorContext(Errors.FETCH_SESSION_ID_NOT_FOUND, reqMetadata)
+                } else {
+                  session.epoch = JFetchMetadata.nextEpoch(session.epoch)
+                  debug(s"Created a new incremental FetchContext for session id ${session.id}, " +
+                    s"epoch ${session.epoch}: added ${partitionsToLogString(added)}, " +
+                    s"updated ${partitionsToLogString(updated)}, " +
+                    s"removed ${partitionsToLogString(removed)}")
+                  new IncrementalFetchContext(time, reqMetadata, session)
                 }
-                session.epoch = JFetchMetadata.nextEpoch(session.epoch)
-                debug(s"Created a new incremental FetchContext for session id ${session.id}, " +
-                  s"epoch ${session.epoch}: added ${partitionsToLogString(added)}, " +
-                  s"updated ${partitionsToLogString(updated)}, " +
-                  s"removed ${partitionsToLogString(removed)}")
-                new IncrementalFetchContext(time, reqMetadata, session)
               }
             }
           }
@@ -297,7 +297,9 @@ class KafkaApis(val requestChannel: RequestChannel,
         }
       }
       sendResponseExemptThrottle(request, new UpdateMetadataResponse(
-        new UpdateMetadataResponseData().setErrorCode(Errors.NONE.code)))
+        new UpdateMetadataResponseData()
+          .setErrorCode(Errors.NONE.code)
+          .setMetadataEpoch(metadataCache.getMetadataEpoch)))
     }
   }
 
@@ -713,6 +715,8 @@ class KafkaApis(val requestChannel: RequestChannel,
           abortedTransactions, data.records))
       }
       erroneous.foreach { case (tp, data) => partitions.put(tp, data) }
+      if (responsePartitionData.exists { case (_, data) => data.coldRead })
+        request.coldRead = true
 
       // When this callback is triggered, the remote API call has completed.
       // Record time before any byte-rate throttling.
@@ -1119,11 +1123,22 @@ class KafkaApis(val requestChannel: RequestChannel,
     // In versions 5 and below, we returned LEADER_NOT_AVAILABLE if a matching listener was not found on the leader.
     // From version 6 onwards, we return LISTENER_NOT_FOUND to enable diagnosis of configuration errors.
     val errorUnavailableListeners = requestVersion >= 6
+    // Existing topics are served from their serialized metadata unless the authorized operations of each topic
+    // have to be included, as those depend on the principal
+    val useSerializedTopics = config.metadataResponseCacheEnable &&
+      !(requestVersion >= 8 && metadataRequest.data.includeTopicAuthorizedOperations)
+    val serializedTopicMetadata =
+      if (!useSerializedTopics || authorizedTopics.isEmpty)
+        Seq.empty[MetadataResponse.SerializedTopic]
+      else
+        metadataCache.getSerializedTopicMetadata(authorizedTopics, request.context.listenerName, requestVersion,
+          errorUnavailableEndpoints, errorUnavailableListeners)
+    val remainingTopics = authorizedTopics -- serializedTopicMetadata.map(_.topic)
     val topicMetadata =
-      if (authorizedTopics.isEmpty)
+      if (remainingTopics.isEmpty)
         Seq.empty[MetadataResponse.TopicMetadata]
       else
-        getTopicMetadata(metadataRequest.allowAutoTopicCreation, authorizedTopics, request.context.listenerName,
+        getTopicMetadata(metadataRequest.allowAutoTopicCreation, remainingTopics, request.context.listenerName,
           errorUnavailableEndpoints, errorUnavailableListeners)
 
     var clusterAuthorizedOperations = 0
@@ -1144,18 +1159,31 @@ class KafkaApis(val requestChannel: RequestChannel,
 
     val brokers = metadataCache.getAliveBrokers
 
-    trace("Sending topic metadata %s and brokers %s for correlation id %d to client %s".format(completeTopicMetadata.mkString(","),
-      brokers.mkString(","), request.header.correlationId, request.header.clientId))
+    trace("Sending topic metadata %s and brokers %s for correlation id %d to client %s".format(
+      (serializedTopicMetadata ++ completeTopicMetadata).mkString(","), brokers.mkString(","),
+      request.header.correlationId, request.header.clientId))
 
     sendResponseMaybeThrottle(request, requestThrottleMs =>
-       MetadataResponse.prepareResponse(
-         requestThrottleMs,
-         brokers.flatMap(_.getNode(request.context.listenerName)).asJava,
-         clusterId,
-         metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
-         completeTopicMetadata.asJava,
-         clusterAuthorizedOperations
-      ))
+      if (useSerializedTopics)
+        MetadataResponse.prepareResponse(
+          requestVersion,
+          requestThrottleMs,
+          brokers.flatMap(_.getNode(request.context.listenerName)).asJava,
+          clusterId,
+          metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
+          serializedTopicMetadata.asJava,
+          completeTopicMetadata.asJava,
+          clusterAuthorizedOperations
+        )
+      else
+        MetadataResponse.prepareResponse(
+          requestThrottleMs,
+          brokers.flatMap(_.getNode(request.context.listenerName)).asJava,
+          clusterId,
+          metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
+          completeTopicMetadata.asJava,
+          clusterAuthorizedOperations
+        ))
   }
 
   /**
@@ -2891,7 +2919,7 @@ class KafkaApis(val requestChannel: RequestChannel,
 
     val response = responseOpt match {
       case Some(response) =>
-        val responseSend = request.context.buildResponse(response)
+        val responseSend = request.context.buildResponse(response, requestChannel.responseBufferPool)
         val responseString =
           if (RequestChannel.isRequestLoggingEnabled) Some(response.toString(request.context.apiVersion))
           else None
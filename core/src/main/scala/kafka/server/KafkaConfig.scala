@@ -22,9 +22,11 @@ import java.util.{Collections, Locale, Properties}
 
 import kafka.api.{ApiVersion, ApiVersionValidator, KAFKA_0_10_0_IV1, KAFKA_2_1_IV0}
 import kafka.cluster.EndPoint
+import kafka.log.CleanerConfig
 import kafka.coordinator.group.OffsetConfig
 import kafka.coordinator.transaction.{TransactionLog, TransactionStateManager}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec, ZStdCompressionCodec}
+import kafka.network.{ConnectionsAssignmentPolicy, RequestClass, RequestQueue, RequestQueuePolicy, RequestTracer}
 import kafka.security.authorizer.AuthorizerWrapper
 import kafka.utils.CoreUtils
 import kafka.utils.Implicits._
@@ -61,6 +63,16 @@ object Defaults {
   val BackgroundThreads = 10
   val QueuedMaxRequests = 500
   val QueuedMaxRequestBytes = -1
+  val QueuedRequestsPolicy = "fifo"
+  val QueuedRequestsClassWeights = "control:16,replication:8,produce:4,consume:4,admin:1"
+  val QueuedRequestsClassMaxBytes = ""
+  val RequestHandlerAffinityGroups = 0
+  val RequestTracingBufferSize = 0
+  val RequestTracingSampleRatio = 0.01
+  val RequestTracingSlowThresholdMs = 1000L
+  val RequestTracingSlowWindowMs = 60000L
+  val ResponseBufferPoolBytes = 0L
+  val MetadataResponseCacheEnable = false
 
   /************* Authorizer Configuration ***********/
   val AuthorizerClassName = ""
@@ -80,6 +92,7 @@ object Defaults {
   val MaxConnectionsPerIpOverrides: String = ""
   val MaxConnections: Int = Int.MaxValue
   val ConnectionsMaxIdleMs = 10 * 60 * 1000L
+  val ConnectionsAssignmentPolicy = kafka.network.ConnectionsAssignmentPolicy.RoundRobin
   val RequestTimeoutMs = 30000
   val FailedAuthenticationDelayMs = 100
 
@@ -97,12 +110,16 @@ object Defaults {
   val Compact = "compact"
   val LogCleanupPolicy = Delete
   val LogCleanerThreads = 1
+  val LogCleanerThreadsPerLog = 1
   val LogCleanerIoMaxBytesPerSecond = Double.MaxValue
   val LogCleanerDedupeBufferSize = 128 * 1024 * 1024L
   val LogCleanerIoBufferSize = 512 * 1024
   val LogCleanerDedupeBufferLoadFactor = 0.9d
+  val LogCleanerDedupeHashAlgorithm = CleanerConfig.Md5HashAlgorithm
+  val LogCleanerDedupeOffsetDeltaEnable = true
   val LogCleanerBackoffMs = 15 * 1000
   val LogCleanerMinCleanRatio = 0.5d
+  val LogCleanerMinSegmentGarbageRatio = 0.0d
   val LogCleanerEnable = true
   val LogCleanerDeleteRetentionMs = 24 * 60 * 60 * 1000L
   val LogCleanerMinCompactionLagMs = 0L
@@ -110,23 +127,40 @@ object Defaults {
   val LogIndexSizeMaxBytes = 10 * 1024 * 1024
   val LogIndexIntervalBytes = 4096
   val LogFlushIntervalMessages = Long.MaxValue
+  val LogFlushGroupCommitEnable = false
+  val ProduceAppendCoalescingEnable = false
   val LogDeleteDelayMs = 60000
   val LogFlushSchedulerIntervalMs = Long.MaxValue
   val LogFlushOffsetCheckpointIntervalMs = 60000
   val LogFlushStartOffsetCheckpointIntervalMs = 60000
   val LogPreAllocateEnable = false
+  val LogSegmentFilePoolSize = 0
   // lazy val as `InterBrokerProtocolVersion` is defined later
   lazy val LogMessageFormatVersion = InterBrokerProtocolVersion
   val LogMessageTimestampType = "CreateTime"
   val LogMessageTimestampDifferenceMaxMs = Long.MaxValue
   val NumRecoveryThreadsPerDataDir = 1
+  val NumSegmentRecoveryThreads = 1
+  val LogReadAheadBytes = 0
+  val NumReadAheadThreads = 1
   val AutoCreateTopicsEnable = true
   val MinInSyncReplicas = 1
   val MessageDownConversionEnable = true
 
+  /** ********* Remote log storage configuration ***********/
+  val RemoteLogStorageEnable = false
+  val RemoteLogStorageManagerClassName = "kafka.log.remote.LocalFileSystemRemoteStorageManager"
+  val RemoteLogLocalRetentionMs = 60 * 60 * 1000L
+  val RemoteLogLocalRetentionBytes = -1L
+  val RemoteLogManagerTaskIntervalMs = 30 * 1000L
+  val RemoteLogReaderThreads = 10
+  val RemoteLogReaderMaxWaitMs = 10 * 1000L
+  val RemoteLogIndexCacheSize = 1024
+
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMs = RequestTimeoutMs
   val ControllerMessageQueueSize = Int.MaxValue
+  val ControllerMetadataDeltaEnable = false
   val DefaultReplicationFactor = 1
   val ReplicaLagTimeMaxMs = 10000L
   val ReplicaSocketTimeoutMs = 30 * 1000
@@ -139,6 +173,7 @@ object Defaults {
   val ReplicaFetchBackoffMs = 1000
   val ReplicaHighWatermarkCheckpointIntervalMs = 5000L
   val FetchPurgatoryPurgeIntervalRequests = 1000
+  val FetchPurgatoryCompactWatchersEnable = false
   val ProducerPurgatoryPurgeIntervalRequests = 1000
   val DeleteRecordsPurgatoryPurgeIntervalRequests = 1
   val AutoLeaderRebalanceEnable = true
@@ -162,6 +197,7 @@ object Defaults {
   /** ********* Offset management configuration ***********/
   val OffsetMetadataMaxSize = OffsetConfig.DefaultMaxMetadataSize
   val OffsetsLoadBufferSize = OffsetConfig.DefaultLoadBufferSize
+  val OffsetsLoadThreads = OffsetConfig.DefaultLoadThreads
   val OffsetsTopicReplicationFactor = OffsetConfig.DefaultOffsetsTopicReplicationFactor
   val OffsetsTopicPartitions: Int = OffsetConfig.DefaultOffsetsTopicNumPartitions
   val OffsetsTopicSegmentBytes: Int = OffsetConfig.DefaultOffsetsTopicSegmentBytes
@@ -170,12 +206,14 @@ object Defaults {
   val OffsetsRetentionCheckIntervalMs: Long = OffsetConfig.DefaultOffsetsRetentionCheckIntervalMs
   val OffsetCommitTimeoutMs = OffsetConfig.DefaultOffsetCommitTimeoutMs
   val OffsetCommitRequiredAcks = OffsetConfig.DefaultOffsetCommitRequiredAcks
+  val OffsetCommitCoalescingEnable = OffsetConfig.DefaultOffsetCommitCoalescingEnable
 
   /** ********* Transaction management configuration ***********/
   val TransactionalIdExpirationMs = TransactionStateManager.DefaultTransactionalIdExpirationMs
   val TransactionsMaxTimeoutMs = TransactionStateManager.DefaultTransactionsMaxTimeoutMs
   val TransactionsTopicMinISR = TransactionLog.DefaultMinInSyncReplicas
   val TransactionsLoadBufferSize = TransactionLog.DefaultLoadBufferSize
+  val TransactionsSnapshotIntervalMs = TransactionStateManager.DefaultTransactionLogSnapshotIntervalMs
   val TransactionsTopicReplicationFactor = TransactionLog.DefaultReplicationFactor
   val TransactionsTopicPartitions = TransactionLog.DefaultNumPartitions
   val TransactionsTopicSegmentBytes = TransactionLog.DefaultSegmentBytes
@@ -184,6 +222,7 @@ object Defaults {
 
   /** ********* Fetch Session Configuration **************/
   val MaxIncrementalFetchSessionCacheSlots = 1000
+  val MaxIncrementalFetchSessionCachePartitions = Int.MaxValue
 
   /** ********* Quota Configuration ***********/
   val ProducerQuotaBytesPerSecondDefault = ClientQuotaManagerConfig.QuotaBytesPerSecondDefault
@@ -279,6 +318,16 @@ object KafkaConfig {
   val NumReplicaAlterLogDirsThreadsProp = "num.replica.alter.log.dirs.threads"
   val QueuedMaxRequestsProp = "queued.max.requests"
   val QueuedMaxBytesProp = "queued.max.request.bytes"
+  val QueuedRequestsPolicyProp = "queued.requests.policy"
+  val QueuedRequestsClassWeightsProp = "queued.requests.class.weights"
+  val QueuedRequestsClassMaxBytesProp = "queued.requests.class.max.bytes"
+  val RequestHandlerAffinityGroupsProp = "request.handler.affinity.groups"
+  val RequestTracingBufferSizeProp = "request.tracing.buffer.size"
+  val RequestTracingSampleRatioProp = "request.tracing.sample.ratio"
+  val RequestTracingSlowThresholdMsProp = "request.tracing.slow.threshold.ms"
+  val RequestTracingSlowWindowMsProp = "request.tracing.slow.window.ms"
+  val ResponseBufferPoolBytesProp = "response.buffer.pool.bytes"
+  val MetadataResponseCacheEnableProp = "metadata.response.cache.enable"
   val RequestTimeoutMsProp = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameProp = "authorizer.class.name"
@@ -298,6 +347,7 @@ object KafkaConfig {
   val MaxConnectionsPerIpOverridesProp = "max.connections.per.ip.overrides"
   val MaxConnectionsProp = "max.connections"
   val ConnectionsMaxIdleMsProp = "connections.max.idle.ms"
+  val ConnectionsAssignmentPolicyProp = "connections.assignment.policy"
   val FailedAuthenticationDelayMsProp = "connection.failed.authentication.delay.ms"
   /***************** rack configuration *************/
   val RackProp = "broker.rack"
@@ -321,12 +371,16 @@ object KafkaConfig {
   val LogCleanupIntervalMsProp = "log.retention.check.interval.ms"
   val LogCleanupPolicyProp = "log.cleanup.policy"
   val LogCleanerThreadsProp = "log.cleaner.threads"
+  val LogCleanerThreadsPerLogProp = "log.cleaner.threads.per.log"
   val LogCleanerIoMaxBytesPerSecondProp = "log.cleaner.io.max.bytes.per.second"
   val LogCleanerDedupeBufferSizeProp = "log.cleaner.dedupe.buffer.size"
   val LogCleanerIoBufferSizeProp = "log.cleaner.io.buffer.size"
   val LogCleanerDedupeBufferLoadFactorProp = "log.cleaner.io.buffer.load.factor"
+  val LogCleanerDedupeHashAlgorithmProp = "log.cleaner.dedupe.hash.algorithm"
+  val LogCleanerDedupeOffsetDeltaEnableProp = "log.cleaner.dedupe.offset.delta.enable"
   val LogCleanerBackoffMsProp = "log.cleaner.backoff.ms"
   val LogCleanerMinCleanRatioProp = "log.cleaner.min.cleanable.ratio"
+  val LogCleanerMinSegmentGarbageRatioProp = "log.cleaner.min.segment.garbage.ratio"
   val LogCleanerEnableProp = "log.cleaner.enable"
   val LogCleanerDeleteRetentionMsProp = "log.cleaner.delete.retention.ms"
   val LogCleanerMinCompactionLagMsProp = "log.cleaner.min.compaction.lag.ms"
@@ -334,24 +388,41 @@ object KafkaConfig {
   val LogIndexSizeMaxBytesProp = "log.index.size.max.bytes"
   val LogIndexIntervalBytesProp = "log.index.interval.bytes"
   val LogFlushIntervalMessagesProp = "log.flush.interval.messages"
+  val LogFlushGroupCommitEnableProp = "log.flush.group.commit.enable"
+  val ProduceAppendCoalescingEnableProp = "produce.append.coalescing.enable"
   val LogDeleteDelayMsProp = "log.segment.delete.delay.ms"
   val LogFlushSchedulerIntervalMsProp = "log.flush.scheduler.interval.ms"
   val LogFlushIntervalMsProp = "log.flush.interval.ms"
   val LogFlushOffsetCheckpointIntervalMsProp = "log.flush.offset.checkpoint.interval.ms"
   val LogFlushStartOffsetCheckpointIntervalMsProp = "log.flush.start.offset.checkpoint.interval.ms"
   val LogPreAllocateProp = "log.preallocate"
+  val LogSegmentFilePoolSizeProp = "log.segment.file.pool.size"
   val LogMessageFormatVersionProp = LogConfigPrefix + "message.format.version"
   val LogMessageTimestampTypeProp = LogConfigPrefix + "message.timestamp.type"
   val LogMessageTimestampDifferenceMaxMsProp = LogConfigPrefix + "message.timestamp.difference.max.ms"
   val LogMaxIdMapSnapshotsProp = LogConfigPrefix + "max.id.map.snapshots"
   val NumRecoveryThreadsPerDataDirProp = "num.recovery.threads.per.data.dir"
+  val NumSegmentRecoveryThreadsProp = "num.segment.recovery.threads"
+  val LogReadAheadBytesProp = "log.read.ahead.bytes"
+  val NumReadAheadThreadsProp = "num.read.ahead.threads"
   val AutoCreateTopicsEnableProp = "auto.create.topics.enable"
   val MinInSyncReplicasProp = "min.insync.replicas"
   val CreateTopicPolicyClassNameProp = "create.topic.policy.class.name"
   val AlterConfigPolicyClassNameProp = "alter.config.policy.class.name"
   val LogMessageDownConversionEnableProp = LogConfigPrefix + "message.downconversion.enable"
+  /** ********* Remote log storage configuration ***********/
+  val RemoteLogStorageManagerConfigPrefix = "remote.log.storage.manager."
+  val RemoteLogStorageEnableProp = "remote.log.storage.enable"
+  val RemoteLogStorageManagerClassNameProp = RemoteLogStorageManagerConfigPrefix + "class.name"
+  val RemoteLogLocalRetentionMsProp = "remote.log.local.retention.ms"
+  val RemoteLogLocalRetentionBytesProp = "remote.log.local.retention.bytes"
+  val RemoteLogManagerTaskIntervalMsProp = "remote.log.manager.task.interval.ms"
+  val RemoteLogReaderThreadsProp = "remote.log.reader.threads"
+  val RemoteLogReaderMaxWaitMsProp = "remote.log.reader.max.wait.ms"
+  val RemoteLogIndexCacheSizeProp = "remote.log.index.cache.size"
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMsProp = "controller.socket.timeout.ms"
+  val ControllerMetadataDeltaEnableProp = "controller.metadata.delta.enable"
   val DefaultReplicationFactorProp = "default.replication.factor"
   val ReplicaLagTimeMaxMsProp = "replica.lag.time.max.ms"
   val ReplicaSocketTimeoutMsProp = "replica.socket.timeout.ms"
@@ -364,6 +435,7 @@ object KafkaConfig {
   val NumReplicaFetchersProp = "num.replica.fetchers"
   val ReplicaHighWatermarkCheckpointIntervalMsProp = "replica.high.watermark.checkpoint.interval.ms"
   val FetchPurgatoryPurgeIntervalRequestsProp = "fetch.purgatory.purge.interval.requests"
+  val FetchPurgatoryCompactWatchersEnableProp = "fetch.purgatory.compact.watchers.enable"
   val ProducerPurgatoryPurgeIntervalRequestsProp = "producer.purgatory.purge.interval.requests"
   val DeleteRecordsPurgatoryPurgeIntervalRequestsProp = "delete.records.purgatory.purge.interval.requests"
   val AutoLeaderRebalanceEnableProp = "auto.leader.rebalance.enable"
@@ -386,6 +458,7 @@ object KafkaConfig {
   /** ********* Offset management configuration ***********/
   val OffsetMetadataMaxSizeProp = "offset.metadata.max.bytes"
   val OffsetsLoadBufferSizeProp = "offsets.load.buffer.size"
+  val OffsetsLoadThreadsProp = "offsets.load.threads"
   val OffsetsTopicReplicationFactorProp = "offsets.topic.replication.factor"
   val OffsetsTopicPartitionsProp = "offsets.topic.num.partitions"
   val OffsetsTopicSegmentBytesProp = "offsets.topic.segment.bytes"
@@ -394,11 +467,13 @@ object KafkaConfig {
   val OffsetsRetentionCheckIntervalMsProp = "offsets.retention.check.interval.ms"
   val OffsetCommitTimeoutMsProp = "offsets.commit.timeout.ms"
   val OffsetCommitRequiredAcksProp = "offsets.commit.required.acks"
+  val OffsetCommitCoalescingEnableProp = "offsets.commit.coalescing.enable"
   /** ********* Transaction management configuration ***********/
   val TransactionalIdExpirationMsProp = "transactional.id.expiration.ms"
   val TransactionsMaxTimeoutMsProp = "transaction.max.timeout.ms"
   val TransactionsTopicMinISRProp = "transaction.state.log.min.isr"
   val TransactionsLoadBufferSizeProp = "transaction.state.log.load.buffer.size"
+  val TransactionsSnapshotIntervalMsProp = "transaction.state.log.snapshot.interval.ms"
   val TransactionsTopicPartitionsProp = "transaction.state.log.num.partitions"
   val TransactionsTopicSegmentBytesProp = "transaction.state.log.segment.bytes"
   val TransactionsTopicReplicationFactorProp = "transaction.state.log.replication.factor"
@@ -407,6 +482,7 @@ object KafkaConfig {
 
   /** ********* Fetch Session Configuration **************/
   val MaxIncrementalFetchSessionCacheSlots = "max.incremental.fetch.session.cache.slots"
+  val MaxIncrementalFetchSessionCachePartitions = "max.incremental.fetch.session.cache.partitions"
 
   /** ********* Quota Configuration ***********/
   val ProducerQuotaBytesPerSecondDefaultProp = "quota.producer.default"
@@ -515,6 +591,44 @@ object KafkaConfig {
   val BackgroundThreadsDoc = "The number of threads to use for various background processing tasks"
   val QueuedMaxRequestsDoc = "The number of queued requests allowed for data-plane, before blocking the network threads"
   val QueuedMaxRequestBytesDoc = "The number of queued bytes allowed before no more requests are read"
+  val QueuedRequestsPolicyDoc = "The order in which the request handler threads take queued data-plane requests. Requests are " +
+    "classified as control (controller requests and the metadata, API versions, find coordinator and SASL requests " +
+    "clients send to connect), replication (follower fetches), produce, consume (consumer fetches, list offsets and " +
+    "group requests) or admin (everything else). <code>fifo</code> handles requests in the order they were received. " +
+    "<code>priority</code> handles the requests of the first of these classes that has queued requests, but a class " +
+    s"that has been passed over for ${RequestQueue.MaxPassOvers} requests in a row is handled next, so " +
+    "that no class is starved. <code>weighted</code> visits the classes in turn and handles up " +
+    s"to the weight given by <code>$QueuedRequestsClassWeightsProp</code> of requests from each."
+  val QueuedRequestsClassWeightsDoc = "A comma-separated list of <code>class:weight</code> pairs giving the number of " +
+    s"requests handled from a request class per turn when <code>$QueuedRequestsPolicyProp</code> is <code>weighted</code>. " +
+    "Classes that are not listed have a weight of 1."
+  val QueuedRequestsClassMaxBytesDoc = "A comma-separated list of <code>class:bytes</code> pairs giving the number of " +
+    "bytes that requests of a request class may hold from the time they are read until their response is sent. While a " +
+    "class is over its budget, network threads stop reading from connections whose last request was of that class. " +
+    "Classes that are not listed have no budget."
+  val RequestHandlerAffinityGroupsDoc = "The number of groups that data-plane network threads and request handler threads " +
+    "are partitioned into. Each group has its own request queue with an equal share of " +
+    s"<code>$QueuedMaxRequestsProp</code>, and request handler threads only take requests received by the network threads " +
+    "of other groups when there are none for their own group. This reduces contention on the request queue at high " +
+    s"request rates. Must not be larger than <code>$NumIoThreadsProp</code>. 0 disables the partitioning."
+  val RequestTracingBufferSizeDoc = "The number of traced data-plane requests to keep in memory. A trace records the time " +
+    "a request spent in each stage of its processing and the slowest traced requests can be listed with the " +
+    s"<code>slowestRequests</code> operation of the <code>${RequestTracer.MBeanName}</code> MBean. Up to this many " +
+    s"sampled requests and, separately, this many of the slowest requests above <code>$RequestTracingSlowThresholdMsProp</code> " +
+    s"per <code>$RequestTracingSlowWindowMsProp</code> are kept. 0 disables tracing."
+  val RequestTracingSampleRatioDoc = "The fraction of requests that are traced when request tracing is enabled, in addition " +
+    s"to the requests that are slower than <code>$RequestTracingSlowThresholdMsProp</code>."
+  val RequestTracingSlowThresholdMsDoc = "Requests whose total time is at least this many milliseconds are always traced " +
+    "when request tracing is enabled."
+  val RequestTracingSlowWindowMsDoc = "The length of the windows that the slowest traced requests are kept for. The slowest " +
+    s"requests of the last ${RequestTracer.SlowTraceWindows} windows are kept, so that the slowest recent requests can be " +
+    "listed however slow earlier requests were."
+  val ResponseBufferPoolBytesDoc = "The amount of direct memory the broker may keep for serializing responses. Responses that are " +
+    "backed by a generated message are written straight into a pooled direct buffer, which is reused once the response has " +
+    "been sent. Responses that do not fit in the pool are serialized into heap buffers as usual. A value of 0 disables the pool."
+  val MetadataResponseCacheEnableDoc = "Whether the broker keeps the metadata of each topic serialized, per listener and " +
+    "request version, and builds metadata responses by splicing together the serialized topics. A topic is serialized " +
+    "again only after its partitions or the live brokers change, which makes metadata requests for many topics much cheaper."
   val RequestTimeoutMsDoc = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameDoc = s"The fully qualified name of a class that implements s${classOf[Authorizer].getName}" +
@@ -589,6 +703,11 @@ object KafkaConfig {
     "New connections are blocked if either the listener or broker limit is reached. Connections on the inter-broker listener are " +
     "permitted even if broker-wide limit is reached. The least recently used connection on another listener will be closed in this case."
   val ConnectionsMaxIdleMsDoc = "Idle connections timeout: the server socket processor threads close the connections that idle more than this"
+  val ConnectionsAssignmentPolicyDoc = "How a listener assigns new connections to its network threads. With " +
+    s"<code>${ConnectionsAssignmentPolicy.RoundRobin}</code>, connections are assigned to the network threads in turn. " +
+    s"With <code>${ConnectionsAssignmentPolicy.LeastLoaded}</code>, a connection is assigned to the less loaded of the next " +
+    "network thread in turn and a randomly chosen one, where the load is the rate of bytes read and written by the thread. " +
+    "Connections stay on the network thread they were assigned to."
   val FailedAuthenticationDelayMsDoc = "Connection close delay on failed authentication: this is the time (in milliseconds) by which connection close will be delayed on authentication failure. " +
     s"This must be configured to be less than $ConnectionsMaxIdleMsProp to prevent connection timeout."
   /************* Rack Configuration **************/
@@ -612,11 +731,22 @@ object KafkaConfig {
   val LogCleanupIntervalMsDoc = "The frequency in milliseconds that the log cleaner checks whether any log is eligible for deletion"
   val LogCleanupPolicyDoc = "The default cleanup policy for segments beyond the retention window. A comma separated list of valid policies. Valid policies are: \"delete\" and \"compact\""
   val LogCleanerThreadsDoc = "The number of background threads to use for log cleaning"
+  val LogCleanerThreadsPerLogDoc = "The maximum number of log cleaner threads which may rewrite the segments of a " +
+    "single log at once. With more than one, a cleaner thread shares the groups of segments of the log it cleans with " +
+    "the idle cleaner threads, which helps large logs with a " + LogCleanerDedupeHashAlgorithmProp + " of \"" +
+    CleanerConfig.Murmur3HashAlgorithm + "\". The offset map of the log is still built by a single thread."
   val LogCleanerIoMaxBytesPerSecondDoc = "The log cleaner will be throttled so that the sum of its read and write i/o will be less than this value on average"
   val LogCleanerDedupeBufferSizeDoc = "The total memory used for log deduplication across all cleaner threads"
   val LogCleanerIoBufferSizeDoc = "The total memory used for log cleaner I/O buffers across all cleaner threads"
   val LogCleanerDedupeBufferLoadFactorDoc = "Log cleaner dedupe buffer load factor. The percentage full the dedupe buffer can become. A higher value " +
   "will allow more log to be cleaned at once but will lead to more hash collisions"
+  val LogCleanerDedupeHashAlgorithmDoc = "The hash algorithm used to deduplicate keys during log cleaning. With \"" +
+    CleanerConfig.Murmur3HashAlgorithm + "\", keys are hashed with a fast non-cryptographic hash into a dense off-heap " +
+    "table, which holds more keys in " + LogCleanerDedupeBufferSizeProp + " and lets several cleaner threads clean a log. " +
+    "With \"" + CleanerConfig.Md5HashAlgorithm + "\", the default, keys are hashed with MD5 into an on-heap table."
+  val LogCleanerDedupeOffsetDeltaEnableDoc = "Whether offsets in the log cleaner dedupe buffer are stored as 4-byte deltas " +
+    "instead of 8-byte offsets, which fits more keys in " + LogCleanerDedupeBufferSizeProp + ". Only applies if " +
+    LogCleanerDedupeHashAlgorithmProp + " is \"" + CleanerConfig.Murmur3HashAlgorithm + "\"."
   val LogCleanerBackoffMsDoc = "The amount of time to sleep when there are no logs to clean"
   val LogCleanerMinCleanRatioDoc = "The minimum ratio of dirty log to total log for a log to eligible for cleaning. " +
     "If the " + LogCleanerMaxCompactionLagMsProp + " or the " + LogCleanerMinCompactionLagMsProp +
@@ -624,6 +754,11 @@ object KafkaConfig {
     "as soon as either: (i) the dirty ratio threshold has been met and the log has had dirty (uncompacted) " +
     "records for at least the " + LogCleanerMinCompactionLagMsProp + " duration, or (ii) if the log has had " +
     "dirty (uncompacted) records for at most the " + LogCleanerMaxCompactionLagMsProp + " period."
+  val LogCleanerMinSegmentGarbageRatioDoc = "The minimum estimated ratio of superseded records and expired tombstones " +
+    "in a group of already cleaned segments for the log cleaner to rewrite it. Groups with less garbage are left in " +
+    "place, which saves rewriting large logs with few updated keys at the cost of retaining some superseded records. " +
+    "The estimate comes from key sketches recorded while cleaning, so every segment is rewritten at least once after " +
+    "a restart. The default of 0 rewrites every segment on each cleaning."
   val LogCleanerEnableDoc = "Enable the log cleaner process to run on the server. Should be enabled if using any topics with a cleanup.policy=compact including the internal offsets topic. If disabled those topics will not be compacted and continually grow in size."
   val LogCleanerDeleteRetentionMsDoc = "How long are delete records retained?"
   val LogCleanerMinCompactionLagMsDoc = "The minimum time a message will remain uncompacted in the log. Only applicable for logs that are being compacted."
@@ -631,12 +766,25 @@ object KafkaConfig {
   val LogIndexSizeMaxBytesDoc = "The maximum size in bytes of the offset index"
   val LogIndexIntervalBytesDoc = "The interval with which we add an entry to the offset index"
   val LogFlushIntervalMessagesDoc = "The number of messages accumulated on a log partition before messages are flushed to disk "
+  val LogFlushGroupCommitEnableDoc = "Enable group commit of the flushes triggered by the flush.messages of a topic. When enabled, a " +
+    "thread per log directory flushes the logs that reached their flush interval, coalescing the requests that arrive while " +
+    "a flush is in progress, and appends wait for the flush without holding the lock of their log."
+  val ProduceAppendCoalescingEnableDoc = "Enable coalescing of concurrent appends to the same partition leader. When enabled, " +
+    "the first request handler thread to append to a partition also applies the appends that other threads queued for it " +
+    "in the meantime, and checks the high watermark and completes delayed requests once for all of them. Each append " +
+    "is still validated separately."
   val LogDeleteDelayMsDoc = "The amount of time to wait before deleting a file from the filesystem"
   val LogFlushSchedulerIntervalMsDoc = "The frequency in ms that the log flusher checks whether any log needs to be flushed to disk"
   val LogFlushIntervalMsDoc = "The maximum time in ms that a message in any topic is kept in memory before flushed to disk. If not set, the value in " + LogFlushSchedulerIntervalMsProp + " is used"
   val LogFlushOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of the last flush which acts as the log recovery point"
   val LogFlushStartOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of log start offset"
   val LogPreAllocateEnableDoc = "Should pre allocate file when create new segment? If you are using Kafka on Windows, you probably need to set it to true."
+  val LogSegmentFilePoolSizeDoc = "The number of spare files of each kind (log file when segments are preallocated, offset index and " +
+    "time index) kept ready in each log directory. Rolling a segment claims its files from the pool instead of creating and " +
+    "sizing them, and the files of deleted segments are returned to it instead of being deleted. A background thread fills " +
+    "every spare file with zeros, so that its disk blocks are allocated before a segment is written to it. Spare files are " +
+    "kept in the log directory with names starting with <code>segment-file-pool-</code>, they can be deleted while the " +
+    "broker is stopped, e.g. after disabling the pool or downgrading. Set to 0 to disable the pool."
   val LogMessageFormatVersionDoc = "Specify the message format version the broker will use to append messages to the logs. The value should be a valid ApiVersion. " +
     "Some examples are: 0.8.2, 0.9.0.0, 0.10.0, check ApiVersion for more details. By setting a particular message format version, the " +
     "user is certifying that all the existing messages on disk are smaller or equal than the specified version. Setting this value incorrectly " +
@@ -650,6 +798,14 @@ object KafkaConfig {
     "if the difference in timestamp exceeds this threshold. This configuration is ignored if log.message.timestamp.type=LogAppendTime." +
     "The maximum timestamp difference allowed should be no greater than log.retention.ms to avoid unnecessarily frequent log rolling."
   val NumRecoveryThreadsPerDataDirDoc = "The number of threads per data directory to be used for log recovery at startup and flushing at shutdown"
+  val NumSegmentRecoveryThreadsDoc = "The number of threads shared by all logs to recover their unflushed segments after an " +
+    "unclean shutdown. With more than one thread, the segments of a log are validated and their indexes rebuilt concurrently, " +
+    "and the producer state is then rebuilt in offset order. These threads are in addition to the ones configured by " +
+    NumRecoveryThreadsPerDataDirProp + ", which load the logs."
+  val LogReadAheadBytesDoc = "The number of bytes following a fetch from a segment other than the active one that are read in the " +
+    "background so that the next fetch of a lagging consumer finds them in the page cache instead of blocking the network " +
+    "thread on a disk read. Set to 0 to disable read-ahead."
+  val NumReadAheadThreadsDoc = "The number of threads used to read ahead of fetches from inactive segments when " + LogReadAheadBytesProp + " is positive."
   val AutoCreateTopicsEnableDoc = "Enable auto creation of topic on the server"
   val MinInSyncReplicasDoc = "When a producer sets acks to \"all\" (or \"-1\"), " +
     "min.insync.replicas specifies the minimum number of replicas that must acknowledge " +
@@ -667,9 +823,29 @@ object KafkaConfig {
     "implement the <code>org.apache.kafka.server.policy.AlterConfigPolicy</code> interface."
   val LogMessageDownConversionEnableDoc = TopicConfig.MESSAGE_DOWNCONVERSION_ENABLE_DOC;
 
+  /** ********* Remote log storage configuration ***********/
+  val RemoteLogStorageEnableDoc = "Enable copying closed log segments of non-compacted topics to remote storage. Segments that have been " +
+    "copied are removed locally once they fall out of the local retention window, and fetches below the local log start offset are served " +
+    "from the remote tier."
+  val RemoteLogStorageManagerClassNameDoc = "The fully qualified class name that implements <code>kafka.log.remote.RemoteStorageManager</code>. " +
+    "Broker configs with the prefix <code>" + RemoteLogStorageManagerConfigPrefix + "</code> are passed to the instance, with the prefix stripped."
+  val RemoteLogLocalRetentionMsDoc = "The number of milliseconds to keep a log segment locally after it has been copied to remote storage. " +
+    "If set to -1, no time limit is applied and only the regular retention settings remove local segments."
+  val RemoteLogLocalRetentionBytesDoc = "The maximum size the local log can grow to before segments that have been copied to remote storage " +
+    "are removed locally. If set to -1, no size limit is applied."
+  val RemoteLogManagerTaskIntervalMsDoc = "The frequency in ms that the remote log manager copies eligible segments and applies the local and remote retention."
+  val RemoteLogReaderThreadsDoc = "The number of threads reading remote segments for fetches. Request handler threads do not wait for remote storage."
+  val RemoteLogReaderMaxWaitMsDoc = "The maximum time in ms a fetch waits for its remote reads. Partitions whose remote read takes longer are " +
+    "returned without records."
+  val RemoteLogIndexCacheSizeDoc = "The number of remote segments whose offset and transaction indexes are cached for fetches."
+
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMsDoc = "The socket timeout for controller-to-broker channels"
   val ControllerMessageQueueSizeDoc = "The buffer size for controller-to-broker-channels"
+  val ControllerMetadataDeltaEnableDoc = "Whether the controller numbers the UpdateMetadata requests it sends with a metadata " +
+    "epoch. A broker is sent a full snapshot of the partition states first and then only the partition states that changed, " +
+    "which it applies without copying the metadata of the other topics. A broker that reports a gap in the metadata epochs is " +
+    "sent a full snapshot again. This should only be enabled once all the brokers in the cluster support metadata epochs."
   val DefaultReplicationFactorDoc = "default replication factors for automatically created topics"
   val ReplicaLagTimeMaxMsDoc = "If a follower hasn't sent any fetch requests or hasn't consumed up to the leaders log end offset for at least this time," +
   " the leader will remove the follower from isr"
@@ -692,6 +868,9 @@ object KafkaConfig {
   val ReplicaFetchBackoffMsDoc = "The amount of time to sleep when fetch partition error occurs."
   val ReplicaHighWatermarkCheckpointIntervalMsDoc = "The frequency with which the high watermark is saved out to disk"
   val FetchPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the fetch request purgatory"
+  val FetchPurgatoryCompactWatchersEnableDoc = "Whether a delayed fetch is registered once in the fetch request purgatory, with each " +
+    "partition tracking its waiting fetches in a bitmap, instead of being added to a watcher list per partition. This " +
+    "makes fetches of many partitions cheaper to watch and to purge."
   val ProducerPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the producer request purgatory"
   val DeleteRecordsPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the delete records request purgatory"
   val AutoLeaderRebalanceEnableDoc = "Enables auto leader balancing. A background thread checks the distribution of partition leaders at regular intervals, configurable by `leader.imbalance.check.interval.seconds`. If the leader imbalance exceeds `leader.imbalance.per.broker.percentage`, leader rebalance to the preferred leader for partitions is triggered."
@@ -719,6 +898,8 @@ object KafkaConfig {
   /** ********* Offset management configuration ***********/
   val OffsetMetadataMaxSizeDoc = "The maximum size for a metadata entry associated with an offset commit"
   val OffsetsLoadBufferSizeDoc = "Batch size for reading from the offsets segments when loading offsets into the cache (soft-limit, overridden if records are too large)."
+  val OffsetsLoadThreadsDoc = "The number of threads decoding the offsets segments when loading offsets into the cache. The segments are " +
+    s"still read sequentially, and each thread holds on to a buffer of <code>$OffsetsLoadBufferSizeProp</code> bytes while decoding."
   val OffsetsTopicReplicationFactorDoc = "The replication factor for the offsets topic (set higher to ensure availability). " +
   "Internal topic creation will fail until the cluster size meets this replication factor requirement."
   val OffsetsTopicPartitionsDoc = "The number of partitions for the offset commit topic (should not change after deployment)"
@@ -730,6 +911,10 @@ object KafkaConfig {
   val OffsetCommitTimeoutMsDoc = "Offset commit will be delayed until all replicas for the offsets topic receive the commit " +
   "or this timeout is reached. This is similar to the producer request timeout."
   val OffsetCommitRequiredAcksDoc = "The required acks before the commit can be accepted. In general, the default (-1) should not be overridden"
+  val OffsetCommitCoalescingEnableDoc = "Enable coalescing of concurrent offset commits of groups that map to the same offsets topic " +
+    "partition. When enabled, the offsets of the commits that are waiting to be written are appended to the log together in a " +
+    "single batch, and each commit is completed separately once the batch is replicated. Transactional offset commits are " +
+    "always appended on their own."
   /** ********* Transaction management configuration ***********/
   val TransactionalIdExpirationMsDoc = "The time in ms that the transaction coordinator will wait without receiving any transaction status updates " +
     "for the current transaction before expiring its transactional id. This setting also influences producer id expiration - producer ids are expired " + 
@@ -738,6 +923,9 @@ object KafkaConfig {
     "If a client’s requested transaction time exceed this, then the broker will return an error in InitProducerIdRequest. This prevents a client from too large of a timeout, which can stall consumers reading from topics included in the transaction."
   val TransactionsTopicMinISRDoc = "Overridden " + MinInSyncReplicasProp + " config for the transaction topic."
   val TransactionsLoadBufferSizeDoc = "Batch size for reading from the transaction log segments when loading producer ids and transactions into the cache (soft-limit, overridden if records are too large)."
+  val TransactionsSnapshotIntervalMsDoc = "The interval at which every replica of a transaction log partition updates a snapshot " +
+    "of the transactions in the partition, which is kept in the directory of its log. A coordinator taking over the partition " +
+    "loads the snapshot and only reads the transaction log after it. A value of 0 disables the snapshots."
   val TransactionsTopicReplicationFactorDoc = "The replication factor for the transaction topic (set higher to ensure availability). " +
     "Internal topic creation will fail until the cluster size meets this replication factor requirement."
   val TransactionsTopicPartitionsDoc = "The number of partitions for the transaction topic (should not change after deployment)."
@@ -747,6 +935,10 @@ object KafkaConfig {
 
   /** ********* Fetch Session Configuration **************/
   val MaxIncrementalFetchSessionCacheSlotsDoc = "The maximum number of incremental fetch sessions that we will maintain."
+  val MaxIncrementalFetchSessionCachePartitionsDoc = "The maximum total number of partitions cached by the incremental fetch " +
+    "sessions that we will maintain. A new session, or a session that an incremental fetch adds partitions to, evicts less " +
+    "valuable sessions until its partitions fit within this limit. A session that still does not fit is closed and its " +
+    "client falls back to a full fetch."
 
   /** ********* Quota Configuration ***********/
   val ProducerQuotaBytesPerSecondDefaultDoc = "DEPRECATED: Used only when dynamic default quotas are not configured for <user>, <client-id> or <user, client-id> in Zookeeper. " +
@@ -874,6 +1066,16 @@ object KafkaConfig {
       .define(BackgroundThreadsProp, INT, Defaults.BackgroundThreads, atLeast(1), HIGH, BackgroundThreadsDoc)
       .define(QueuedMaxRequestsProp, INT, Defaults.QueuedMaxRequests, atLeast(1), HIGH, QueuedMaxRequestsDoc)
       .define(QueuedMaxBytesProp, LONG, Defaults.QueuedMaxRequestBytes, MEDIUM, QueuedMaxRequestBytesDoc)
+      .define(QueuedRequestsPolicyProp, STRING, Defaults.QueuedRequestsPolicy, in(RequestQueuePolicy.values.map(_.name): _*), LOW, QueuedRequestsPolicyDoc)
+      .define(QueuedRequestsClassWeightsProp, STRING, Defaults.QueuedRequestsClassWeights, LOW, QueuedRequestsClassWeightsDoc)
+      .define(QueuedRequestsClassMaxBytesProp, STRING, Defaults.QueuedRequestsClassMaxBytes, LOW, QueuedRequestsClassMaxBytesDoc)
+      .define(RequestHandlerAffinityGroupsProp, INT, Defaults.RequestHandlerAffinityGroups, atLeast(0), LOW, RequestHandlerAffinityGroupsDoc)
+      .define(RequestTracingBufferSizeProp, INT, Defaults.RequestTracingBufferSize, atLeast(0), LOW, RequestTracingBufferSizeDoc)
+      .define(RequestTracingSampleRatioProp, DOUBLE, Defaults.RequestTracingSampleRatio, between(0.0, 1.0), LOW, RequestTracingSampleRatioDoc)
+      .define(RequestTracingSlowThresholdMsProp, LONG, Defaults.RequestTracingSlowThresholdMs, atLeast(0), LOW, RequestTracingSlowThresholdMsDoc)
+      .define(RequestTracingSlowWindowMsProp, LONG, Defaults.RequestTracingSlowWindowMs, atLeast(1), LOW, RequestTracingSlowWindowMsDoc)
+      .define(ResponseBufferPoolBytesProp, LONG, Defaults.ResponseBufferPoolBytes, atLeast(0), LOW, ResponseBufferPoolBytesDoc)
+      .define(MetadataResponseCacheEnableProp, BOOLEAN, Defaults.MetadataResponseCacheEnable, LOW, MetadataResponseCacheEnableDoc)
       .define(RequestTimeoutMsProp, INT, Defaults.RequestTimeoutMs, HIGH, RequestTimeoutMsDoc)
 
       /************* Authorizer Configuration ***********/
@@ -895,6 +1097,8 @@ object KafkaConfig {
       .define(MaxConnectionsPerIpOverridesProp, STRING, Defaults.MaxConnectionsPerIpOverrides, MEDIUM, MaxConnectionsPerIpOverridesDoc)
       .define(MaxConnectionsProp, INT, Defaults.MaxConnections, atLeast(0), MEDIUM, MaxConnectionsDoc)
       .define(ConnectionsMaxIdleMsProp, LONG, Defaults.ConnectionsMaxIdleMs, MEDIUM, ConnectionsMaxIdleMsDoc)
+      .define(ConnectionsAssignmentPolicyProp, STRING, Defaults.ConnectionsAssignmentPolicy,
+        in(ConnectionsAssignmentPolicy.values: _*), LOW, ConnectionsAssignmentPolicyDoc)
       .define(FailedAuthenticationDelayMsProp, INT, Defaults.FailedAuthenticationDelayMs, atLeast(0), LOW, FailedAuthenticationDelayMsDoc)
 
       /************ Rack Configuration ******************/
@@ -920,12 +1124,16 @@ object KafkaConfig {
       .define(LogCleanupIntervalMsProp, LONG, Defaults.LogCleanupIntervalMs, atLeast(1), MEDIUM, LogCleanupIntervalMsDoc)
       .define(LogCleanupPolicyProp, LIST, Defaults.LogCleanupPolicy, ValidList.in(Defaults.Compact, Defaults.Delete), MEDIUM, LogCleanupPolicyDoc)
       .define(LogCleanerThreadsProp, INT, Defaults.LogCleanerThreads, atLeast(0), MEDIUM, LogCleanerThreadsDoc)
+      .define(LogCleanerThreadsPerLogProp, INT, Defaults.LogCleanerThreadsPerLog, atLeast(1), LOW, LogCleanerThreadsPerLogDoc)
       .define(LogCleanerIoMaxBytesPerSecondProp, DOUBLE, Defaults.LogCleanerIoMaxBytesPerSecond, MEDIUM, LogCleanerIoMaxBytesPerSecondDoc)
       .define(LogCleanerDedupeBufferSizeProp, LONG, Defaults.LogCleanerDedupeBufferSize, MEDIUM, LogCleanerDedupeBufferSizeDoc)
       .define(LogCleanerIoBufferSizeProp, INT, Defaults.LogCleanerIoBufferSize, atLeast(0), MEDIUM, LogCleanerIoBufferSizeDoc)
       .define(LogCleanerDedupeBufferLoadFactorProp, DOUBLE, Defaults.LogCleanerDedupeBufferLoadFactor, MEDIUM, LogCleanerDedupeBufferLoadFactorDoc)
+      .define(LogCleanerDedupeHashAlgorithmProp, STRING, Defaults.LogCleanerDedupeHashAlgorithm, in(CleanerConfig.Murmur3HashAlgorithm, CleanerConfig.Md5HashAlgorithm), LOW, LogCleanerDedupeHashAlgorithmDoc)
+      .define(LogCleanerDedupeOffsetDeltaEnableProp, BOOLEAN, Defaults.LogCleanerDedupeOffsetDeltaEnable, LOW, LogCleanerDedupeOffsetDeltaEnableDoc)
       .define(LogCleanerBackoffMsProp, LONG, Defaults.LogCleanerBackoffMs, atLeast(0), MEDIUM, LogCleanerBackoffMsDoc)
       .define(LogCleanerMinCleanRatioProp, DOUBLE, Defaults.LogCleanerMinCleanRatio, MEDIUM, LogCleanerMinCleanRatioDoc)
+      .define(LogCleanerMinSegmentGarbageRatioProp, DOUBLE, Defaults.LogCleanerMinSegmentGarbageRatio, between(0, 1), LOW, LogCleanerMinSegmentGarbageRatioDoc)
       .define(LogCleanerEnableProp, BOOLEAN, Defaults.LogCleanerEnable, MEDIUM, LogCleanerEnableDoc)
       .define(LogCleanerDeleteRetentionMsProp, LONG, Defaults.LogCleanerDeleteRetentionMs, MEDIUM, LogCleanerDeleteRetentionMsDoc)
       .define(LogCleanerMinCompactionLagMsProp, LONG, Defaults.LogCleanerMinCompactionLagMs, MEDIUM, LogCleanerMinCompactionLagMsDoc)
@@ -933,13 +1141,19 @@ object KafkaConfig {
       .define(LogIndexSizeMaxBytesProp, INT, Defaults.LogIndexSizeMaxBytes, atLeast(4), MEDIUM, LogIndexSizeMaxBytesDoc)
       .define(LogIndexIntervalBytesProp, INT, Defaults.LogIndexIntervalBytes, atLeast(0), MEDIUM, LogIndexIntervalBytesDoc)
       .define(LogFlushIntervalMessagesProp, LONG, Defaults.LogFlushIntervalMessages, atLeast(1), HIGH, LogFlushIntervalMessagesDoc)
+      .define(LogFlushGroupCommitEnableProp, BOOLEAN, Defaults.LogFlushGroupCommitEnable, LOW, LogFlushGroupCommitEnableDoc)
+      .define(ProduceAppendCoalescingEnableProp, BOOLEAN, Defaults.ProduceAppendCoalescingEnable, LOW, ProduceAppendCoalescingEnableDoc)
       .define(LogDeleteDelayMsProp, LONG, Defaults.LogDeleteDelayMs, atLeast(0), HIGH, LogDeleteDelayMsDoc)
       .define(LogFlushSchedulerIntervalMsProp, LONG, Defaults.LogFlushSchedulerIntervalMs, HIGH, LogFlushSchedulerIntervalMsDoc)
       .define(LogFlushIntervalMsProp, LONG, null, HIGH, LogFlushIntervalMsDoc)
       .define(LogFlushOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushOffsetCheckpointIntervalMsDoc)
       .define(LogFlushStartOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushStartOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushStartOffsetCheckpointIntervalMsDoc)
       .define(LogPreAllocateProp, BOOLEAN, Defaults.LogPreAllocateEnable, MEDIUM, LogPreAllocateEnableDoc)
+      .define(LogSegmentFilePoolSizeProp, INT, Defaults.LogSegmentFilePoolSize, atLeast(0), LOW, LogSegmentFilePoolSizeDoc)
       .define(NumRecoveryThreadsPerDataDirProp, INT, Defaults.NumRecoveryThreadsPerDataDir, atLeast(1), HIGH, NumRecoveryThreadsPerDataDirDoc)
+      .define(NumSegmentRecoveryThreadsProp, INT, Defaults.NumSegmentRecoveryThreads, atLeast(1), MEDIUM, NumSegmentRecoveryThreadsDoc)
+      .define(LogReadAheadBytesProp, INT, Defaults.LogReadAheadBytes, atLeast(0), MEDIUM, LogReadAheadBytesDoc)
+      .define(NumReadAheadThreadsProp, INT, Defaults.NumReadAheadThreads, atLeast(1), LOW, NumReadAheadThreadsDoc)
       .define(AutoCreateTopicsEnableProp, BOOLEAN, Defaults.AutoCreateTopicsEnable, HIGH, AutoCreateTopicsEnableDoc)
       .define(MinInSyncReplicasProp, INT, Defaults.MinInSyncReplicas, atLeast(1), HIGH, MinInSyncReplicasDoc)
       .define(LogMessageFormatVersionProp, STRING, Defaults.LogMessageFormatVersion, ApiVersionValidator, MEDIUM, LogMessageFormatVersionDoc)
@@ -949,8 +1163,19 @@ object KafkaConfig {
       .define(AlterConfigPolicyClassNameProp, CLASS, null, LOW, AlterConfigPolicyClassNameDoc)
       .define(LogMessageDownConversionEnableProp, BOOLEAN, Defaults.MessageDownConversionEnable, LOW, LogMessageDownConversionEnableDoc)
 
+      /** ********* Remote log storage configuration ***********/
+      .define(RemoteLogStorageEnableProp, BOOLEAN, Defaults.RemoteLogStorageEnable, MEDIUM, RemoteLogStorageEnableDoc)
+      .define(RemoteLogStorageManagerClassNameProp, STRING, Defaults.RemoteLogStorageManagerClassName, MEDIUM, RemoteLogStorageManagerClassNameDoc)
+      .define(RemoteLogLocalRetentionMsProp, LONG, Defaults.RemoteLogLocalRetentionMs, atLeast(-1), MEDIUM, RemoteLogLocalRetentionMsDoc)
+      .define(RemoteLogLocalRetentionBytesProp, LONG, Defaults.RemoteLogLocalRetentionBytes, atLeast(-1), MEDIUM, RemoteLogLocalRetentionBytesDoc)
+      .define(RemoteLogManagerTaskIntervalMsProp, LONG, Defaults.RemoteLogManagerTaskIntervalMs, atLeast(1), LOW, RemoteLogManagerTaskIntervalMsDoc)
+      .define(RemoteLogReaderThreadsProp, INT, Defaults.RemoteLogReaderThreads, atLeast(1), MEDIUM, RemoteLogReaderThreadsDoc)
+      .define(RemoteLogReaderMaxWaitMsProp, LONG, Defaults.RemoteLogReaderMaxWaitMs, atLeast(1), LOW, RemoteLogReaderMaxWaitMsDoc)
+      .define(RemoteLogIndexCacheSizeProp, INT, Defaults.RemoteLogIndexCacheSize, atLeast(0), LOW, RemoteLogIndexCacheSizeDoc)
+
       /** ********* Replication configuration ***********/
       .define(ControllerSocketTimeoutMsProp, INT, Defaults.ControllerSocketTimeoutMs, MEDIUM, ControllerSocketTimeoutMsDoc)
+      .define(ControllerMetadataDeltaEnableProp, BOOLEAN, Defaults.ControllerMetadataDeltaEnable, LOW, ControllerMetadataDeltaEnableDoc)
       .define(DefaultReplicationFactorProp, INT, Defaults.DefaultReplicationFactor, MEDIUM, DefaultReplicationFactorDoc)
       .define(ReplicaLagTimeMaxMsProp, LONG, Defaults.ReplicaLagTimeMaxMs, HIGH, ReplicaLagTimeMaxMsDoc)
       .define(ReplicaSocketTimeoutMsProp, INT, Defaults.ReplicaSocketTimeoutMs, HIGH, ReplicaSocketTimeoutMsDoc)
@@ -963,6 +1188,7 @@ object KafkaConfig {
       .define(NumReplicaFetchersProp, INT, Defaults.NumReplicaFetchers, HIGH, NumReplicaFetchersDoc)
       .define(ReplicaHighWatermarkCheckpointIntervalMsProp, LONG, Defaults.ReplicaHighWatermarkCheckpointIntervalMs, HIGH, ReplicaHighWatermarkCheckpointIntervalMsDoc)
       .define(FetchPurgatoryPurgeIntervalRequestsProp, INT, Defaults.FetchPurgatoryPurgeIntervalRequests, MEDIUM, FetchPurgatoryPurgeIntervalRequestsDoc)
+      .define(FetchPurgatoryCompactWatchersEnableProp, BOOLEAN, Defaults.FetchPurgatoryCompactWatchersEnable, LOW, FetchPurgatoryCompactWatchersEnableDoc)
       .define(ProducerPurgatoryPurgeIntervalRequestsProp, INT, Defaults.ProducerPurgatoryPurgeIntervalRequests, MEDIUM, ProducerPurgatoryPurgeIntervalRequestsDoc)
       .define(DeleteRecordsPurgatoryPurgeIntervalRequestsProp, INT, Defaults.DeleteRecordsPurgatoryPurgeIntervalRequests, MEDIUM, DeleteRecordsPurgatoryPurgeIntervalRequestsDoc)
       .define(AutoLeaderRebalanceEnableProp, BOOLEAN, Defaults.AutoLeaderRebalanceEnable, HIGH, AutoLeaderRebalanceEnableDoc)
@@ -988,6 +1214,7 @@ object KafkaConfig {
       /** ********* Offset management configuration ***********/
       .define(OffsetMetadataMaxSizeProp, INT, Defaults.OffsetMetadataMaxSize, HIGH, OffsetMetadataMaxSizeDoc)
       .define(OffsetsLoadBufferSizeProp, INT, Defaults.OffsetsLoadBufferSize, atLeast(1), HIGH, OffsetsLoadBufferSizeDoc)
+      .define(OffsetsLoadThreadsProp, INT, Defaults.OffsetsLoadThreads, atLeast(1), LOW, OffsetsLoadThreadsDoc)
       .define(OffsetsTopicReplicationFactorProp, SHORT, Defaults.OffsetsTopicReplicationFactor, atLeast(1), HIGH, OffsetsTopicReplicationFactorDoc)
       .define(OffsetsTopicPartitionsProp, INT, Defaults.OffsetsTopicPartitions, atLeast(1), HIGH, OffsetsTopicPartitionsDoc)
       .define(OffsetsTopicSegmentBytesProp, INT, Defaults.OffsetsTopicSegmentBytes, atLeast(1), HIGH, OffsetsTopicSegmentBytesDoc)
@@ -996,6 +1223,7 @@ object KafkaConfig {
       .define(OffsetsRetentionCheckIntervalMsProp, LONG, Defaults.OffsetsRetentionCheckIntervalMs, atLeast(1), HIGH, OffsetsRetentionCheckIntervalMsDoc)
       .define(OffsetCommitTimeoutMsProp, INT, Defaults.OffsetCommitTimeoutMs, atLeast(1), HIGH, OffsetCommitTimeoutMsDoc)
       .define(OffsetCommitRequiredAcksProp, SHORT, Defaults.OffsetCommitRequiredAcks, HIGH, OffsetCommitRequiredAcksDoc)
+      .define(OffsetCommitCoalescingEnableProp, BOOLEAN, Defaults.OffsetCommitCoalescingEnable, LOW, OffsetCommitCoalescingEnableDoc)
       .define(DeleteTopicEnableProp, BOOLEAN, Defaults.DeleteTopicEnable, HIGH, DeleteTopicEnableDoc)
       .define(CompressionTypeProp, STRING, Defaults.CompressionType, HIGH, CompressionTypeDoc)
 
@@ -1004,6 +1232,7 @@ object KafkaConfig {
       .define(TransactionsMaxTimeoutMsProp, INT, Defaults.TransactionsMaxTimeoutMs, atLeast(1), HIGH, TransactionsMaxTimeoutMsDoc)
       .define(TransactionsTopicMinISRProp, INT, Defaults.TransactionsTopicMinISR, atLeast(1), HIGH, TransactionsTopicMinISRDoc)
       .define(TransactionsLoadBufferSizeProp, INT, Defaults.TransactionsLoadBufferSize, atLeast(1), HIGH, TransactionsLoadBufferSizeDoc)
+      .define(TransactionsSnapshotIntervalMsProp, INT, Defaults.TransactionsSnapshotIntervalMs, atLeast(0), LOW, TransactionsSnapshotIntervalMsDoc)
       .define(TransactionsTopicReplicationFactorProp, SHORT, Defaults.TransactionsTopicReplicationFactor, atLeast(1), HIGH, TransactionsTopicReplicationFactorDoc)
       .define(TransactionsTopicPartitionsProp, INT, Defaults.TransactionsTopicPartitions, atLeast(1), HIGH, TransactionsTopicPartitionsDoc)
       .define(TransactionsTopicSegmentBytesProp, INT, Defaults.TransactionsTopicSegmentBytes, atLeast(1), HIGH, TransactionsTopicSegmentBytesDoc)
@@ -1012,6 +1241,7 @@ object KafkaConfig {
 
     /** ********* Fetch Session Configuration **************/
       .define(MaxIncrementalFetchSessionCacheSlots, INT, Defaults.MaxIncrementalFetchSessionCacheSlots, atLeast(0), MEDIUM, MaxIncrementalFetchSessionCacheSlotsDoc)
+      .define(MaxIncrementalFetchSessionCachePartitions, INT, Defaults.MaxIncrementalFetchSessionCachePartitions, atLeast(0), MEDIUM, MaxIncrementalFetchSessionCachePartitionsDoc)
 
       /** ********* Kafka Metrics Configuration ***********/
       .define(MetricNumSamplesProp, INT, Defaults.MetricNumSamples, atLeast(1), LOW, MetricNumSamplesDoc)
@@ -1164,6 +1394,18 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def backgroundThreads = getInt(KafkaConfig.BackgroundThreadsProp)
   val queuedMaxRequests = getInt(KafkaConfig.QueuedMaxRequestsProp)
   val queuedMaxBytes = getLong(KafkaConfig.QueuedMaxBytesProp)
+  val queuedRequestsPolicy = RequestQueuePolicy.forName(getString(KafkaConfig.QueuedRequestsPolicyProp))
+  val queuedRequestsClassWeights = RequestClass.parseWeights(
+    getMap(KafkaConfig.QueuedRequestsClassWeightsProp, getString(KafkaConfig.QueuedRequestsClassWeightsProp)))
+  val queuedRequestsClassMaxBytes = RequestClass.parseMaxBytes(
+    getMap(KafkaConfig.QueuedRequestsClassMaxBytesProp, getString(KafkaConfig.QueuedRequestsClassMaxBytesProp)))
+  val requestHandlerAffinityGroups = getInt(KafkaConfig.RequestHandlerAffinityGroupsProp)
+  val requestTracingBufferSize = getInt(KafkaConfig.RequestTracingBufferSizeProp)
+  val requestTracingSampleRatio = getDouble(KafkaConfig.RequestTracingSampleRatioProp)
+  val requestTracingSlowThresholdMs = getLong(KafkaConfig.RequestTracingSlowThresholdMsProp)
+  val requestTracingSlowWindowMs = getLong(KafkaConfig.RequestTracingSlowWindowMsProp)
+  val responseBufferPoolBytes = getLong(KafkaConfig.ResponseBufferPoolBytesProp)
+  val metadataResponseCacheEnable = getBoolean(KafkaConfig.MetadataResponseCacheEnableProp)
   def numIoThreads = getInt(KafkaConfig.NumIoThreadsProp)
   def messageMaxBytes = getInt(KafkaConfig.MessageMaxBytesProp)
   val requestTimeoutMs = getInt(KafkaConfig.RequestTimeoutMsProp)
@@ -1202,6 +1444,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
     getMap(KafkaConfig.MaxConnectionsPerIpOverridesProp, getString(KafkaConfig.MaxConnectionsPerIpOverridesProp)).map { case (k, v) => (k, v.toInt)}
   def maxConnections = getInt(KafkaConfig.MaxConnectionsProp)
   val connectionsMaxIdleMs = getLong(KafkaConfig.ConnectionsMaxIdleMsProp)
+  val connectionsAssignmentPolicy = getString(KafkaConfig.ConnectionsAssignmentPolicyProp)
   val failedAuthenticationDelayMs = getInt(KafkaConfig.FailedAuthenticationDelayMsProp)
 
   /***************** rack configuration **************/
@@ -1214,8 +1457,15 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val logDirs = CoreUtils.parseCsvList(Option(getString(KafkaConfig.LogDirsProp)).getOrElse(getString(KafkaConfig.LogDirProp)))
   def logSegmentBytes = getInt(KafkaConfig.LogSegmentBytesProp)
   def logFlushIntervalMessages = getLong(KafkaConfig.LogFlushIntervalMessagesProp)
+  val logFlushGroupCommitEnable = getBoolean(KafkaConfig.LogFlushGroupCommitEnableProp)
+  val produceAppendCoalescingEnable = getBoolean(KafkaConfig.ProduceAppendCoalescingEnableProp)
+  val logSegmentFilePoolSize = getInt(KafkaConfig.LogSegmentFilePoolSizeProp)
   val logCleanerThreads = getInt(KafkaConfig.LogCleanerThreadsProp)
+  val logCleanerThreadsPerLog = getInt(KafkaConfig.LogCleanerThreadsPerLogProp)
   def numRecoveryThreadsPerDataDir = getInt(KafkaConfig.NumRecoveryThreadsPerDataDirProp)
+  val numSegmentRecoveryThreads = getInt(KafkaConfig.NumSegmentRecoveryThreadsProp)
+  val logReadAheadBytes = getInt(KafkaConfig.LogReadAheadBytesProp)
+  val numReadAheadThreads = getInt(KafkaConfig.NumReadAheadThreadsProp)
   val logFlushSchedulerIntervalMs = getLong(KafkaConfig.LogFlushSchedulerIntervalMsProp)
   val logFlushOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushOffsetCheckpointIntervalMsProp).toLong
   val logFlushStartOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushStartOffsetCheckpointIntervalMsProp).toLong
@@ -1226,6 +1476,8 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logRetentionBytes = getLong(KafkaConfig.LogRetentionBytesProp)
   val logCleanerDedupeBufferSize = getLong(KafkaConfig.LogCleanerDedupeBufferSizeProp)
   val logCleanerDedupeBufferLoadFactor = getDouble(KafkaConfig.LogCleanerDedupeBufferLoadFactorProp)
+  val logCleanerDedupeHashAlgorithm = getString(KafkaConfig.LogCleanerDedupeHashAlgorithmProp)
+  val logCleanerDedupeOffsetDeltaEnable = getBoolean(KafkaConfig.LogCleanerDedupeOffsetDeltaEnableProp)
   val logCleanerIoBufferSize = getInt(KafkaConfig.LogCleanerIoBufferSizeProp)
   val logCleanerIoMaxBytesPerSecond = getDouble(KafkaConfig.LogCleanerIoMaxBytesPerSecondProp)
   def logCleanerDeleteRetentionMs = getLong(KafkaConfig.LogCleanerDeleteRetentionMsProp)
@@ -1233,6 +1485,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logCleanerMaxCompactionLagMs = getLong(KafkaConfig.LogCleanerMaxCompactionLagMsProp)
   val logCleanerBackoffMs = getLong(KafkaConfig.LogCleanerBackoffMsProp)
   def logCleanerMinCleanRatio = getDouble(KafkaConfig.LogCleanerMinCleanRatioProp)
+  val logCleanerMinSegmentGarbageRatio = getDouble(KafkaConfig.LogCleanerMinSegmentGarbageRatioProp)
   val logCleanerEnable = getBoolean(KafkaConfig.LogCleanerEnableProp)
   def logIndexSizeMaxBytes = getInt(KafkaConfig.LogIndexSizeMaxBytesProp)
   def logIndexIntervalBytes = getInt(KafkaConfig.LogIndexIntervalBytesProp)
@@ -1250,8 +1503,19 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logMessageTimestampDifferenceMaxMs: Long = getLong(KafkaConfig.LogMessageTimestampDifferenceMaxMsProp)
   def logMessageDownConversionEnable: Boolean = getBoolean(KafkaConfig.LogMessageDownConversionEnableProp)
 
+  /** ********* Remote log storage configuration ***********/
+  val remoteLogStorageEnable = getBoolean(KafkaConfig.RemoteLogStorageEnableProp)
+  val remoteLogStorageManagerClassName = getString(KafkaConfig.RemoteLogStorageManagerClassNameProp)
+  val remoteLogLocalRetentionMs = getLong(KafkaConfig.RemoteLogLocalRetentionMsProp)
+  val remoteLogLocalRetentionBytes = getLong(KafkaConfig.RemoteLogLocalRetentionBytesProp)
+  val remoteLogManagerTaskIntervalMs = getLong(KafkaConfig.RemoteLogManagerTaskIntervalMsProp)
+  val remoteLogReaderThreads = getInt(KafkaConfig.RemoteLogReaderThreadsProp)
+  val remoteLogReaderMaxWaitMs = getLong(KafkaConfig.RemoteLogReaderMaxWaitMsProp)
+  val remoteLogIndexCacheSize = getInt(KafkaConfig.RemoteLogIndexCacheSizeProp)
+
   /** ********* Replication configuration ***********/
   val controllerSocketTimeoutMs: Int = getInt(KafkaConfig.ControllerSocketTimeoutMsProp)
+  val controllerMetadataDeltaEnable = getBoolean(KafkaConfig.ControllerMetadataDeltaEnableProp)
   val defaultReplicationFactor: Int = getInt(KafkaConfig.DefaultReplicationFactorProp)
   val replicaLagTimeMaxMs = getLong(KafkaConfig.ReplicaLagTimeMaxMsProp)
   val replicaSocketTimeoutMs = getInt(KafkaConfig.ReplicaSocketTimeoutMsProp)
@@ -1264,6 +1528,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def numReplicaFetchers = getInt(KafkaConfig.NumReplicaFetchersProp)
   val replicaHighWatermarkCheckpointIntervalMs = getLong(KafkaConfig.ReplicaHighWatermarkCheckpointIntervalMsProp)
   val fetchPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.FetchPurgatoryPurgeIntervalRequestsProp)
+  val fetchPurgatoryCompactWatchersEnable = getBoolean(KafkaConfig.FetchPurgatoryCompactWatchersEnableProp)
   val producerPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.ProducerPurgatoryPurgeIntervalRequestsProp)
   val deleteRecordsPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.DeleteRecordsPurgatoryPurgeIntervalRequestsProp)
   val autoLeaderRebalanceEnable = getBoolean(KafkaConfig.AutoLeaderRebalanceEnableProp)
@@ -1290,10 +1555,12 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   /** ********* Offset management configuration ***********/
   val offsetMetadataMaxSize = getInt(KafkaConfig.OffsetMetadataMaxSizeProp)
   val offsetsLoadBufferSize = getInt(KafkaConfig.OffsetsLoadBufferSizeProp)
+  val offsetsLoadThreads = getInt(KafkaConfig.OffsetsLoadThreadsProp)
   val offsetsTopicReplicationFactor = getShort(KafkaConfig.OffsetsTopicReplicationFactorProp)
   val offsetsTopicPartitions = getInt(KafkaConfig.OffsetsTopicPartitionsProp)
   val offsetCommitTimeoutMs = getInt(KafkaConfig.OffsetCommitTimeoutMsProp)
   val offsetCommitRequiredAcks = getShort(KafkaConfig.OffsetCommitRequiredAcksProp)
+  val offsetCommitCoalescingEnable = getBoolean(KafkaConfig.OffsetCommitCoalescingEnableProp)
   val offsetsTopicSegmentBytes = getInt(KafkaConfig.OffsetsTopicSegmentBytesProp)
   val offsetsTopicCompressionCodec = Option(getInt(KafkaConfig.OffsetsTopicCompressionCodecProp)).map(value => CompressionCodec.getCompressionCodec(value)).orNull
 
@@ -1302,6 +1569,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val transactionMaxTimeoutMs = getInt(KafkaConfig.TransactionsMaxTimeoutMsProp)
   val transactionTopicMinISR = getInt(KafkaConfig.TransactionsTopicMinISRProp)
   val transactionsLoadBufferSize = getInt(KafkaConfig.TransactionsLoadBufferSizeProp)
+  val transactionLogSnapshotIntervalMs = getInt(KafkaConfig.TransactionsSnapshotIntervalMsProp)
   val transactionTopicReplicationFactor = getShort(KafkaConfig.TransactionsTopicReplicationFactorProp)
   val transactionTopicPartitions = getInt(KafkaConfig.TransactionsTopicPartitionsProp)
   val transactionTopicSegmentBytes = getInt(KafkaConfig.TransactionsTopicSegmentBytesProp)
@@ -1360,6 +1628,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
 
   /** ********* Fetch Session Configuration **************/
   val maxIncrementalFetchSessionCacheSlots = getInt(KafkaConfig.MaxIncrementalFetchSessionCacheSlots)
+  val maxIncrementalFetchSessionCachePartitions = getInt(KafkaConfig.MaxIncrementalFetchSessionCachePartitions)
 
   val deleteTopicEnable = getBoolean(KafkaConfig.DeleteTopicEnableProp)
   def compressionType = getString(KafkaConfig.CompressionTypeProp)
@@ -1539,6 +1808,8 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
       s"${KafkaConfig.SaslMechanismInterBrokerProtocolProp} must be included in ${KafkaConfig.SaslEnabledMechanismsProp} when SASL is used for inter-broker communication")
     require(queuedMaxBytes <= 0 || queuedMaxBytes >= socketRequestMaxBytes,
       s"${KafkaConfig.QueuedMaxBytesProp} must be larger or equal to ${KafkaConfig.SocketRequestMaxBytesProp}")
+    require(requestHandlerAffinityGroups <= numIoThreads,
+      s"${KafkaConfig.RequestHandlerAffinityGroupsProp} must not be larger than ${KafkaConfig.NumIoThreadsProp}")
 
     if (maxConnectionsPerIp == 0)
       require(!maxConnectionsPerIpOverrides.isEmpty, s"${KafkaConfig.MaxConnectionsPerIpProp} can be set to zero only if" +
@@ -52,7 +52,7 @@ class KafkaRequestHandler(id: Int,
       // time should be discounted by # threads.
       val startSelectTime = time.nanoseconds
 
-      val req = requestChannel.receiveRequest(300)
+      val req = requestChannel.receiveRequest(300, id)
       val endTime = time.nanoseconds
       val idleTime = endTime - startSelectTime
       aggregateIdleMeter.mark(idleTime / totalHandlerThreads.get)
@@ -87,7 +87,7 @@ class KafkaRequestHandler(id: Int,
     stopped = true
   }
 
-  def initiateShutdown(): Unit = requestChannel.sendShutdownRequest()
+  def initiateShutdown(): Unit = requestChannel.sendShutdownRequest(id)
 
   def awaitShutdown(): Unit = shutdownComplete.await()
 
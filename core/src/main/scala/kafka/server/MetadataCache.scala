@@ -18,6 +18,7 @@
 package kafka.server
 
 import java.util.{Collections, Optional}
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantReadWriteLock
 
 import scala.collection.{Seq, Set, mutable}
@@ -33,6 +34,7 @@ import org.apache.kafka.common.{Cluster, Node, PartitionInfo, TopicPartition}
 import org.apache.kafka.common.network.ListenerName
 import org.apache.kafka.common.protocol.Errors
 import org.apache.kafka.common.requests.{MetadataResponse, UpdateMetadataRequest}
+import org.apache.kafka.common.requests.MetadataResponse.SerializedTopic
 import org.apache.kafka.common.security.auth.SecurityProtocol
 
 
@@ -47,8 +49,9 @@ class MetadataCache(brokerId: Int) extends Logging {
   //replace the value with a completely new one. this means reads (which are not under any lock) need to grab
   //the value of this var (into a val) ONCE and retain that read copy for the duration of their operation.
   //multiple reads of this value risk getting different snapshots.
-  @volatile private var metadataSnapshot: MetadataSnapshot = MetadataSnapshot(partitionStates = mutable.AnyRefMap.empty,
-    controllerId = None, aliveBrokers = mutable.LongMap.empty, aliveNodes = mutable.LongMap.empty)
+  @volatile private var metadataSnapshot: MetadataSnapshot = MetadataSnapshot(partitionStates = Map.empty,
+    controllerId = None, aliveBrokers = mutable.LongMap.empty, aliveNodes = mutable.LongMap.empty,
+    serializedTopics = new SerializedTopicMetadata, metadataEpoch = -1L)
 
   this.logIdent = s"[MetadataCache brokerId=$brokerId] "
   private val stateChangeLogger = new StateChangeLogger(brokerId, inControllerContext = false, None)
@@ -136,6 +139,32 @@ class MetadataCache(brokerId: Int) extends Logging {
     }
   }
 
+  /**
+   * Like `getTopicMetadata`, but returns each topic serialized for a response of `version`. The serialized topics are
+   * built on first use and shared by all requests of the same version on `listenerName` until one of the topics
+   * changes. Topics that do not exist are left out.
+   */
+  def getSerializedTopicMetadata(topics: Set[String], listenerName: ListenerName, version: Short,
+                                 errorUnavailableEndpoints: Boolean = false,
+                                 errorUnavailableListeners: Boolean = false): Seq[SerializedTopic] = {
+    val snapshot = metadataSnapshot
+    val serializedTopics = snapshot.serializedTopics.forKey(
+      SerializedTopicMetadataKey(listenerName, version, errorUnavailableEndpoints, errorUnavailableListeners))
+    topics.toSeq.flatMap { topic =>
+      snapshot.partitionStates.get(topic).flatMap { partitionStates =>
+        val cached = serializedTopics.get(topic)
+        if (cached != null && (cached.partitionStates eq partitionStates))
+          Some(cached.serializedTopic)
+        else getPartitionMetadata(snapshot, topic, listenerName, errorUnavailableEndpoints, errorUnavailableListeners).map { partitionMetadata =>
+          val topicMetadata = new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic), partitionMetadata.toBuffer.asJava)
+          val serializedTopic = SerializedTopic.serialize(topicMetadata, version)
+          serializedTopics.put(topic, new SerializedTopicEntry(partitionStates, serializedTopic))
+          serializedTopic
+        }
+      }
+    }
+  }
+
   def getAllTopics(): Set[String] = {
     getAllTopics(metadataSnapshot)
   }
@@ -168,14 +197,6 @@ class MetadataCache(brokerId: Int) extends Logging {
     metadataSnapshot.aliveBrokers.values.toBuffer
   }
 
-  private def addOrUpdatePartitionInfo(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataPartitionState]],
-                                       topic: String,
-                                       partitionId: Int,
-                                       stateInfo: UpdateMetadataPartitionState): Unit = {
-    val infos = partitionStates.getOrElseUpdate(topic, mutable.LongMap())
-    infos(partitionId) = stateInfo
-  }
-
   def getPartitionInfo(topic: String, partitionId: Int): Option[UpdateMetadataPartitionState] = {
     metadataSnapshot.partitionStates.get(topic).flatMap(_.get(partitionId))
   }
@@ -217,6 +238,12 @@ class MetadataCache(brokerId: Int) extends Logging {
 
   def getControllerId: Option[Int] = metadataSnapshot.controllerId
 
+  /**
+   * The metadata epoch of the last metadata delta or full snapshot applied, or -1 if the controller does not send
+   * metadata deltas or if an update was missed since the last full snapshot.
+   */
+  def getMetadataEpoch: Long = metadataSnapshot.metadataEpoch
+
   def getClusterMetadata(clusterId: String, listenerName: ListenerName): Cluster = {
     val snapshot = metadataSnapshot
     val nodes = snapshot.aliveNodes.map { case (id, nodes) => (id, nodes.get(listenerName).orNull) }
@@ -268,33 +295,85 @@ class MetadataCache(brokerId: Int) extends Logging {
           error(s"Listeners are not identical across brokers: $aliveNodes")
       }
 
+      // The partition errors of serialized topics depend on the brokers and their listeners, so any change to them
+      // invalidates all serialized topics. Otherwise the serialized topics are kept: those of updated topics no longer
+      // match their partition states and are serialized again on use, and those of deleted topics are dropped.
+      val brokersChanged = aliveNodes != metadataSnapshot.aliveNodes
+      def serializedTopics(deletedTopics: collection.Set[String]): SerializedTopicMetadata =
+        if (brokersChanged) new SerializedTopicMetadata
+        else {
+          if (deletedTopics.nonEmpty)
+            metadataSnapshot.serializedTopics.remove(deletedTopics)
+          metadataSnapshot.serializedTopics
+        }
+
+      // A metadata delta applies to the update sent with its previous metadata epoch. If that is not the last update
+      // we applied, we missed one: apply the delta anyway and forget our epoch, so that the controller sends us a full
+      // snapshot of the partition states.
+      val requestMetadataEpoch = updateMetadataRequest.metadataEpoch
+      val isFullSnapshot = requestMetadataEpoch >= 0 && updateMetadataRequest.previousMetadataEpoch < 0
+      val metadataEpoch =
+        if (requestMetadataEpoch < 0 || isFullSnapshot ||
+            updateMetadataRequest.previousMetadataEpoch == metadataSnapshot.metadataEpoch) {
+          requestMetadataEpoch
+        } else {
+          warn(s"Received metadata delta with epoch $requestMetadataEpoch for epoch " +
+            s"${updateMetadataRequest.previousMetadataEpoch} from controller ${updateMetadataRequest.controllerId} " +
+            s"while at epoch ${metadataSnapshot.metadataEpoch}. Waiting for a full snapshot of the partition states.")
+          -1L
+        }
+
       val deletedPartitions = new mutable.ArrayBuffer[TopicPartition]
-      if (!updateMetadataRequest.partitionStates.iterator.hasNext) {
-        metadataSnapshot = MetadataSnapshot(metadataSnapshot.partitionStates, controllerId, aliveBrokers, aliveNodes)
+      if (!isFullSnapshot && !updateMetadataRequest.partitionStates.iterator.hasNext) {
+        metadataSnapshot = MetadataSnapshot(metadataSnapshot.partitionStates, controllerId, aliveBrokers, aliveNodes,
+          serializedTopics(Set.empty), metadataEpoch)
       } else {
-        //since kafka may do partial metadata updates, we start by copying the previous state
-        val partitionStates = new mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataPartitionState]](metadataSnapshot.partitionStates.size)
-        metadataSnapshot.partitionStates.foreach { case (topic, oldPartitionStates) =>
-          val copy = new mutable.LongMap[UpdateMetadataPartitionState](oldPartitionStates.size)
-          copy ++= oldPartitionStates
-          partitionStates += (topic -> copy)
-        }
+        // Since kafka may do partial metadata updates, the new state shares the partition states of the topics that
+        // are not updated with the previous state. The partition states of an updated topic are copied before they
+        // are changed. A full snapshot replaces the previous state.
+        val updatedPartitionStates = mutable.Map.empty[String, mutable.LongMap[UpdateMetadataPartitionState]]
+        def updatedPartitionStatesOf(topic: String): mutable.LongMap[UpdateMetadataPartitionState] =
+          updatedPartitionStates.getOrElseUpdate(topic, {
+            val copy = new mutable.LongMap[UpdateMetadataPartitionState]
+            if (!isFullSnapshot)
+              metadataSnapshot.partitionStates.get(topic).foreach(copy ++= _)
+            copy
+          })
+
         updateMetadataRequest.partitionStates.asScala.foreach { info =>
           val controllerId = updateMetadataRequest.controllerId
           val controllerEpoch = updateMetadataRequest.controllerEpoch
           val tp = new TopicPartition(info.topicName, info.partitionIndex)
           if (info.leader == LeaderAndIsr.LeaderDuringDelete) {
-            removePartitionInfo(partitionStates, tp.topic, tp.partition)
+            updatedPartitionStatesOf(tp.topic).remove(tp.partition)
             stateChangeLogger.trace(s"Deleted partition $tp from metadata cache in response to UpdateMetadata " +
               s"request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
             deletedPartitions += tp
           } else {
-            addOrUpdatePartitionInfo(partitionStates, tp.topic, tp.partition, info)
+            updatedPartitionStatesOf(tp.topic).update(tp.partition, info)
             stateChangeLogger.trace(s"Cached leader info $info for partition $tp in response to " +
               s"UpdateMetadata request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
           }
         }
-        metadataSnapshot = MetadataSnapshot(partitionStates, controllerId, aliveBrokers, aliveNodes)
+
+        val previousPartitionStates =
+          if (isFullSnapshot) Map.empty[String, mutable.LongMap[UpdateMetadataPartitionState]]
+          else metadataSnapshot.partitionStates
+        val partitionStates = updatedPartitionStates.foldLeft(previousPartitionStates) {
+          case (states, (topic, topicPartitionStates)) =>
+            if (topicPartitionStates.isEmpty) states - topic
+            else states.updated(topic, topicPartitionStates)
+        }
+        if (isFullSnapshot) {
+          val droppedTopics = metadataSnapshot.partitionStates.keySet -- partitionStates.keySet
+          if (droppedTopics.nonEmpty)
+            info(s"Removed topics ${droppedTopics.mkString(",")} which are not in the full snapshot of the partition " +
+              s"states with metadata epoch $metadataEpoch from controller ${updateMetadataRequest.controllerId}")
+        }
+        metadataSnapshot = MetadataSnapshot(partitionStates, controllerId, aliveBrokers, aliveNodes,
+          if (isFullSnapshot) new SerializedTopicMetadata
+          else serializedTopics(updatedPartitionStates.collect { case (topic, states) if states.isEmpty => topic }.toSet),
+          metadataEpoch)
       }
       deletedPartitions
     }
@@ -306,18 +385,47 @@ class MetadataCache(brokerId: Int) extends Logging {
 
   def contains(tp: TopicPartition): Boolean = getPartitionInfo(tp.topic, tp.partition).isDefined
 
-  private def removePartitionInfo(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataPartitionState]],
-                                  topic: String, partitionId: Int): Boolean = {
-    partitionStates.get(topic).exists { infos =>
-      infos.remove(partitionId)
-      if (infos.isEmpty) partitionStates.remove(topic)
-      true
-    }
-  }
-
-  case class MetadataSnapshot(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataPartitionState]],
+  // The partition states of a topic are shared by consecutive snapshots until the topic is updated, so they must not
+  // be changed once they are part of a snapshot
+  case class MetadataSnapshot(partitionStates: Map[String, mutable.LongMap[UpdateMetadataPartitionState]],
                               controllerId: Option[Int],
                               aliveBrokers: mutable.LongMap[Broker],
-                              aliveNodes: mutable.LongMap[collection.Map[ListenerName, Node]])
+                              aliveNodes: mutable.LongMap[collection.Map[ListenerName, Node]],
+                              serializedTopics: SerializedTopicMetadata,
+                              metadataEpoch: Long)
+
+}
+
+private[server] case class SerializedTopicMetadataKey(listenerName: ListenerName,
+                                                      version: Short,
+                                                      errorUnavailableEndpoints: Boolean,
+                                                      errorUnavailableListeners: Boolean)
+
+/**
+ * A topic serialized from the partition states of a snapshot. The partition states of a topic are replaced whenever
+ * the topic is updated, so the serialized topic is current as long as the snapshot has the same partition states.
+ */
+private[server] class SerializedTopicEntry(val partitionStates: mutable.LongMap[UpdateMetadataPartitionState],
+                                           val serializedTopic: SerializedTopic)
+
+/**
+ * The topics serialized for metadata responses, by the listener and version they were serialized for. The instance
+ * is shared by consecutive snapshots with the same brokers and is filled in as requests are handled. Updating a topic
+ * does not remove its serialized metadata: the entry is serialized again when it is next used, since it was built
+ * from partition states which the snapshot no longer has. This keeps partial updates from copying the serialized
+ * topics and keeps a request on an older snapshot from serving its topics to requests on a later one.
+ */
+private[server] class SerializedTopicMetadata {
+  private val serializedTopics = new ConcurrentHashMap[SerializedTopicMetadataKey, ConcurrentHashMap[String, SerializedTopicEntry]]
+
+  def forKey(key: SerializedTopicMetadataKey): ConcurrentHashMap[String, SerializedTopicEntry] =
+    serializedTopics.computeIfAbsent(key, _ => new ConcurrentHashMap[String, SerializedTopicEntry])
+
+  /**
+   * Remove the serialized metadata of `topics`, which were deleted.
+   */
+  def remove(topics: collection.Set[String]): Unit =
+    serializedTopics.values.asScala.foreach(topicsForKey => topics.foreach(topicsForKey.remove))
 
+  def size: Int = serializedTopics.values.asScala.map(_.size).sum
 }
@@ -28,6 +28,7 @@ import kafka.cluster.{BrokerEndPoint, Partition}
 import kafka.common.RecordValidationException
 import kafka.controller.{KafkaController, StateChangeLogger}
 import kafka.log._
+import kafka.log.remote.RemoteLogManager
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server.QuotaFactory.QuotaManagers
 import kafka.server.checkpoints.{LazyOffsetCheckpoints, OffsetCheckpointFile, OffsetCheckpoints}
@@ -50,7 +51,7 @@ import org.apache.kafka.common.requests.EpochEndOffset._
 import org.apache.kafka.common.requests.FetchRequest.PartitionData
 import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse
-import org.apache.kafka.common.requests.{ApiError, DeleteRecordsResponse, DescribeLogDirsResponse, EpochEndOffset, IsolationLevel, LeaderAndIsrRequest, LeaderAndIsrResponse, OffsetsForLeaderEpochRequest, StopReplicaRequest, UpdateMetadataRequest}
+import org.apache.kafka.common.requests.{ApiError, DeleteRecordsResponse, DescribeLogDirsResponse, EpochEndOffset, IsolationLevel, LeaderAndIsrRequest, LeaderAndIsrResponse, ListOffsetRequest, OffsetsForLeaderEpochRequest, StopReplicaRequest, UpdateMetadataRequest}
 import org.apache.kafka.common.utils.Time
 import org.apache.kafka.common.replica.ReplicaView.DefaultReplicaView
 import org.apache.kafka.common.replica.{ClientMetadata, _}
@@ -85,6 +86,7 @@ case class LogDeleteRecordsResult(requestedOffset: Long, lowWatermark: Long, exc
  *                         when the read was initiated, false otherwise
  * @param preferredReadReplica the preferred read replica to be used for future fetches
  * @param exception Exception if error encountered while reading from the log
+ * @param coldRead true if the data was read from a segment other than the active one or from remote storage
  */
 case class LogReadResult(info: FetchDataInfo,
                          highWatermark: Long,
@@ -96,7 +98,9 @@ case class LogReadResult(info: FetchDataInfo,
                          lastStableOffset: Option[Long],
                          preferredReadReplica: Option[Int] = None,
                          followerNeedsHwUpdate: Boolean = false,
-                         exception: Option[Throwable] = None) {
+                         exception: Option[Throwable] = None,
+                         remoteFetchInfo: Option[RemoteFetchInfo] = None,
+                         coldRead: Boolean = false) {
 
   def error: Errors = exception match {
     case None => Errors.NONE
@@ -112,13 +116,23 @@ case class LogReadResult(info: FetchDataInfo,
 
 }
 
+/**
+ * A read of records which are only available in remote storage. The records are read off the request handler thread,
+ * see [[DelayedRemoteFetch]].
+ */
+case class RemoteFetchInfo(fetchOffset: Long,
+                           maxBytes: Int,
+                           fetchIsolation: FetchIsolation,
+                           minOneMessage: Boolean)
+
 case class FetchPartitionData(error: Errors = Errors.NONE,
                               highWatermark: Long,
                               logStartOffset: Long,
                               records: Records,
                               lastStableOffset: Option[Long],
                               abortedTransactions: Option[List[AbortedTransaction]],
-                              preferredReadReplica: Option[Int])
+                              preferredReadReplica: Option[Int],
+                              coldRead: Boolean = false)
 
 
 /**
@@ -165,7 +179,8 @@ class ReplicaManager(val config: KafkaConfig,
                      val delayedFetchPurgatory: DelayedOperationPurgatory[DelayedFetch],
                      val delayedDeleteRecordsPurgatory: DelayedOperationPurgatory[DelayedDeleteRecords],
                      val delayedElectLeaderPurgatory: DelayedOperationPurgatory[DelayedElectLeader],
-                     threadNamePrefix: Option[String]) extends Logging with KafkaMetricsGroup {
+                     threadNamePrefix: Option[String],
+                     val remoteLogManager: Option[RemoteLogManager]) extends Logging with KafkaMetricsGroup {
 
   def this(config: KafkaConfig,
            metrics: Metrics,
@@ -178,7 +193,8 @@ class ReplicaManager(val config: KafkaConfig,
            brokerTopicStats: BrokerTopicStats,
            metadataCache: MetadataCache,
            logDirFailureChannel: LogDirFailureChannel,
-           threadNamePrefix: Option[String] = None) {
+           threadNamePrefix: Option[String] = None,
+           remoteLogManager: Option[RemoteLogManager] = None) {
     this(config, metrics, time, zkClient, scheduler, logManager, isShuttingDown,
       quotaManagers, brokerTopicStats, metadataCache, logDirFailureChannel,
       DelayedOperationPurgatory[DelayedProduce](
@@ -186,13 +202,18 @@ class ReplicaManager(val config: KafkaConfig,
         purgeInterval = config.producerPurgatoryPurgeIntervalRequests),
       DelayedOperationPurgatory[DelayedFetch](
         purgatoryName = "Fetch", brokerId = config.brokerId,
-        purgeInterval = config.fetchPurgatoryPurgeIntervalRequests),
+        purgeInterval = config.fetchPurgatoryPurgeIntervalRequests,
+        compactWatchers = config.fetchPurgatoryCompactWatchersEnable),
       DelayedOperationPurgatory[DelayedDeleteRecords](
         purgatoryName = "DeleteRecords", brokerId = config.brokerId,
         purgeInterval = config.deleteRecordsPurgatoryPurgeIntervalRequests),
       DelayedOperationPurgatory[DelayedElectLeader](
         purgatoryName = "ElectLeader", brokerId = config.brokerId),
-      threadNamePrefix)
+      threadNamePrefix, remoteLogManager)
+  }
+
+  private val delayedRemoteFetchPurgatory = remoteLogManager.map { _ =>
+    DelayedOperationPurgatory[DelayedRemoteFetch](purgatoryName = "RemoteFetch", brokerId = config.brokerId)
   }
 
   /* epoch of the controller that last changed the leader */
@@ -271,6 +292,17 @@ class ReplicaManager(val config: KafkaConfig,
   val isrShrinkRate: Meter = newMeter("IsrShrinksPerSec", "shrinks", TimeUnit.SECONDS)
   val failedIsrUpdatesRate: Meter = newMeter("FailedIsrUpdatesPerSec", "failedUpdates", TimeUnit.SECONDS)
 
+  // The time to look up the position of a fetch in the local log, tagged by whether it was served from the active
+  // segment. This covers the offset index lookup and the scan to the fetch offset, not the read of the fetched
+  // bytes, which happens lazily when the response is written to the socket. Fetches that read from a segment other
+  // than the active one are tagged as cold, see the `read` tagged fetch request metrics.
+  private val hotReadLookupTimeHist = newHistogram("LocalReadLookupTimeUs", tags = Map("read" -> "hot"))
+  private val coldReadLookupTimeHist = newHistogram("LocalReadLookupTimeUs", tags = Map("read" -> "cold"))
+
+  private val segmentReadAhead: Option[SegmentReadAhead] =
+    if (config.logReadAheadBytes > 0) Some(new SegmentReadAhead(config.numReadAheadThreads, config.logReadAheadBytes))
+    else None
+
   def underReplicatedPartitionCount: Int = leaderPartitionsIterator.count(_.isUnderReplicated)
 
   def startHighWatermarkCheckPointThread() = {
@@ -334,6 +366,8 @@ class ReplicaManager(val config: KafkaConfig,
     val haltBrokerOnFailure = config.interBrokerProtocolVersion < KAFKA_1_0_IV0
     logDirFailureHandler = new LogDirFailureHandler("LogDirFailureHandler", haltBrokerOnFailure)
     logDirFailureHandler.start()
+
+    remoteLogManager.foreach(_.startup(tp => nonOfflinePartition(tp).exists(_.isLeader)))
   }
 
   private def maybeRemoveTopicMetrics(topic: String): Unit = {
@@ -349,6 +383,7 @@ class ReplicaManager(val config: KafkaConfig,
     stateChangeLogger.trace(s"Handling stop replica (delete=$deletePartition) for partition $topicPartition")
 
     if (deletePartition) {
+      segmentReadAhead.foreach(_.remove(topicPartition))
       getPartition(topicPartition) match {
         case HostedPartition.Offline =>
           throw new KafkaStorageException(s"Partition $topicPartition is on an offline disk")
@@ -371,6 +406,11 @@ class ReplicaManager(val config: KafkaConfig,
         logManager.asyncDelete(topicPartition)
       if (logManager.getLog(topicPartition, isFuture = true).isDefined)
         logManager.asyncDelete(topicPartition, isFuture = true)
+
+      // The remote log is shared by all replicas and is only deleted along with the topic. The controller removes
+      // the partitions of a topic being deleted from the metadata cache before it deletes their replicas.
+      if (!metadataCache.contains(topicPartition))
+        remoteLogManager.foreach(_.deleteRemoteLog(topicPartition))
     }
 
     // If we were the leader, we may have some operations still waiting for completion.
@@ -570,6 +610,7 @@ class ReplicaManager(val config: KafkaConfig,
         try {
           val partition = getPartitionOrException(topicPartition, expectLeader = true)
           val logDeleteResult = partition.deleteRecordsOnLeader(requestedOffset)
+          remoteLogManager.foreach(_.deleteRecordsBefore(topicPartition, logDeleteResult.requestedOffset))
           (topicPartition, logDeleteResult)
         } catch {
           case e@ (_: UnknownTopicOrPartitionException |
@@ -843,7 +884,19 @@ class ReplicaManager(val config: KafkaConfig,
                               currentLeaderEpoch: Optional[Integer],
                               fetchOnlyFromLeader: Boolean): Option[TimestampAndOffset] = {
     val partition = getPartitionOrException(topicPartition, expectLeader = fetchOnlyFromLeader)
-    partition.fetchOffsetForTimestamp(timestamp, isolationLevel, currentLeaderEpoch, fetchOnlyFromLeader)
+    val timestampAndOffset = partition.fetchOffsetForTimestamp(timestamp, isolationLevel, currentLeaderEpoch, fetchOnlyFromLeader)
+    // the earliest offset of clients (isolationLevel is defined) may be in remote storage
+    if (timestamp == ListOffsetRequest.EARLIEST_TIMESTAMP && isolationLevel.isDefined) {
+      timestampAndOffset.map { localTimestampAndOffset =>
+        val logStartOffset = clientLogStartOffset(topicPartition, localTimestampAndOffset.offset)
+        if (logStartOffset < localTimestampAndOffset.offset)
+          new TimestampAndOffset(RecordBatch.NO_TIMESTAMP, logStartOffset, Optional.empty[Integer]())
+        else
+          localTimestampAndOffset
+      }
+    } else {
+      timestampAndOffset
+    }
   }
 
   def legacyFetchOffsetsForTimestamp(topicPartition: TopicPartition,
@@ -897,6 +950,15 @@ class ReplicaManager(val config: KafkaConfig,
 
     val logReadResults = readFromLog()
 
+    val remoteFetchInfos = logReadResults.collect {
+      case (topicPartition, logReadResult) if logReadResult.remoteFetchInfo.isDefined =>
+        topicPartition -> logReadResult.remoteFetchInfo.get
+    }
+    if (remoteFetchInfos.nonEmpty) {
+      fetchFromRemoteLog(remoteFetchInfos, logReadResults, responseCallback)
+      return
+    }
+
     // check if this fetch request can be satisfied right away
     var bytesReadable: Long = 0
     var errorReadingData = false
@@ -920,7 +982,7 @@ class ReplicaManager(val config: KafkaConfig,
     if (timeout <= 0 || fetchInfos.isEmpty || bytesReadable >= fetchMinBytes || errorReadingData || anyPartitionsNeedHwUpdate) {
       val fetchPartitionData = logReadResults.map { case (tp, result) =>
         tp -> FetchPartitionData(result.error, result.highWatermark, result.leaderLogStartOffset, result.info.records,
-          result.lastStableOffset, result.info.abortedTransactions, result.preferredReadReplica)
+          result.lastStableOffset, result.info.abortedTransactions, result.preferredReadReplica, result.coldRead)
       }
       responseCallback(fetchPartitionData)
     } else {
@@ -947,6 +1009,64 @@ class ReplicaManager(val config: KafkaConfig,
     }
   }
 
+  /**
+   * The log start offset exposed to clients. It is the start of the remote log if the partition has segments in remote
+   * storage which reach up to the local log start offset. Replicas only see the local log start offset, since they
+   * can not fetch from remote storage.
+   */
+  private def clientLogStartOffset(topicPartition: TopicPartition, localLogStartOffset: Long): Long = {
+    remoteLogManager.map { rlm =>
+      val remoteLogStartOffset = rlm.remoteLogStartOffset(topicPartition)
+      if (remoteLogStartOffset >= 0 && remoteLogStartOffset < localLogStartOffset &&
+          rlm.remoteLogEndOffset(topicPartition) + 1 >= localLogStartOffset)
+        remoteLogStartOffset
+      else
+        localLogStartOffset
+    }.getOrElse(localLogStartOffset)
+  }
+
+  /**
+   * The read info of a fetch whose offset is below the local log start offset but available in remote storage. It has
+   * no records, they are read from remote storage by [[fetchFromRemoteLog]].
+   */
+  private def remoteLogReadInfo(partition: Partition,
+                                fetchInfo: PartitionData,
+                                fetchOnlyFromLeader: Boolean): Option[LogReadInfo] = {
+    remoteLogManager.flatMap { rlm =>
+      val offsetSnapshot = partition.fetchOffsetSnapshot(fetchInfo.currentLeaderEpoch, fetchOnlyFromLeader)
+      if (fetchInfo.fetchOffset >= offsetSnapshot.logStartOffset ||
+          !rlm.hasRemoteOffset(partition.topicPartition, fetchInfo.fetchOffset))
+        None
+      else
+        Some(LogReadInfo(fetchedData = FetchDataInfo(LogOffsetMetadata(fetchInfo.fetchOffset), MemoryRecords.EMPTY),
+          highWatermark = offsetSnapshot.highWatermark.messageOffset,
+          logStartOffset = offsetSnapshot.logStartOffset,
+          logEndOffset = offsetSnapshot.logEndOffset.messageOffset,
+          lastStableOffset = offsetSnapshot.lastStableOffset.messageOffset))
+    }
+  }
+
+  /**
+   * Read the records of the given partitions from remote storage on the reader threads of the remote log manager and
+   * respond once all reads are done or `remote.log.reader.max.wait.ms` has passed.
+   */
+  private def fetchFromRemoteLog(remoteFetchInfos: Seq[(TopicPartition, RemoteFetchInfo)],
+                                 logReadResults: Seq[(TopicPartition, LogReadResult)],
+                                 responseCallback: Seq[(TopicPartition, FetchPartitionData)] => Unit): Unit = {
+    val rlm = remoteLogManager.get
+    val purgatory = delayedRemoteFetchPurgatory.get
+    val remoteReads = remoteFetchInfos.map { case (topicPartition, info) =>
+      val remoteRead = rlm.asyncRead(topicPartition, info.fetchOffset, info.maxBytes, info.fetchIsolation, info.minOneMessage)
+      remoteRead.whenComplete((_: FetchDataInfo, _: Throwable) => {
+        purgatory.checkAndComplete(TopicPartitionOperationKey(topicPartition))
+      })
+      topicPartition -> remoteRead
+    }.toMap
+    val delayedRemoteFetch = new DelayedRemoteFetch(config.remoteLogReaderMaxWaitMs, remoteReads, logReadResults,
+      responseCallback)
+    purgatory.tryCompleteElseWatch(delayedRemoteFetch, remoteReads.keys.map(TopicPartitionOperationKey(_)).toSeq)
+  }
+
   /**
    * Read from multiple topic partitions at the given offset up to maxSize bytes
    */
@@ -959,6 +1079,8 @@ class ReplicaManager(val config: KafkaConfig,
                        quota: ReplicaQuota,
                        clientMetadata: Option[ClientMetadata]): Seq[(TopicPartition, LogReadResult)] = {
 
+    val isFromConsumer = !(Request.isValidBrokerId(replicaId) || replicaId == Request.FutureLocalReplicaId)
+
     def read(tp: TopicPartition, fetchInfo: PartitionData, limitBytes: Int, minOneMessage: Boolean): LogReadResult = {
       val offset = fetchInfo.fetchOffset
       val partitionFetchSize = fetchInfo.maxBytes
@@ -999,13 +1121,28 @@ class ReplicaManager(val config: KafkaConfig,
             exception = None)
         } else {
           // Try the read first, this tells us whether we need all of adjustedFetchSize for this partition
-          val readInfo: LogReadInfo = partition.readRecords(
-            fetchOffset = fetchInfo.fetchOffset,
-            currentLeaderEpoch = fetchInfo.currentLeaderEpoch,
-            maxBytes = adjustedMaxBytes,
-            fetchIsolation = fetchIsolation,
-            fetchOnlyFromLeader = fetchOnlyFromLeader,
-            minOneMessage = minOneMessage)
+          var remoteFetchInfo: Option[RemoteFetchInfo] = None
+          var coldRead = false
+          val readInfo: LogReadInfo = try {
+            val lookupStartNs = time.nanoseconds
+            val localReadInfo = partition.readRecords(
+              fetchOffset = fetchInfo.fetchOffset,
+              currentLeaderEpoch = fetchInfo.currentLeaderEpoch,
+              maxBytes = adjustedMaxBytes,
+              fetchIsolation = fetchIsolation,
+              fetchOnlyFromLeader = fetchOnlyFromLeader,
+              minOneMessage = minOneMessage)
+            coldRead = recordLocalRead(partition, localReadInfo.fetchedData, time.nanoseconds - lookupStartNs)
+            localReadInfo
+          } catch {
+            // Offsets below the local log start offset may still be available from remote storage. Replicas
+            // always fetch from the local log since the remote tier is shared.
+            case e: OffsetOutOfRangeException if isFromConsumer =>
+              val remoteReadInfo = remoteLogReadInfo(partition, fetchInfo, fetchOnlyFromLeader).getOrElse(throw e)
+              remoteFetchInfo = Some(RemoteFetchInfo(fetchInfo.fetchOffset, adjustedMaxBytes, fetchIsolation, minOneMessage))
+              coldRead = true
+              remoteReadInfo
+          }
 
           // Check if the HW known to the follower is behind the actual HW
           val followerNeedsHwUpdate: Boolean = partition.getReplica(replicaId)
@@ -1022,9 +1159,14 @@ class ReplicaManager(val config: KafkaConfig,
             readInfo.fetchedData
           }
 
+          val leaderLogStartOffset = if (isFromConsumer)
+            clientLogStartOffset(tp, readInfo.logStartOffset)
+          else
+            readInfo.logStartOffset
+
           LogReadResult(info = fetchDataInfo,
             highWatermark = readInfo.highWatermark,
-            leaderLogStartOffset = readInfo.logStartOffset,
+            leaderLogStartOffset = leaderLogStartOffset,
             leaderLogEndOffset = readInfo.logEndOffset,
             followerLogStartOffset = followerLogStartOffset,
             fetchTimeMs = fetchTimeMs,
@@ -1032,7 +1174,9 @@ class ReplicaManager(val config: KafkaConfig,
             lastStableOffset = Some(readInfo.lastStableOffset),
             preferredReadReplica = preferredReadReplica,
             followerNeedsHwUpdate = followerNeedsHwUpdate,
-            exception = None)
+            exception = None,
+            remoteFetchInfo = remoteFetchInfo,
+            coldRead = coldRead)
         }
       } catch {
         // NOTE: Failed fetch requests metric is not incremented for known exceptions since it
@@ -1078,7 +1222,10 @@ class ReplicaManager(val config: KafkaConfig,
     var minOneMessage = !hardMaxBytesLimit
     readPartitionInfo.foreach { case (tp, fetchInfo) =>
       val readResult = read(tp, fetchInfo, limitBytes, minOneMessage)
-      val recordBatchSize = readResult.info.records.sizeInBytes
+      // the records of a remote read are not known yet, so the whole read size is set aside for them
+      val recordBatchSize =
+        if (readResult.remoteFetchInfo.isDefined) readResult.readSize
+        else readResult.info.records.sizeInBytes
       // Once we read from a non-empty partition, we stop ignoring request and partition level size limits
       if (recordBatchSize > 0)
         minOneMessage = false
@@ -1658,6 +1805,30 @@ class ReplicaManager(val config: KafkaConfig,
     info(s"Stopped serving replicas in dir $dir")
   }
 
+  /**
+   * Update the lookup time histogram matching the segment the data was read from. The returned records are a lazy
+   * slice of the segment, so `lookupTimeNs` does not include reading them. Reads from segments other than the
+   * active one are also handed to the read-ahead stage, if enabled, so that the bytes following them are warm by the
+   * time they are fetched.
+   *
+   * @return true if the data was read from a segment other than the active one
+   */
+  private def recordLocalRead(partition: Partition, fetchDataInfo: FetchDataInfo, lookupTimeNs: Long): Boolean = {
+    if (!fetchDataInfo.records.isInstanceOf[FileRecords])
+      false
+    else {
+      val lookupTimeUs = TimeUnit.NANOSECONDS.toMicros(lookupTimeNs)
+      val isColdRead = partition.log.exists(_.activeSegment.baseOffset > fetchDataInfo.fetchOffsetMetadata.segmentBaseOffset)
+      if (isColdRead) {
+        coldReadLookupTimeHist.update(lookupTimeUs)
+        segmentReadAhead.foreach(_.maybeReadAhead(partition.topicPartition, fetchDataInfo))
+      } else {
+        hotReadLookupTimeHist.update(lookupTimeUs)
+      }
+      isColdRead
+    }
+  }
+
   def removeMetrics(): Unit = {
     removeMetric("LeaderCount")
     removeMetric("PartitionCount")
@@ -1665,6 +1836,8 @@ class ReplicaManager(val config: KafkaConfig,
     removeMetric("UnderReplicatedPartitions")
     removeMetric("UnderMinIsrPartitionCount")
     removeMetric("AtMinIsrPartitionCount")
+    removeMetric("LocalReadLookupTimeUs", Map("read" -> "hot"))
+    removeMetric("LocalReadLookupTimeUs", Map("read" -> "cold"))
   }
 
   // High watermark do not need to be checkpointed only when under unit tests
@@ -1676,11 +1849,14 @@ class ReplicaManager(val config: KafkaConfig,
     replicaFetcherManager.shutdown()
     replicaAlterLogDirsManager.shutdown()
     delayedFetchPurgatory.shutdown()
+    delayedRemoteFetchPurgatory.foreach(_.shutdown())
     delayedProducePurgatory.shutdown()
     delayedDeleteRecordsPurgatory.shutdown()
     delayedElectLeaderPurgatory.shutdown()
     if (checkpointHW)
       checkpointHighWatermarks()
+    remoteLogManager.foreach(_.shutdown())
+    segmentReadAhead.foreach(_.shutdown())
     replicaSelectorOpt.foreach(_.close)
     info("Shut down completely")
   }
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.server.checkpoints
+
+import java.io.{File, IOException}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.regex.Pattern
+
+import kafka.log.SegmentManifestEntry
+import kafka.server.LogDirFailureChannel
+
+import scala.collection.JavaConverters._
+import scala.collection._
+
+object LogSegmentManifestFile {
+  private val WhiteSpacesPattern = Pattern.compile("\\s+")
+  private[checkpoints] val CurrentVersion = 0
+
+  object Formatter extends CheckpointFileFormatter[(String, SegmentManifestEntry)] {
+    override def toLine(entry: (String, SegmentManifestEntry)): String = {
+      val (logDirName, segment) = entry
+      s"$logDirName ${segment.baseOffset} ${segment.logSize} ${segment.lastOffset} " +
+        s"${segment.offsetIndexChecksum} ${segment.timeIndexChecksum}"
+    }
+
+    override def fromLine(line: String): Option[(String, SegmentManifestEntry)] = {
+      WhiteSpacesPattern.split(line) match {
+        case Array(logDirName, baseOffset, logSize, lastOffset, offsetIndexChecksum, timeIndexChecksum) =>
+          Some(logDirName, SegmentManifestEntry(baseOffset.toLong, logSize.toInt,
+            lastOffset.toLong, offsetIndexChecksum.toLong, timeIndexChecksum.toLong))
+        case _ => None
+      }
+    }
+  }
+}
+
+/**
+  * This class persists the state of the segments of all logs in a log directory as of a clean shutdown. Logs are
+  * identified by the name of their directory since a current and a future log may exist for the same partition.
+  */
+class LogSegmentManifestFile(val file: File, logDirFailureChannel: LogDirFailureChannel = null) {
+  val checkpoint = new CheckpointFile[(String, SegmentManifestEntry)](file,
+    LogSegmentManifestFile.CurrentVersion, LogSegmentManifestFile.Formatter, logDirFailureChannel, file.getParent)
+
+  def write(segments: Iterable[(String, SegmentManifestEntry)]): Unit = checkpoint.write(segments)
+
+  /**
+   * Read the manifest. Unlike other checkpoint files, a manifest that cannot be read or parsed does not mark the log
+   * directory offline, since the manifest is only used to skip checking the segments on start-up: the exception is
+   * thrown to the caller, which should then check all the segments.
+   */
+  def read(): Map[String, Map[Long, SegmentManifestEntry]] = {
+    def malformedLineException(line: String) =
+      new IOException(s"Malformed line in segment manifest file (${file.getAbsolutePath}): $line")
+
+    val lines = Files.readAllLines(file.toPath, StandardCharsets.UTF_8).asScala
+    if (lines.size < 2)
+      throw new IOException(s"Segment manifest file (${file.getAbsolutePath}) is truncated")
+    if (lines.head.trim != LogSegmentManifestFile.CurrentVersion.toString)
+      throw new IOException(s"Unrecognized version of the segment manifest file (${file.getAbsolutePath}): ${lines.head}")
+    val expectedSize = try lines(1).trim.toInt catch {
+      case _: NumberFormatException => throw malformedLineException(lines(1))
+    }
+    val entries = lines.drop(2).map { line =>
+      try LogSegmentManifestFile.Formatter.fromLine(line).getOrElse(throw malformedLineException(line))
+      catch {
+        case _: NumberFormatException => throw malformedLineException(line)
+      }
+    }
+    if (entries.size != expectedSize)
+      throw new IOException(s"Expected $expectedSize entries in segment manifest file (${file.getAbsolutePath}), " +
+        s"but found ${entries.size}")
+
+    entries.groupBy(_._1).map { case (logDirName, dirEntries) =>
+      logDirName -> dirEntries.map { case (_, segment) => segment.baseOffset -> segment }.toMap
+    }
+  }
+
+}
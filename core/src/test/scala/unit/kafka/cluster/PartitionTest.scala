@@ -19,7 +19,7 @@ package kafka.cluster
 import java.io.File
 import java.nio.ByteBuffer
 import java.util.{Optional, Properties}
-import java.util.concurrent.{CountDownLatch, Executors, TimeUnit, TimeoutException}
+import java.util.concurrent.{Callable, CountDownLatch, Executors, TimeUnit, TimeoutException}
 import java.util.concurrent.atomic.AtomicBoolean
 
 import com.yammer.metrics.Metrics
@@ -31,7 +31,7 @@ import kafka.server._
 import kafka.server.checkpoints.OffsetCheckpoints
 import kafka.utils._
 import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.errors.{ApiException, OffsetNotAvailableException, ReplicaNotAvailableException}
+import org.apache.kafka.common.errors.{ApiException, OffsetNotAvailableException, RecordBatchTooLargeException, ReplicaNotAvailableException}
 import org.apache.kafka.common.message.LeaderAndIsrRequestData.LeaderAndIsrPartitionState
 import org.apache.kafka.common.protocol.Errors
 import org.apache.kafka.common.record.FileRecords.TimestampAndOffset
@@ -799,6 +799,68 @@ class PartitionTest {
     }
   }
 
+  @Test
+  def testCoalescedConcurrentAppends(): Unit = {
+    partition = new Partition(topicPartition,
+      replicaLagTimeMaxMs = Defaults.ReplicaLagTimeMaxMs,
+      interBrokerProtocolVersion = ApiVersion.latestVersion,
+      localBrokerId = brokerId,
+      time,
+      stateStore,
+      delayedOperations,
+      metadataCache,
+      logManager,
+      coalesceAppends = true)
+    setupPartitionWithMocks(leaderEpoch = 5, isLeader = true)
+
+    val numThreads = 8
+    val appendsPerThread = 50
+    val executor = Executors.newFixedThreadPool(numThreads)
+    try {
+      val futures = (0 until numThreads).map { _ =>
+        executor.submit(new Callable[Seq[LogAppendInfo]] {
+          override def call(): Seq[LogAppendInfo] = (0 until appendsPerThread).map { _ =>
+            val records = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("k1".getBytes, "v1".getBytes),
+              new SimpleRecord("k2".getBytes, "v2".getBytes))
+            partition.appendRecordsToLeader(records, origin = AppendOrigin.Client, requiredAcks = 0)
+          }
+        })
+      }
+      val infos = futures.flatMap(_.get(30, TimeUnit.SECONDS))
+
+      // each append is assigned its own range of offsets
+      val numRecords = numThreads * appendsPerThread * 2
+      assertEquals((0L until numRecords).toList,
+        infos.flatMap(info => info.firstOffset.get to info.lastOffset).sorted.toList)
+      assertEquals(numRecords, partition.localLogOrException.logEndOffset)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testCoalescedAppendFailsAlone(): Unit = {
+    partition = new Partition(topicPartition,
+      replicaLagTimeMaxMs = Defaults.ReplicaLagTimeMaxMs,
+      interBrokerProtocolVersion = ApiVersion.latestVersion,
+      localBrokerId = brokerId,
+      time,
+      stateStore,
+      delayedOperations,
+      metadataCache,
+      logManager,
+      coalesceAppends = true)
+    setupPartitionWithMocks(leaderEpoch = 5, isLeader = true)
+
+    val tooLarge = MemoryRecords.withRecords(CompressionType.NONE,
+      new SimpleRecord("k1".getBytes, new Array[Byte](logConfig.segmentSize)))
+    assertThrows[RecordBatchTooLargeException] {
+      partition.appendRecordsToLeader(tooLarge, origin = AppendOrigin.Client, requiredAcks = 0)
+    }
+    val records = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("k1".getBytes, "v1".getBytes))
+    assertEquals(0L, partition.appendRecordsToLeader(records, origin = AppendOrigin.Client, requiredAcks = 0).lastOffset)
+  }
+
   @Test
   def testAppendRecordsToFollowerWithNoReplicaThrowsException(): Unit = {
     assertThrows[ReplicaNotAvailableException] {
@@ -1150,6 +1212,62 @@ class PartitionTest {
 
   }
 
+  @Test
+  def testConcurrentFollowerFetchesAdvanceHighWatermark(): Unit = {
+    val log = logManager.getOrCreateLog(topicPartition, logConfig)
+    val numRecords = 200
+    seedLogData(log, numRecords = numRecords, leaderEpoch = 4)
+
+    val controllerId = 0
+    val controllerEpoch = 0
+    val leaderEpoch = 5
+    val followerIds = List(brokerId + 1, brokerId + 2)
+    val replicas = (brokerId :: followerIds).map(Int.box).asJava
+
+    doNothing().when(delayedOperations).checkAndCompleteFetch()
+
+    partition.createLogIfNotExists(brokerId, isNew = false, isFutureReplica = false, offsetCheckpoints)
+    assertTrue("Expected become leader transition to succeed",
+      partition.makeLeader(
+        controllerId,
+        new LeaderAndIsrPartitionState()
+          .setControllerEpoch(controllerEpoch)
+          .setLeader(brokerId)
+          .setLeaderEpoch(leaderEpoch)
+          .setIsr(replicas)
+          .setZkVersion(1)
+          .setReplicas(replicas)
+          .setIsNew(true),
+        0,
+        offsetCheckpoints))
+    assertEquals(0L, log.highWatermark)
+
+    // both followers fetch concurrently; the HW must end up at the LEO no matter how the updates interleave
+    val executor = Executors.newFixedThreadPool(followerIds.size)
+    try {
+      val futures = followerIds.map { followerId =>
+        executor.submit(new Runnable {
+          override def run(): Unit = (1 to numRecords).foreach { offset =>
+            partition.updateFollowerFetchState(followerId,
+              followerFetchOffsetMetadata = LogOffsetMetadata(offset),
+              followerStartOffset = 0L,
+              followerFetchTimeMs = time.milliseconds(),
+              leaderEndOffset = numRecords,
+              lastSentHighwatermark = log.highWatermark)
+          }
+        })
+      }
+      futures.foreach(_.get(30, TimeUnit.SECONDS))
+    } finally {
+      executor.shutdownNow()
+    }
+
+    assertEquals(numRecords.toLong, log.highWatermark)
+    followerIds.foreach { followerId =>
+      assertEquals(numRecords.toLong, partition.getReplica(followerId).get.logEndOffset)
+    }
+  }
+
   @Test
   def testIsrExpansion(): Unit = {
     val log = logManager.getOrCreateLog(topicPartition, logConfig)
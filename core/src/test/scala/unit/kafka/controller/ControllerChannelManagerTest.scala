@@ -23,12 +23,12 @@ import kafka.cluster.{Broker, EndPoint}
 import kafka.server.KafkaConfig
 import kafka.utils.TestUtils
 import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.message.{LeaderAndIsrResponseData, StopReplicaResponseData}
+import org.apache.kafka.common.message.{LeaderAndIsrResponseData, StopReplicaResponseData, UpdateMetadataResponseData}
 import org.apache.kafka.common.message.LeaderAndIsrResponseData.LeaderAndIsrPartitionError
 import org.apache.kafka.common.message.StopReplicaResponseData.StopReplicaPartitionError
 import org.apache.kafka.common.network.ListenerName
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
-import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, LeaderAndIsrRequest, LeaderAndIsrResponse, StopReplicaRequest, StopReplicaResponse, UpdateMetadataRequest}
+import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, LeaderAndIsrRequest, LeaderAndIsrResponse, StopReplicaRequest, StopReplicaResponse, UpdateMetadataRequest, UpdateMetadataResponse}
 import org.apache.kafka.common.security.auth.SecurityProtocol
 import org.junit.Assert._
 import org.junit.Test
@@ -225,6 +225,100 @@ class ControllerChannelManagerTest {
     assertEquals(Set(1, 2, 3), updateMetadataRequest.liveBrokers.asScala.map(_.id).toSet)
   }
 
+  @Test
+  def testUpdateMetadataRequestsWithMetadataEpochs(): Unit = {
+    val props = TestUtils.createBrokerConfig(controllerId, "zkConnect")
+    props.put(KafkaConfig.ControllerMetadataDeltaEnableProp, "true")
+    val config = KafkaConfig.fromProps(props)
+    val context = initContext(Seq(1, 2, 3), Set("foo", "bar"), 2, 3)
+    val batch = new MockControllerBrokerRequestBatch(context, config)
+
+    context.partitionReplicaAssignmentForTopic("foo").keys.foreach { partition =>
+      context.partitionLeadershipInfo.put(partition, LeaderIsrAndControllerEpoch(LeaderAndIsr(1, List(1, 2)), controllerEpoch))
+    }
+    context.partitionReplicaAssignmentForTopic("bar").keys.foreach { partition =>
+      context.partitionLeadershipInfo.put(partition, LeaderIsrAndControllerEpoch(LeaderAndIsr(3, List(3, 1)), controllerEpoch))
+    }
+    val partition = new TopicPartition("foo", 0)
+
+    def sendUpdateMetadataRequest(brokerIds: Seq[Int]): Unit = {
+      batch.newBatch()
+      batch.addUpdateMetadataRequestForBrokers(brokerIds, Set(partition))
+      batch.sendRequestsToBrokers(controllerEpoch)
+    }
+
+    // The first update sent to a broker is a full snapshot of the partition states
+    sendUpdateMetadataRequest(Seq(2))
+    val fullSnapshot = batch.collectUpdateMetadataRequestsFor(2).last
+    assertEquals(4, fullSnapshot.partitionStates.asScala.size)
+    assertEquals(1L, fullSnapshot.metadataEpoch)
+    assertEquals(-1L, fullSnapshot.previousMetadataEpoch)
+
+    // The next updates only include the partition states of the batch
+    sendUpdateMetadataRequest(Seq(2, 3))
+    val delta = batch.collectUpdateMetadataRequestsFor(2).last
+    assertEquals(List(partition), delta.partitionStates.asScala.map(ps => new TopicPartition(ps.topicName, ps.partitionIndex)).toList)
+    assertEquals(2L, delta.metadataEpoch)
+    assertEquals(1L, delta.previousMetadataEpoch)
+    val otherBrokerFullSnapshot = batch.collectUpdateMetadataRequestsFor(3).last
+    assertEquals(4, otherBrokerFullSnapshot.partitionStates.asScala.size)
+    assertEquals(2L, otherBrokerFullSnapshot.metadataEpoch)
+    assertEquals(-1L, otherBrokerFullSnapshot.previousMetadataEpoch)
+    assertEquals(Map(2 -> 2L, 3 -> 2L), context.metadataEpochsSent)
+
+    // The response is handed to the controller along with the metadata epoch of the request
+    val updateMetadataResponse = new UpdateMetadataResponse(new UpdateMetadataResponseData().setMetadataEpoch(2L))
+    batch.sentRequests(2).last.responseCallback(updateMetadataResponse)
+    assertEquals(List(UpdateMetadataResponseReceived(updateMetadataResponse, 2, 2L, isFullSnapshot = false)),
+      batch.sentEvents.toList)
+
+    // A broker that restarts is sent a full snapshot again
+    context.removeLiveBrokers(Set(2))
+    context.addLiveBrokersAndEpochs(Map(context.liveOrShuttingDownBroker(3).get.copy(id = 2) -> 2L))
+    sendUpdateMetadataRequest(Seq(2))
+    val restartedBrokerFullSnapshot = batch.collectUpdateMetadataRequestsFor(2).last
+    assertEquals(4, restartedBrokerFullSnapshot.partitionStates.asScala.size)
+    assertEquals(3L, restartedBrokerFullSnapshot.metadataEpoch)
+    assertEquals(-1L, restartedBrokerFullSnapshot.previousMetadataEpoch)
+  }
+
+  @Test
+  def testUpdateMetadataRequestsToBrokerWithoutMetadataEpochs(): Unit = {
+    val props = TestUtils.createBrokerConfig(controllerId, "zkConnect")
+    props.put(KafkaConfig.ControllerMetadataDeltaEnableProp, "true")
+    val config = KafkaConfig.fromProps(props)
+    val context = initContext(Seq(1, 2, 3), Set("foo", "bar"), 2, 3)
+    val batch = new MockControllerBrokerRequestBatch(context, config)
+
+    context.partitionReplicaAssignmentForTopic("foo").keys.foreach { partition =>
+      context.partitionLeadershipInfo.put(partition, LeaderIsrAndControllerEpoch(LeaderAndIsr(1, List(1, 2)), controllerEpoch))
+    }
+    context.partitionReplicaAssignmentForTopic("bar").keys.foreach { partition =>
+      context.partitionLeadershipInfo.put(partition, LeaderIsrAndControllerEpoch(LeaderAndIsr(3, List(3, 1)), controllerEpoch))
+    }
+    val partition = new TopicPartition("foo", 0)
+    context.brokersWithoutMetadataEpochs += 2
+
+    batch.newBatch()
+    batch.addUpdateMetadataRequestForBrokers(Seq(2, 3), Set(partition))
+    batch.sendRequestsToBrokers(controllerEpoch)
+
+    // A broker that does not track metadata epochs is sent the partition states of the batch without epochs
+    val updateMetadataRequest = batch.collectUpdateMetadataRequestsFor(2).last
+    assertEquals(List(partition), updateMetadataRequest.partitionStates.asScala.map(ps => new TopicPartition(ps.topicName, ps.partitionIndex)).toList)
+    assertEquals(-1L, updateMetadataRequest.metadataEpoch)
+    assertEquals(-1L, updateMetadataRequest.previousMetadataEpoch)
+    assertEquals(4, batch.collectUpdateMetadataRequestsFor(3).last.partitionStates.asScala.size)
+    assertEquals(Map(3 -> 1L), context.metadataEpochsSent)
+    assertEquals(1, batch.sentRequests(2).size)
+    assertNull(batch.sentRequests(2).head.responseCallback)
+
+    // It is sent a full snapshot again after it re-registers
+    context.removeLiveBrokers(Set(2))
+    context.addLiveBrokersAndEpochs(Map(context.liveOrShuttingDownBroker(3).get.copy(id = 2) -> 2L))
+    assertTrue(context.brokersWithoutMetadataEpochs.isEmpty)
+  }
+
   @Test
   def testUpdateMetadataDoesNotIncludePartitionsWithoutLeaderAndIsr(): Unit = {
     val context = initContext(Seq(1, 2, 3), Set("foo", "bar"), 2, 3)
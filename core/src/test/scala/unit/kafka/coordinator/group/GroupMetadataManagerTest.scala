@@ -19,6 +19,7 @@ package kafka.coordinator.group
 
 import java.lang.management.ManagementFactory
 import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch}
 import java.util.concurrent.locks.ReentrantLock
 import java.util.{Collections, Optional}
 
@@ -28,7 +29,7 @@ import javax.management.ObjectName
 import kafka.api._
 import kafka.cluster.Partition
 import kafka.common.OffsetAndMetadata
-import kafka.log.{AppendOrigin, Log, LogAppendInfo}
+import kafka.log.{AppendOrigin, Log, LogAppendInfo, LogConfig}
 import kafka.server.{FetchDataInfo, FetchLogEnd, HostedPartition, KafkaConfig, LogOffsetMetadata, ReplicaManager}
 import kafka.utils.{KafkaScheduler, MockTime, TestUtils}
 import kafka.zk.KafkaZkClient
@@ -797,6 +798,59 @@ class GroupMetadataManagerTest {
     }
   }
 
+  @Test
+  def testLoadGroupAndOffsetsWithLoadThreads(): Unit = {
+    val loadZkClient: KafkaZkClient = EasyMock.createNiceMock(classOf[KafkaZkClient])
+    EasyMock.expect(loadZkClient.getTopicPartitionCount(Topic.GROUP_METADATA_TOPIC_NAME)).andReturn(Some(2))
+    EasyMock.replay(loadZkClient)
+    val manager = new GroupMetadataManager(0, ApiVersion.latestVersion, OffsetConfig(loadThreads = 3), replicaManager,
+      loadZkClient, time, metrics)
+    val generation = 293
+    val protocolType = "consumer"
+    val protocol = "range"
+    val tp0 = new TopicPartition("foo", 0)
+    val tp1 = new TopicPartition("foo", 1)
+
+    val logMock: Log = EasyMock.mock(classOf[Log])
+    EasyMock.expect(replicaManager.getLog(groupTopicPartition)).andStubReturn(Some(logMock))
+
+    // every read overrides the offsets and the group of the previous reads, so they must be applied in order
+    var segmentEnd = 15L
+    var numRecords = 0
+    (0 until 10).foreach { segment =>
+      val records = MemoryRecords.withRecords(segmentEnd, CompressionType.NONE,
+        (createCommittedOffsetRecords(Map(tp0 -> (100L + segment), tp1 -> (200L + segment))) ++ Seq(
+          buildStableGroupRecordWithMember(generation + segment, protocolType, protocol, s"member-$segment"))).toArray: _*)
+      numRecords += 3
+      segmentEnd = expectGroupMetadataLoad(logMock, segmentEnd, records)
+    }
+    EasyMock.expect(replicaManager.getLogEndOffset(groupTopicPartition)).andStubReturn(Some(segmentEnd))
+
+    EasyMock.replay(logMock, replicaManager)
+
+    manager.loadGroupsAndOffsets(groupTopicPartition, _ => ())
+
+    val group = manager.getGroup(groupId).getOrElse(fail("Group was not loaded into the cache"))
+    assertEquals(Stable, group.currentState)
+    assertEquals(generation + 9, group.generationId)
+    assertEquals(Set("member-9"), group.allMembers)
+    assertEquals(Some(109L), group.offset(tp0).map(_.offset))
+    assertEquals(Some(209L), group.offset(tp1).map(_.offset))
+
+    assertEquals(numRecords.toDouble, metrics.metrics.get(metrics.metricName("partition-load-record-count",
+      "group-coordinator-metrics")).metricValue)
+    assertEquals(0L, Metrics.defaultRegistry().allMetrics().get(manager.metricName("PartitionLoadRemainingOffsets",
+      Map.empty)).asInstanceOf[Gauge[Long]].value)
+    assertEquals(0, getGauge(manager, "NumPartitionsLoading").value)
+
+    // the decoder threads are kept for later loads and stopped when the manager shuts down
+    def decoderThreadsAlive = Thread.getAllStackTraces.keySet.asScala.exists(thread =>
+      thread.getName.startsWith("group-metadata-manager-load-decoder-") && thread.isAlive)
+    assertTrue(decoderThreadsAlive)
+    manager.shutdown()
+    TestUtils.waitUntilTrue(() => !decoderThreadsAlive, "Decoder threads were not stopped on shutdown")
+  }
+
   @Test
   def testAddGroup(): Unit = {
     val group = new GroupMetadata("foo", Empty, time)
@@ -1108,6 +1162,120 @@ class GroupMetadataManagerTest {
     EasyMock.verify(replicaManager)
   }
 
+  @Test
+  def testCoalescedCommitOffsets(): Unit = {
+    val manager = coalescingGroupMetadataManager()
+    val otherGroupId = "qux"
+    val topicPartition = new TopicPartition("foo", 0)
+
+    assertEquals(groupPartitionId, manager.partitionFor(otherGroupId))
+    manager.addPartitionOwnership(groupPartitionId)
+    val group = manager.addGroup(new GroupMetadata(groupId, Empty, time))
+    val otherGroup = manager.addGroup(new GroupMetadata(otherGroupId, Empty, time))
+
+    val capturedRecords = expectAppendMessage(Errors.NONE)
+    EasyMock.expect(replicaManager.getLogConfig(groupTopicPartition)).andStubReturn(Some(LogConfig()))
+    EasyMock.replay(replicaManager)
+
+    val commitErrors = mutable.Map[String, immutable.Map[TopicPartition, Errors]]()
+    manager.storeOffsets(group, "", immutable.Map(topicPartition -> OffsetAndMetadata(37, "", time.milliseconds())),
+      errors => commitErrors.put(groupId, errors))
+    manager.storeOffsets(otherGroup, "", immutable.Map(topicPartition -> OffsetAndMetadata(38, "", time.milliseconds())),
+      errors => commitErrors.put(otherGroupId, errors))
+
+    // the commits are queued until they are appended
+    assertTrue(commitErrors.isEmpty)
+    assertTrue(group.hasOffsets)
+
+    manager.appendPendingOffsetCommits(groupId)
+
+    assertEquals(Map(groupId -> Map(topicPartition -> Errors.NONE), otherGroupId -> Map(topicPartition -> Errors.NONE)),
+      commitErrors)
+    assertEquals(37L, manager.getOffsets(groupId, Some(Seq(topicPartition)))(topicPartition).offset)
+    assertEquals(38L, manager.getOffsets(otherGroupId, Some(Seq(topicPartition)))(topicPartition).offset)
+
+    // both commits were appended in the same batch
+    val batches = capturedRecords.getValue()(groupTopicPartition).batches.asScala.toList
+    assertEquals(1, batches.size)
+    assertEquals(2, batches.head.asScala.size)
+    assertEquals(2.0, metrics.metrics.get(metrics.metricName("offset-commit-batch-size-max", "group-coordinator-metrics"))
+      .metricValue.asInstanceOf[Double], 0.0)
+
+    EasyMock.verify(replicaManager)
+    manager.shutdown()
+  }
+
+  @Test
+  def testCoalescedCommitOffsetsCompletedWhileHoldingGroupLock(): Unit = {
+    val manager = coalescingGroupMetadataManager()
+    val otherGroupId = "qux"
+    val topicPartition = new TopicPartition("foo", 0)
+
+    manager.addPartitionOwnership(groupPartitionId)
+    val group = manager.addGroup(new GroupMetadata(groupId, Empty, time))
+    val otherGroup = manager.addGroup(new GroupMetadata(otherGroupId, Empty, time))
+
+    // the append completes later, like an append waiting for the followers
+    val capturedCallback: Capture[Map[TopicPartition, PartitionResponse] => Unit] = EasyMock.newCapture()
+    EasyMock.expect(replicaManager.appendRecords(EasyMock.anyLong(),
+      EasyMock.anyShort(),
+      internalTopicsAllowed = EasyMock.eq(true),
+      origin = EasyMock.eq(AppendOrigin.Coordinator),
+      EasyMock.anyObject(),
+      EasyMock.capture(capturedCallback),
+      EasyMock.anyObject().asInstanceOf[Option[ReentrantLock]],
+      EasyMock.anyObject()))
+    EasyMock.expect(replicaManager.getMagic(EasyMock.anyObject())).andStubReturn(Some(RecordBatch.CURRENT_MAGIC_VALUE))
+    EasyMock.expect(replicaManager.getLogConfig(groupTopicPartition)).andStubReturn(Some(LogConfig()))
+    EasyMock.replay(replicaManager)
+
+    val commitErrors = new ConcurrentHashMap[String, immutable.Map[TopicPartition, Errors]]()
+    manager.storeOffsets(group, "", immutable.Map(topicPartition -> OffsetAndMetadata(37, "", time.milliseconds())),
+      errors => commitErrors.put(groupId, errors))
+    manager.storeOffsets(otherGroup, "", immutable.Map(topicPartition -> OffsetAndMetadata(38, "", time.milliseconds())),
+      errors => commitErrors.put(otherGroupId, errors))
+    manager.appendPendingOffsetCommits(groupId)
+    assertTrue(commitErrors.isEmpty)
+
+    // another thread holds the lock of the other group, for instance while appending for it
+    val otherGroupLocked = new CountDownLatch(1)
+    val releaseOtherGroup = new CountDownLatch(1)
+    val lockingThread = new Thread(() => otherGroup.inLock {
+      otherGroupLocked.countDown()
+      releaseOtherGroup.await()
+    })
+    lockingThread.start()
+    otherGroupLocked.await()
+
+    try {
+      // complete the append while holding the lock of the first group, like a thread completing the delayed produces
+      // of the offsets topic partition after appending for its own group
+      group.inLock {
+        capturedCallback.getValue.apply(Map(groupTopicPartition ->
+          new PartitionResponse(Errors.NONE, 0L, RecordBatch.NO_TIMESTAMP, 0L)))
+      }
+      assertEquals(Map(topicPartition -> Errors.NONE), commitErrors.get(groupId))
+      assertFalse(commitErrors.containsKey(otherGroupId))
+    } finally {
+      releaseOtherGroup.countDown()
+      lockingThread.join()
+    }
+
+    TestUtils.waitUntilTrue(() => commitErrors.containsKey(otherGroupId),
+      "The offset commit of the locked group was not completed")
+    assertEquals(Map(topicPartition -> Errors.NONE), commitErrors.get(otherGroupId))
+    assertEquals(38L, manager.getOffsets(otherGroupId, Some(Seq(topicPartition)))(topicPartition).offset)
+    manager.shutdown()
+  }
+
+  private def coalescingGroupMetadataManager(): GroupMetadataManager = {
+    val commitZkClient: KafkaZkClient = EasyMock.createNiceMock(classOf[KafkaZkClient])
+    EasyMock.expect(commitZkClient.getTopicPartitionCount(Topic.GROUP_METADATA_TOPIC_NAME)).andReturn(Some(2))
+    EasyMock.replay(commitZkClient)
+    new GroupMetadataManager(0, ApiVersion.latestVersion, OffsetConfig(offsetCommitCoalescingEnable = true),
+      replicaManager, commitZkClient, time, metrics)
+  }
+
   @Test
   def testTransactionalCommitOffsetCommitted(): Unit = {
     val memberId = ""
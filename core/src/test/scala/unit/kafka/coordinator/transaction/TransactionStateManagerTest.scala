@@ -16,14 +16,16 @@
  */
 package kafka.coordinator.transaction
 
+import java.io.File
 import java.lang.management.ManagementFactory
 import java.nio.ByteBuffer
+import java.nio.file.Files
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.locks.ReentrantLock
 
 import javax.management.ObjectName
-import kafka.log.{AppendOrigin, Log}
-import kafka.server.{FetchDataInfo, FetchLogEnd, LogOffsetMetadata, ReplicaManager}
+import kafka.log.{AppendOrigin, CorruptSnapshotException, Log, LogConfig, LogTest}
+import kafka.server.{BrokerTopicStats, FetchDataInfo, FetchLogEnd, LogOffsetMetadata, ReplicaManager}
 import kafka.utils.{MockScheduler, Pool, TestUtils}
 import kafka.zk.KafkaZkClient
 import org.apache.kafka.common.TopicPartition
@@ -37,7 +39,7 @@ import org.apache.kafka.common.utils.MockTime
 import org.easymock.{Capture, EasyMock, IAnswer}
 import org.junit.Assert.{assertEquals, assertFalse, assertTrue}
 import org.junit.{After, Before, Test}
-import org.scalatest.Assertions.fail
+import org.scalatest.Assertions.{assertThrows, fail}
 
 import scala.collection.JavaConverters._
 import scala.collection.{Map, mutable}
@@ -708,6 +710,163 @@ class TransactionStateManagerTest {
     assertEquals(transactionalId1, txnId)
   }
 
+  @Test
+  def testWriteAndReadTransactionStateSnapshot(): Unit = {
+    val file = TransactionStateSnapshot.file(TestUtils.tempDir())
+    val value1 = ByteBuffer.wrap(TransactionLog.valueToBytes(txnMetadata1.prepareNoTransit()))
+    val value2 = ByteBuffer.wrap(TransactionLog.valueToBytes(txnMetadata2.prepareNoTransit()))
+
+    assertEquals(None, TransactionStateSnapshot.read(file))
+
+    TransactionStateSnapshot.write(file, TransactionStateSnapshot(15L, time.milliseconds(),
+      Map(transactionalId1 -> value1, transactionalId2 -> value2)))
+    val snapshot = TransactionStateSnapshot.read(file).getOrElse(fail("The snapshot was not written"))
+    assertEquals(15L, snapshot.endOffset)
+    assertEquals(time.milliseconds(), snapshot.maxTimestamp)
+    assertEquals(Map(transactionalId1 -> value1, transactionalId2 -> value2), snapshot.transactions)
+
+    val bytes = Files.readAllBytes(file.toPath)
+    bytes(bytes.length - 1) = (bytes(bytes.length - 1) + 1).toByte
+    Files.write(file.toPath, bytes)
+    assertThrows[CorruptSnapshotException] {
+      TransactionStateSnapshot.read(file)
+    }
+  }
+
+  @Test
+  def testLoadTransactionsFromSnapshotAndLogTail(): Unit = {
+    val snapshotZkClient: KafkaZkClient = EasyMock.createNiceMock(classOf[KafkaZkClient])
+    EasyMock.expect(snapshotZkClient.getTopicPartitionCount(TRANSACTION_STATE_TOPIC_NAME))
+      .andReturn(Some(numPartitions))
+      .anyTimes()
+    EasyMock.replay(snapshotZkClient)
+    val snapshotTransactionManager = new TransactionStateManager(0, snapshotZkClient, scheduler, replicaManager,
+      TransactionConfig(transactionLogSnapshotIntervalMs = 1000), time, new Metrics())
+
+    val logDir = new File(TestUtils.tempDir(), topicPartition.toString)
+    val log = LogTest.createLog(logDir, LogConfig(), new BrokerTopicStats, scheduler, time)
+    def appendToLog(transactionalId: String, txnMetadata: TransactionMetadata): Unit = {
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(time.milliseconds(),
+        TransactionLog.keyToBytes(transactionalId), TransactionLog.valueToBytes(txnMetadata.prepareNoTransit()))),
+        leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      log.updateHighWatermark(log.logEndOffset)
+    }
+
+    try {
+      txnMetadata1.state = Ongoing
+      txnMetadata1.addPartitions(Set[TopicPartition](new TopicPartition("topic1", 0)))
+      appendToLog(transactionalId1, txnMetadata1)
+      txnMetadata2.state = Ongoing
+      txnMetadata2.addPartitions(Set[TopicPartition](new TopicPartition("topic2", 0)))
+      appendToLog(transactionalId2, txnMetadata2)
+
+      snapshotTransactionManager.snapshotTransactionState(topicPartition, log)
+      val snapshot = TransactionStateSnapshot.read(TransactionStateSnapshot.file(logDir))
+        .getOrElse(fail("The snapshot was not written"))
+      assertEquals(2L, snapshot.endOffset)
+      assertEquals(Set(transactionalId1, transactionalId2), snapshot.transactions.keySet)
+
+      // the records before the snapshot are gone, so transactionalId2 can only be loaded from the snapshot
+      txnMetadata1.state = PrepareCommit
+      appendToLog(transactionalId1, txnMetadata1)
+      log.maybeIncrementLogStartOffset(2L)
+
+      EasyMock.reset(replicaManager)
+      EasyMock.expect(replicaManager.getLog(topicPartition)).andStubReturn(Some(log))
+      EasyMock.expect(replicaManager.getLogEndOffset(topicPartition)).andStubReturn(Some(log.logEndOffset))
+      EasyMock.replay(replicaManager)
+
+      snapshotTransactionManager.loadTransactionsForTxnTopicPartition(partitionId, coordinatorEpoch, (_, _, _, _, _) => ())
+      scheduler.tick()
+
+      Seq(transactionalId1 -> txnMetadata1, transactionalId2 -> txnMetadata2).foreach { case (transactionalId, expected) =>
+        val cached = snapshotTransactionManager.getTransactionState(transactionalId).fold(
+          err => fail(transactionalId + "'s transaction state access returns error " + err),
+          entry => entry.getOrElse(fail(transactionalId + "'s transaction state was not loaded into the cache"))
+        )
+        assertEquals(expected, cached.transactionMetadata)
+      }
+    } finally {
+      snapshotTransactionManager.shutdown()
+      log.close()
+    }
+  }
+
+  @Test
+  def testIgnoreExpiredTransactionStateSnapshot(): Unit = {
+    val logDir = new File(TestUtils.tempDir(), topicPartition.toString)
+    val log = LogTest.createLog(logDir, LogConfig(), new BrokerTopicStats, scheduler, time)
+    try {
+      txnMetadata1.state = Ongoing
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(time.milliseconds(),
+        txnMessageKeyBytes1, TransactionLog.valueToBytes(txnMetadata1.prepareNoTransit()))),
+        leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      log.updateHighWatermark(log.logEndOffset)
+
+      // a snapshot of transactionalId2 behind the end of the log and older than delete.retention.ms could have missed
+      // the tombstone of transactionalId2, so it is rebuilt from the log instead of being extended
+      val staleValue = ByteBuffer.wrap(TransactionLog.valueToBytes(txnMetadata2.prepareNoTransit()))
+      TransactionStateSnapshot.write(TransactionStateSnapshot.file(logDir),
+        TransactionStateSnapshot(0L, time.milliseconds(), Map(transactionalId2 -> staleValue)))
+      time.sleep(log.config.deleteRetentionMs)
+
+      transactionManager.snapshotTransactionState(topicPartition, log)
+      val snapshot = TransactionStateSnapshot.read(TransactionStateSnapshot.file(logDir))
+        .getOrElse(fail("The snapshot was not written"))
+      assertEquals(1L, snapshot.endOffset)
+      assertEquals(Set(transactionalId1), snapshot.transactions.keySet)
+    } finally {
+      log.close()
+    }
+  }
+
+  @Test
+  def testTransactionStateSnapshotExtendsLastSnapshotInMemory(): Unit = {
+    val logDir = new File(TestUtils.tempDir(), topicPartition.toString)
+    val log = LogTest.createLog(logDir, LogConfig(), new BrokerTopicStats, scheduler, time)
+    def appendToLog(transactionalId: String, txnMetadata: TransactionMetadata): Unit = {
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(time.milliseconds(),
+        TransactionLog.keyToBytes(transactionalId), TransactionLog.valueToBytes(txnMetadata.prepareNoTransit()))),
+        leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      log.updateHighWatermark(log.logEndOffset)
+    }
+
+    try {
+      appendToLog(transactionalId1, txnMetadata1)
+      transactionManager.snapshotTransactionState(topicPartition, log)
+
+      // the file is not read back, the next snapshot extends the one kept in memory
+      val snapshotFile = TransactionStateSnapshot.file(logDir)
+      Files.write(snapshotFile.toPath, Array[Byte](1, 2, 3))
+      appendToLog(transactionalId2, txnMetadata2)
+      transactionManager.snapshotTransactionState(topicPartition, log)
+
+      val snapshot = TransactionStateSnapshot.read(snapshotFile).getOrElse(fail("The snapshot was not written"))
+      assertEquals(2L, snapshot.endOffset)
+      assertEquals(Set(transactionalId1, transactionalId2), snapshot.transactions.keySet)
+    } finally {
+      log.close()
+    }
+  }
+
+  @Test
+  def testNoTransactionStateSnapshotWhilePartitionIsLoading(): Unit = {
+    val logDir = new File(TestUtils.tempDir(), topicPartition.toString)
+    val log = LogTest.createLog(logDir, LogConfig(), new BrokerTopicStats, scheduler, time)
+    try {
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(time.milliseconds(),
+        txnMessageKeyBytes1, TransactionLog.valueToBytes(txnMetadata1.prepareNoTransit()))),
+        leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      log.updateHighWatermark(log.logEndOffset)
+
+      transactionManager.addLoadingPartition(partitionId, coordinatorEpoch)
+      transactionManager.snapshotTransactionState(topicPartition, log)
+      assertFalse(TransactionStateSnapshot.file(logDir).exists)
+    } finally {
+      log.close()
+    }
+  }
+
   private def assertCallback(error: Errors): Unit = {
     assertEquals(expectedError, error)
   }
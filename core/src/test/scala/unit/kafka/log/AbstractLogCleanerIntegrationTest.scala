@@ -90,7 +90,9 @@ abstract class AbstractLogCleanerIntegrationTest {
                   segmentSize: Int = defaultSegmentSize,
                   maxCompactionLagMs: Long = defaultMaxCompactionLagMs,
                   cleanerIoBufferSize: Option[Int] = None,
-                  propertyOverrides: Properties = new Properties()): LogCleaner = {
+                  propertyOverrides: Properties = new Properties(),
+                  threadsPerLog: Int = 1,
+                  hashAlgorithm: String = CleanerConfig.Md5HashAlgorithm): LogCleaner = {
 
     val logMap = new Pool[TopicPartition, Log]()
     for (partition <- partitions) {
@@ -122,7 +124,9 @@ abstract class AbstractLogCleanerIntegrationTest {
       numThreads = numThreads,
       ioBufferSize = cleanerIoBufferSize.getOrElse(maxMessageSize / 2),
       maxMessageSize = maxMessageSize,
-      backOffMs = backOffMs)
+      backOffMs = backOffMs,
+      hashAlgorithm = hashAlgorithm,
+      threadsPerLog = threadsPerLog)
     new LogCleaner(cleanerConfig,
       logDirs = Array(logDir),
       logs = logMap,
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+
+import kafka.utils.TestUtils
+import org.junit.Assert._
+import org.junit.Test
+import org.scalatest.Assertions.intercept
+
+class KeySketchTest {
+
+  @Test
+  def testSmallSketchesAreExact(): Unit = {
+    val first = sketch(0 until 20)
+    val second = sketch(10 until 40)
+    assertEquals(20.0, first.distinctKeys, 0.0)
+    assertEquals(10.0, first.intersection(second), 0.0)
+    assertEquals(40.0, first.union(second).distinctKeys, 0.0)
+    assertEquals(50L, first.union(second).records)
+    assertEquals(0.5, first.garbageRatio(second, tombstonesExpired = false), 0.0)
+  }
+
+  @Test
+  def testLargeSketchEstimates(): Unit = {
+    val first = sketch(0 until 100000)
+    val second = sketch(50000 until 150000)
+    assertEquals(100000.0, first.distinctKeys, 100000 * 0.3)
+    assertEquals(150000.0, first.union(second).distinctKeys, 150000 * 0.3)
+    assertEquals(0.5, first.garbageRatio(second, tombstonesExpired = false), 0.2)
+    assertEquals(0.0, first.garbageRatio(sketch(200000 until 300000), tombstonesExpired = false), 0.05)
+  }
+
+  @Test
+  def testDuplicatesAndTombstones(): Unit = {
+    val builder = new KeySketchBuilder
+    for (i <- 0 until 10)
+      builder.add(key(i % 5), isTombstone = i < 2)
+    val sketch = builder.build()
+    assertEquals(10L, sketch.records)
+    assertEquals(2L, sketch.tombstones)
+    assertEquals(5.0, sketch.distinctKeys, 0.0)
+    val empty = new KeySketchBuilder().build()
+    assertEquals(0.0, sketch.garbageRatio(empty, tombstonesExpired = false), 0.0)
+    assertEquals(0.2, sketch.garbageRatio(empty, tombstonesExpired = true), 0.0001)
+    assertEquals(1.0, empty.garbageRatio(sketch, tombstonesExpired = true), 0.0)
+  }
+
+  @Test
+  def testWriteAndRead(): Unit = {
+    val builder = new KeySketchBuilder
+    for (i <- 0 until 1000)
+      builder.add(key(i % 500), isTombstone = i < 3)
+    val written = builder.build()
+    val file = TestUtils.tempFile()
+    KeySketch.write(written, file)
+
+    val read = KeySketch.read(file)
+    assertEquals(written.records, read.records)
+    assertEquals(written.tombstones, read.tombstones)
+    assertEquals(written.distinctKeys, read.distinctKeys, 0.0)
+    assertEquals(written.distinctKeys, read.intersection(written), 0.0)
+
+    val bytes = Files.readAllBytes(file.toPath)
+    bytes(bytes.length - 1) = (bytes(bytes.length - 1) ^ 1).toByte
+    Files.write(file.toPath, bytes)
+    intercept[CorruptIndexException](KeySketch.read(file))
+    Files.write(file.toPath, bytes.take(10))
+    intercept[CorruptIndexException](KeySketch.read(file))
+  }
+
+  private def sketch(keys: Range): KeySketch = {
+    val builder = new KeySketchBuilder
+    keys.foreach(k => builder.add(key(k), isTombstone = false))
+    builder.build()
+  }
+
+  private def key(k: Int): ByteBuffer = ByteBuffer.wrap(k.toString.getBytes)
+}
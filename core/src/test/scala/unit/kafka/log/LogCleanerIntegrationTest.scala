@@ -198,6 +198,23 @@ class LogCleanerIntegrationTest extends AbstractLogCleanerIntegrationTest with K
     }
   }
 
+  @Test
+  def testCleanerThreadsShareCleaningOfLog(): Unit = {
+    val topicPartition = topicPartitions(0)
+    cleaner = makeCleaner(partitions = Seq(topicPartition), numThreads = 3, backOffMs = 100, threadsPerLog = 3,
+      hashAlgorithm = CleanerConfig.Murmur3HashAlgorithm)
+    val log = cleaner.logs.get(topicPartition)
+    val appends = writeDups(numKeys = 100, numDups = 10, log, CompressionType.NONE)
+    val startSize = log.size
+    val firstDirty = log.activeSegment.baseOffset
+    assertTrue(log.numberOfSegments > 3)
+
+    cleaner.startup()
+    assertTrue(cleaner.awaitCleaned(topicPartition, firstDirty))
+    assertEquals(appends.map { case (key, value, _) => key -> value.toInt }.toMap, readFromLog(log).toMap)
+    assertTrue(startSize > log.size)
+  }
+
   @Test
   def testIsThreadFailed(): Unit = {
     val metricName = "DeadThreadCount"
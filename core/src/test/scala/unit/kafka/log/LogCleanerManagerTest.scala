@@ -574,6 +574,30 @@ class LogCleanerManagerTest extends Logging {
     assertEquals(LogCleaningPaused(1), cleanerManager.cleaningState(tp).get)
   }
 
+  @Test
+  def testSharedCleanings(): Unit = {
+    val records = TestUtils.singletonRecords("test".getBytes, key="test".getBytes)
+    val log: Log = createLog(records.sizeInBytes * 5, LogConfig.Compact)
+    val cleanerManager: LogCleanerManager = createCleanerManager(log)
+    val cleanings = (0 until 4).map(_ => new SegmentGroupCleaning(log, Seq.empty, new FakeOffsetMap(1), 0L,
+      new CleanedTransactionMetadata, time))
+
+    assertEquals(None, cleanerManager.grabSharedCleaningToHelp(maxHelpingThreads = 1))
+    cleanerManager.shareCleanings(cleanings)
+
+    // the number of helping threads is limited, the thread which shared the cleanings is not
+    assertEquals(Some(cleanings(0)), cleanerManager.grabSharedCleaningToHelp(maxHelpingThreads = 1))
+    assertEquals(None, cleanerManager.grabSharedCleaningToHelp(maxHelpingThreads = 1))
+    assertEquals(Some(cleanings(1)), cleanerManager.grabSharedCleaning(log.topicPartition))
+    cleanerManager.doneHelping(log.topicPartition)
+    intercept[IllegalStateException](cleanerManager.doneHelping(log.topicPartition))
+    assertEquals(Some(cleanings(2)), cleanerManager.grabSharedCleaningToHelp(maxHelpingThreads = 1))
+    cleanerManager.doneHelping(log.topicPartition)
+
+    assertEquals(Seq(cleanings(3)), cleanerManager.withdrawSharedCleanings(log.topicPartition))
+    assertEquals(None, cleanerManager.grabSharedCleaning(log.topicPartition))
+  }
+
   private def createCleanerManager(log: Log): LogCleanerManager = {
     val logs = new Pool[TopicPartition, Log]()
     logs.put(topicPartition, log)
@@ -1095,6 +1095,187 @@ class LogCleanerTest {
     }
   }
 
+  /**
+   * Test that incremental cleaning only rewrites the clean segments with a high enough ratio of superseded records
+   */
+  @Test
+  def testIncrementalCleaningSkipsLowGarbageSegments(): Unit = {
+    val cleaner = makeCleaner(Int.MaxValue, minSegmentGarbageRatio = 0.5)
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    val config = LogConfig.fromProps(logConfig.originals, logProps)
+    var log = makeLog(config = config)
+    val tp = new TopicPartition("test", 0)
+
+    writeToLog(log, (0 until 100).map(k => (k, k)))
+    log.roll()
+
+    // segments without a key sketch are always rewritten
+    val (firstEnd, firstStats) = cleaner.clean(LogToClean(tp, log, 0L, log.activeSegment.baseOffset))
+    assertEquals(0, firstStats.segmentsSkipped)
+    assertTrue(log.logSegments.init.forall(_.keySketch.isDefined))
+
+    // the sketches are written next to the segments, so they are still there once the log is reloaded
+    log.close()
+    log = makeLog(config = config, recoveryPoint = log.logEndOffset)
+    assertTrue(log.logSegments.init.forall(segment => segment.keySketchFile.exists && segment.keySketch.isDefined))
+
+    // supersede most of the keys of the first segment and one key of the second
+    val secondSegment = log.logSegments.drop(1).head
+    val firstKeys = LogTest.keysInLog(log).filter(_ < secondSegment.baseOffset).toSeq
+    val updatedKey = secondSegment.baseOffset.toInt
+    writeToLog(log, (firstKeys.take(firstKeys.size * 3 / 4) :+ updatedKey.toLong).map(k => (k.toInt, 100)))
+    log.roll()
+
+    // the last clean segment is small enough to be grouped with the dirty segment, so it is rewritten as well
+    val cleanSegments = log.logSegments(0, firstEnd).toList
+    val lowGarbageSegments = cleanSegments.slice(1, cleanSegments.size - 1)
+    val (_, stats) = cleaner.clean(LogToClean(tp, log, firstEnd, log.activeSegment.baseOffset))
+    assertEquals(lowGarbageSegments.size, stats.segmentsSkipped)
+    assertEquals(lowGarbageSegments.map(_.size.toLong).sum, stats.bytesSkipped)
+    assertEquals("Only the segments with few superseded records should be left in place",
+      lowGarbageSegments, cleanSegments.filter(segment => log.logSegments.exists(_ eq segment)))
+
+    // the superseded record in the skipped segment is retained, the others are removed
+    val keys = LogTest.keysInLog(log).toList
+    assertEquals(2, keys.count(_ == updatedKey))
+    assertEquals(100, keys.distinct.size)
+    assertEquals(100 + 1, keys.size)
+  }
+
+  /**
+   * Test that an abort marker is retained as long as a skipped segment still holds a batch of its transaction
+   */
+  @Test
+  def testIncrementalCleaningRetainsAbortMarkerOfSkippedSegment(): Unit = {
+    val tp = new TopicPartition("test", 0)
+    val cleaner = makeCleaner(Int.MaxValue, minSegmentGarbageRatio = 0.5)
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 128: java.lang.Integer)
+    val log = makeLog(config = LogConfig.fromProps(logConfig.originals, logProps))
+    val producerEpoch = 0.toShort
+    val producerId = 1L
+
+    val appendTransaction = appendTransactionalAsLeader(log, producerId, producerEpoch)
+    appendTransaction(Seq(1))
+    log.appendAsLeader(record(2, 2), leaderEpoch = 0)
+    log.roll()
+    log.appendAsLeader(abortMarker(producerId, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+    log.roll()
+
+    // The aborted batch is emptied but retained since it is the last entry for this producerId, so the
+    // marker is retained as well
+    val (dirtyOffset, _) = cleaner.doClean(LogToClean(tp, log, 0L, log.activeSegment.baseOffset), deleteHorizonMs = Long.MaxValue)
+    assertEquals(List(1, 2), offsetsInLog(log))
+    assertEquals(List(0, 1, 2), lastOffsetsPerBatchInLog(log))
+
+    log.appendAsLeader(record(3, 3), leaderEpoch = 0)
+    log.roll()
+
+    // the segment with the empty batch is left in place, so the marker must still be retained
+    val (_, stats) = cleaner.doClean(LogToClean(tp, log, dirtyOffset, log.activeSegment.baseOffset), deleteHorizonMs = Long.MaxValue)
+    assertEquals(1, stats.segmentsSkipped)
+    assertEquals(List(1, 2, 3), offsetsInLog(log))
+    assertEquals(List(0, 1, 2, 3), lastOffsetsPerBatchInLog(log))
+  }
+
+  /**
+   * Test that cleaning the groups of segments of a log from copies of the transaction state gives the same log as
+   * cleaning them one after the other
+   */
+  @Test
+  def testSharedGroupCleaningMatchesSequentialCleaning(): Unit = {
+    val tp = new TopicPartition("test", 0)
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 256: java.lang.Integer)
+    val config = LogConfig.fromProps(logConfig.originals, logProps)
+    val sequentialLog = makeLog(config = config)
+    val sharedLog = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir), config = config)
+    writeTransactionsAcrossSegments(sequentialLog)
+    writeTransactionsAcrossSegments(sharedLog)
+
+    val sequentialCleaner = makeCleaner(Int.MaxValue)
+    val sharingCleaner = makeCleaner(Int.MaxValue, sharedCleaning = Some(makeCleanerManager(sharedLog)))
+    for (deleteHorizonMs <- Seq(0L, Long.MaxValue)) {
+      sequentialCleaner.doClean(LogToClean(tp, sequentialLog, 0L, sequentialLog.activeSegment.baseOffset), deleteHorizonMs)
+      sharingCleaner.doClean(LogToClean(tp, sharedLog, 0L, sharedLog.activeSegment.baseOffset), deleteHorizonMs)
+      assertTrue(sharedLog.numberOfSegments > 2)
+      assertEquals(lastOffsetsPerBatchInLog(sequentialLog).toList, lastOffsetsPerBatchInLog(sharedLog).toList)
+      assertEquals(offsetsInLog(sequentialLog).toList, offsetsInLog(sharedLog).toList)
+      assertEquals(sequentialLog.collectAbortedTransactions(0L, sequentialLog.logEndOffset),
+        sharedLog.collectAbortedTransactions(0L, sharedLog.logEndOffset))
+    }
+  }
+
+  /**
+   * Test that groups of segments shared with another cleaner thread are cleaned by either thread
+   */
+  @Test
+  def testSharedGroupCleaningWithHelpingThread(): Unit = {
+    val tp = new TopicPartition("test", 0)
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 256: java.lang.Integer)
+    val config = LogConfig.fromProps(logConfig.originals, logProps)
+    val expectedLog = makeLog(config = config)
+    val log = makeLog(dir = TestUtils.randomPartitionLogDir(tmpdir), config = config)
+    writeToLog(expectedLog, (0 until 200).map(i => (i % 17, i)))
+    writeToLog(log, (0 until 200).map(i => (i % 17, i)))
+    expectedLog.roll()
+    log.roll()
+
+    val cleanerManager = makeCleanerManager(log)
+    val helper = makeCleaner(Int.MaxValue)
+    @volatile var running = true
+    val helpingThread = new Thread(() => {
+      while (running) {
+        cleanerManager.awaitSharedCleaning(maxHelpingThreads = 1, timeoutMs = 10L, running)
+        cleanerManager.grabSharedCleaningToHelp(maxHelpingThreads = 1).foreach { cleaning =>
+          try cleaning.clean(helper)
+          finally cleanerManager.doneHelping(cleaning.topicPartition)
+        }
+      }
+    })
+    helpingThread.start()
+    try {
+      makeCleaner(Int.MaxValue).clean(LogToClean(tp, expectedLog, 0L, expectedLog.activeSegment.baseOffset))
+      val (_, stats) = makeCleaner(Int.MaxValue, sharedCleaning = Some(cleanerManager))
+        .clean(LogToClean(tp, log, 0L, log.activeSegment.baseOffset))
+      assertEquals(200, stats.messagesRead)
+      assertEquals(LogTest.keysInLog(expectedLog).toList, LogTest.keysInLog(log).toList)
+      assertEquals(offsetsInLog(expectedLog).toList, offsetsInLog(log).toList)
+      assertTrue(cleanerManager.withdrawSharedCleanings(tp).isEmpty)
+    } finally {
+      running = false
+      helpingThread.join()
+    }
+  }
+
+  private def writeTransactionsAcrossSegments(log: Log): Unit = {
+    val producerEpoch = 0.toShort
+    val appendFirstProducer = appendTransactionalAsLeader(log, 1L, producerEpoch)
+    val appendSecondProducer = appendTransactionalAsLeader(log, 2L, producerEpoch)
+    for (i <- 0 until 30) {
+      appendFirstProducer(Seq(i % 7, i % 5))
+      appendSecondProducer(Seq(i % 3))
+      log.appendAsLeader(record(i % 11, i), leaderEpoch = 0)
+      val firstProducerMarker = if (i % 2 == 0) commitMarker(1L, producerEpoch) else abortMarker(1L, producerEpoch)
+      log.appendAsLeader(firstProducerMarker, leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      // the transactions of the second producer span several segments
+      if (i % 4 == 3) {
+        val secondProducerMarker = if (i % 8 == 3) abortMarker(2L, producerEpoch) else commitMarker(2L, producerEpoch)
+        log.appendAsLeader(secondProducerMarker, leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+      }
+    }
+    log.appendAsLeader(commitMarker(2L, producerEpoch), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+    log.roll()
+  }
+
+  private def makeCleanerManager(log: Log): LogCleanerManager = {
+    val logs = new Pool[TopicPartition, Log]()
+    logs.put(log.topicPartition, log)
+    new LogCleanerManager(Array(log.dir.getParentFile), logs, null)
+  }
+
   /**
    * Validate the logic for grouping log segments together for cleaning
    */
@@ -1602,7 +1783,8 @@ class LogCleanerTest {
       producerIdExpirationCheckIntervalMs = LogManager.ProducerIdExpirationCheckIntervalMs,
       logDirFailureChannel = new LogDirFailureChannel(10))
 
-  private def makeCleaner(capacity: Int, checkDone: TopicPartition => Unit = _ => (), maxMessageSize: Int = 64*1024) =
+  private def makeCleaner(capacity: Int, checkDone: TopicPartition => Unit = _ => (), maxMessageSize: Int = 64*1024,
+                          minSegmentGarbageRatio: Double = 0.0, sharedCleaning: Option[LogCleanerManager] = None) =
     new Cleaner(id = 0,
                 offsetMap = new FakeOffsetMap(capacity),
                 ioBufferSize = maxMessageSize,
@@ -1610,7 +1792,9 @@ class LogCleanerTest {
                 dupBufferLoadFactor = 0.75,
                 throttler = throttler,
                 time = time,
-                checkDone = checkDone)
+                checkDone = checkDone,
+                minSegmentGarbageRatio = minSegmentGarbageRatio,
+                sharedCleaning = sharedCleaning)
 
   private def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for ((key, value) <- seq) yield log.appendAsLeader(record(key, value), leaderEpoch = 0).firstOffset.get
@@ -1712,5 +1896,8 @@ class FakeOffsetMap(val slots: Int) extends OffsetMap {
     lastOffset = offset
   }
 
+  // lookups do not modify the map
+  override def supportsConcurrentGets: Boolean = true
+
   override def toString: String = map.toString
 }
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.Properties
+import java.util.concurrent.{Callable, CountDownLatch, ExecutionException, Executors, TimeUnit}
+
+import kafka.server.{BrokerTopicStats, LogDirFailureChannel}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.errors.KafkaStorageException
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Test}
+import org.mockito.{ArgumentMatchers, Mockito}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest.Assertions.intercept
+
+class LogDirFlusherTest {
+
+  private val tmpDir = TestUtils.tempDir()
+  private val mockTime = new MockTime()
+  private val flusher = new LogDirFlusher(tmpDir.getAbsolutePath, mockTime)
+  private val log = createLog()
+  private var logClosed = false
+
+  @After
+  def tearDown(): Unit = {
+    flusher.shutdown()
+    if (!logClosed)
+      log.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testAppendsWaitForGroupCommit(): Unit = {
+    flusher.start()
+    val appenders = 4
+    val appendsPerThread = 50
+    val pool = Executors.newFixedThreadPool(appenders)
+    try {
+      val futures = (0 until appenders).map { _ =>
+        pool.submit(new Callable[Unit] {
+          override def call(): Unit = {
+            for (i <- 0 until appendsPerThread) {
+              val appendInfo = log.appendAsLeader(records(i), leaderEpoch = 0)
+              assertTrue("Append should only return once it is flushed", log.recoveryPoint > appendInfo.lastOffset)
+            }
+          }
+        })
+      }
+      futures.foreach(_.get(30, TimeUnit.SECONDS))
+    } finally {
+      pool.shutdown()
+    }
+    assertEquals(appenders * appendsPerThread, log.logEndOffset)
+    assertEquals(log.logEndOffset, log.recoveryPoint)
+    assertTrue(flusher.batchSizeHist.count > 0)
+  }
+
+  @Test
+  def testFlushesDirectlyWhenNotRunning(): Unit = {
+    log.appendAsLeader(records(0), leaderEpoch = 0)
+    assertEquals(1L, log.recoveryPoint)
+    assertEquals(0L, flusher.batchSizeHist.count)
+  }
+
+  @Test
+  def testCancelFailsPendingFlush(): Unit = {
+    assertPendingFlushFailsWhen(log.closeHandlers())
+  }
+
+  @Test
+  def testCloseFailsPendingFlush(): Unit = {
+    assertPendingFlushFailsWhen(log.close())
+  }
+
+  /**
+   * Keep the flusher busy with another log so that a flush of `log` stays pending, then check that an append waiting
+   * for it fails once `closeLog` cancels it.
+   */
+  private def assertPendingFlushFailsWhen(closeLog: => Unit): Unit = {
+    val flushStarted = new CountDownLatch(1)
+    val releaseFlush = new CountDownLatch(1)
+    val busyLog = Mockito.mock(classOf[Log])
+    Mockito.when(busyLog.flush(ArgumentMatchers.anyLong())).thenAnswer(new Answer[Unit] {
+      override def answer(invocation: InvocationOnMock): Unit = {
+        flushStarted.countDown()
+        releaseFlush.await()
+      }
+    })
+    flusher.start()
+    flusher.requestFlush(busyLog, 1L)
+    assertTrue(flushStarted.await(30, TimeUnit.SECONDS))
+
+    val pool = Executors.newSingleThreadExecutor()
+    try {
+      val append = pool.submit(new Callable[LogAppendInfo] {
+        override def call(): LogAppendInfo = log.appendAsLeader(records(0), leaderEpoch = 0)
+      })
+      TestUtils.waitUntilTrue(() => log.logEndOffset == 1L, "The append was not written")
+      closeLog
+      logClosed = true
+      val e = intercept[ExecutionException](append.get(30, TimeUnit.SECONDS))
+      assertTrue(e.getCause.isInstanceOf[KafkaStorageException])
+      assertEquals(0L, log.recoveryPoint)
+    } finally {
+      releaseFlush.countDown()
+      pool.shutdown()
+    }
+  }
+
+  private def records(i: Int): MemoryRecords =
+    MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(i.toString.getBytes))
+
+  private def createLog(): Log = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.FlushMessagesProp, 1L: java.lang.Long)
+    Log(dir = TestUtils.randomPartitionLogDir(tmpDir),
+      config = LogConfig(logProps),
+      logStartOffset = 0L,
+      recoveryPoint = 0L,
+      scheduler = mockTime.scheduler,
+      brokerTopicStats = new BrokerTopicStats,
+      time = mockTime,
+      maxProducerIdExpirationMs = 60 * 60 * 1000,
+      producerIdExpirationCheckIntervalMs = LogManager.ProducerIdExpirationCheckIntervalMs,
+      logDirFailureChannel = new LogDirFailureChannel(10),
+      logDirFlusher = Some(flusher))
+  }
+}
@@ -18,10 +18,12 @@
 package kafka.log
 
 import java.io._
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.util.{Collections, Properties}
 
 import kafka.server.{FetchDataInfo, FetchLogEnd}
-import kafka.server.checkpoints.OffsetCheckpointFile
+import kafka.server.checkpoints.{LogSegmentManifestFile, OffsetCheckpointFile}
 import kafka.utils._
 import org.apache.kafka.common.errors.OffsetOutOfRangeException
 import org.apache.kafka.common.utils.Utils
@@ -386,6 +388,107 @@ class LogManagerTest {
     }
   }
 
+  @Test
+  def testCleanShutdownTrustsUnchangedSegments(): Unit = {
+    val tp = new TopicPartition(name, 0)
+    val indexedConfig = LogConfig.fromProps(logConfig.originals, indexedLogProps)
+    logManager.shutdown()
+    logManager = TestUtils.createLogManager(defaultConfig = indexedConfig, logDirs = Seq(logDir), time = time)
+    logManager.startup()
+    var log = logManager.getOrCreateLog(tp, indexedConfig)
+    for (i <- 0 until 50)
+      log.appendAsLeader(TestUtils.singletonRecords(s"test$i".getBytes()), leaderEpoch = 0)
+    assertTrue(log.numberOfSegments > 2)
+    val numSegments = log.numberOfSegments
+    logManager.shutdown()
+
+    val manifestFile = new File(logDir, LogManager.SegmentManifestFile)
+    assertTrue("Segment manifest should be written on clean shutdown", manifestFile.exists)
+    assertEquals(numSegments, new LogSegmentManifestFile(manifestFile).read()(log.dir.getName).size)
+
+    logManager = TestUtils.createLogManager(defaultConfig = indexedConfig, logDirs = Seq(logDir), time = time)
+    logManager.startup()
+    assertFalse("Segment manifest should be deleted once logs are loaded", manifestFile.exists)
+    log = logManager.getLog(tp).get
+    assertEquals(numSegments, log.numberOfSegments)
+    val inactiveSegments = log.logSegments.toSeq.dropRight(1)
+    inactiveSegments.foreach { segment =>
+      assertFalse(segment.lazyOffsetIndex.isLoaded)
+      assertFalse(segment.lazyTimeIndex.isLoaded)
+    }
+
+    val firstSegment = inactiveSegments.head
+    assertEquals("test5", readValue(log, 5))
+    assertTrue(firstSegment.lazyOffsetIndex.isLoaded)
+    assertTrue(firstSegment.offsetIndex.entries > 0)
+  }
+
+  @Test
+  def testMalformedSegmentManifestIsIgnored(): Unit = {
+    val tp = new TopicPartition(name, 0)
+    var log = logManager.getOrCreateLog(tp, logConfig)
+    for (i <- 0 until 50)
+      log.appendAsLeader(TestUtils.singletonRecords(s"test$i".getBytes()), leaderEpoch = 0)
+    val numSegments = log.numberOfSegments
+    logManager.shutdown()
+
+    val manifestFile = new File(logDir, LogManager.SegmentManifestFile)
+    Files.write(manifestFile.toPath, "0\n2\nnot a segment manifest\n".getBytes(StandardCharsets.UTF_8))
+
+    // the manifest only lets segments skip their checks, so it must not take the log directory offline
+    logManager = createLogManager()
+    logManager.startup()
+    assertEquals(Seq(logDir.getAbsolutePath), logManager.liveLogDirs.map(_.getAbsolutePath))
+    log = logManager.getLog(tp).get
+    assertEquals(numSegments, log.numberOfSegments)
+    assertEquals("test5", readValue(log, 5))
+  }
+
+  @Test
+  def testCorruptIndexOfTrustedSegmentIsRebuilt(): Unit = {
+    val tp = new TopicPartition(name, 0)
+    val indexedConfig = LogConfig.fromProps(logConfig.originals, indexedLogProps)
+    logManager.shutdown()
+    logManager = TestUtils.createLogManager(defaultConfig = indexedConfig, logDirs = Seq(logDir), time = time)
+    logManager.startup()
+    var log = logManager.getOrCreateLog(tp, indexedConfig)
+    for (i <- 0 until 50)
+      log.appendAsLeader(TestUtils.singletonRecords(s"test$i".getBytes()), leaderEpoch = 0)
+    val firstSegment = log.logSegments.head
+    val indexEntries = (0 until firstSegment.offsetIndex.entries).map(firstSegment.offsetIndex.entry)
+    val offsetIndexFile = firstSegment.lazyOffsetIndex.file
+    logManager.shutdown()
+
+    // scramble the positions of the index entries, keeping the file size and last offset unchanged
+    val channel = new RandomAccessFile(offsetIndexFile, "rw")
+    try {
+      for (n <- 0 until indexEntries.size) {
+        channel.seek(n * 8 + 4)
+        channel.writeInt(Int.MaxValue - n)
+      }
+    } finally channel.close()
+
+    logManager = TestUtils.createLogManager(defaultConfig = indexedConfig, logDirs = Seq(logDir), time = time)
+    logManager.startup()
+    log = logManager.getLog(tp).get
+    assertEquals("test3", readValue(log, 3))
+    val rebuiltSegment = log.logSegments.head
+    assertEquals(indexEntries, (0 until rebuiltSegment.offsetIndex.entries).map(rebuiltSegment.offsetIndex.entry))
+  }
+
+  private def indexedLogProps: Properties = {
+    val props = new Properties()
+    props.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    props
+  }
+
+  private def readValue(log: Log, offset: Long): String = {
+    val batch = log.read(offset, 1, FetchLogEnd, minOneMessage = true).records.batches.iterator.next()
+    val record = batch.iterator.next()
+    assertEquals(offset, record.offset)
+    Utils.utf8(record.value)
+  }
+
   private def createLogManager(logDirs: Seq[File] = Seq(this.logDir)): LogManager = {
     TestUtils.createLogManager(
       defaultConfig = logConfig,
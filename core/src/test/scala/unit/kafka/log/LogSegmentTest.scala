@@ -269,6 +269,22 @@ class LogSegmentTest {
     assertTrue(seg.lazyOffsetIndex.file.exists)
   }
 
+  @Test
+  def testKeySketchFollowsSegmentFiles(): Unit = {
+    val seg = createSegment(40)
+    seg.keySketch = Some(new KeySketchBuilder().build())
+    assertEquals(Log.keySketchFile(seg.log.file.getParentFile, 40), seg.keySketchFile)
+    assertTrue(seg.keySketchFile.exists)
+
+    seg.changeFileSuffixes("", ".deleted")
+    assertEquals(Log.keySketchFile(seg.log.file.getParentFile, 40, ".deleted"), seg.keySketchFile)
+    assertTrue(seg.keySketchFile.exists)
+
+    val sketchFile = seg.keySketchFile
+    seg.deleteIfExists()
+    assertFalse(sketchFile.exists)
+  }
+
   /**
    * Create a segment with some data and an index. Then corrupt the index,
    * and recover the segment, the entries should all be readable.
@@ -350,6 +366,58 @@ class LogSegmentTest {
     assertEquals(100L, abortedTxn.lastStableOffset)
   }
 
+  @Test
+  def testRecoverIndexesRetainsProducerBatches(): Unit = {
+    val segment = createSegment(100)
+    val producerEpoch = 0.toShort
+    val partitionLeaderEpoch = 15
+    val sequence = 100
+
+    val pid1 = 5L
+    val pid2 = 10L
+
+    segment.append(largestOffset = 101L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 100L, MemoryRecords.withTransactionalRecords(100L, CompressionType.NONE,
+        pid1, producerEpoch, sequence, partitionLeaderEpoch, new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes)))
+    segment.append(largestOffset = 103L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 102L, MemoryRecords.withTransactionalRecords(102L, CompressionType.NONE,
+        pid2, producerEpoch, sequence, partitionLeaderEpoch, new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes)))
+    segment.append(largestOffset = 105L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 104L, MemoryRecords.withRecords(104L, CompressionType.NONE,
+        partitionLeaderEpoch, new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes)))
+    segment.append(largestOffset = 106L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 106L, endTxnRecords(ControlRecordType.ABORT, pid2, producerEpoch, offset = 106L))
+    segment.append(largestOffset = 107L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 107L, endTxnRecords(ControlRecordType.COMMIT, pid1, producerEpoch, offset = 107L))
+
+    val recoveryInfo = segment.recoverIndexes()
+    assertEquals(Some(List(100L, 102L, 106L, 107L)), recoveryInfo.producerBatches.map(_.map(_.baseOffset).toList))
+    assertEquals(Some(107L), recoveryInfo.lastOffsetOfV2Batches)
+
+    val stateManager = new ProducerStateManager(topicPartition, logDir)
+    segment.recoverProducerState(stateManager, recoveryInfo)
+    assertEquals(108L, stateManager.mapEndOffset)
+    assertEquals(List(new AbortedTxn(pid2, 102L, 106L, 100L)), segment.txnIndex.allAbortedTxns)
+  }
+
+  @Test
+  def testRecoverIndexesResetsTransactionIndexOfSegmentWithoutProducerIds(): Unit = {
+    val segment = createSegment(100)
+    segment.append(largestOffset = 101L, largestTimestamp = RecordBatch.NO_TIMESTAMP,
+      shallowOffsetOfMaxTimestamp = 100L, MemoryRecords.withRecords(100L, CompressionType.NONE, 0,
+        new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes)))
+    // an entry left over from data which is no longer in the segment
+    segment.txnIndex.append(new AbortedTxn(producerId = 5L, firstOffset = 100L, lastOffset = 101L, lastStableOffset = 100L))
+
+    val recoveryInfo = segment.recoverIndexes()
+    assertEquals(Some(Seq.empty), recoveryInfo.producerBatches)
+
+    val stateManager = new ProducerStateManager(topicPartition, logDir)
+    segment.recoverProducerState(stateManager, recoveryInfo)
+    assertEquals(102L, stateManager.mapEndOffset)
+    assertTrue(segment.txnIndex.allAbortedTxns.isEmpty)
+  }
+
   private def endTxnRecords(controlRecordType: ControlRecordType,
                             producerId: Long,
                             producerEpoch: Short,
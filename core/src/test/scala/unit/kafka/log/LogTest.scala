@@ -21,6 +21,7 @@ import java.io._
 import java.nio.ByteBuffer
 import java.nio.file.{Files, Paths}
 import java.util.regex.Pattern
+import java.util.concurrent.{ExecutorService, Executors}
 import java.util.{Collections, Optional, Properties}
 
 import com.yammer.metrics.Metrics
@@ -2023,6 +2024,30 @@ class LogTest {
       case _: RecordTooLargeException => // this is good
     }
   }
+
+  @Test
+  def testAppendBatchAsLeaderFailsOnlyInvalidMessageSets(): Unit = {
+    val first = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("You".getBytes), new SimpleRecord("bethe".getBytes))
+    val tooLarge = MemoryRecords.withRecords(CompressionType.NONE,
+      new SimpleRecord("change (I need more bytes)... blah blah blah.".getBytes),
+      new SimpleRecord("More padding boo hoo".getBytes))
+    val third = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("again".getBytes))
+    val logConfig = LogTest.createLogConfig(maxMessageBytes = tooLarge.sizeInBytes - 1)
+    val log = createLog(logDir, logConfig)
+
+    val results = log.appendBatchAsLeader(Seq(first, tooLarge, third).map(_ -> AppendOrigin.Client), leaderEpoch = 0)
+    assertEquals(3, results.size)
+    assertEquals(Some(0L), results.head.get.firstOffset)
+    assertEquals(1L, results.head.get.lastOffset)
+    assertTrue(results(1).failed.get.isInstanceOf[RecordTooLargeException])
+    assertEquals(Some(2L), results(2).get.firstOffset)
+    assertEquals(2L, results(2).get.lastOffset)
+    assertEquals(3L, log.logEndOffset)
+    assertEquals(List("You", "bethe", "again"),
+      log.read(0, Int.MaxValue, FetchLogEnd, minOneMessage = true).records.records.asScala.map(record =>
+        Utils.utf8(record.value)).toList)
+  }
+
   /**
    * Append a bunch of messages to a log and then re-open it both with and without recovery and check that the log re-initializes correctly.
    */
@@ -3736,6 +3761,84 @@ class LogTest {
     assertEquals(List(new AbortedTxn(pid1, 0L, 29L, 8L), new AbortedTxn(pid2, 8L, 74L, 36L)), abortedTransactions)
   }
 
+  @Test
+  def testParallelRecoveryRebuildsProducerStateAndLeaderEpochs(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 2)
+    val log = createLog(logDir, logConfig)
+    val epoch = 0.toShort
+
+    val pid1 = 1L
+    val pid2 = 2L
+    val appendPid1 = appendTransactionalAsLeader(log, pid1, epoch)
+    val appendPid2 = appendTransactionalAsLeader(log, pid2, epoch)
+
+    appendPid1(5)
+    appendNonTransactionalAsLeader(log, 3)
+    appendPid2(2)
+    log.appendAsLeader(TestUtils.singletonRecords("a".getBytes), leaderEpoch = 1)
+    appendPid1(10)
+    appendEndTxnMarkerAsLeader(log, pid1, epoch, ControlRecordType.ABORT, leaderEpoch = 1)
+    appendNonTransactionalAsLeader(log, 10)
+    log.appendAsLeader(TestUtils.singletonRecords("b".getBytes), leaderEpoch = 3)
+    appendPid2(6)
+    appendEndTxnMarkerAsLeader(log, pid2, epoch, ControlRecordType.COMMIT, leaderEpoch = 3)
+    appendPid1(4)
+    assertTrue(log.numberOfSegments > 3)
+
+    log.close()
+
+    // force a full rebuild of the transaction indexes, producer state and leader epochs
+    def recover(segmentRecoveryPool: Option[ExecutorService]): Log = {
+      log.logSegments.foreach(_.txnIndex.deleteIfExists())
+      deleteProducerSnapshotFiles()
+      Files.deleteIfExists(LeaderEpochCheckpointFile.newFile(logDir).toPath)
+      createLog(logDir, logConfig, segmentRecoveryPool = segmentRecoveryPool)
+    }
+
+    val serialLog = recover(segmentRecoveryPool = None)
+    val expectedAbortedTransactions = allAbortedTransactions(serialLog).toList
+    val expectedProducers = serialLog.activeProducersWithLastSequence
+    val expectedEpochs = serialLog.leaderEpochCache.get.epochEntries
+    val expectedLogEndOffset = serialLog.logEndOffset
+    serialLog.close()
+    assertEquals(2, expectedProducers.size)
+    assertFalse(expectedEpochs.isEmpty)
+
+    val pool = Executors.newFixedThreadPool(4)
+    try {
+      val parallelLog = recover(segmentRecoveryPool = Some(pool))
+      assertEquals(expectedLogEndOffset, parallelLog.logEndOffset)
+      assertEquals(expectedAbortedTransactions, allAbortedTransactions(parallelLog).toList)
+      assertEquals(expectedProducers, parallelLog.activeProducersWithLastSequence)
+      assertEquals(expectedEpochs, parallelLog.leaderEpochCache.get.epochEntries)
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  @Test
+  def testParallelRecoveryTruncatesAfterCorruptSegment(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 1000, indexIntervalBytes = 1)
+    var log = createLog(logDir, logConfig)
+    for (_ <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes, timestamp = mockTime.milliseconds), leaderEpoch = 0)
+    val segments = log.logSegments.toList
+    assertTrue(segments.size > 3)
+    val corruptSegment = segments(1)
+    val endOfCorruptSegment = segments(2).baseOffset
+    log.close()
+
+    TestUtils.appendNonsenseToFile(corruptSegment.log.file, 100)
+
+    val pool = Executors.newFixedThreadPool(4)
+    try log = createLog(logDir, logConfig, segmentRecoveryPool = Some(pool))
+    finally pool.shutdown()
+    assertEquals("All segments after the corrupt segment should be deleted", 2, log.numberOfSegments)
+    assertEquals(endOfCorruptSegment, log.logEndOffset)
+    assertEquals(endOfCorruptSegment, log.activeSegment.readNextOffset)
+    log.close()
+  }
+
   @Test
   def testRecoverOnlyLastSegment(): Unit = {
     val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 5)
@@ -4305,9 +4408,10 @@ class LogTest {
                         scheduler: Scheduler = mockTime.scheduler,
                         time: Time = mockTime,
                         maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
-                        producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs): Log = {
+                        producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
+                        segmentRecoveryPool: Option[ExecutorService] = None): Log = {
     LogTest.createLog(dir, config, brokerTopicStats, scheduler, time, logStartOffset, recoveryPoint,
-      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs)
+      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs, segmentRecoveryPool)
   }
 
   private def createLogWithOffsetOverflow(logConfig: LogConfig): (Log, LogSegment) = {
@@ -4374,7 +4478,8 @@ object LogTest {
                 logStartOffset: Long = 0L,
                 recoveryPoint: Long = 0L,
                 maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
-                producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs): Log = {
+                producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
+                segmentRecoveryPool: Option[ExecutorService] = None): Log = {
     Log(dir = dir,
       config = config,
       logStartOffset = logStartOffset,
@@ -4384,7 +4489,8 @@ object LogTest {
       time = time,
       maxProducerIdExpirationMs = maxProducerIdExpirationMs,
       producerIdExpirationCheckIntervalMs = producerIdExpirationCheckIntervalMs,
-      logDirFailureChannel = new LogDirFailureChannel(10))
+      logDirFailureChannel = new LogDirFailureChannel(10),
+      segmentRecoveryPool = segmentRecoveryPool)
   }
 
   /**
@@ -22,6 +22,7 @@ import java.nio._
 import kafka.utils.Exit
 import org.junit._
 import org.junit.Assert._
+import org.scalatest.Assertions.intercept
 
 class OffsetMapTest {
   
@@ -57,7 +58,123 @@ class OffsetMapTest {
     assertEquals(map.get(key(i-1L)), i-1L)
   }
 
+  @Test
+  def testDenseMapBasicValidation(): Unit = {
+    for (offsetDeltaEncoding <- Seq(true, false)) {
+      validateDenseMap(10, offsetDeltaEncoding = offsetDeltaEncoding)
+      validateDenseMap(1000, offsetDeltaEncoding = offsetDeltaEncoding)
+      validateDenseMap(5000, loadFactor = 0.9, offsetDeltaEncoding = offsetDeltaEncoding)
+    }
+  }
+
+  @Test
+  def testDenseMapKeysOfAllLengths(): Unit = {
+    // cover the tail handling of the hash for keys which are not a multiple of the block size
+    val keys = (0 until 40).map(length => ByteBuffer.wrap(Array.tabulate[Byte](length)(i => (i * 31 + length).toByte)))
+    val map = new DenseOffsetMap(4096)
+    keys.zipWithIndex.foreach { case (k, i) => map.put(k, i) }
+    assertEquals(keys.size, map.size)
+    keys.zipWithIndex.foreach { case (k, i) => assertEquals(i.toLong, map.get(k)) }
+  }
+
+  @Test
+  def testDenseMapOverwrite(): Unit = {
+    val map = new DenseOffsetMap(4096)
+    map.put(key(1), 10)
+    map.put(key(2), 11)
+    map.put(key(1), 12)
+    assertEquals(2, map.size)
+    assertEquals(12L, map.get(key(1)))
+    assertEquals(11L, map.get(key(2)))
+    assertEquals(12L, map.latestOffset)
+  }
+
+  @Test
+  def testDenseMapKeyPosition(): Unit = {
+    // the hash must only depend on the remaining bytes of the key
+    val map = new DenseOffsetMap(4096)
+    val buffer = ByteBuffer.allocate(20)
+    buffer.put("prefix".getBytes)
+    buffer.put("key".getBytes)
+    buffer.flip()
+    buffer.position(6)
+    map.put(buffer, 5L)
+    assertEquals(6, buffer.position())
+    assertEquals(5L, map.get(ByteBuffer.wrap("key".getBytes)))
+  }
+
+  @Test
+  def testDenseMapClear(): Unit = {
+    val map = new DenseOffsetMap(4000)
+    for (i <- 0 until 10)
+      map.put(key(i), i + 1000L)
+    map.clear()
+    assertEquals(0, map.size)
+    assertEquals(-1L, map.latestOffset)
+    for (i <- 0 until 10)
+      assertEquals(-1L, map.get(key(i)))
+    // the base offset of the deltas is reset as well
+    map.put(key(0), 5L)
+    assertEquals(5L, map.get(key(0)))
+  }
+
+  @Test
+  def testDenseMapClose(): Unit = {
+    val map = new DenseOffsetMap(4000)
+    map.put(key(1), 1L)
+    map.close()
+    // closing again does not free the slots twice
+    map.close()
+    intercept[IllegalStateException](map.get(key(1)))
+    intercept[IllegalStateException](map.put(key(2), 2L))
+    intercept[IllegalStateException](map.clear())
+  }
+
+  @Test
+  def testDenseMapGetWhenFull(): Unit = {
+    val map = new DenseOffsetMap(4096)
+    var i = 37L
+    while (map.size < map.slots) {
+      map.put(key(i), i)
+      i = i + 1L
+    }
+    assertEquals(-1L, map.get(key(i)))
+    assertEquals(i - 1L, map.get(key(i - 1L)))
+  }
+
+  @Test
+  def testDenseMapOffsetDeltaRange(): Unit = {
+    val map = new DenseOffsetMap(4096)
+    assertEquals(16, map.bytesPerEntry)
+    val base = Int.MaxValue.toLong * 3
+    map.put(key(0), base)
+    assertTrue(map.canPut(base + 0xFFFFFFFFL))
+    map.put(key(1), base + 0xFFFFFFFFL)
+    assertEquals(base, map.get(key(0)))
+    assertEquals(base + 0xFFFFFFFFL, map.get(key(1)))
+    assertFalse(map.canPut(base + 0x100000000L))
+    assertFalse(map.canPut(base - 1))
+
+    val absoluteMap = new DenseOffsetMap(4096, offsetDeltaEncoding = false)
+    assertEquals(20, absoluteMap.bytesPerEntry)
+    absoluteMap.put(key(0), 0L)
+    assertTrue(absoluteMap.canPut(Long.MaxValue))
+    absoluteMap.put(key(1), Long.MaxValue)
+    assertEquals(Long.MaxValue, absoluteMap.get(key(1)))
+  }
+
   def key(key: Long) = ByteBuffer.wrap(key.toString.getBytes)
+
+  def validateDenseMap(items: Int, loadFactor: Double = 0.5, offsetDeltaEncoding: Boolean = true): DenseOffsetMap = {
+    val bytesPerEntry = if (offsetDeltaEncoding) 16 else 20
+    val map = new DenseOffsetMap((items / loadFactor * bytesPerEntry).toInt, offsetDeltaEncoding)
+    for (i <- 0 until items)
+      map.put(key(i), i)
+    for (i <- 0 until items)
+      assertEquals(i.toLong, map.get(key(i)))
+    assertEquals(items, map.size)
+    map
+  }
   
   def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
     val map = new SkimpyOffsetMap((items/loadFactor * 24).toInt)
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.file.Files
+import java.util.Properties
+
+import kafka.server.{BrokerTopicStats, FetchLogEnd, LogDirFailureChannel}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Test}
+
+class SegmentFilePoolTest {
+
+  private val logDir = TestUtils.tempDir()
+  private val mockTime = new MockTime()
+  private val pool = new SegmentFilePool(logDir, spareFiles = 2, logFileSize = 4096, maxIndexSize = 1000)
+
+  @After
+  def tearDown(): Unit = {
+    pool.shutdown()
+    Utils.delete(logDir)
+  }
+
+  @Test
+  def testPoolIsToppedUp(): Unit = {
+    pool.start()
+    awaitSpareFiles(6)
+    val sizes = pool.poolFiles.map(file => file.getName.substring(file.getName.lastIndexOf('.')) -> file.length)
+    assertEquals(Set(".log" -> 4096L, ".index" -> 1000L / 8 * 8, ".timeindex" -> 1000L / 12 * 12), sizes.toSet)
+  }
+
+  @Test
+  def testClaim(): Unit = {
+    pool.start()
+    awaitSpareFiles(6)
+    val logFile = Log.logFile(logDir, 0L)
+    assertTrue(pool.claim(logFile))
+    assertEquals(4096L, logFile.length)
+    assertFalse("An existing file should not be replaced", pool.claim(logFile))
+    assertFalse("Transaction indexes are not pooled", pool.claim(Log.transactionIndexFile(logDir, 0L)))
+  }
+
+  @Test
+  def testRecycledFilesAreEmptied(): Unit = {
+    val deleted = new File(logDir, "00000000000000000000.log.deleted")
+    Files.write(deleted.toPath, Array.fill[Byte](100)(1))
+    pool.recycle(deleted, Log.LogFileSuffix)
+    assertFalse(deleted.exists)
+    // prepare the returned file only, with the thread not running the pool is not topped up
+    pool.doWork()
+    assertEquals(1, pool.spareFileCount)
+
+    val logFile = Log.logFile(logDir, 0L)
+    assertTrue(pool.claim(logFile))
+    assertEquals(4096L, logFile.length)
+    assertTrue(Files.readAllBytes(logFile.toPath).forall(_ == 0))
+  }
+
+  @Test
+  def testRecycleDeletesFilesWhenFull(): Unit = {
+    for (i <- 0 until 3) {
+      val deleted = new File(logDir, s"$i.index.deleted")
+      Files.write(deleted.toPath, Array.fill[Byte](16)(1))
+      pool.recycle(deleted, Log.IndexFileSuffix)
+      assertFalse(deleted.exists)
+    }
+    assertEquals(2, pool.poolFiles.length)
+  }
+
+  @Test
+  def testSpareFilesOfPreviousRunArePreparedAgain(): Unit = {
+    pool.doWork()
+    pool.shutdown()
+    val restarted = new SegmentFilePool(logDir, spareFiles = 2, logFileSize = 4096, maxIndexSize = 1000)
+    try {
+      assertEquals(0, restarted.spareFileCount)
+      for (_ <- 0 until 6)
+        restarted.doWork()
+      // the files are renamed as they are prepared, none of them may replace another left over file
+      assertEquals(6, restarted.spareFileCount)
+      assertEquals(6, restarted.poolFiles.length)
+      assertTrue(restarted.poolFiles.forall(file => Files.readAllBytes(file.toPath).forall(_ == 0)))
+    } finally {
+      restarted.shutdown()
+    }
+  }
+
+  @Test
+  def testLogRollsAndDeletesWithPool(): Unit = {
+    // top the pool up once without starting the thread, so that the files claimed by rolls are not replaced and the
+    // pool has room for the files of the deleted segments
+    pool.doWork()
+    assertEquals(6, pool.spareFileCount)
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 4096: Integer)
+    logProps.put(LogConfig.SegmentIndexBytesProp, 1000: Integer)
+    logProps.put(LogConfig.PreAllocateEnableProp, true: java.lang.Boolean)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: Integer)
+    val log = Log(dir = TestUtils.randomPartitionLogDir(logDir),
+      config = LogConfig(logProps),
+      logStartOffset = 0L,
+      recoveryPoint = 0L,
+      scheduler = mockTime.scheduler,
+      brokerTopicStats = new BrokerTopicStats,
+      time = mockTime,
+      maxProducerIdExpirationMs = 60 * 60 * 1000,
+      producerIdExpirationCheckIntervalMs = LogManager.ProducerIdExpirationCheckIntervalMs,
+      logDirFailureChannel = new LogDirFailureChannel(10),
+      segmentFilePool = Some(pool))
+    try {
+      for (i <- 0 until 100)
+        log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(new Array[Byte](100))), leaderEpoch = 0)
+      assertTrue(log.numberOfSegments > 2)
+
+      // every offset can still be looked up through the indexes of segments created from spare files
+      for (offset <- 0L until 100L) {
+        val fetchInfo = log.read(offset, maxLength = 1, isolation = FetchLogEnd, minOneMessage = true)
+        assertEquals(offset, fetchInfo.records.batches.iterator.next().baseOffset)
+      }
+
+      // the rolls used up the spare files
+      assertEquals(0, pool.spareFileCount)
+      assertEquals(0L, pool.recycledFileCount)
+
+      val deletedSegments = log.logSegments.size - 1
+      log.updateHighWatermark(log.logEndOffset)
+      log.maybeIncrementLogStartOffset(log.activeSegment.baseOffset)
+      log.deleteOldSegments()
+      mockTime.sleep(log.config.fileDeleteDelayMs + 1)
+      assertEquals(1, log.numberOfSegments)
+      // the pool has room for two files of each kind, the files of the other deleted segments are deleted
+      assertTrue(deletedSegments > 2)
+      assertEquals(6L, pool.recycledFileCount)
+      assertEquals(6, pool.poolFiles.length)
+    } finally {
+      log.close()
+    }
+  }
+
+  private def awaitSpareFiles(count: Int): Unit =
+    TestUtils.waitUntilTrue(() => pool.spareFileCount == count, s"Pool did not reach $count spare files")
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import kafka.server.{BrokerTopicStats, FetchDataInfo, FetchLogEnd, LogOffsetMetadata}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+class SegmentReadAheadTest {
+
+  private val tmpDir = TestUtils.tempDir()
+  private val logDir = TestUtils.randomPartitionLogDir(tmpDir)
+  private val topicPartition = new TopicPartition("read-ahead", 0)
+  private val mockTime = new MockTime()
+  private var log: Log = _
+
+  @Before
+  def setUp(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 4096)
+    log = LogTest.createLog(logDir, logConfig, new BrokerTopicStats, mockTime.scheduler, mockTime)
+    for (i <- 0 until 100)
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(i.toString.getBytes, new Array[Byte](100))), leaderEpoch = 0)
+    assertTrue("Log should have inactive segments", log.numberOfSegments > 2)
+  }
+
+  @After
+  def tearDown(): Unit = {
+    log.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testReadsAheadOfFetch(): Unit = {
+    val readAhead = new SegmentReadAhead(threads = 1, readAheadBytes = 1024)
+    val fetchInfo = log.read(0L, maxLength = 500, isolation = FetchLogEnd, minOneMessage = true)
+    readAhead.maybeReadAhead(topicPartition, fetchInfo)
+    // the window still covers the bytes following this fetch
+    readAhead.maybeReadAhead(topicPartition, fetchInfo)
+    readAhead.shutdown()
+    assertEquals(1024L, readAhead.bytesReadRate.count)
+  }
+
+  @Test
+  def testReadAheadAdvancesWithFetches(): Unit = {
+    val readAhead = new SegmentReadAhead(threads = 1, readAheadBytes = 1024)
+    val first = log.read(0L, maxLength = 500, isolation = FetchLogEnd, minOneMessage = true)
+    val firstEnd = first.fetchOffsetMetadata.relativePositionInSegment + first.records.sizeInBytes
+    readAhead.maybeReadAhead(topicPartition, first)
+    // fetch up to the middle of the window, only the bytes past the window are read again
+    val second = sliceOfFirstSegment(firstEnd, 600)
+    readAhead.maybeReadAhead(topicPartition, second)
+    readAhead.shutdown()
+    assertEquals(1024L + 600L, readAhead.bytesReadRate.count)
+  }
+
+  @Test
+  def testReadAheadStopsAtEndOfSegment(): Unit = {
+    val readAhead = new SegmentReadAhead(threads = 1, readAheadBytes = 1024 * 1024)
+    val fetchInfo = log.read(0L, maxLength = 500, isolation = FetchLogEnd, minOneMessage = true)
+    readAhead.maybeReadAhead(topicPartition, fetchInfo)
+    readAhead.shutdown()
+    val fetchEnd = fetchInfo.fetchOffsetMetadata.relativePositionInSegment + fetchInfo.records.sizeInBytes
+    assertEquals(log.logSegments.head.size - fetchEnd, readAhead.bytesReadRate.count)
+  }
+
+  @Test
+  def testMemoryRecordsAreIgnored(): Unit = {
+    val readAhead = new SegmentReadAhead(threads = 1, readAheadBytes = 1024)
+    val records = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("value".getBytes))
+    readAhead.maybeReadAhead(topicPartition, FetchDataInfo(LogOffsetMetadata(0L, 0L, 0), records))
+    readAhead.shutdown()
+    assertEquals(0L, readAhead.bytesReadRate.count)
+  }
+
+  private def sliceOfFirstSegment(position: Int, size: Int): FetchDataInfo = {
+    val segment = log.logSegments.head
+    FetchDataInfo(LogOffsetMetadata(0L, segment.baseOffset, position), segment.log.slice(position, size))
+  }
+}
@@ -0,0 +1,443 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log.remote
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.{Collections, Properties}
+
+import kafka.log.{AppendOrigin, Log, LogConfig, LogManager}
+import kafka.server.{FetchDataInfo, FetchHighWatermark, FetchIsolation, FetchTxnCommitted}
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.record.{CompressionType, ControlRecordType, EndTransactionMarker, MemoryRecords, SimpleRecord}
+import org.apache.kafka.common.requests.FetchResponse.AbortedTransaction
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+class RemoteLogManagerTest {
+
+  val time = new MockTime()
+  val topicPartition = new TopicPartition("remote", 0)
+  val logConfig = createLogConfig()
+
+  var logDir: File = _
+  var remoteDir: File = _
+  var logManager: LogManager = _
+  var remoteStorageManager: LocalFileSystemRemoteStorageManager = _
+  val remoteLogManagers = ListBuffer.empty[RemoteLogManager]
+
+  @Before
+  def setUp(): Unit = {
+    logDir = TestUtils.tempDir()
+    remoteDir = TestUtils.tempDir()
+    logManager = TestUtils.createLogManager(logDirs = Seq(logDir), time = time)
+    remoteStorageManager = new LocalFileSystemRemoteStorageManager
+    remoteStorageManager.configure(Collections.singletonMap(LocalFileSystemRemoteStorageManager.StorageDirProp,
+      remoteDir.getAbsolutePath))
+  }
+
+  @After
+  def tearDown(): Unit = {
+    remoteLogManagers.foreach(_.shutdown())
+    logManager.shutdown()
+    Utils.delete(logDir)
+    Utils.delete(remoteDir)
+  }
+
+  @Test
+  def testCopyClosedSegmentsBelowHighWatermark(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = -1)
+    val segments = log.logSegments.toSeq
+    assertTrue(segments.size > 3)
+
+    // only the first two segments are below the high watermark
+    log.updateHighWatermark(segments(2).baseOffset)
+    rlm.maintainRemoteLogs()
+    assertEquals(segments.take(2).map(_.baseOffset), rlm.remoteLogSegments(topicPartition).map(_.baseOffset))
+    assertEquals(segments(2).baseOffset - 1, rlm.remoteLogEndOffset(topicPartition))
+
+    // the active segment is never copied
+    log.updateHighWatermark(log.logEndOffset)
+    rlm.maintainRemoteLogs()
+    assertEquals(segments.dropRight(1).map(_.baseOffset), rlm.remoteLogSegments(topicPartition).map(_.baseOffset))
+    assertEquals(log.activeSegment.baseOffset - 1, rlm.remoteLogEndOffset(topicPartition))
+    assertEquals("No local segments should be deleted without local retention", segments.size, log.numberOfSegments)
+  }
+
+  @Test
+  def testFollowerDoesNotCopySegments(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = -1, isLeader = false)
+    rlm.maintainRemoteLogs()
+    assertEquals(Seq.empty, rlm.remoteLogSegments(topicPartition))
+  }
+
+  @Test
+  def testCompactedTopicIsNotEligible(): Unit = {
+    val log = logManager.getOrCreateLog(topicPartition, createLogConfig(cleanupPolicy = LogConfig.Compact))
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = -1)
+    assertFalse(rlm.isEligible(log))
+  }
+
+  @Test
+  def testLocalRetentionOnlyDeletesCopiedSegments(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    val segments = log.logSegments.toSeq
+    log.updateHighWatermark(segments(2).baseOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+
+    // the two copied segments are removed locally, the rest is kept although it breaches the local retention size
+    assertEquals(segments(2).baseOffset, log.logStartOffset)
+    assertEquals(segments.size - 2, log.numberOfSegments)
+  }
+
+  @Test
+  def testLocalRetentionMs(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = 1000, localRetentionBytes = -1)
+    rlm.maintainRemoteLogs()
+    assertEquals(0L, log.logStartOffset)
+
+    time.sleep(1001)
+    rlm.maintainRemoteLogs()
+    assertEquals(log.activeSegment.baseOffset, log.logStartOffset)
+    assertEquals(1, log.numberOfSegments)
+  }
+
+  @Test
+  def testReadFromRemoteStorage(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+    assertTrue(log.logStartOffset > 10)
+
+    for (fetchOffset <- 0L until log.logStartOffset) {
+      val fetchInfo = read(rlm, fetchOffset, maxBytes = 1024, FetchHighWatermark, minOneMessage = true).get
+      val batches = fetchInfo.records.batches.asScala.toSeq
+      assertTrue(batches.nonEmpty)
+      assertEquals(fetchOffset, batches.head.baseOffset)
+      assertTrue(fetchInfo.records.sizeInBytes <= 1024)
+      assertEquals(fetchOffset.toString, new String(Utils.toArray(batches.head.iterator.next().value)))
+    }
+
+    assertEquals(None, read(rlm, log.logEndOffset + 1, maxBytes = 1024, FetchHighWatermark,
+      minOneMessage = true))
+  }
+
+  @Test
+  def testReadRespectsMaxBytes(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val batchSize = log.logSegments.head.log.batches.asScala.head.sizeInBytes
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+
+    val fetchInfo = read(rlm, 0L, maxBytes = batchSize * 2, FetchHighWatermark, minOneMessage = false).get
+    assertEquals(2, fetchInfo.records.batches.asScala.size)
+
+    val empty = read(rlm, 0L, maxBytes = batchSize - 1, FetchHighWatermark, minOneMessage = false).get
+    assertEquals(0, empty.records.sizeInBytes)
+
+    val single = read(rlm, 0L, maxBytes = batchSize - 1, FetchHighWatermark, minOneMessage = true).get
+    assertEquals(1, single.records.batches.asScala.size)
+  }
+
+  @Test
+  def testReadCommittedReturnsAbortedTransactions(): Unit = {
+    val log = logManager.getOrCreateLog(topicPartition, logConfig)
+    val producerId = 1L
+    val producerEpoch = 0.toShort
+    appendRecords(log, 0 until 10)
+    // the transaction spans offsets 10 to 12, including its abort marker
+    log.appendAsLeader(MemoryRecords.withTransactionalRecords(CompressionType.NONE, producerId, producerEpoch, 0,
+      new SimpleRecord(time.milliseconds, "a".getBytes), new SimpleRecord(time.milliseconds, "b".getBytes)), leaderEpoch = 0)
+    log.appendAsLeader(MemoryRecords.withEndTransactionMarker(time.milliseconds, producerId, producerEpoch,
+      new EndTransactionMarker(ControlRecordType.ABORT, 0)), leaderEpoch = 0, origin = AppendOrigin.Coordinator)
+    appendRecords(log, 13 until 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+    assertTrue(log.logStartOffset > 12)
+
+    val fetchInfo = read(rlm, 10L, maxBytes = 1024, FetchTxnCommitted, minOneMessage = true).get
+    assertEquals(10L, fetchInfo.records.batches.asScala.head.baseOffset)
+    assertEquals(Some(List(new AbortedTransaction(producerId, 10L))), fetchInfo.abortedTransactions)
+
+    // fetches which end before the transaction do not return it
+    val beforeTransaction = read(rlm, 0L, maxBytes = 1, FetchTxnCommitted, minOneMessage = true).get
+    assertEquals(Some(List.empty), beforeTransaction.abortedTransactions)
+  }
+
+  @Test
+  def testLeaderListsRemoteSegmentsOnlyWhenItBecomesLeader(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val storage = new CountingStorageManager
+    var isLeader = true
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = -1, isLeader = isLeader,
+      storage = storage)
+
+    rlm.maintainRemoteLogs()
+    rlm.maintainRemoteLogs()
+    assertEquals(1, storage.listings.size)
+    assertEquals(log.activeSegment.baseOffset - 1, rlm.remoteLogEndOffset(topicPartition))
+
+    // the listing of a follower without local retention is not needed
+    isLeader = false
+    rlm.maintainRemoteLogs()
+    assertEquals(1, storage.listings.size)
+
+    isLeader = true
+    rlm.maintainRemoteLogs()
+    assertEquals(2, storage.listings.size)
+  }
+
+  @Test
+  def testFollowerListsRemoteSegmentsWhenLocalRetentionIsBreached(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val storage = new CountingStorageManager
+    val rlm = createRemoteLogManager(localRetentionMs = 1000, localRetentionBytes = -1, isLeader = false,
+      storage = storage)
+    rlm.maintainRemoteLogs()
+    rlm.maintainRemoteLogs()
+    assertEquals(1, storage.listings.size)
+
+    // the leader copies the first segment
+    val segments = log.logSegments.toSeq
+    storage.copyLogSegment(RemoteLogSegmentMetadata(topicPartition, segments.head.baseOffset, segments(1).baseOffset - 1,
+      segments.head.largestTimestamp, segments.head.size), LogSegmentFiles(segments.head.log.file,
+      segments.head.offsetIndex.file, segments.head.timeIndex.file, None))
+
+    // the periodic task runs as time passes and finds that the first segment breaches the local retention
+    time.sleep(1001)
+    assertEquals(2, storage.listings.size)
+    assertEquals(segments(1).baseOffset, log.logStartOffset)
+  }
+
+  @Test
+  def testReadListsRemoteSegmentsOnReaderThread(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0).maintainRemoteLogs()
+    assertTrue(log.logStartOffset > 0)
+
+    val storage = new CountingStorageManager
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0, storage = storage)
+    assertTrue(rlm.hasRemoteOffset(topicPartition, 0L))
+    assertTrue(storage.listings.isEmpty)
+    val fetchInfo = read(rlm, 0L, maxBytes = 1024, FetchHighWatermark, minOneMessage = true).get
+    assertTrue(fetchInfo.records.sizeInBytes > 0)
+    assertEquals(1, storage.listings.size)
+    assertTrue(storage.listings.peek.startsWith("remote-log-reader-"))
+  }
+
+  @Test
+  def testRemoteIndexesAreCached(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val storage = new CountingStorageManager
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0, storage = storage)
+    rlm.maintainRemoteLogs()
+    val numRemoteSegments = rlm.remoteLogSegments(topicPartition).size
+    assertTrue(numRemoteSegments > 1)
+
+    // without aborted transactions, the transaction indexes of all later remote segments are read
+    read(rlm, 0L, maxBytes = 1024, FetchTxnCommitted, minOneMessage = true)
+    read(rlm, 1L, maxBytes = 1024, FetchTxnCommitted, minOneMessage = true)
+    assertEquals(1, storage.offsetIndexFetches.get)
+    assertEquals(numRemoteSegments, storage.transactionIndexFetches.get)
+  }
+
+  @Test
+  def testRemoteRetentionDeletesSegmentsNotAvailableLocally(): Unit = {
+    val log = logManager.getOrCreateLog(topicPartition, createLogConfig(retentionMs = 5000))
+    appendRecords(log, 0 until 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = 1000, localRetentionBytes = -1)
+    rlm.maintainRemoteLogs()
+    val numRemoteSegments = rlm.remoteLogSegments(topicPartition).size
+    assertTrue(numRemoteSegments > 0)
+
+    // copied segments are deleted locally first and only then from remote storage
+    time.sleep(1001)
+    rlm.maintainRemoteLogs()
+    assertEquals(numRemoteSegments, rlm.remoteLogSegments(topicPartition).size)
+    time.sleep(4000)
+    rlm.maintainRemoteLogs()
+    assertEquals(Seq.empty, rlm.remoteLogSegments(topicPartition))
+    assertEquals(Seq.empty, remoteStorageManager.listLogSegments(topicPartition))
+  }
+
+  @Test
+  def testRemoteLogStartOffset(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    assertEquals(-1L, rlm.remoteLogStartOffset(topicPartition))
+
+    log.updateHighWatermark(log.logEndOffset)
+    rlm.maintainRemoteLogs()
+    // the local log start offset is kept apart from the start of the remote log
+    assertEquals(log.activeSegment.baseOffset, log.logStartOffset)
+    assertEquals(0L, rlm.remoteLogStartOffset(topicPartition))
+  }
+
+  @Test
+  def testDeleteRecordsBeforeRemoteLogStartOffset(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+    val segments = rlm.remoteLogSegments(topicPartition)
+    assertTrue(segments.size > 2)
+
+    // records in the middle of the second segment are deleted
+    val deleteOffset = segments(1).baseOffset + 1
+    rlm.deleteRecordsBefore(topicPartition, deleteOffset)
+    assertEquals(deleteOffset, rlm.remoteLogStartOffset(topicPartition))
+    assertEquals(None, read(rlm, deleteOffset - 1, maxBytes = 1024, FetchHighWatermark, minOneMessage = true))
+    assertTrue(read(rlm, deleteOffset, maxBytes = 1024, FetchHighWatermark, minOneMessage = true).isDefined)
+
+    // only the first segment is deleted from remote storage, the second one still has records which are not deleted
+    rlm.maintainRemoteLogs()
+    assertEquals(segments.drop(1), rlm.remoteLogSegments(topicPartition))
+    assertEquals(segments.drop(1), remoteStorageManager.listLogSegments(topicPartition))
+    assertEquals(deleteOffset, rlm.remoteLogStartOffset(topicPartition))
+  }
+
+  @Test
+  def testDeleteRemoteLog(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    log.updateHighWatermark(log.logEndOffset)
+    val rlm = createRemoteLogManager(localRetentionMs = -1, localRetentionBytes = 0)
+    rlm.maintainRemoteLogs()
+    assertTrue(remoteStorageManager.listLogSegments(topicPartition).nonEmpty)
+
+    logManager.asyncDelete(topicPartition)
+    rlm.deleteRemoteLog(topicPartition)
+    assertEquals(Seq.empty, remoteStorageManager.listLogSegments(topicPartition))
+    assertEquals(Seq.empty, rlm.remoteLogSegments(topicPartition))
+    assertEquals(-1L, rlm.remoteLogStartOffset(topicPartition))
+  }
+
+  @Test
+  def testLocalFileSystemStorageListsOnlyCompleteSegments(): Unit = {
+    val log = createLogWithSegments(numRecords = 100)
+    val segment = log.logSegments.head
+    val endOffset = log.logSegments.toSeq(1).baseOffset - 1
+    val metadata = RemoteLogSegmentMetadata(topicPartition, segment.baseOffset, endOffset, segment.largestTimestamp, segment.size)
+
+    remoteStorageManager.copyLogSegment(metadata, LogSegmentFiles(segment.log.file, segment.offsetIndex.file,
+      segment.timeIndex.file, None))
+    assertEquals(Seq(metadata), remoteStorageManager.listLogSegments(topicPartition))
+    assertEquals(0, remoteStorageManager.fetchTransactionIndex(metadata).remaining)
+    assertEquals(segment.size, remoteStorageManager.read(metadata, 0, Int.MaxValue).remaining)
+
+    // a partially copied log file is not listed
+    val partitionDir = new File(remoteDir, topicPartition.toString)
+    new File(partitionDir, Log.filenamePrefixFromOffset(100) + "-" + Log.filenamePrefixFromOffset(200) + "-0.log.tmp").createNewFile()
+    assertEquals(Seq(metadata), remoteStorageManager.listLogSegments(topicPartition))
+
+    remoteStorageManager.deleteLogSegment(metadata)
+    assertEquals(Seq.empty, remoteStorageManager.listLogSegments(topicPartition))
+  }
+
+  private def createLogConfig(cleanupPolicy: String = LogConfig.Delete, retentionMs: Long = -1): LogConfig = {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.IndexIntervalBytesProp, 1: java.lang.Integer)
+    logProps.put(LogConfig.MessageTimestampDifferenceMaxMsProp, Long.MaxValue.toString)
+    logProps.put(LogConfig.CleanupPolicyProp, cleanupPolicy)
+    logProps.put(LogConfig.RetentionMsProp, retentionMs: java.lang.Long)
+    LogConfig(logProps)
+  }
+
+  private def createLogWithSegments(numRecords: Int): Log = {
+    val log = logManager.getOrCreateLog(topicPartition, logConfig)
+    appendRecords(log, 0 until numRecords)
+    log
+  }
+
+  private def appendRecords(log: Log, values: Range): Unit = {
+    values.foreach { value =>
+      log.appendAsLeader(MemoryRecords.withRecords(CompressionType.NONE,
+        new SimpleRecord(time.milliseconds, Array.fill[Byte](64)(0), value.toString.getBytes)), leaderEpoch = 0)
+    }
+  }
+
+  private def createRemoteLogManager(localRetentionMs: Long,
+                                     localRetentionBytes: Long,
+                                     isLeader: => Boolean = true,
+                                     storage: RemoteStorageManager = remoteStorageManager): RemoteLogManager = {
+    val rlm = new RemoteLogManager(storage, logManager, time.scheduler, localRetentionMs,
+      localRetentionBytes, taskIntervalMs = 1000L, readerThreads = 1, indexCacheSize = 16, time)
+    rlm.startup(_ => isLeader)
+    remoteLogManagers += rlm
+    rlm
+  }
+
+  private def read(rlm: RemoteLogManager,
+                   fetchOffset: Long,
+                   maxBytes: Int,
+                   isolation: FetchIsolation,
+                   minOneMessage: Boolean): Option[FetchDataInfo] = {
+    if (rlm.hasRemoteOffset(topicPartition, fetchOffset))
+      Some(rlm.asyncRead(topicPartition, fetchOffset, maxBytes, isolation, minOneMessage).get())
+    else
+      None
+  }
+
+  /**
+   * Stores segments in the same directory as `remoteStorageManager`, records the thread of every listing and counts
+   * the index fetches.
+   */
+  private class CountingStorageManager extends LocalFileSystemRemoteStorageManager {
+    val listings = new ConcurrentLinkedQueue[String]()
+    val offsetIndexFetches = new AtomicInteger()
+    val transactionIndexFetches = new AtomicInteger()
+
+    configure(Collections.singletonMap(LocalFileSystemRemoteStorageManager.StorageDirProp, remoteDir.getAbsolutePath))
+
+    override def listLogSegments(topicPartition: TopicPartition): Seq[RemoteLogSegmentMetadata] = {
+      listings.add(Thread.currentThread.getName)
+      super.listLogSegments(topicPartition)
+    }
+
+    override def fetchOffsetIndex(segment: RemoteLogSegmentMetadata): ByteBuffer = {
+      offsetIndexFetches.incrementAndGet()
+      super.fetchOffsetIndex(segment)
+    }
+
+    override def fetchTransactionIndex(segment: RemoteLogSegmentMetadata): ByteBuffer = {
+      transactionIndexFetches.incrementAndGet()
+      super.fetchTransactionIndex(segment)
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.net.InetAddress
+import java.util.concurrent.{Callable, Executors, TimeUnit}
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Histogram
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.memory.MemoryPool
+import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.requests.{AbstractRequest, FetchRequest, MetadataRequest, RequestContext, RequestHeader}
+import org.apache.kafka.common.security.auth.{KafkaPrincipal, SecurityProtocol}
+import org.junit.Assert._
+import org.junit.{After, Test}
+
+import scala.collection.JavaConverters._
+
+class RequestChannelTest {
+
+  private val requestChannel = new RequestChannel(10, "", affinityGroups = 2)
+
+  @After
+  def tearDown(): Unit = {
+    requestChannel.shutdown()
+  }
+
+  @Test
+  def testHandlersPreferRequestsOfTheirGroup(): Unit = {
+    val fromProcessor0 = buildRequest(processor = 0)
+    val fromProcessor1 = buildRequest(processor = 1)
+    val fromProcessor2 = buildRequest(processor = 2)
+    requestChannel.sendRequest(fromProcessor0)
+    requestChannel.sendRequest(fromProcessor1)
+    requestChannel.sendRequest(fromProcessor2)
+
+    assertSame(fromProcessor1, requestChannel.receiveRequest(0, handlerId = 3))
+    assertSame(fromProcessor0, requestChannel.receiveRequest(0, handlerId = 0))
+    assertSame(fromProcessor2, requestChannel.receiveRequest(0, handlerId = 2))
+  }
+
+  @Test
+  def testHandlersTakeRequestsOfOtherGroups(): Unit = {
+    val fromProcessor0 = buildRequest(processor = 0)
+    val fromProcessor2 = buildRequest(processor = 2)
+    requestChannel.sendRequest(fromProcessor0)
+    requestChannel.sendRequest(fromProcessor2)
+
+    assertSame(fromProcessor0, requestChannel.receiveRequest(0, handlerId = 1))
+    assertSame(fromProcessor2, requestChannel.receiveRequest(0, handlerId = 1))
+    assertNull(requestChannel.receiveRequest(10, handlerId = 1))
+  }
+
+  @Test
+  def testIdleHandlerWakesUpForRequestsOfOtherGroups(): Unit = {
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val received = executor.submit(new Callable[RequestChannel.BaseRequest] {
+        override def call(): RequestChannel.BaseRequest = requestChannel.receiveRequest(60000, handlerId = 1)
+      })
+      val fromProcessor0 = buildRequest(processor = 0)
+      requestChannel.sendRequest(fromProcessor0)
+      assertSame(fromProcessor0, received.get(10, TimeUnit.SECONDS))
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testConcurrentSendersAndHandlers(): Unit = {
+    val numRequests = 2000
+    val executor = Executors.newFixedThreadPool(6)
+    try {
+      val received = (0 until 3).map { handlerId =>
+        executor.submit(new Callable[Seq[RequestChannel.BaseRequest]] {
+          override def call(): Seq[RequestChannel.BaseRequest] = {
+            Iterator.continually(requestChannel.receiveRequest(60000, handlerId))
+              .takeWhile(_ != RequestChannel.ShutdownRequest).toList
+          }
+        })
+      }
+      val sent = (0 until 3).map { processor =>
+        executor.submit(new Callable[Seq[RequestChannel.Request]] {
+          override def call(): Seq[RequestChannel.Request] = (0 until numRequests).map { _ =>
+            val request = buildRequest(processor)
+            requestChannel.sendRequest(request)
+            request
+          }
+        })
+      }
+      val sentRequests = sent.flatMap(_.get(30, TimeUnit.SECONDS))
+      (0 until 3).foreach(handlerId => requestChannel.sendShutdownRequest(handlerId))
+      val receivedRequests = received.flatMap(_.get(30, TimeUnit.SECONDS))
+      assertEquals(sentRequests.size, receivedRequests.size)
+      assertEquals(sentRequests.toSet, receivedRequests.toSet)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  def testShutdownRequestsReachAllHandlers(): Unit = {
+    (0 until 3).foreach(handlerId => requestChannel.sendShutdownRequest(handlerId))
+    (0 until 3).foreach { handlerId =>
+      assertEquals(RequestChannel.ShutdownRequest, requestChannel.receiveRequest(0, handlerId))
+    }
+  }
+
+  @Test
+  def testFetchTimesAreTaggedByRead(): Unit = {
+    val fetchData = Map.empty[TopicPartition, FetchRequest.PartitionData].asJava
+    val request = buildRequest(processor = 0, FetchRequest.Builder.forConsumer(500, 1, fetchData))
+    request.coldRead = true
+    request.requestDequeueTimeNanos = 0
+    request.responseCompleteTimeNanos = 0
+    request.responseDequeueTimeNanos = 0
+    request.updateRequestMetrics(0L, new RequestChannel.NoOpResponse(request))
+
+    Seq(RequestMetrics.TotalTimeMs, RequestMetrics.ResponseSendTimeMs).foreach { name =>
+      Seq(ApiKeys.FETCH.name, RequestMetrics.consumerFetchMetricName).foreach { request =>
+        assertEquals(1L, histogramCount(name, s"read.cold.request.$request"))
+        assertEquals(0L, histogramCount(name, s"read.hot.request.$request"))
+      }
+    }
+  }
+
+  private def histogramCount(name: String, scope: String): Long = {
+    Metrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (metricName, histogram: Histogram) if metricName.getName == name && metricName.getScope == scope =>
+        histogram.count
+    }.getOrElse(throw new AssertionError(s"No histogram $name with scope $scope"))
+  }
+
+  private def buildRequest(processor: Int): RequestChannel.Request =
+    buildRequest(processor, MetadataRequest.Builder.allTopics())
+
+  private def buildRequest[T <: AbstractRequest](processor: Int, builder: AbstractRequest.Builder[T]): RequestChannel.Request = {
+    val request = builder.build()
+    val buffer = request.serialize(new RequestHeader(builder.apiKey, request.version, "", 0))
+    val header = RequestHeader.parse(buffer)
+    val context = new RequestContext(header, "1", InetAddress.getLocalHost, KafkaPrincipal.ANONYMOUS,
+      ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT), SecurityProtocol.PLAINTEXT)
+    new RequestChannel.Request(processor, context, startTimeNanos = 0, MemoryPool.NONE, buffer, requestChannel.metrics)
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.net.InetAddress
+
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
+import kafka.utils.TestUtils
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.memory.MemoryPool
+import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.record.MemoryRecords
+import org.apache.kafka.common.requests._
+import org.apache.kafka.common.security.auth.{KafkaPrincipal, SecurityProtocol}
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+
+import scala.collection.JavaConverters._
+
+class RequestMemoryTrackerTest {
+
+  private val metrics = new RequestChannel.Metrics
+  private val listener = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+  private var tracker: RequestMemoryTracker = _
+
+  @Before
+  def setUp(): Unit = {
+    TestUtils.clearYammerMetrics()
+    tracker = new RequestMemoryTracker("", Map(RequestClass.Produce -> 100L))
+  }
+
+  @After
+  def tearDown(): Unit = {
+    tracker.close()
+    metrics.close()
+  }
+
+  @Test
+  def testAccountsBytesPerClassAndApi(): Unit = {
+    val produce = produceRequest()
+    val metadata = metadataRequest()
+    tracker.acquire(produce)
+    tracker.acquire(metadata)
+
+    assertEquals(produce.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(RequestClass.Produce))
+    assertEquals(metadata.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(RequestClass.Control))
+    assertEquals(produce.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(listener.value, ApiKeys.PRODUCE))
+    assertEquals(metadata.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(listener.value, ApiKeys.METADATA))
+    assertEquals(0L, tracker.bytesInFlight(listener.value, ApiKeys.FETCH))
+    assertEquals(produce.sizeOfBodyInBytes.toLong, gaugeValue(Map("listener" -> listener.value, "request" -> ApiKeys.PRODUCE.name)))
+    assertEquals(produce.sizeOfBodyInBytes.toLong, gaugeValue(Map("requestClass" -> "produce")))
+
+    tracker.release(produce)
+    tracker.release(metadata)
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Produce))
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Control))
+    assertEquals(0L, tracker.bytesInFlight(listener.value, ApiKeys.PRODUCE))
+  }
+
+  @Test
+  def testAcquireAndReleaseAreIdempotent(): Unit = {
+    val produce = produceRequest()
+    tracker.release(produce)
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Produce))
+
+    tracker.acquire(produce)
+    tracker.acquire(produce)
+    assertEquals(produce.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(RequestClass.Produce))
+    tracker.release(produce)
+    tracker.release(produce)
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Produce))
+  }
+
+  @Test
+  def testOverBudget(): Unit = {
+    val requests = Iterator.continually(produceRequest())
+      .scanLeft(Seq.empty[RequestChannel.Request])(_ :+ _)
+      .find(_.map(_.sizeOfBodyInBytes).sum >= 100).get
+    requests.init.foreach(tracker.acquire)
+    assertFalse(tracker.isOverBudget(RequestClass.Produce))
+    tracker.acquire(requests.last)
+    assertTrue(tracker.isOverBudget(RequestClass.Produce))
+    // classes without a budget are never over it
+    assertFalse(tracker.isOverBudget(RequestClass.Admin))
+
+    tracker.release(requests.head)
+    assertFalse(tracker.isOverBudget(RequestClass.Produce))
+  }
+
+  @Test
+  def testCloseRemovesMetrics(): Unit = {
+    tracker.acquire(produceRequest())
+    tracker.close()
+    assertTrue(Metrics.defaultRegistry.allMetrics.keySet.asScala
+      .forall(_.getName != RequestMemoryTracker.RequestBytesInFlightMetric))
+  }
+
+  private def gaugeValue(tags: Map[String, String]): Long = {
+    val scope = tags.toSeq.sortBy(_._1).map { case (key, value) => s"$key.$value" }.mkString(".")
+    Metrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (name, gauge: Gauge[_]) if name.getName == RequestMemoryTracker.RequestBytesInFlightMetric &&
+        name.getScope == scope => gauge.value.asInstanceOf[Long]
+    }.getOrElse(throw new AssertionError(s"No gauge with tags $tags"))
+  }
+
+  private def produceRequest(): RequestChannel.Request =
+    buildRequest(ProduceRequest.Builder.forCurrentMagic(1, 1000, Map.empty[TopicPartition, MemoryRecords].asJava))
+
+  private def metadataRequest(): RequestChannel.Request = buildRequest(MetadataRequest.Builder.allTopics())
+
+  private def buildRequest[T <: AbstractRequest](builder: AbstractRequest.Builder[T]): RequestChannel.Request = {
+    val request = builder.build()
+    val buffer = request.serialize(new RequestHeader(builder.apiKey, request.version, "", 0))
+    val header = RequestHeader.parse(buffer)
+    val context = new RequestContext(header, "1", InetAddress.getLocalHost, KafkaPrincipal.ANONYMOUS,
+      listener, SecurityProtocol.PLAINTEXT)
+    new RequestChannel.Request(processor = 1, context = context, startTimeNanos = 0, MemoryPool.NONE, buffer, metrics)
+  }
+}
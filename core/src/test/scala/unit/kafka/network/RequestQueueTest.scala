@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.memory.MemoryPool
+import org.apache.kafka.common.message.ListGroupsRequestData
+import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.record.MemoryRecords
+import org.apache.kafka.common.requests._
+import org.apache.kafka.common.security.auth.{KafkaPrincipal, SecurityProtocol}
+import org.junit.Assert._
+import org.junit.{After, Test}
+
+import scala.collection.JavaConverters._
+
+class RequestQueueTest {
+
+  private val metrics = new RequestChannel.Metrics
+
+  @After
+  def tearDown(): Unit = {
+    metrics.close()
+  }
+
+  @Test
+  def testRequestClass(): Unit = {
+    assertEquals(RequestClass.Produce, produceRequest().requestClass)
+    assertEquals(RequestClass.Replication, fetchRequest(fromFollower = true).requestClass)
+    assertEquals(RequestClass.Consume, fetchRequest(fromFollower = false).requestClass)
+    assertEquals(RequestClass.Admin, listGroupsRequest().requestClass)
+    assertEquals(RequestClass.Control, metadataRequest().requestClass)
+    assertEquals(RequestClass.Control, buildRequest(new ApiVersionsRequest.Builder()).requestClass)
+  }
+
+  @Test
+  def testFifo(): Unit = {
+    val queue = new RequestQueue(10, RequestQueuePolicy.Fifo)
+    val requests = Seq(listGroupsRequest(), produceRequest(), fetchRequest(fromFollower = true))
+    requests.foreach(queue.put)
+    queue.put(RequestChannel.ShutdownRequest)
+
+    assertEquals(4, queue.size)
+    assertEquals(1, queue.size(RequestClass.Admin))
+    assertEquals(1, queue.size(RequestClass.Control))
+    assertEquals(requests :+ RequestChannel.ShutdownRequest, (1 to 4).map(_ => queue.take()))
+    assertEquals(0, queue.size(RequestClass.Admin))
+    assertNull(queue.poll(0, TimeUnit.MILLISECONDS))
+  }
+
+  @Test
+  def testPriority(): Unit = {
+    val queue = new RequestQueue(10, RequestQueuePolicy.Priority)
+    val admin = listGroupsRequest()
+    val consume = fetchRequest(fromFollower = false)
+    val produce = produceRequest()
+    val replication = fetchRequest(fromFollower = true)
+    Seq(admin, consume, produce, replication, RequestChannel.ShutdownRequest).foreach(queue.put)
+
+    assertEquals(Seq(RequestChannel.ShutdownRequest, replication, produce, consume, admin),
+      (1 to 5).map(_ => queue.take()))
+  }
+
+  @Test
+  def testPriorityDoesNotStarveLowerClasses(): Unit = {
+    val queue = new RequestQueue(1000, RequestQueuePolicy.Priority)
+    (1 to 200).foreach(_ => queue.put(metadataRequest()))
+    (1 to 200).foreach(_ => queue.put(fetchRequest(fromFollower = true)))
+    val admin = listGroupsRequest()
+    queue.put(admin)
+
+    def takeClass(): RequestClass = queue.take().asInstanceOf[RequestChannel.Request].requestClass
+    (1 to RequestQueue.MaxPassOvers).foreach(_ => assertEquals(RequestClass.Control, takeClass()))
+    // both lower classes have now been passed over too often, they are served from the highest
+    assertEquals(RequestClass.Replication, takeClass())
+    assertEquals(admin, queue.take())
+    assertEquals(RequestClass.Control, takeClass())
+  }
+
+  @Test
+  def testWeighted(): Unit = {
+    val weights = RequestClass.parseWeights(Map("replication" -> "3", "consume" -> "2"))
+    assertEquals(1, weights(RequestClass.Admin))
+    val queue = new RequestQueue(20, RequestQueuePolicy.Weighted, weights)
+    (1 to 6).foreach(_ => queue.put(listGroupsRequest()))
+    (1 to 6).foreach(_ => queue.put(fetchRequest(fromFollower = false)))
+    (1 to 6).foreach(_ => queue.put(fetchRequest(fromFollower = true)))
+
+    val classes = (1 to 18).map(_ => queue.take().asInstanceOf[RequestChannel.Request].requestClass)
+    val expectedRound = Seq.fill(3)(RequestClass.Replication) ++ Seq.fill(2)(RequestClass.Consume) :+ RequestClass.Admin
+    assertEquals(expectedRound ++ expectedRound, classes.take(12))
+    // once the higher weight classes are drained, the remaining admin requests are taken one after another
+    assertEquals(Seq.fill(2)(RequestClass.Consume) ++ Seq.fill(4)(RequestClass.Admin), classes.drop(12))
+    assertEquals(0, queue.size)
+  }
+
+  @Test
+  def testPutBlocksWhenFull(): Unit = {
+    val queue = new RequestQueue(2, RequestQueuePolicy.Priority)
+    queue.put(listGroupsRequest())
+    queue.put(produceRequest())
+
+    val sender = new Thread(() => queue.put(RequestChannel.ShutdownRequest))
+    sender.start()
+    sender.join(100)
+    assertTrue("Sender should block while the queue is full", sender.isAlive)
+    assertEquals(RequestClass.Produce, queue.take().asInstanceOf[RequestChannel.Request].requestClass)
+    sender.join(5000)
+    assertFalse(sender.isAlive)
+    assertEquals(RequestChannel.ShutdownRequest, queue.take())
+  }
+
+  @Test(expected = classOf[org.apache.kafka.common.config.ConfigException])
+  def testInvalidWeight(): Unit = {
+    RequestClass.parseWeights(Map("produce" -> "0"))
+  }
+
+  @Test
+  def testParseMaxBytes(): Unit = {
+    assertEquals(Map.empty, RequestClass.parseMaxBytes(Map.empty))
+    assertEquals(Map(RequestClass.Produce -> 1048576L, RequestClass.Consume -> 10L),
+      RequestClass.parseMaxBytes(Map("produce" -> "1048576", " consume" -> "10 ")))
+  }
+
+  @Test(expected = classOf[org.apache.kafka.common.config.ConfigException])
+  def testInvalidMaxBytes(): Unit = {
+    RequestClass.parseMaxBytes(Map("produce" -> "0"))
+  }
+
+  private def produceRequest(): RequestChannel.Request =
+    buildRequest(ProduceRequest.Builder.forCurrentMagic(1, 1000, Map.empty[TopicPartition, MemoryRecords].asJava))
+
+  private def fetchRequest(fromFollower: Boolean): RequestChannel.Request = {
+    val fetchData = Map.empty[TopicPartition, FetchRequest.PartitionData].asJava
+    val builder =
+      if (fromFollower) FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion, 1, 500, 1, fetchData)
+      else FetchRequest.Builder.forConsumer(500, 1, fetchData)
+    buildRequest(builder)
+  }
+
+  private def metadataRequest(): RequestChannel.Request = buildRequest(MetadataRequest.Builder.allTopics())
+
+  private def listGroupsRequest(): RequestChannel.Request =
+    buildRequest(new ListGroupsRequest.Builder(new ListGroupsRequestData()))
+
+  private def buildRequest[T <: AbstractRequest](builder: AbstractRequest.Builder[T]): RequestChannel.Request = {
+    val request = builder.build()
+    val buffer = request.serialize(new RequestHeader(builder.apiKey, request.version, "", 0))
+    val header = RequestHeader.parse(buffer)
+    val context = new RequestContext(header, "1", InetAddress.getLocalHost, KafkaPrincipal.ANONYMOUS,
+      ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT), SecurityProtocol.PLAINTEXT)
+    new RequestChannel.Request(processor = 1, context = context, startTimeNanos = 0, MemoryPool.NONE, buffer, metrics)
+  }
+}
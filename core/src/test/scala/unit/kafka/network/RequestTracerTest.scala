@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import org.apache.kafka.common.utils.MockTime
+import org.junit.Assert._
+import org.junit.Test
+
+class RequestTracerTest {
+
+  private val time = new MockTime()
+
+  @Test
+  def testShouldTrace(): Unit = {
+    val tracer = new RequestTracer(10, sampleRatio = 0.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    assertFalse(tracer.shouldTrace(99.9))
+    assertTrue(tracer.shouldTrace(100))
+
+    val sampleAll = new RequestTracer(10, sampleRatio = 1.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    assertTrue(sampleAll.shouldTrace(0))
+  }
+
+  @Test
+  def testOldestTracesAreOverwritten(): Unit = {
+    val tracer = new RequestTracer(3, sampleRatio = 1.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    (1 to 5).foreach { correlationId =>
+      tracer.record(trace(correlationId, totalTimeMs = correlationId))
+      time.sleep(1)
+    }
+
+    assertEquals(Set(3, 4, 5), tracer.allTraces.map(_.correlationId).toSet)
+    assertEquals(Seq(5, 4), tracer.recent(2).map(_.correlationId))
+  }
+
+  @Test
+  def testSlowTracesAreNotOverwrittenBySampledTraces(): Unit = {
+    val tracer = new RequestTracer(2, sampleRatio = 1.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    tracer.record(trace(1, totalTimeMs = 300))
+    tracer.record(trace(2, totalTimeMs = 200))
+    (3 to 10).foreach(correlationId => tracer.record(trace(correlationId, totalTimeMs = correlationId)))
+    assertEquals(Seq(1, 2), tracer.slowest(2, windowMs = 1000).map(_.correlationId))
+
+    // only the slowest traces are kept once there are more than the buffer size
+    tracer.record(trace(11, totalTimeMs = 400))
+    assertEquals(Seq(11, 1, 10), tracer.slowest(3, windowMs = 1000).map(_.correlationId))
+  }
+
+  @Test
+  def testSlowestInWindow(): Unit = {
+    val tracer = new RequestTracer(10, sampleRatio = 1.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    tracer.record(trace(1, totalTimeMs = 2000))
+    time.sleep(60000)
+    tracer.record(trace(2, totalTimeMs = 5))
+    tracer.record(trace(3, totalTimeMs = 50))
+    tracer.record(trace(4, totalTimeMs = 20))
+
+    assertEquals(Seq(1, 3), tracer.slowest(2, windowMs = 120000).map(_.correlationId))
+    assertEquals(Seq(3, 4), tracer.slowest(2, windowMs = 1000).map(_.correlationId))
+    assertEquals(3, tracer.slowestRequests(5, 1000).size)
+  }
+
+  @Test
+  def testSlowTracesAreKeptPerWindow(): Unit = {
+    val tracer = new RequestTracer(2, sampleRatio = 0.0, slowThresholdMs = 100, slowWindowMs = 60000, time)
+    tracer.record(trace(1, totalTimeMs = 5000))
+    tracer.record(trace(2, totalTimeMs = 4000))
+    time.sleep(60000)
+
+    // the slower traces of the previous window do not push out the ones of the current window
+    tracer.record(trace(3, totalTimeMs = 200))
+    tracer.record(trace(4, totalTimeMs = 300))
+    tracer.record(trace(5, totalTimeMs = 100))
+    assertEquals(Seq(4, 3), tracer.slowest(3, windowMs = 1000).map(_.correlationId))
+    assertEquals(Seq(1, 2, 4, 3), tracer.slowest(5, windowMs = 120000).map(_.correlationId))
+
+    // the traces of windows which are no longer kept are dropped
+    time.sleep(60000L * RequestTracer.SlowTraceWindows)
+    assertEquals(Seq.empty, tracer.allTraces)
+  }
+
+  private def trace(correlationId: Int, totalTimeMs: Double): RequestTrace =
+    RequestTrace("PRODUCE", 8, correlationId, "client", "connection", time.milliseconds, 0, totalTimeMs, 0, 0, 0, 0,
+      totalTimeMs)
+}
@@ -33,14 +33,14 @@ import kafka.utils.Implicits._
 import kafka.utils.{CoreUtils, TestUtils}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.memory.MemoryPool
-import org.apache.kafka.common.message.SaslAuthenticateRequestData
+import org.apache.kafka.common.message.{HeartbeatResponseData, SaslAuthenticateRequestData}
 import org.apache.kafka.common.message.SaslHandshakeRequestData
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.KafkaChannel.ChannelMuteState
-import org.apache.kafka.common.network.{ChannelBuilder, ChannelState, KafkaChannel, ListenerName, NetworkReceive, NetworkSend, Selector, Send}
+import org.apache.kafka.common.network.{ChannelBuilder, ChannelState, KafkaChannel, ListenerName, NetworkReceive, NetworkSend, PooledNetworkSend, Selector, Send}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
 import org.apache.kafka.common.record.MemoryRecords
-import org.apache.kafka.common.requests.{AbstractRequest, ProduceRequest, RequestHeader, SaslAuthenticateRequest, SaslHandshakeRequest}
+import org.apache.kafka.common.requests.{AbstractRequest, HeartbeatResponse, ProduceRequest, RequestHeader, SaslAuthenticateRequest, SaslHandshakeRequest}
 import org.apache.kafka.common.security.auth.{KafkaPrincipal, SecurityProtocol}
 import org.apache.kafka.common.security.scram.internals.ScramMechanism
 import org.apache.kafka.common.utils.{LogContext, MockTime, Time}
@@ -200,6 +200,133 @@ class SocketServerTest {
     verifyAcceptorBlockedPercent("PLAINTEXT", expectBlocked = false)
   }
 
+  @Test
+  def testPooledResponseBufferReleasedAfterSend(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.ResponseBufferPoolBytesProp, "1048576")
+    val pooledServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider)
+    try {
+      pooledServer.startup()
+      val channel = pooledServer.dataPlaneRequestChannel
+      val pool = channel.responseBufferPool
+      val socket = connect(pooledServer)
+      sendRequest(socket, producerRequestBytes())
+      val request = receiveRequest(channel)
+
+      val response = new HeartbeatResponse(new HeartbeatResponseData().setErrorCode(Errors.NONE.code))
+      val send = request.context.buildResponse(response, pool)
+      assertTrue(send.isInstanceOf[PooledNetworkSend])
+      assertTrue(pool.availableMemory < pool.size)
+      channel.sendResponse(new RequestChannel.SendResponse(request, send, Some(response.toString), None))
+
+      val responseBuffer = ByteBuffer.wrap(receiveResponse(socket))
+      assertEquals(request.header.correlationId, responseBuffer.getInt)
+      TestUtils.waitUntilTrue(() => send.asInstanceOf[PooledNetworkSend].released,
+        "Response buffer was not released after the send completed")
+      assertEquals(pool.size, pool.availableMemory)
+      socket.close()
+    } finally {
+      shutdownServerAndMetrics(pooledServer)
+    }
+  }
+
+  @Test
+  def testPooledResponseBufferReleasedWhenProcessorIsRemoved(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.ResponseBufferPoolBytesProp, "1048576")
+    val pooledServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider)
+    try {
+      pooledServer.startup()
+      val channel = pooledServer.dataPlaneRequestChannel
+      val pool = channel.responseBufferPool
+      val socket = connect(pooledServer)
+      sendRequest(socket, producerRequestBytes())
+      val request = receiveRequest(channel)
+      pooledServer.resizeThreadPool(oldNumNetworkThreads = 1, newNumNetworkThreads = 0)
+
+      val response = new HeartbeatResponse(new HeartbeatResponseData().setErrorCode(Errors.NONE.code))
+      val send = request.context.buildResponse(response, pool)
+      assertTrue(pool.availableMemory < pool.size)
+      channel.sendResponse(new RequestChannel.SendResponse(request, send, Some(response.toString), None))
+      assertTrue(send.asInstanceOf[PooledNetworkSend].released)
+      assertEquals(pool.size, pool.availableMemory)
+    } finally {
+      shutdownServerAndMetrics(pooledServer)
+    }
+  }
+
+  @Test
+  def testChannelsStayMutedWhileRequestClassIsOverMemoryBudget(): Unit = {
+    val testProps = new Properties
+    testProps ++= props
+    testProps.put(KafkaConfig.QueuedRequestsClassMaxBytesProp, "produce:1")
+    val budgetServer = new SocketServer(KafkaConfig.fromProps(testProps), new Metrics, Time.SYSTEM, credentialProvider)
+    try {
+      budgetServer.startup()
+      val channel = budgetServer.dataPlaneRequestChannel
+      val tracker = channel.memoryTracker
+      val serializedBytes = producerRequestBytes()
+      val socket1 = connect(budgetServer)
+      val socket2 = connect(budgetServer)
+
+      // the first request keeps the produce class over its budget until it is completed
+      sendRequest(socket1, serializedBytes)
+      val request1 = receiveRequest(channel)
+      assertTrue(tracker.isOverBudget(RequestClass.Produce))
+
+      sendRequest(socket2, serializedBytes)
+      processRequest(channel, receiveRequest(channel))
+      receiveResponse(socket2)
+
+      // the second connection is not read from while the class is over its budget
+      sendRequest(socket2, serializedBytes)
+      assertNull(channel.receiveRequest(300))
+      val listener = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT).value
+      assertEquals(request1.sizeOfBodyInBytes.toLong, tracker.bytesInFlight(listener, ApiKeys.PRODUCE))
+
+      processRequest(channel, request1)
+      receiveResponse(socket1)
+      processRequest(channel, receiveRequest(channel))
+      receiveResponse(socket2)
+      TestUtils.waitUntilTrue(() => tracker.bytesInFlight(RequestClass.Produce) == 0,
+        "Completed requests should no longer be accounted for")
+      socket1.close()
+      socket2.close()
+    } finally {
+      shutdownServerAndMetrics(budgetServer)
+    }
+  }
+
+  @Test
+  def testResponsesToRemovedProcessorsReleaseRequestMemory(): Unit = {
+    val channel = server.dataPlaneRequestChannel
+    val tracker = channel.memoryTracker
+    val socket = connect()
+    sendRequest(socket, producerRequestBytes())
+    val request = receiveRequest(channel)
+    assertTrue(tracker.bytesInFlight(RequestClass.Produce) > 0)
+
+    server.resizeThreadPool(oldNumNetworkThreads = 1, newNumNetworkThreads = 0)
+    processRequest(channel, request)
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Produce))
+  }
+
+  @Test
+  def testResponsesToRemovedListenerReleaseRequestMemory(): Unit = {
+    val channel = server.dataPlaneRequestChannel
+    val tracker = channel.memoryTracker
+    val socket = connect()
+    sendRequest(socket, producerRequestBytes())
+    val request = receiveRequest(channel)
+    assertTrue(tracker.bytesInFlight(RequestClass.Produce) > 0)
+
+    server.removeListeners(config.listeners.filter(_.listenerName == request.context.listenerName))
+    processRequest(channel, request)
+    assertEquals(0L, tracker.bytesInFlight(RequestClass.Produce))
+  }
+
   @Test
   def testStagedListenerStartup(): Unit = {
     val testProps = new Properties
@@ -329,6 +456,58 @@ class SocketServerTest {
     sockets.foreach(_.close)
   }
 
+  @Test
+  def testLeastLoadedConnectionsAssignment(): Unit = {
+    props.put(KafkaConfig.NumNetworkThreadsProp, "2")
+    props.put(KafkaConfig.ConnectionsAssignmentPolicyProp, ConnectionsAssignmentPolicy.LeastLoaded)
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, Time.SYSTEM, credentialProvider)
+
+    try {
+      overrideServer.startup()
+      val socket1 = connect(overrideServer)
+      val request1 = sendAndReceiveRequest(socket1, overrideServer)
+      processRequest(overrideServer.dataPlaneRequestChannel, request1)
+      receiveResponse(socket1)
+      val busyProcessor = overrideServer.dataPlaneProcessor(request1.processor)
+      TestUtils.waitUntilTrue(() => busyProcessor.byteRate > 0, "Processor byte rate not updated")
+
+      // the idle processor is chosen regardless of which processor is next in turn, since the
+      // busy one has sent a response in addition to receiving a request
+      (1 to 2).foreach { _ =>
+        val request = sendAndReceiveRequest(connect(overrideServer), overrideServer)
+        assertNotEquals(busyProcessor.id, request.processor)
+      }
+    } finally {
+      shutdownServerAndMetrics(overrideServer)
+    }
+  }
+
+  @Test
+  def testRequestTracing(): Unit = {
+    props.put(KafkaConfig.RequestTracingBufferSizeProp, "10")
+    props.put(KafkaConfig.RequestTracingSampleRatioProp, "1.0")
+    val serverMetrics = new Metrics
+    val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, Time.SYSTEM, credentialProvider)
+
+    try {
+      overrideServer.startup()
+      val socket = connect(overrideServer)
+      val request = sendAndReceiveRequest(socket, overrideServer)
+      processRequest(overrideServer.dataPlaneRequestChannel, request)
+      receiveResponse(socket)
+
+      val tracer = overrideServer.requestTracer.get
+      TestUtils.waitUntilTrue(() => tracer.allTraces.nonEmpty, "Request was not traced")
+      val trace = tracer.allTraces.head
+      assertEquals(ApiKeys.PRODUCE.name, trace.apiKey)
+      assertEquals(request.context.connectionId, trace.connectionId)
+      assertEquals(Seq(trace), tracer.slowest(1, windowMs = 60000))
+    } finally {
+      shutdownServerAndMetrics(overrideServer)
+    }
+  }
+
   @Test
   def testIdleConnection(): Unit = {
     val idleTimeMs = 60000
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.server
+
+import org.junit.{Before, Test}
+import org.junit.Assert._
+
+/**
+ * Runs the purgatory tests against a purgatory using compact watchers.
+ */
+class DelayedOperationCompactWatchersTest extends DelayedOperationTest {
+
+  @Before
+  override def setUp(): Unit = {
+    purgatory = DelayedOperationPurgatory[MockDelayedOperation](purgatoryName = "mock", compactWatchers = true)
+  }
+
+  // DelayedFuturePurgatory does not use compact watchers, and its executor thread may outlive the inherited run
+  override def testDelayedFuture(): Unit = {}
+
+  @Test
+  def testPurgeClearsOperationsWatchingManyKeys(): Unit = {
+    val purgatory = DelayedOperationPurgatory[MockDelayedOperation](purgatoryName = "mock-purge", purgeInterval = 0,
+      reaperEnabled = false, compactWatchers = true)
+    try {
+      val keys = (0 until 100).map(i => s"key-$i")
+      val r1 = new MockDelayedOperation(100000L)
+      val r2 = new MockDelayedOperation(100000L)
+      assertFalse(purgatory.tryCompleteElseWatch(r1, keys))
+      assertFalse(purgatory.tryCompleteElseWatch(r2, Seq("key-0")))
+      assertEquals(101, purgatory.watched)
+
+      // completing r1 through one key only clears it from that key
+      r1.completable = true
+      assertEquals(1, purgatory.checkAndComplete("key-0"))
+      assertEquals(100, purgatory.watched)
+
+      // the purge clears r1 from all other keys
+      purgatory.advanceClock(0L)
+      assertEquals(1, purgatory.watched)
+
+      // the slot released by r1 is reused, but the keys of r1 no longer refer to it
+      val r3 = new MockDelayedOperation(100000L)
+      assertFalse(purgatory.tryCompleteElseWatch(r3, Seq("other")))
+      r3.completable = true
+      assertEquals(0, purgatory.checkAndComplete("key-5"))
+      assertFalse(r3.isCompleted)
+      assertEquals(1, purgatory.checkAndComplete("other"))
+
+      r2.completable = true
+      assertEquals(1, purgatory.checkAndComplete("key-0"))
+      assertEquals(0, purgatory.watched)
+    } finally {
+      purgatory.shutdown()
+    }
+  }
+}
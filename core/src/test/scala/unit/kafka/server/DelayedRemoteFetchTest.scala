@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.server
+
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.record.{CompressionType, MemoryRecords, SimpleRecord}
+import org.junit.Assert._
+import org.junit.Test
+
+class DelayedRemoteFetchTest {
+
+  private val localPartition = new TopicPartition("topic", 0)
+  private val remotePartition = new TopicPartition("topic", 1)
+  private val localRecords = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("local".getBytes))
+  private val remoteRecords = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("remote".getBytes))
+
+  @Test
+  def testCompletesOnceRemoteReadsAreDone(): Unit = {
+    val remoteRead = new CompletableFuture[FetchDataInfo]
+    var response: Option[Map[TopicPartition, FetchPartitionData]] = None
+    val delayedRemoteFetch = new DelayedRemoteFetch(1000L, Map(remotePartition -> remoteRead), logReadResults,
+      fetchPartitionData => response = Some(fetchPartitionData.toMap))
+
+    assertFalse(delayedRemoteFetch.tryComplete())
+    remoteRead.complete(FetchDataInfo(LogOffsetMetadata(5L), remoteRecords))
+    assertTrue(delayedRemoteFetch.tryComplete())
+
+    assertEquals(localRecords, response.get(localPartition).records)
+    assertEquals(remoteRecords, response.get(remotePartition).records)
+    assertEquals(Errors.NONE, response.get(remotePartition).error)
+  }
+
+  @Test
+  def testExpiredRemoteReadIsReturnedWithoutRecords(): Unit = {
+    val remoteRead = new CompletableFuture[FetchDataInfo]
+    var response: Option[Map[TopicPartition, FetchPartitionData]] = None
+    val delayedRemoteFetch = new DelayedRemoteFetch(1000L, Map(remotePartition -> remoteRead), logReadResults,
+      fetchPartitionData => response = Some(fetchPartitionData.toMap))
+
+    delayedRemoteFetch.run()
+    // the read is skipped if it has not started yet
+    assertTrue(remoteRead.isCancelled)
+    assertEquals(localRecords, response.get(localPartition).records)
+    assertEquals(0, response.get(remotePartition).records.sizeInBytes)
+    assertEquals(Errors.NONE, response.get(remotePartition).error)
+  }
+
+  @Test
+  def testFailedRemoteReadReturnsError(): Unit = {
+    val remoteRead = new CompletableFuture[FetchDataInfo]
+    remoteRead.completeExceptionally(new IOException("remote storage unavailable"))
+    var response: Option[Map[TopicPartition, FetchPartitionData]] = None
+    val delayedRemoteFetch = new DelayedRemoteFetch(1000L, Map(remotePartition -> remoteRead), logReadResults,
+      fetchPartitionData => response = Some(fetchPartitionData.toMap))
+
+    assertTrue(delayedRemoteFetch.tryComplete())
+    assertEquals(Errors.UNKNOWN_SERVER_ERROR, response.get(remotePartition).error)
+    assertEquals(Errors.NONE, response.get(localPartition).error)
+  }
+
+  private def logReadResults: Seq[(TopicPartition, LogReadResult)] = {
+    def logReadResult(records: MemoryRecords, remoteFetchInfo: Option[RemoteFetchInfo]): LogReadResult =
+      LogReadResult(info = FetchDataInfo(LogOffsetMetadata(5L), records),
+        highWatermark = 10L,
+        leaderLogStartOffset = 0L,
+        leaderLogEndOffset = 10L,
+        followerLogStartOffset = -1L,
+        fetchTimeMs = -1L,
+        readSize = 1024,
+        lastStableOffset = Some(10L),
+        remoteFetchInfo = remoteFetchInfo)
+
+    Seq(localPartition -> logReadResult(localRecords, None),
+      remotePartition -> logReadResult(MemoryRecords.EMPTY, Some(RemoteFetchInfo(5L, 1024, FetchHighWatermark,
+        minOneMessage = true))))
+  }
+}
@@ -131,6 +131,25 @@ class DynamicBrokerConfigTest {
     verifyConfigUpdateWithInvalidConfig(config, origProps, validProps, invalidProps)
   }
 
+  @Test
+  def testIoThreadsReductionBelowAffinityGroups(): Unit = {
+    val origProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 8181)
+    origProps.put(KafkaConfig.NumIoThreadsProp, "8")
+    origProps.put(KafkaConfig.RequestHandlerAffinityGroupsProp, "4")
+    val config = KafkaConfig(origProps)
+
+    val props = new Properties
+    props.put(KafkaConfig.NumIoThreadsProp, "4")
+    config.dynamicConfig.validate(props, perBrokerConfig = true)
+
+    props.put(KafkaConfig.NumIoThreadsProp, "3")
+    intercept[IllegalArgumentException] {
+      config.dynamicConfig.validate(props, perBrokerConfig = true)
+    }
+    config.dynamicConfig.updateBrokerConfig(0, props)
+    assertEquals(8, config.numIoThreads)
+  }
+
   @Test
   def testReconfigurableValidation(): Unit = {
     val origProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 8181)
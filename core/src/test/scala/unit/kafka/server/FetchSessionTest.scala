@@ -29,6 +29,8 @@ import org.junit.Assert._
 import org.junit.rules.Timeout
 import org.junit.{Rule, Test}
 
+import scala.collection.JavaConverters._
+
 class FetchSessionTest {
   @Rule
   def globalTimeout = Timeout.millis(120000)
@@ -126,6 +128,112 @@ class FetchSessionTest {
     assertEquals(3, cache.totalPartitions)
   }
 
+  @Test
+  def testSessionCacheLimitedByPartitions(): Unit = {
+    val cache = new FetchSessionCache(10, 100, maxPartitions = 30)
+    val id1 = cache.maybeCreateSession(0, false, 10, () => dummyCreate(10))
+    val id2 = cache.maybeCreateSession(10, false, 15, () => dummyCreate(15))
+    assertCacheContains(cache, id1, id2)
+    assertEquals(25, cache.totalPartitions)
+
+    // no room for more partitions, and no session can be evicted yet
+    assertEquals(INVALID_SESSION_ID, cache.maybeCreateSession(20, false, 10, () => dummyCreate(10)))
+    assertEquals(1, cache.notCreatedMeter.count)
+    // a session which would not fit into an empty cache is never created
+    assertEquals(INVALID_SESSION_ID, cache.maybeCreateSession(20, true, 31, () => dummyCreate(31)))
+    assertCacheContains(cache, id1, id2)
+
+    // a larger session evicts both smaller sessions to make room for its partitions
+    cache.touch(cache.get(id1).get, 150)
+    cache.touch(cache.get(id2).get, 150)
+    val id3 = cache.maybeCreateSession(150, false, 20, () => dummyCreate(20))
+    assertCacheContains(cache, id3)
+    assertEquals(20, cache.totalPartitions)
+    assertEquals(2, cache.evictionsMeter.count)
+    assertEquals(2, cache.lowerPriorityEvictionsMeter.count)
+    assertEquals(0, cache.staleEvictionsMeter.count)
+
+    // a stale session is evicted regardless of its size
+    val id4 = cache.maybeCreateSession(300, false, 5, () => dummyCreate(5))
+    assertCacheContains(cache, id3, id4)
+    val id5 = cache.maybeCreateSession(300, false, 10, () => dummyCreate(10))
+    assertCacheContains(cache, id4, id5)
+    assertEquals(1, cache.staleEvictionsMeter.count)
+  }
+
+  @Test
+  def testNoEvictionWhenSessionWouldNotFit(): Unit = {
+    val cache = new FetchSessionCache(10, 100, maxPartitions = 30)
+    val id1 = cache.maybeCreateSession(0, false, 5, () => dummyCreate(5))
+    val id2 = cache.maybeCreateSession(0, false, 20, () => dummyCreate(20))
+    cache.touch(cache.get(id1).get, 150)
+    cache.touch(cache.get(id2).get, 150)
+
+    // evicting the smaller session would not free enough partitions and the larger one is more valuable, so the
+    // smaller session is kept
+    assertEquals(INVALID_SESSION_ID, cache.maybeCreateSession(150, false, 12, () => dummyCreate(12)))
+    assertCacheContains(cache, id1, id2)
+    assertEquals(0, cache.evictionsMeter.count)
+  }
+
+  @Test
+  def testResizedSessionLimitedByPartitions(): Unit = {
+    val cache = new FetchSessionCache(10, 100, maxPartitions = 30)
+    val id1 = cache.maybeCreateSession(0, false, 10, () => dummyCreate(10))
+    val id2 = cache.maybeCreateSession(0, false, 15, () => dummyCreate(15))
+    cache.touch(cache.get(id1).get, 150)
+    cache.touch(cache.get(id2).get, 150)
+
+    // growing within the limit does not evict anything
+    val session1 = cache.get(id1).get
+    (10 until 15).foreach(i => session1.partitionMap.add(new CachedPartition("test", i)))
+    assertTrue(cache.maybeResize(session1, 150))
+    assertCacheContains(cache, id1, id2)
+    assertEquals(30, cache.totalPartitions)
+
+    // growing past the limit evicts the smaller session
+    val session2 = cache.get(id2).get
+    (15 until 20).foreach(i => session2.partitionMap.add(new CachedPartition("test", i)))
+    assertTrue(cache.maybeResize(session2, 150))
+    assertCacheContains(cache, id2)
+    assertEquals(20, cache.totalPartitions)
+    assertEquals(1, cache.lowerPriorityEvictionsMeter.count)
+
+    // a session which would not fit into an empty cache is removed
+    (20 until 31).foreach(i => session2.partitionMap.add(new CachedPartition("test", i)))
+    assertFalse(cache.maybeResize(session2, 150))
+    assertCacheContains(cache)
+    assertEquals(0, cache.totalPartitions)
+    assertEquals(1, cache.notResizedMeter.count)
+  }
+
+  @Test
+  def testIncrementalFetchFallsBackToFullFetchWhenSessionDoesNotFit(): Unit = {
+    val time = new MockTime()
+    val cache = new FetchSessionCache(10, 1000, maxPartitions = 2)
+    val fetchManager = new FetchManager(time, cache)
+
+    val reqData1 = new util.LinkedHashMap[TopicPartition, FetchRequest.PartitionData]
+    reqData1.put(new TopicPartition("foo", 0), new FetchRequest.PartitionData(0, 0, 100, Optional.empty()))
+    reqData1.put(new TopicPartition("foo", 1), new FetchRequest.PartitionData(0, 0, 100, Optional.empty()))
+    val context1 = fetchManager.newContext(JFetchMetadata.INITIAL, reqData1, EMPTY_PART_LIST, false)
+    val respData1 = new util.LinkedHashMap[TopicPartition, FetchResponse.PartitionData[Records]]
+    reqData1.keySet.asScala.foreach(tp => respData1.put(tp, new FetchResponse.PartitionData(Errors.NONE, 10, 10,
+      10, null, null)))
+    val resp1 = context1.updateAndGenerateResponseData(respData1)
+    assertNotEquals(INVALID_SESSION_ID, resp1.sessionId)
+
+    // adding a partition would exceed the limit, so the session is closed
+    val reqData2 = new util.LinkedHashMap[TopicPartition, FetchRequest.PartitionData]
+    reqData2.put(new TopicPartition("foo", 2), new FetchRequest.PartitionData(0, 0, 100, Optional.empty()))
+    val context2 = fetchManager.newContext(new JFetchMetadata(resp1.sessionId, 1), reqData2, EMPTY_PART_LIST, false)
+    assertEquals(classOf[SessionErrorContext], context2.getClass)
+    assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND, context2.updateAndGenerateResponseData(
+      new util.LinkedHashMap[TopicPartition, FetchResponse.PartitionData[Records]]).error)
+    assertEquals(0, cache.size)
+    assertEquals(0, cache.totalPartitions)
+  }
+
   val EMPTY_PART_LIST = Collections.unmodifiableList(new util.ArrayList[TopicPartition]())
 
   @Test
@@ -178,12 +286,15 @@ class FetchSessionTest {
     assertEquals(classOf[SessionErrorContext], context4.getClass)
     assertEquals(Errors.FETCH_SESSION_ID_NOT_FOUND,
       context4.updateAndGenerateResponseData(respData2).error())
+    assertEquals(1, cache.hitsMeter.count)
+    assertEquals(1, cache.missesMeter.count)
 
     // Continue the first fetch session we created.
     val reqData5 = new util.LinkedHashMap[TopicPartition, FetchRequest.PartitionData]
     val context5 = fetchManager.newContext(
       new JFetchMetadata(resp2.sessionId(), 1), reqData5, EMPTY_PART_LIST, false)
     assertEquals(classOf[IncrementalFetchContext], context5.getClass)
+    assertEquals(2, cache.hitsMeter.count)
     val reqData5Iter = reqData2.entrySet().iterator()
     context5.foreachPartition((topicPart, data) => {
       val entry = reqData5Iter.next()
@@ -343,7 +343,7 @@ class KafkaApisTest {
     groupCoordinator.onResignation(groupMetadataPartition.partition)
     EasyMock.expectLastCall()
 
-    EasyMock.replay(controller, replicaManager, txnCoordinator, groupCoordinator)
+    EasyMock.replay(controller, replicaManager, txnCoordinator, groupCoordinator, requestChannel)
 
     createKafkaApis().handleStopReplicaRequest(request)
 
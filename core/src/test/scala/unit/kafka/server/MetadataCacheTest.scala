@@ -20,10 +20,13 @@ import java.util
 import java.util.Optional
 import util.Arrays.asList
 
+import kafka.api.LeaderAndIsr
+import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.message.UpdateMetadataRequestData.{UpdateMetadataBroker, UpdateMetadataEndpoint, UpdateMetadataPartitionState}
 import org.apache.kafka.common.network.ListenerName
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
-import org.apache.kafka.common.requests.UpdateMetadataRequest
+import org.apache.kafka.common.requests.{MetadataResponse, UpdateMetadataRequest}
+import org.apache.kafka.common.requests.MetadataResponse.SerializedTopic
 import org.apache.kafka.common.security.auth.SecurityProtocol
 import org.junit.Test
 import org.junit.Assert._
@@ -503,4 +506,147 @@ class MetadataCacheTest {
     assertEquals(initialBrokerIds.toSet, aliveBrokersFromCache.map(_.id).toSet)
   }
 
+  @Test
+  def getSerializedTopicMetadata(): Unit = {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-0", 0, leader = 0), partitionState("topic-0", 1, leader = 1),
+      partitionState("topic-1", 0, leader = 1)))
+
+    for (version <- ApiKeys.METADATA.oldestVersion to ApiKeys.METADATA.latestVersion) {
+      val serializedTopics = checkSerializedTopicMetadata(cache, Set("topic-0", "topic-1"), listenerName, version.toShort)
+      assertEquals(Set("topic-0", "topic-1"), serializedTopics.map(_.topic).toSet)
+      // Later requests share the serialized topics
+      val serializedTopicsAgain = checkSerializedTopicMetadata(cache, Set("topic-0", "topic-1"), listenerName, version.toShort)
+      serializedTopics.zip(serializedTopicsAgain).foreach { case (serializedTopic, serializedTopicAgain) =>
+        assertSame(serializedTopic, serializedTopicAgain)
+      }
+    }
+
+    assertEquals(Seq("topic-1"), cache.getSerializedTopicMetadata(Set("topic-1", "unknown"), listenerName,
+      ApiKeys.METADATA.latestVersion).map(_.topic))
+  }
+
+  @Test
+  def serializedTopicMetadataIsInvalidatedByUpdates(): Unit = {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val version = ApiKeys.METADATA.latestVersion
+    def serializedTopic(topic: String): SerializedTopic =
+      checkSerializedTopicMetadata(cache, Set(topic), listenerName, version).head
+
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-0", 0, leader = 0), partitionState("topic-1", 0, leader = 0)))
+    val topic0 = serializedTopic("topic-0")
+    val topic1 = serializedTopic("topic-1")
+
+    // Only the updated topic is serialized again
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-0", 0, leader = 1)))
+    val updatedTopic0 = serializedTopic("topic-0")
+    assertNotSame(topic0, updatedTopic0)
+    assertSame(topic1, serializedTopic("topic-1"))
+
+    // An update without partitions and with the same brokers keeps all serialized topics
+    updateCache(cache, brokerIds = Seq(0, 1), Seq.empty)
+    assertSame(updatedTopic0, serializedTopic("topic-0"))
+    assertSame(topic1, serializedTopic("topic-1"))
+
+    // A broker change affects the partition errors of all topics
+    updateCache(cache, brokerIds = Seq(0), Seq.empty)
+    assertNotSame(updatedTopic0, serializedTopic("topic-0"))
+    val topic1WithBrokerChange = serializedTopic("topic-1")
+    assertNotSame(topic1, topic1WithBrokerChange)
+
+    // Deleted topics are left out
+    updateCache(cache, brokerIds = Seq(0), Seq(partitionState("topic-1", 0, leader = LeaderAndIsr.LeaderDuringDelete)))
+    assertEquals(Seq.empty, cache.getSerializedTopicMetadata(Set("topic-1"), listenerName, version))
+
+    // A topic created again is serialized again
+    updateCache(cache, brokerIds = Seq(0), Seq(partitionState("topic-1", 0, leader = 0)))
+    assertNotSame(topic1WithBrokerChange, serializedTopic("topic-1"))
+  }
+
+  @Test
+  def applyMetadataDeltasAndFullSnapshots(): Unit = {
+    val cache = new MetadataCache(1)
+    def leaders: Map[TopicPartition, Int] = cache.getAllPartitions().map { tp =>
+      tp -> cache.getPartitionInfo(tp.topic, tp.partition).get.leader
+    }.toMap
+
+    // Updates without a metadata epoch are applied as before
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-0", 0, leader = 0), partitionState("topic-1", 0, leader = 0)))
+    assertEquals(-1L, cache.getMetadataEpoch)
+
+    // A full snapshot replaces the partition states
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-1", 0, leader = 1), partitionState("topic-2", 0, leader = 0)),
+      metadataEpoch = 5L)
+    assertEquals(Map(new TopicPartition("topic-1", 0) -> 1, new TopicPartition("topic-2", 0) -> 0), leaders)
+    assertEquals(5L, cache.getMetadataEpoch)
+
+    // A delta only changes the partition states it includes
+    val deletedPartitions = updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-2", 1, leader = 1),
+      partitionState("topic-1", 0, leader = LeaderAndIsr.LeaderDuringDelete)), metadataEpoch = 6L, previousMetadataEpoch = 5L)
+    assertEquals(Seq(new TopicPartition("topic-1", 0)), deletedPartitions)
+    assertEquals(Map(new TopicPartition("topic-2", 0) -> 0, new TopicPartition("topic-2", 1) -> 1), leaders)
+    assertEquals(6L, cache.getMetadataEpoch)
+
+    // A delta that does not follow the last update is applied, but the metadata epoch is reset to get a full snapshot
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-2", 0, leader = 1)), metadataEpoch = 8L,
+      previousMetadataEpoch = 7L)
+    assertEquals(Map(new TopicPartition("topic-2", 0) -> 1, new TopicPartition("topic-2", 1) -> 1), leaders)
+    assertEquals(-1L, cache.getMetadataEpoch)
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-2", 0, leader = 0)), metadataEpoch = 9L,
+      previousMetadataEpoch = 8L)
+    assertEquals(-1L, cache.getMetadataEpoch)
+    updateCache(cache, brokerIds = Seq(0, 1), Seq(partitionState("topic-2", 0, leader = 0)), metadataEpoch = 10L)
+    assertEquals(Map(new TopicPartition("topic-2", 0) -> 0), leaders)
+    assertEquals(10L, cache.getMetadataEpoch)
+  }
+
+  // Checks that the serialized topics are those of the current topic metadata
+  private def checkSerializedTopicMetadata(cache: MetadataCache, topics: Set[String], listenerName: ListenerName,
+                                           version: Short): Seq[SerializedTopic] = {
+    val errorUnavailableEndpoints = version == 0
+    val errorUnavailableListeners = version >= 6
+    val serializedTopics = cache.getSerializedTopicMetadata(topics, listenerName, version, errorUnavailableEndpoints,
+      errorUnavailableListeners)
+    val topicMetadata = cache.getTopicMetadata(topics, listenerName, errorUnavailableEndpoints, errorUnavailableListeners)
+    def responseData(serializedTopics: Seq[SerializedTopic], topicMetadata: Seq[MetadataResponse.TopicMetadata]) =
+      MetadataResponse.prepareResponse(version, 0, util.Collections.emptyList(), null, MetadataResponse.NO_CONTROLLER_ID,
+        serializedTopics.asJava, topicMetadata.asJava, MetadataResponse.AUTHORIZED_OPERATIONS_OMITTED).data
+    assertEquals(responseData(Seq.empty, topicMetadata), responseData(serializedTopics, Seq.empty))
+    serializedTopics
+  }
+
+  private def partitionState(topic: String, partition: Int, leader: Int): UpdateMetadataPartitionState =
+    new UpdateMetadataPartitionState()
+      .setTopicName(topic)
+      .setPartitionIndex(partition)
+      .setControllerEpoch(1)
+      .setLeader(leader)
+      .setLeaderEpoch(0)
+      .setIsr(asList(0, 1))
+      .setZkVersion(3)
+      .setReplicas(asList(0, 1))
+
+  private def updateCache(cache: MetadataCache,
+                          brokerIds: Seq[Int],
+                          partitionStates: Seq[UpdateMetadataPartitionState],
+                          metadataEpoch: Long = -1L,
+                          previousMetadataEpoch: Long = -1L): Seq[TopicPartition] = {
+    val brokers = brokerIds.map { brokerId =>
+      new UpdateMetadataBroker()
+        .setId(brokerId)
+        .setRack("")
+        .setEndpoints(Seq(new UpdateMetadataEndpoint()
+          .setHost("foo")
+          .setPort(9092)
+          .setSecurityProtocol(SecurityProtocol.PLAINTEXT.id)
+          .setListener(ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT).value)).asJava)
+    }
+    val version = ApiKeys.UPDATE_METADATA.latestVersion
+    val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, 2, 1, brokerEpoch, partitionStates.asJava,
+      brokers.asJava, metadataEpoch, previousMetadataEpoch).build()
+    cache.updateMetadata(15, updateMetadataRequest)
+  }
+
 }
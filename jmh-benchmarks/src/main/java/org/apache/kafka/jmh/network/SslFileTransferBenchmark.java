@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.network;
+
+import org.apache.kafka.common.network.SslTransportLayer;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a file over a loopback SSL connection, either with `SslTransportLayer.transferFrom`, or with
+ * `FileChannel.transferTo` to the transport layer as the broker did before `transferFrom` read file data into a buffer
+ * of its own. The peer is a plain `SSLSocket` that discards what it reads.
+ *
+ * A self-signed key pair is generated with the JDK's keytool when the benchmark is set up.
+ */
+@State(Scope.Thread)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SslFileTransferBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    @Param({"65536", "1048576"})
+    private int fileSize;
+
+    private File tempDir;
+    private SSLServerSocket serverSocket;
+    private Thread drainThread;
+    private Selector selector;
+    private SslTransportLayer transportLayer;
+    private FileChannel fileChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("ssl-file-transfer-benchmark").toFile();
+        SSLContext sslContext = createSslContext(new File(tempDir, "keystore.p12"));
+
+        serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0, 1,
+            InetAddress.getLoopbackAddress());
+        drainThread = new Thread(this::drain, "ssl-file-transfer-benchmark-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+            serverSocket.getLocalPort()));
+        socketChannel.configureBlocking(false);
+        selector = Selector.open();
+        SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+        SSLEngine sslEngine = sslContext.createSSLEngine("localhost", serverSocket.getLocalPort());
+        sslEngine.setUseClientMode(true);
+        transportLayer = SslTransportLayer.create("0", key, sslEngine);
+        while (!transportLayer.ready()) {
+            selector.select(100);
+            selector.selectedKeys().clear();
+            transportLayer.handshake();
+        }
+
+        File file = new File(tempDir, "segment.log");
+        byte[] data = new byte[fileSize];
+        new Random(0).nextBytes(data);
+        Files.write(file.toPath(), data);
+        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fileChannel.close();
+        transportLayer.close();
+        selector.close();
+        serverSocket.close();
+        drainThread.join(10000);
+        Utils.delete(tempDir);
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        long position = 0;
+        while (position < fileSize) {
+            long transferred = transportLayer.transferFrom(fileChannel, position, fileSize - position);
+            if (transferred == 0)
+                awaitWritable();
+            position += transferred;
+        }
+        return position;
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        long position = 0;
+        while (position < fileSize) {
+            long transferred = fileChannel.transferTo(position, fileSize - position, transportLayer);
+            if (transferred == 0)
+                awaitWritable();
+            position += transferred;
+        }
+        return position;
+    }
+
+    private void awaitWritable() throws IOException {
+        transportLayer.addInterestOps(SelectionKey.OP_WRITE);
+        selector.select(100);
+        selector.selectedKeys().clear();
+        transportLayer.removeInterestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void drain() {
+        try (SSLSocket socket = (SSLSocket) serverSocket.accept();
+             InputStream in = socket.getInputStream()) {
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (IOException e) {
+            // the connection is closed when the benchmark is torn down
+        }
+    }
+
+    private static SSLContext createSslContext(File keyStoreFile) throws Exception {
+        Process keytool = new ProcessBuilder(
+            new File(System.getProperty("java.home"), "bin/keytool").getAbsolutePath(),
+            "-genkeypair", "-alias", "benchmark", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+            "-dname", "CN=localhost", "-storetype", "PKCS12", "-keystore", keyStoreFile.getAbsolutePath(),
+            "-storepass", PASSWORD, "-keypass", PASSWORD)
+            .inheritIO()
+            .start();
+        if (keytool.waitFor() != 0)
+            throw new IllegalStateException("keytool failed with exit code " + keytool.exitValue());
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(SslFileTransferBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
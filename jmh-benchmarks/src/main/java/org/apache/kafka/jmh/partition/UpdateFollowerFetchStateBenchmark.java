@@ -47,6 +47,7 @@ import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.annotations.Warmup;
 import scala.Option;
 import scala.collection.JavaConverters;
@@ -58,6 +59,7 @@ import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @State(Scope.Benchmark)
 @Fork(value = 1)
@@ -84,7 +86,8 @@ public class UpdateFollowerFetchStateBenchmark {
                 JavaConverters.asScalaIteratorConverter(new ArrayList<File>().iterator()).asScala().toSeq(),
                 new scala.collection.mutable.HashMap<>(),
                 logConfig,
-                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5"),
+                new CleanerConfig(0, 0, 0, 0, 0, 0.0, 0, false, "MD5", true, 0.0, 1),
+                1,
                 1,
                 1000L,
                 10000L,
@@ -95,7 +98,9 @@ public class UpdateFollowerFetchStateBenchmark {
                 new BrokerState(),
                 brokerTopicStats,
                 logDirFailureChannel,
-                Time.SYSTEM);
+                Time.SYSTEM,
+                false,
+                0);
         OffsetCheckpoints offsetCheckpoints = Mockito.mock(OffsetCheckpoints.class);
         Mockito.when(offsetCheckpoints.fetch(logDir.getAbsolutePath(), topicPartition)).thenReturn(Option.apply(0L));
         DelayedOperations delayedOperations = new DelayedOperationsMock();
@@ -118,7 +123,7 @@ public class UpdateFollowerFetchStateBenchmark {
         partition = new Partition(topicPartition, 100,
                 ApiVersion$.MODULE$.latestVersion(), 0, Time.SYSTEM,
                 partitionStateStore, delayedOperations,
-                Mockito.mock(MetadataCache.class), logManager);
+                Mockito.mock(MetadataCache.class), logManager, false);
         partition.makeLeader(0, partitionState, 0, offsetCheckpoints);
     }
 
@@ -134,6 +139,14 @@ public class UpdateFollowerFetchStateBenchmark {
         }
     }
 
+    // each benchmark thread acts as one of the two followers, as the fetch request handlers of a leader do
+    @State(Scope.Thread)
+    public static class FollowerState {
+        private static final AtomicInteger NEXT_FOLLOWER = new AtomicInteger(0);
+        private final int followerId = 1 + NEXT_FOLLOWER.getAndIncrement() % 2;
+        private long nextOffset = 0;
+    }
+
     @TearDown(Level.Trial)
     public void tearDown() {
         logManager.shutdown();
@@ -177,4 +190,26 @@ public class UpdateFollowerFetchStateBenchmark {
         partition.updateFollowerFetchState(2, new LogOffsetMetadata(nextOffset, nextOffset, 0),
                 0, 1, 100, nextOffset);
     }
+
+    @Benchmark
+    @Threads(2)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void updateFollowerFetchStateConcurrentBench(FollowerState follower) {
+        // measure the impact of the two followers fetching concurrently from the leader
+        partition.updateFollowerFetchState(follower.followerId,
+                new LogOffsetMetadata(follower.nextOffset, follower.nextOffset, 0),
+                0, 1, follower.nextOffset, follower.nextOffset);
+        follower.nextOffset++;
+    }
+
+    @Benchmark
+    @Threads(2)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void updateFollowerFetchStateConcurrentBenchNoChange(FollowerState follower) {
+        // measure the impact of the two followers fetching concurrently from the leader when
+        // they didn't end up fetching anything
+        partition.updateFollowerFetchState(follower.followerId,
+                new LogOffsetMetadata(follower.nextOffset, follower.nextOffset, 0),
+                0, 1, 100, follower.nextOffset);
+    }
 }
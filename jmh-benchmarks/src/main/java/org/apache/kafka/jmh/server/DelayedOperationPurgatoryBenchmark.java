@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.server;
+
+import kafka.server.DelayedOperation;
+import kafka.server.DelayedOperationPurgatory;
+import kafka.server.DelayedOperationPurgatory$;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 15)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DelayedOperationPurgatoryBenchmark {
+    private static final int NUM_KEYS = 10_000;
+
+    @Param({"false", "true"})
+    private boolean compactWatchers;
+
+    @Param({"1", "100", "1000"})
+    private int keysPerOperation;
+
+    // the number of operations which remain watched while the benchmarks run, like long polling fetches
+    @Param({"1000"})
+    private int pendingOperations;
+
+    private final String[] keyNames = new String[NUM_KEYS];
+    private DelayedOperationPurgatory<FakeOperation> purgatory;
+    private List<Seq<Object>> watchKeys;
+    private int nextOperation = 0;
+    private int nextKey = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // the purge interval of the fetch purgatory, without a reaper or timer so that only the watchers are measured
+        purgatory = DelayedOperationPurgatory$.MODULE$.apply("benchmark", 0, 1000, false, false, compactWatchers);
+        // each operation watches a window of consecutive keys, as a fetch of the partitions of a few topics does
+        for (int i = 0; i < NUM_KEYS; i++)
+            keyNames[i] = "key-" + i;
+        watchKeys = new ArrayList<>();
+        for (int i = 0; i < NUM_KEYS; i++) {
+            List<Object> keys = new ArrayList<>(keysPerOperation);
+            for (int j = 0; j < keysPerOperation; j++)
+                keys.add(keyNames[(i + j) % NUM_KEYS]);
+            watchKeys.add(JavaConverters.asScalaIteratorConverter(keys.iterator()).asScala().toSeq());
+        }
+        for (int i = 0; i < pendingOperations; i++)
+            purgatory.tryCompleteElseWatch(new FakeOperation(), nextWatchKeys());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        purgatory.shutdown();
+    }
+
+    private Seq<Object> nextWatchKeys() {
+        nextOperation = (nextOperation + 1) % NUM_KEYS;
+        return watchKeys.get(nextOperation);
+    }
+
+    @Benchmark
+    public boolean watchAndComplete() {
+        // measure an operation which is watched and then completed through one of its keys, including the
+        // amortized cost of purging it from the other keys
+        FakeOperation operation = new FakeOperation();
+        Seq<Object> keys = nextWatchKeys();
+        purgatory.tryCompleteElseWatch(operation, keys);
+        operation.completable = true;
+        purgatory.checkAndComplete(keys.head());
+        purgatory.advanceClock(0L);
+        return operation.isCompleted();
+    }
+
+    @Benchmark
+    public int checkAndCompleteNoneCompletable() {
+        // measure the check of a key, such as on an append to a partition, whose watchers cannot complete yet
+        nextKey = (nextKey + 1) % NUM_KEYS;
+        return purgatory.checkAndComplete(keyNames[nextKey]);
+    }
+
+    private static class FakeOperation extends DelayedOperation {
+        private volatile boolean completable = false;
+
+        FakeOperation() {
+            super(100_000L, Option.empty());
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return completable && forceComplete();
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}